@@ -22,6 +22,7 @@ import android.view.View;
 import android.widget.ImageView;
 
 import com.android.contacts.common.ContactPhotoManager;
+import com.android.contacts.common.util.PhotoLoadMetrics;
 
 /**
  * A photo preloader that always uses the "no contact" picture and never executes any real
@@ -69,4 +70,18 @@ public class MockContactPhotoManager extends ContactPhotoManager {
     @Override
     public void preloadPhotosInBackground() {
     }
+
+    @Override
+    public void prefetchThumbnails(long[] photoIds) {
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return new CacheStats();
+    }
+
+    @Override
+    public PhotoLoadMetrics getMetrics() {
+        return new PhotoLoadMetrics();
+    }
 }
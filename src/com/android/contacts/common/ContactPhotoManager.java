@@ -33,13 +33,13 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
@@ -55,21 +55,34 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.android.contacts.common.lettertiles.LetterTileDrawable;
+import com.android.contacts.common.util.BitmapPool;
 import com.android.contacts.common.util.BitmapUtil;
+import com.android.contacts.common.util.PhotoCachePolicy;
+import com.android.contacts.common.util.PhotoDiskCache;
+import com.android.contacts.common.util.PhotoLoadMetrics;
+import com.android.contacts.common.util.RemotePhotoFetcher;
+import com.android.contacts.common.util.ThumbnailArena;
 import com.android.contacts.common.util.UriUtils;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -375,35 +388,58 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      * background and the type of letter is decided based on the contact's details.
      */
     private static class LetterTileDefaultImageProvider extends DefaultImageProvider {
+        /**
+         * A tile this provider created for one view only, which it can change when the view
+         * is rebound. Other tiles may be shared, like {@link #sDefaultLetterAvatar}.
+         */
+        private static class ViewLetterTileDrawable extends LetterTileDrawable {
+            ViewLetterTileDrawable(Resources res) {
+                super(res);
+            }
+        }
+
         @Override
         public void applyDefaultImage(ImageView view, int extent, boolean darkTheme,
                 DefaultImageRequest defaultImageRequest) {
-            final Drawable drawable = getDefaultImageForContact(view.getResources(),
-                    defaultImageRequest);
+            final Drawable current = view.getDrawable();
+            if (current instanceof ViewLetterTileDrawable) {
+                // Rows are rebound all the time while scrolling, reuse the tile they show
+                applyDefaultImageRequest((LetterTileDrawable) current, defaultImageRequest);
+                current.invalidateSelf();
+                return;
+            }
+            final LetterTileDrawable drawable = new ViewLetterTileDrawable(view.getResources());
+            applyDefaultImageRequest(drawable, defaultImageRequest);
             view.setImageDrawable(drawable);
         }
 
         public static Drawable getDefaultImageForContact(Resources resources,
                 DefaultImageRequest defaultImageRequest) {
             final LetterTileDrawable drawable = new LetterTileDrawable(resources);
-            if (defaultImageRequest != null) {
-                // If the contact identifier is null or empty, fallback to the
-                // displayName. In that case, use {@code null} for the contact's
-                // display name so that a default bitmap will be used instead of a
-                // letter
-                if (TextUtils.isEmpty(defaultImageRequest.identifier)) {
-                    drawable.setContactDetails(null, defaultImageRequest.displayName);
-                } else {
-                    drawable.setContactDetails(defaultImageRequest.displayName,
-                            defaultImageRequest.identifier);
-                }
-                drawable.setContactType(defaultImageRequest.contactType);
-                drawable.setScale(defaultImageRequest.scale);
-                drawable.setOffset(defaultImageRequest.offset);
-                drawable.setIsCircular(defaultImageRequest.isCircular);
-            }
+            applyDefaultImageRequest(drawable, defaultImageRequest);
             return drawable;
         }
+
+        private static void applyDefaultImageRequest(LetterTileDrawable drawable,
+                DefaultImageRequest defaultImageRequest) {
+            if (defaultImageRequest == null) {
+                defaultImageRequest = DefaultImageRequest.EMPTY_DEFAULT_IMAGE_REQUEST;
+            }
+            // If the contact identifier is null or empty, fallback to the
+            // displayName. In that case, use {@code null} for the contact's
+            // display name so that a default bitmap will be used instead of a
+            // letter
+            if (TextUtils.isEmpty(defaultImageRequest.identifier)) {
+                drawable.setContactDetails(null, defaultImageRequest.displayName);
+            } else {
+                drawable.setContactDetails(defaultImageRequest.displayName,
+                        defaultImageRequest.identifier);
+            }
+            drawable.setContactType(defaultImageRequest.contactType);
+            drawable.setScale(defaultImageRequest.scale);
+            drawable.setOffset(defaultImageRequest.offset);
+            drawable.setIsCircular(defaultImageRequest.isCircular);
+        }
     }
 
     private static class BlankDefaultImageProvider extends DefaultImageProvider {
@@ -549,6 +585,111 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Returns a snapshot of the counters of the photo caches. Managers without caches return
+     * empty counters.
+     */
+    public CacheStats getCacheStats() {
+        return new CacheStats();
+    }
+
+    /**
+     * Returns the latency histograms of the stages of photo loading. Managers that do not
+     * measure them return empty histograms.
+     */
+    public PhotoLoadMetrics getMetrics() {
+        return new PhotoLoadMetrics();
+    }
+
+    /**
+     * Writes the cache counters and latency histograms. Contact lists call it from
+     * {@link android.app.Fragment#dump}, so that they show up in {@code dumpsys activity}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        final CacheStats stats = getCacheStats();
+        writer.print(prefix);
+        writer.println("ContactPhotoManager:");
+        final String innerPrefix = prefix + "  ";
+        writer.print(innerPrefix);
+        writer.println(stats);
+        writer.print(innerPrefix);
+        writer.println("hit ratios: memory=" + formatRatio(stats.memoryHits, stats.memoryMisses)
+                + " bitmap=" + formatRatio(stats.bitmapHits, stats.bitmapMisses)
+                + " disk=" + formatRatio(stats.diskHits, stats.diskMisses)
+                + " remote=" + formatRatio(stats.remoteCacheHits + stats.remoteNotModified,
+                        stats.remoteDownloads));
+        getMetrics().dump(innerPrefix, writer);
+    }
+
+    private static String formatRatio(int hits, int misses) {
+        final int total = hits + misses;
+        return total == 0 ? "-" : (hits * 100 / total) + "%";
+    }
+
+    /**
+     * Counters of the photo caches, see {@link #getCacheStats}. Sizes are in bytes.
+     */
+    public static class CacheStats {
+        /** Lookups in the in-memory cache of compressed photos that found an entry. */
+        public int memoryHits;
+        /** Lookups in the in-memory cache of compressed photos that found no entry. */
+        public int memoryMisses;
+        /** Compressed photos evicted from memory to make room or under memory pressure. */
+        public int memoryEvictions;
+        public int memorySize;
+        public int memoryMaxSize;
+
+        /** Photos shown from a bitmap that was already decoded. */
+        public int bitmapHits;
+        /** Photos that had to be decoded before they could be shown. */
+        public int bitmapMisses;
+        /** Decoded bitmaps evicted from the bitmap cache. */
+        public int bitmapEvictions;
+        public int bitmapSize;
+        public int bitmapMaxSize;
+
+        /** Photos found in the compact store of compressed thumbnails. */
+        public int arenaHits;
+        public int arenaEntries;
+        public int arenaSize;
+        public int arenaMaxSize;
+
+        /** Photos read from the disk cache. */
+        public int diskHits;
+        /** Photos looked up in the disk cache and then loaded from their source. */
+        public int diskMisses;
+
+        /** Remote photos read from the disk cache without asking the server. */
+        public int remoteCacheHits;
+        /** Remote photos in the disk cache that the server confirmed to be up to date. */
+        public int remoteNotModified;
+        /** Remote photos downloaded. */
+        public int remoteDownloads;
+
+        @Override
+        public String toString() {
+            return "CacheStats{memory: " + memoryHits + " hits, " + memoryMisses + " misses, "
+                    + memoryEvictions + " evictions, " + memorySize + "/" + memoryMaxSize
+                    + "; bitmap: " + bitmapHits + " hits, " + bitmapMisses + " misses, "
+                    + bitmapEvictions + " evictions, " + bitmapSize + "/" + bitmapMaxSize
+                    + "; arena: " + arenaHits + " hits, " + arenaEntries + " entries, "
+                    + arenaSize + "/" + arenaMaxSize
+                    + "; disk: " + diskHits + " hits, " + diskMisses + " misses"
+                    + "; remote: " + remoteCacheHits + " cached, " + remoteNotModified
+                    + " not modified, " + remoteDownloads + " downloaded}";
+        }
+    }
+
+    /**
+     * Loads and decodes the given thumbnails in the background, ahead of the views that are
+     * going to show them, e.g. for the rows that are about to scroll into view. Photos are
+     * loaded in the given order, after any photos that views are waiting for. Replaces the
+     * photos passed to the previous call that have not been loaded yet. Does nothing by
+     * default.
+     */
+    public void prefetchThumbnails(long[] photoIds) {
+    }
+
     // ComponentCallbacks2
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -567,6 +708,36 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+    private static final String NETWORK_THREAD_NAME = "ContactPhotoNetwork";
+
+    /**
+     * Number of threads decoding photos. Leave one core for the UI thread, and don't use more
+     * than a few threads: we decode small thumbnails and are limited by memory bandwidth.
+     */
+    private static final int DECODER_THREAD_COUNT =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+    /** Number of threads fetching remote photos, e.g. from directory searches. */
+    private static final int NETWORK_THREAD_COUNT = 2;
+
+    /** Largest remote photo that is downloaded. Directory photos are thumbnails. */
+    private static final int MAX_REMOTE_PHOTO_BYTES = 1024 * 1024;
+
+    /** Time after which idle decoder and network threads are stopped. */
+    private static final int WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    /** Buffer size for reading photos referenced with Uris. */
+    private static final int BUFFER_SIZE = 1024 * 16;
+
+    /** Priority of work for a photo that a view is waiting for. */
+    private static final int PRIORITY_VISIBLE = PhotoTaskTracker.PRIORITY_VISIBLE;
+
+    /** Priority of work for a photo that is about to scroll into view. */
+    private static final int PRIORITY_PREFETCH = 1;
+
+    /** Priority of work for a photo that is loaded ahead of time. Runs last. */
+    private static final int PRIORITY_PRELOAD = 2;
 
     private static final int FADE_TRANSITION_DURATION = 200;
 
@@ -584,7 +755,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final String[] COLUMNS =
+            new String[] { Photo._ID, Photo.PHOTO, Data.DATA_VERSION };
+
+    private static final String[] VERSION_COLUMNS = new String[] { Data._ID, Data.DATA_VERSION };
+
+    /**
+     * Share of the budget for compressed photos that goes to {@link #mThumbnailArena}. The rest
+     * goes to {@link #mBitmapHolderCache}, which only needs to hold the photos in use.
+     */
+    private static final float THUMBNAIL_ARENA_SHARE = 0.75f;
+
+    /** Name of the directory, inside the application cache directory, for the disk cache. */
+    private static final String DISK_CACHE_DIRECTORY = "contact_photos";
 
     /**
      * Maintains the state of a particular photo.
@@ -594,8 +777,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         final int originalSmallerExtent;
 
         volatile boolean fresh;
+        // The bitmap fields are written with the holder locked, as the UI thread and decode
+        // threads can inflate the same holder at the same time, see inflateBitmap()
         Bitmap bitmap;
-        Reference<Bitmap> bitmapRef;
+        volatile Reference<Bitmap> bitmapRef;
         int decodedSampleSize;
 
         public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
@@ -603,6 +788,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             this.fresh = true;
             this.originalSmallerExtent = originalSmallerExtent;
         }
+
+        /**
+         * Returns the softly referenced bitmap without locking the holder, or null.
+         */
+        Bitmap getSoftBitmap() {
+            final Reference<Bitmap> ref = bitmapRef;
+            return ref == null ? null : ref.get();
+        }
     }
 
     private final Context mContext;
@@ -620,9 +813,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private volatile boolean mBitmapHolderCacheAllUnfresh = true;
 
     /**
-     * Cache size threshold at which bitmaps will not be preloaded.
+     * Compressed thumbnails keyed by photo id that are not in {@link #mBitmapHolderCache}:
+     * preloaded photos and photos evicted from {@link #mBitmapHolderCache}. Entries move back
+     * to {@link #mBitmapHolderCache} when they are requested.
      */
-    private final int mBitmapHolderCacheRedZoneBytes;
+    private final ThumbnailArena mThumbnailArena;
+
+    /**
+     * Size threshold of {@link #mThumbnailArena} at which photos will not be preloaded.
+     */
+    private final int mThumbnailArenaRedZoneBytes;
 
     /**
      * Level 2 LRU cache for bitmaps. This is a smaller cache that holds
@@ -631,6 +831,32 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private final LruCache<Object, Bitmap> mBitmapCache;
 
+    /**
+     * Bitmaps that decoding no longer uses, such as the uncropped originals of thumbnails, kept
+     * so that decoding can reuse their memory instead of allocating new bitmaps. Bitmaps that
+     * were shown are never put here, as drawables this class handed out may still draw them.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Level 3 cache that keeps photo bytes on disk across process restarts. Thumbnails are
+     * keyed by photo ID and data version, so an updated photo never matches an old entry.
+     * Created lazily on a background thread, see {@link #getDiskCache}.
+     */
+    private PhotoDiskCache mDiskCache;
+
+    /**
+     * Fetches remote photos, e.g. from directory searches, through {@link #mDiskCache}.
+     * Created lazily along with the disk cache, see {@link #getRemotePhotoFetcher}.
+     */
+    private RemotePhotoFetcher mRemotePhotoFetcher;
+
+    /**
+     * Disk cache entries for photo Uris written before this time are considered stale.
+     * Updated by {@link #refreshCache}.
+     */
+    private volatile long mDiskCacheValidSinceMillis;
+
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
      * The request may swapped out before the photo loading request is started.
@@ -638,11 +864,78 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final ConcurrentHashMap<ImageView, Request> mPendingRequests =
             new ConcurrentHashMap<ImageView, Request>();
 
+    /**
+     * The views in {@link #mPendingRequests} by the key of the photo they are waiting for, so
+     * that a photo shown by several views is loaded once. Only modified on the UI thread; the
+     * lists are only accessed on the UI thread.
+     */
+    private final ConcurrentHashMap<Object, ArrayList<ImageView>> mPendingViewsByKey =
+            new ConcurrentHashMap<Object, ArrayList<ImageView>>();
+
+    /**
+     * Requests for keys that the loader thread needs to look at, added by the UI thread when
+     * the first view starts waiting for a key or when a loaded photo still could not be shown.
+     */
+    private final ConcurrentLinkedQueue<Request> mNewRequests =
+            new ConcurrentLinkedQueue<Request>();
+
+    /**
+     * Keys of photos that have been loaded or decoded since the UI thread last displayed
+     * photos.
+     */
+    private final ConcurrentLinkedQueue<Object> mLoadedKeys = new ConcurrentLinkedQueue<Object>();
+
+    private final PhotoLoadMetrics mMetrics = new PhotoLoadMetrics();
+
     /**
      * Handler for messages sent to the UI thread.
      */
     private final Handler mMainThreadHandler = new Handler(this);
 
+    /**
+     * Pool of threads that decode photo bytes into bitmaps, so that loading photos from the
+     * database is not held up by decoding.
+     */
+    private final ThreadPoolExecutor mDecodeExecutor =
+            createWorkerPool(DECODER_THREAD_NAME, DECODER_THREAD_COUNT);
+
+    /**
+     * Pool of threads that fetch remote photos, so that a slow server does not hold up
+     * loading local photos.
+     */
+    private final ThreadPoolExecutor mNetworkExecutor =
+            createWorkerPool(NETWORK_THREAD_NAME, NETWORK_THREAD_COUNT);
+
+    /**
+     * The task that is queued or running for each photo key, if any. Used to avoid loading
+     * or decoding the same photo twice and to cancel work nobody is waiting for anymore.
+     */
+    private final PhotoTaskTracker mInFlightTasks = new PhotoTaskTracker(
+            new PhotoTaskTracker.Host() {
+        @Override
+        public boolean isKeyRequested(Object key) {
+            return ContactPhotoManagerImpl.this.isKeyRequested(key);
+        }
+
+        @Override
+        public void onSkippedKeyRequested(Object key) {
+            // Have the UI thread request it again
+            mLoadedKeys.add(key);
+            notifyPhotosLoaded();
+        }
+
+        @Override
+        public void onTaskStarted(long queuedAtNanos) {
+            mMetrics.recordSince(PhotoLoadMetrics.STAGE_TASK_QUEUE_WAIT, queuedAtNanos);
+        }
+    });
+
+    /**
+     * Photo IDs passed to {@link #prefetchThumbnails} that have not been loaded yet, nearest
+     * first. Guarded by itself.
+     */
+    private final List<Long> mPrefetchPhotoIds = Lists.newArrayList();
+
     /**
      * Thread responsible for loading photos from the database. Created upon
      * the first request.
@@ -659,11 +952,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private boolean mPaused;
 
-    /** Cache size for {@link #mBitmapHolderCache} for devices with "large" RAM. */
-    private static final int HOLDER_CACHE_SIZE = 2000000;
+    /** Size of {@link #mBitmapPool}, relative to the size of {@link #mBitmapCache}. */
+    private static final float BITMAP_POOL_SIZE_RATIO = 0.25f;
+
+    /** Cache size for {@link #mDiskCache} for devices with "large" RAM. */
+    private static final int DISK_CACHE_SIZE = 10 * 1024 * 1024;
 
-    /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
-    private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
+    /** Factor applied to the cache sizes, 0.5 on low RAM devices. */
+    private final float mCacheSizeAdjustment;
 
     /** Height/width of a thumbnail image */
     private static int mThumbnailSize;
@@ -674,15 +970,32 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /** For debug: How many times we had to reload cached photo for a fresh entry.  Should be 0. */
     private final AtomicInteger mFreshCacheOverwrite = new AtomicInteger();
 
+    /** How many photos were shown from a bitmap that was already decoded. */
+    private final AtomicInteger mDecodedBitmapHits = new AtomicInteger();
+
+    /** How many photos had to be decoded before they could be shown. */
+    private final AtomicInteger mDecodedBitmapMisses = new AtomicInteger();
+
+    /** How many photos were moved from {@link #mThumbnailArena} to the holder cache. */
+    private final AtomicInteger mThumbnailArenaHits = new AtomicInteger();
+
+    /** How many photos were read from {@link #mDiskCache}. */
+    private final AtomicInteger mDiskCacheHits = new AtomicInteger();
+
+    /** How many photos were not found in {@link #mDiskCache}. */
+    private final AtomicInteger mDiskCacheMisses = new AtomicInteger();
+
     public ContactPhotoManagerImpl(Context context) {
         mContext = context;
 
         final ActivityManager am = ((ActivityManager) context.getSystemService(
                 Context.ACTIVITY_SERVICE));
 
-        final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
+        final PhotoCachePolicy policy =
+                new PhotoCachePolicy(am.getMemoryClass(), am.isLowRamDevice());
+        mCacheSizeAdjustment = policy.getSizeAdjustment();
 
-        final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
+        final int bitmapCacheSize = policy.getBitmapCacheSize();
         mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
             @Override protected int sizeOf(Object key, Bitmap value) {
                 return value.getByteCount();
@@ -693,7 +1006,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 if (DEBUG) dumpStats();
             }
         };
-        final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
+        mBitmapPool = new BitmapPool((int) (bitmapCacheSize * BITMAP_POOL_SIZE_RATIO));
+        final int arenaSize = (int) (policy.getHolderCacheSize() * THUMBNAIL_ARENA_SHARE);
+        mThumbnailArena = new ThumbnailArena(arenaSize);
+        mThumbnailArenaRedZoneBytes = (int) (arenaSize * 0.75);
+        final int holderCacheSize = policy.getHolderCacheSize() - arenaSize;
         mBitmapHolderCache = new LruCache<Object, BitmapHolder>(holderCacheSize) {
             @Override protected int sizeOf(Object key, BitmapHolder value) {
                 return value.bytes != null ? value.bytes.length : 0;
@@ -701,13 +1018,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, BitmapHolder oldValue, BitmapHolder newValue) {
+                // Keep the bytes of evicted thumbnails in the compact store. Stale ones would
+                // be reloaded anyway.
+                if (evicted && key instanceof Long && oldValue.bytes != null && oldValue.fresh) {
+                    mThumbnailArena.put((Long) key, oldValue.bytes);
+                }
                 if (DEBUG) dumpStats();
             }
         };
-        mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
-        Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
+        Log.i(TAG, "Cache adj: " + mCacheSizeAdjustment + ", memory class: "
+                + am.getMemoryClass());
         if (DEBUG) {
             Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
+                    + " + " + btk(mThumbnailArena.maxSize())
                     + " + " + btk(mBitmapCache.maxSize()));
         }
 
@@ -715,6 +1038,61 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 R.dimen.contact_browser_list_item_photo_size);
     }
 
+    /**
+     * Returns the disk cache, creating it on first use. Must not be called on the UI thread,
+     * because looking up the cache directory may touch the disk.
+     */
+    private synchronized PhotoDiskCache getDiskCache() {
+        if (mDiskCache == null) {
+            mDiskCache = new PhotoDiskCache(
+                    new File(mContext.getCacheDir(), DISK_CACHE_DIRECTORY),
+                    (long) (mCacheSizeAdjustment * DISK_CACHE_SIZE));
+        }
+        return mDiskCache;
+    }
+
+    /**
+     * Returns the fetcher of remote photos, creating it on first use. Must not be called on
+     * the UI thread, see {@link #getDiskCache}.
+     */
+    private synchronized RemotePhotoFetcher getRemotePhotoFetcher() {
+        if (mRemotePhotoFetcher == null) {
+            mRemotePhotoFetcher = new RemotePhotoFetcher(getDiskCache(), NETWORK_THREAD_COUNT,
+                    MAX_REMOTE_PHOTO_BYTES);
+        }
+        return mRemotePhotoFetcher;
+    }
+
+    private static String getDiskCacheKey(long photoId, int dataVersion) {
+        return "photo:" + photoId + ":" + dataVersion;
+    }
+
+    private static boolean isRemoteUri(Uri uri) {
+        final String scheme = uri.getScheme();
+        return "http".equals(scheme) || "https".equals(scheme);
+    }
+
+    private static ThreadPoolExecutor createWorkerPool(final String name, int threadCount) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /** Converts bytes to K bytes, rounding up.  Used only for debug log. */
     private static String btk(int bytes) {
         return ((bytes + 1023) / 1024) + "K";
@@ -739,7 +1117,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 if (h.bytes != null) {
                     rawBytes += h.bytes.length;
                 }
-                Bitmap b = h.bitmapRef != null ? h.bitmapRef.get() : null;
+                Bitmap b = h.getSoftBitmap();
                 if (b != null) {
                     numBitmaps++;
                     bitmapBytes += b.getByteCount();
@@ -768,13 +1146,76 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Shrinks the caches according to the level of memory pressure: decoded bitmaps are
+     * dropped first, compressed bytes only once the process is in the background or memory is
+     * critically low. See {@link PhotoCachePolicy}.
+     */
     @Override
     public void onTrimMemory(int level) {
         if (DEBUG) Log.d(TAG, "onTrimMemory: " + level);
-        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+        final float holderCacheRatio = PhotoCachePolicy.getHolderCacheTrimRatio(level);
+        if (holderCacheRatio == 0f) {
             // Clear the caches.  Note all pending requests will be removed too.
             clear();
+            return;
+        }
+
+        final float bitmapCacheRatio = PhotoCachePolicy.getBitmapCacheTrimRatio(level);
+        if (bitmapCacheRatio < 1f) {
+            mBitmapCache.trimToSize((int) (mBitmapCache.maxSize() * bitmapCacheRatio));
+            mBitmapPool.clear();
+            if (bitmapCacheRatio == 0f) {
+                LetterTileDrawable.clearTileCache();
+                // Also let go of the bitmaps that only the holders refer to
+                for (BitmapHolder holder : mBitmapHolderCache.snapshot().values()) {
+                    synchronized (holder) {
+                        holder.bitmap = null;
+                        holder.bitmapRef = null;
+                    }
+                }
+            }
+        }
+        if (holderCacheRatio < 1f) {
+            // Trimmed holders move to the arena, so trim that afterwards
+            mBitmapHolderCache.trimToSize((int) (mBitmapHolderCache.maxSize() * holderCacheRatio));
+            mThumbnailArena.trimToSize((int) (mThumbnailArena.maxSize() * holderCacheRatio));
+        }
+        if (DEBUG) dumpStats();
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        final CacheStats stats = new CacheStats();
+        stats.memoryHits = mBitmapHolderCache.hitCount();
+        stats.memoryMisses = mBitmapHolderCache.missCount();
+        stats.memoryEvictions = mBitmapHolderCache.evictionCount();
+        stats.memorySize = mBitmapHolderCache.size();
+        stats.memoryMaxSize = mBitmapHolderCache.maxSize();
+        stats.bitmapHits = mDecodedBitmapHits.get();
+        stats.bitmapMisses = mDecodedBitmapMisses.get();
+        stats.bitmapEvictions = mBitmapCache.evictionCount();
+        stats.bitmapSize = mBitmapCache.size();
+        stats.bitmapMaxSize = mBitmapCache.maxSize();
+        stats.arenaHits = mThumbnailArenaHits.get();
+        stats.arenaEntries = mThumbnailArena.getEntryCount();
+        stats.arenaSize = mThumbnailArena.size();
+        stats.arenaMaxSize = mThumbnailArena.maxSize();
+        stats.diskHits = mDiskCacheHits.get();
+        stats.diskMisses = mDiskCacheMisses.get();
+        synchronized (this) {
+            if (mRemotePhotoFetcher != null) {
+                stats.remoteCacheHits = mRemotePhotoFetcher.getCacheHitCount();
+                stats.remoteNotModified = mRemotePhotoFetcher.getNotModifiedCount();
+                stats.remoteDownloads = mRemotePhotoFetcher.getDownloadCount();
+            }
         }
+        return stats;
+    }
+
+    @Override
+    public PhotoLoadMetrics getMetrics() {
+        return mMetrics;
     }
 
     @Override
@@ -783,13 +1224,30 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mLoaderThread.requestPreloading();
     }
 
+    @Override
+    public void prefetchThumbnails(long[] photoIds) {
+        synchronized (mPrefetchPhotoIds) {
+            mPrefetchPhotoIds.clear();
+            for (long photoId : photoIds) {
+                if (photoId != 0) {
+                    mPrefetchPhotoIds.add(photoId);
+                }
+            }
+            if (mPrefetchPhotoIds.isEmpty()) {
+                return;
+            }
+        }
+        ensureLoaderThread();
+        mLoaderThread.requestPrefetching();
+    }
+
     @Override
     public void loadThumbnail(ImageView view, long photoId, boolean darkTheme, boolean isCircular,
             DefaultImageRequest defaultImageRequest, DefaultImageProvider defaultProvider) {
         if (photoId == 0) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, -1, darkTheme, defaultImageRequest);
-            mPendingRequests.remove(view);
+            removePendingRequest(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoId);
             loadPhotoByIdOrUri(view, Request.createFromThumbnailId(photoId, darkTheme, isCircular,
@@ -805,7 +1263,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme,
                     defaultImageRequest);
-            mPendingRequests.remove(view);
+            removePendingRequest(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoUri);
             if (isDefaultImageUri(photoUri)) {
@@ -828,20 +1286,80 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private void loadPhotoByIdOrUri(ImageView view, Request request) {
         boolean loaded = loadCachedPhoto(view, request, false);
         if (loaded) {
-            mPendingRequests.remove(view);
+            removePendingRequest(view);
         } else {
-            mPendingRequests.put(view, request);
-            if (!mPaused) {
+            if (addPendingRequest(view, request) && !mPaused) {
                 // Send a request to start loading photos
                 requestLoading();
             }
         }
     }
 
+    /**
+     * Makes the view wait for the photo of the request instead of whatever it was waiting for.
+     *
+     * @return true if no other view was waiting for that photo yet, so it needs to be loaded
+     */
+    private boolean addPendingRequest(ImageView view, Request request) {
+        final Object key = request.getKey();
+        final Request previous = mPendingRequests.get(view);
+        if (previous != null && key.equals(previous.getKey())) {
+            // Rebound to the photo it is already waiting for
+            mPendingRequests.put(view, request);
+            return false;
+        }
+        removePendingRequest(view);
+        mPendingRequests.put(view, request);
+        ArrayList<ImageView> views = mPendingViewsByKey.get(key);
+        final boolean isNewKey = views == null;
+        if (isNewKey) {
+            views = new ArrayList<ImageView>(1);
+            mPendingViewsByKey.put(key, views);
+            queueRequest(request);
+        }
+        views.add(view);
+        return isNewKey;
+    }
+
+    /**
+     * Hands the request to the loader thread.
+     */
+    private void queueRequest(Request request) {
+        request.mQueuedAtNanos = System.nanoTime();
+        mNewRequests.add(request);
+    }
+
+    /**
+     * @return true if the view was waiting for a photo
+     */
+    private boolean removePendingRequest(ImageView view) {
+        final Request request = mPendingRequests.remove(view);
+        if (request == null) {
+            return false;
+        }
+        final Object key = request.getKey();
+        final ArrayList<ImageView> views = mPendingViewsByKey.get(key);
+        if (views != null) {
+            views.remove(view);
+            if (views.isEmpty()) {
+                mPendingViewsByKey.remove(key);
+            }
+        }
+        return true;
+    }
+
+    private void clearPendingRequests() {
+        mPendingRequests.clear();
+        mPendingViewsByKey.clear();
+        mNewRequests.clear();
+    }
+
     @Override
     public void removePhoto(ImageView view) {
         view.setImageDrawable(null);
-        mPendingRequests.remove(view);
+        if (removePendingRequest(view)) {
+            cancelUnrequestedTasks();
+        }
     }
 
 
@@ -852,7 +1370,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     @Override
     public void cancelPendingRequests(View fragmentRootView) {
         if (fragmentRootView == null) {
-            mPendingRequests.clear();
+            clearPendingRequests();
+            cancelUnrequestedTasks();
             return;
         }
         ImageView[] requestSetCopy = mPendingRequests.keySet().toArray(new ImageView[
@@ -861,9 +1380,25 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // If an ImageView is orphaned (currently scrap) or a child of fragmentRootView, then
             // we can safely remove its request.
             if (imageView.getParent() == null || isChildView(fragmentRootView, imageView)) {
-                mPendingRequests.remove(imageView);
+                removePendingRequest(imageView);
             }
         }
+        cancelUnrequestedTasks();
+    }
+
+    /**
+     * Removes queued tasks for photos that no view is waiting for anymore. Tasks that are
+     * already running are left to complete; their results are cached.
+     */
+    private void cancelUnrequestedTasks() {
+        mInFlightTasks.cancelUnrequestedTasks();
+    }
+
+    /**
+     * Returns true if any view is waiting for the photo with the given key.
+     */
+    private boolean isKeyRequested(Object key) {
+        return mPendingViewsByKey.containsKey(key);
     }
 
     private static boolean isChildView(View parent, View potentialChild) {
@@ -880,9 +1415,36 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
         if (DEBUG) Log.d(TAG, "refreshCache");
         mBitmapHolderCacheAllUnfresh = true;
+        // Thumbnails on disk are keyed by data version and validate themselves, but remote
+        // photos have no version, so refetch any that were stored before now.
+        mDiskCacheValidSinceMillis = System.currentTimeMillis();
         for (BitmapHolder holder : mBitmapHolderCache.snapshot().values()) {
             holder.fresh = false;
         }
+        mThumbnailArena.markAllStale();
+    }
+
+    /**
+     * Returns the holder for the given key, moving the photo from {@link #mThumbnailArena} to
+     * {@link #mBitmapHolderCache} if it is only found there.
+     */
+    private BitmapHolder getBitmapHolder(Object key) {
+        final BitmapHolder holder = mBitmapHolderCache.get(key);
+        if (holder != null || !(key instanceof Long)) {
+            return holder;
+        }
+        final long photoId = (Long) key;
+        final boolean stale = mThumbnailArena.isStale(photoId);
+        final byte[] bytes = mThumbnailArena.remove(photoId);
+        if (bytes == null) {
+            return null;
+        }
+        mThumbnailArenaHits.incrementAndGet();
+        final BitmapHolder arenaHolder =
+                new BitmapHolder(bytes, BitmapUtil.getSmallerExtentFromBytes(bytes));
+        arenaHolder.fresh = !stale;
+        mBitmapHolderCache.put(key, arenaHolder);
+        return arenaHolder;
     }
 
     /**
@@ -891,7 +1453,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * @return false if the photo needs to be (re)loaded from the provider.
      */
     private boolean loadCachedPhoto(ImageView view, Request request, boolean fadeIn) {
-        BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
+        BitmapHolder holder = getBitmapHolder(request.getKey());
         if (holder == null) {
             // The bitmap has not been loaded ==> show default avatar
             request.applyDefaultImage(view, request.mIsCircular);
@@ -903,12 +1465,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return holder.fresh;
         }
 
-        Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+        Bitmap cachedBitmap = holder.getSoftBitmap();
         if (cachedBitmap == null) {
+            mDecodedBitmapMisses.incrementAndGet();
             if (holder.bytes.length < 8 * 1024) {
                 // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
-                inflateBitmap(holder, request.getRequestedExtent());
-                cachedBitmap = holder.bitmap;
+                cachedBitmap = inflateBitmap(holder, request.getRequestedExtent());
                 if (cachedBitmap == null) return false;
             } else {
                 // This is bigger data. Let's send that back to the Loader so that we can
@@ -916,6 +1478,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 request.applyDefaultImage(view, request.mIsCircular);
                 return false;
             }
+        } else {
+            mDecodedBitmapHits.incrementAndGet();
         }
 
         final Drawable previousDrawable = view.getDrawable();
@@ -946,7 +1510,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
 
         // Soften the reference
-        holder.bitmap = null;
+        synchronized (holder) {
+            holder.bitmap = null;
+        }
 
         return holder.fresh;
     }
@@ -971,8 +1537,20 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * If necessary, decodes bytes stored in the holder to Bitmap.  As long as the
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
      * the holder, it will not be necessary to decode the bitmap.
+     * <p>
+     * Runs on the UI thread for small thumbnails and on decode threads otherwise, so it locks
+     * the holder: a second caller waits for the bitmap the first one decodes.
+     *
+     * @return the bitmap, or null if it could not be decoded
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+    private Bitmap inflateBitmap(BitmapHolder holder, int requestedExtent) {
+        synchronized (holder) {
+            inflateBitmapLocked(holder, requestedExtent);
+            return holder.bitmap;
+        }
+    }
+
+    private void inflateBitmapLocked(BitmapHolder holder, int requestedExtent) {
         final int sampleSize =
                 BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
         byte[] bytes = holder.bytes;
@@ -991,8 +1569,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         }
 
+        final long startNanos = System.nanoTime();
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize, mBitmapPool);
+            if (bitmap == null) {
+                return;
+            }
 
             // TODO: As a temporary workaround while framework support is being added to
             // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
@@ -1005,8 +1587,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // below twice the length of a thumbnail image due to the way we calculate the optimal
             // sample size.
             if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
-                final int dimension = Math.min(height, width);
-                bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+                bitmap = BitmapUtil.cropToSquare(bitmap, mBitmapPool);
             }
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
@@ -1027,6 +1608,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             holder.decodedSampleSize = sampleSize;
             holder.bitmap = bitmap;
             holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            mMetrics.recordSince(PhotoLoadMetrics.STAGE_DECODE, startNanos);
             if (DEBUG) {
                 Log.d(TAG, "inflateBitmap " + btk(bytes.length) + " -> "
                         + bitmap.getWidth() + "x" + bitmap.getHeight()
@@ -1039,9 +1621,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
-        mPendingRequests.clear();
+        clearPendingRequests();
+        mLoadedKeys.clear();
+        mInFlightTasks.cancelAll();
         mBitmapHolderCache.evictAll();
+        mThumbnailArena.clear();
         mBitmapCache.evictAll();
+        mBitmapPool.clear();
+        LetterTileDrawable.clearTileCache();
     }
 
     @Override
@@ -1053,7 +1640,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void resume() {
         mPaused = false;
         if (DEBUG) dumpStats();
-        if (!mPendingRequests.isEmpty()) {
+        if (!mLoadedKeys.isEmpty()) {
+            notifyPhotosLoaded();
+        }
+        if (!mNewRequests.isEmpty()) {
             requestLoading();
         }
     }
@@ -1105,25 +1695,53 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     /**
-     * Goes over pending loading requests and displays loaded photos.  If some of the
-     * photos still haven't been loaded, sends another request for image loading.
+     * Tells the UI thread that some photos are ready to be displayed, unless it has already
+     * been told and has not processed them yet.
+     */
+    private void notifyPhotosLoaded() {
+        if (!mMainThreadHandler.hasMessages(MESSAGE_PHOTOS_LOADED)) {
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+    }
+
+    /**
+     * Displays the photos that have been loaded in all views waiting for them.  If some of
+     * those photos still can't be displayed, sends another request for image loading.
      */
     private void processLoadedImages() {
-        Iterator<ImageView> iterator = mPendingRequests.keySet().iterator();
-        while (iterator.hasNext()) {
-            ImageView view = iterator.next();
-            Request key = mPendingRequests.get(view);
-            // TODO: Temporarily disable contact photo fading in, until issues with
-            // RoundedBitmapDrawables overlapping the default image drawables are resolved.
-            boolean loaded = loadCachedPhoto(view, key, false);
-            if (loaded) {
-                iterator.remove();
+        final Set<Object> loadedKeys = Sets.newHashSet();
+        Object loadedKey;
+        while ((loadedKey = mLoadedKeys.poll()) != null) {
+            loadedKeys.add(loadedKey);
+        }
+
+        boolean needsLoading = false;
+        for (Object key : loadedKeys) {
+            final ArrayList<ImageView> views = mPendingViewsByKey.get(key);
+            if (views == null) {
+                continue;
+            }
+            Request request = null;
+            for (ImageView view : views.toArray(new ImageView[views.size()])) {
+                request = mPendingRequests.get(view);
+                // TODO: Temporarily disable contact photo fading in, until issues with
+                // RoundedBitmapDrawables overlapping the default image drawables are resolved.
+                boolean loaded = loadCachedPhoto(view, request, false);
+                if (loaded) {
+                    mMetrics.recordSince(PhotoLoadMetrics.STAGE_TIME_TO_DISPLAY,
+                            request.mRequestedAtNanos);
+                    removePendingRequest(view);
+                }
+            }
+            if (mPendingViewsByKey.containsKey(key)) {
+                queueRequest(request);
+                needsLoading = true;
             }
         }
 
         softenCache();
 
-        if (!mPendingRequests.isEmpty()) {
+        if (needsLoading) {
             requestLoading();
         }
     }
@@ -1134,14 +1752,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private void softenCache() {
         for (BitmapHolder holder : mBitmapHolderCache.snapshot().values()) {
-            holder.bitmap = null;
+            synchronized (holder) {
+                holder.bitmap = null;
+            }
         }
     }
 
     /**
      * Stores the supplied bitmap in cache.
      */
-    private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+    private void cacheBitmap(Object key, byte[] bytes, int priority, int requestedExtent) {
         if (DEBUG) {
             BitmapHolder prev = mBitmapHolderCache.get(key);
             if (prev != null && prev.bytes != null) {
@@ -1155,17 +1775,36 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             Log.d(TAG, "Caching data: key=" + key + ", " +
                     (bytes == null ? "<null>" : btk(bytes.length)));
         }
+        if (key instanceof Long) {
+            if (priority == PRIORITY_PRELOAD && bytes != null) {
+                // Nobody is waiting for preloaded photos, keep them compact until they are
+                mThumbnailArena.put((Long) key, bytes);
+                return;
+            }
+            // Drop any older version
+            mThumbnailArena.remove((Long) key);
+        }
+
         BitmapHolder holder = new BitmapHolder(bytes,
                 bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
 
-        // Unless this image is being preloaded, decode it right away while
-        // we are still on the background thread.
-        if (!preloading) {
-            inflateBitmap(holder, requestedExtent);
+        // Decode the image on the decoder pool while we are still in the background. Prefetched
+        // and preloaded images are decoded only when there is nothing more urgent to decode.
+        DecodeTask task = null;
+        if (bytes != null) {
+            task = new DecodeTask(key, holder, requestedExtent, priority);
+            // Mark the key as in flight before the holder becomes visible, so the loader
+            // thread does not schedule a second decode for it.
+            task.markInFlight();
         }
 
         mBitmapHolderCache.put(key, holder);
         mBitmapHolderCacheAllUnfresh = false;
+        mLoadedKeys.add(key);
+
+        if (task != null) {
+            task.execute();
+        }
     }
 
     @Override
@@ -1180,11 +1819,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mBitmapHolderCache.put(request.getKey(), holder);
         mBitmapHolderCacheAllUnfresh = false;
         mBitmapCache.put(request.getKey(), bitmap);
+        mLoadedKeys.add(request.getKey());
     }
 
     /**
-     * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
-     * already loaded
+     * Populates an array of photo IDs that need to be loaded. Also schedules decoding of bitmaps
+     * that we have already loaded. Photos that are already being loaded or decoded are skipped.
      */
     private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds,
             Set<String> photoIdsAsStrings, Set<Request> uris) {
@@ -1192,47 +1832,151 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         photoIdsAsStrings.clear();
         uris.clear();
 
-        boolean jpegsDecoded = false;
-
         /*
-         * Since the call is made from the loader thread, the map could be
-         * changing during the iteration. That's not really a problem:
-         * ConcurrentHashMap will allow those changes to happen without throwing
-         * exceptions. Since we may miss some requests in the situation of
-         * concurrent change, we will need to check the map again once loading
-         * is complete.
+         * Only requests that are new or whose photo could not be shown after loading are
+         * looked at. The UI thread may add requests while we are draining the queue; those
+         * are either picked up here or in the next pass, which it requests.
          */
-        Iterator<Request> iterator = mPendingRequests.values().iterator();
-        while (iterator.hasNext()) {
-            Request request = iterator.next();
-            final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
-            if (holder != null && holder.bytes != null && holder.fresh &&
-                    (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
-                // This was previously loaded but we don't currently have the inflated Bitmap
-                inflateBitmap(holder, request.getRequestedExtent());
-                jpegsDecoded = true;
+        Request request;
+        while ((request = mNewRequests.poll()) != null) {
+            mMetrics.recordSince(PhotoLoadMetrics.STAGE_REQUEST_QUEUE_WAIT, request.mQueuedAtNanos);
+            final Object key = request.getKey();
+            if (!isKeyRequested(key)) {
+                // All views waiting for this photo have gone away
+                continue;
+            }
+            if (mInFlightTasks.isLoadingForView(key)) {
+                // Already being loaded or decoded for another request
+                continue;
+            }
+            final BitmapHolder holder = getBitmapHolder(key);
+            if (holder != null && holder.fresh) {
+                if (holder.bytes != null && holder.getSoftBitmap() == null) {
+                    // This was previously loaded but we don't currently have the inflated Bitmap
+                    new DecodeTask(key, holder, request.getRequestedExtent(), PRIORITY_VISIBLE)
+                            .submit();
+                } else {
+                    // Loaded since the request was made, e.g. for another view
+                    mLoadedKeys.add(key);
+                    notifyPhotosLoaded();
+                }
+            } else if (request.isUriRequest()) {
+                uris.add(request);
+            } else {
+                photoIds.add(request.getId());
+                photoIdsAsStrings.add(String.valueOf(request.mId));
+            }
+        }
+    }
+
+    /**
+     * Loads a photo referenced with a Uri and stores it in cache. This is a remote thumbnail
+     * (from directory searches), a display photo etc.
+     */
+    private void loadUriBasedPhoto(Request uriRequest, byte[] buffer) {
+        // Keep the original URI and use this to key into the cache.  Failure to do so will
+        // result in an image being continually reloaded into cache if the original URI
+        // has a contact type encodedFragment (eg nearby places business photo URLs).
+        Uri originalUri = uriRequest.getUri();
+
+        // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+        // a business photo -- there is no need to pass this on to the server.
+        Uri uri = ContactPhotoManager.removeContactType(originalUri);
+
+        try {
+            byte[] bytes = null;
+            if (isRemoteUri(uri)) {
+                if (DEBUG) Log.d(TAG, "Fetching " + uri);
+                final long startNanos = System.nanoTime();
+                bytes = getRemotePhotoFetcher().fetch(uri.toString(), mDiskCacheValidSinceMillis);
+                mMetrics.recordSince(PhotoLoadMetrics.STAGE_NETWORK, startNanos);
             } else {
-                if (holder == null || !holder.fresh) {
-                    if (request.isUriRequest()) {
-                        uris.add(request);
-                    } else {
-                        photoIds.add(request.getId());
-                        photoIdsAsStrings.add(String.valueOf(request.mId));
+                if (DEBUG) Log.d(TAG, "Loading " + uri);
+                final long startNanos = System.nanoTime();
+                InputStream is = mContext.getContentResolver().openInputStream(uri);
+                if (is != null) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    try {
+                        int size;
+                        while ((size = is.read(buffer)) != -1) {
+                            baos.write(buffer, 0, size);
+                        }
+                    } finally {
+                        is.close();
                     }
+                    bytes = baos.toByteArray();
+                    mMetrics.recordSince(PhotoLoadMetrics.STAGE_PROVIDER_QUERY, startNanos);
+                } else {
+                    Log.v(TAG, "Cannot load photo " + uri);
+                }
+            }
+            cacheBitmap(originalUri, bytes, PRIORITY_VISIBLE, uriRequest.getRequestedExtent());
+        } catch (final Exception | OutOfMemoryError ex) {
+            Log.v(TAG, "Cannot load photo " + uri, ex);
+            cacheBitmap(originalUri, null, PRIORITY_VISIBLE, uriRequest.getRequestedExtent());
+        }
+        notifyPhotosLoaded();
+    }
+
+    /**
+     * Decodes the bytes of a cached photo.
+     */
+    private final class DecodeTask extends PhotoTaskTracker.Task {
+        private final BitmapHolder mHolder;
+        private final int mRequestedExtent;
+
+        DecodeTask(Object key, BitmapHolder holder, int requestedExtent, int priority) {
+            super(mInFlightTasks, mDecodeExecutor, key, priority);
+            mHolder = holder;
+            mRequestedExtent = requestedExtent;
+        }
+
+        @Override
+        protected void runTask() {
+            inflateBitmap(mHolder, mRequestedExtent);
+            if (mPriority != PRIORITY_VISIBLE) {
+                // Nobody is going to display the bitmap right away, so only keep the soft
+                // reference to it
+                synchronized (mHolder) {
+                    mHolder.bitmap = null;
                 }
+                return;
             }
+            mLoadedKeys.add(mKey);
+            notifyPhotosLoaded();
+        }
+    }
+
+    /**
+     * Fetches a remote photo on the network pool.
+     */
+    private final class RemotePhotoTask extends PhotoTaskTracker.Task {
+        private final Request mRequest;
+
+        RemotePhotoTask(Request request) {
+            super(mInFlightTasks, mNetworkExecutor, request.getKey(), PRIORITY_VISIBLE);
+            mRequest = request;
         }
 
-        if (jpegsDecoded) mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        @Override
+        protected void runTask() {
+            loadUriBasedPhoto(mRequest, new byte[BUFFER_SIZE]);
+        }
     }
 
     /**
      * The thread that performs loading of photos from the database.
      */
     private class LoaderThread extends HandlerThread implements Callback {
-        private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
+        private static final int MESSAGE_PREFETCH_PHOTOS = 2;
+
+        /**
+         * Number of photos to prefetch per batch. Small, so that loading photos views are
+         * waiting for is not held up for long.
+         */
+        private static final int PREFETCH_BATCH = 10;
 
         /**
          * A pause between preload batches that yields to the UI thread.
@@ -1290,7 +2034,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
 
             ensureHandler();
-            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)
+                    || mLoaderThreadHandler.hasMessages(MESSAGE_PREFETCH_PHOTOS)) {
                 return;
             }
 
@@ -1298,14 +2043,37 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     MESSAGE_PRELOAD_PHOTOS, PHOTO_PRELOAD_DELAY);
         }
 
+        /**
+         * Kicks off prefetching of the next batch of photos passed to
+         * {@link #prefetchThumbnails}, unless loading of requested photos is pending: it
+         * requests prefetching again once it is done.
+         */
+        public void requestPrefetching() {
+            synchronized (mPrefetchPhotoIds) {
+                if (mPrefetchPhotoIds.isEmpty()) {
+                    return;
+                }
+            }
+
+            ensureHandler();
+            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)
+                    || mLoaderThreadHandler.hasMessages(MESSAGE_PREFETCH_PHOTOS)) {
+                return;
+            }
+
+            mLoaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
+            mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+        }
+
         /**
          * Sends a message to this thread to load requested photos.  Cancels a preloading
-         * request, if any: we don't want preloading to impede loading of the photos
+         * or prefetching request, if any: we don't want them to impede loading of the photos
          * we need to display now.
          */
         public void requestLoading() {
             ensureHandler();
             mLoaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
+            mLoaderThreadHandler.removeMessages(MESSAGE_PREFETCH_PHOTOS);
             mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
         }
 
@@ -1322,6 +2090,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 case MESSAGE_LOAD_PHOTOS:
                     loadPhotosInBackground();
                     break;
+                case MESSAGE_PREFETCH_PHOTOS:
+                    prefetchPhotosInBackground();
+                    break;
             }
             return true;
         }
@@ -1348,7 +2119,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 return;
             }
 
-            if (mBitmapHolderCache.size() > mBitmapHolderCacheRedZoneBytes) {
+            if (mThumbnailArena.size() > mThumbnailArenaRedZoneBytes) {
                 mPreloadStatus = PRELOAD_STATUS_DONE;
                 return;
             }
@@ -1362,19 +2133,23 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 preloadSize--;
                 count++;
                 Long photoId = mPreloadPhotoIds.get(preloadSize);
+                mPreloadPhotoIds.remove(preloadSize);
+                if (mThumbnailArena.contains(photoId)
+                        || mBitmapHolderCache.get(photoId) != null) {
+                    continue;
+                }
                 mPhotoIds.add(photoId);
                 mPhotoIdsAsStrings.add(photoId.toString());
-                mPreloadPhotoIds.remove(preloadSize);
             }
 
-            loadThumbnails(true);
+            loadThumbnails(PRIORITY_PRELOAD);
 
             if (preloadSize == 0) {
                 mPreloadStatus = PRELOAD_STATUS_DONE;
             }
 
             Log.v(TAG, "Preloaded " + count + " photos.  Cached bytes: "
-                    + mBitmapHolderCache.size());
+                    + mThumbnailArena.size());
 
             requestPreloading();
         }
@@ -1408,20 +2183,57 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         private void loadPhotosInBackground() {
             obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
-            loadThumbnails(false);
+            loadThumbnails(PRIORITY_VISIBLE);
             loadUriBasedPhotos();
+            requestPrefetching();
             requestPreloading();
         }
 
+        /**
+         * Loads the next batch of photos passed to {@link #prefetchThumbnails} that are not
+         * cached yet, and schedules decoding of the ones that are cached but not decoded.
+         */
+        private void prefetchPhotosInBackground() {
+            mPhotoIds.clear();
+            mPhotoIdsAsStrings.clear();
+
+            synchronized (mPrefetchPhotoIds) {
+                final Iterator<Long> iterator = mPrefetchPhotoIds.iterator();
+                while (iterator.hasNext() && mPhotoIds.size() < PREFETCH_BATCH) {
+                    final Long photoId = iterator.next();
+                    iterator.remove();
+                    final BitmapHolder holder = getBitmapHolder(photoId);
+                    if (holder == null || !holder.fresh) {
+                        mPhotoIds.add(photoId);
+                        mPhotoIdsAsStrings.add(photoId.toString());
+                    } else if (holder.bytes != null && !mInFlightTasks.contains(photoId)
+                            && holder.getSoftBitmap() == null) {
+                        new DecodeTask(photoId, holder, -1, PRIORITY_PREFETCH).submit();
+                    }
+                }
+            }
+
+            if (DEBUG) Log.d(TAG, "Prefetching " + TextUtils.join(",", mPhotoIdsAsStrings));
+            loadThumbnails(PRIORITY_PREFETCH);
+
+            synchronized (mPrefetchPhotoIds) {
+                if (mPrefetchPhotoIds.isEmpty()) {
+                    requestPreloading();
+                    return;
+                }
+            }
+            requestPrefetching();
+        }
+
         /** Loads thumbnail photos with ids */
-        private void loadThumbnails(boolean preloading) {
+        private void loadThumbnails(int priority) {
             if (mPhotoIds.isEmpty()) {
                 return;
             }
 
             // Remove loaded photos from the preload queue: we don't want
             // the preloading process to load them again.
-            if (!preloading && mPreloadStatus == PRELOAD_STATUS_IN_PROGRESS) {
+            if (priority != PRIORITY_PRELOAD && mPreloadStatus == PRELOAD_STATUS_IN_PROGRESS) {
                 for (Long id : mPhotoIds) {
                     mPreloadPhotoIds.remove(id);
                 }
@@ -1430,30 +2242,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
-                }
-                mStringBuilder.append('?');
+            loadThumbnailsFromDiskCache(priority);
+            if (mPhotoIds.isEmpty()) {
+                notifyPhotosLoaded();
+                return;
             }
-            mStringBuilder.append(')');
 
+            final PhotoDiskCache diskCache = getDiskCache();
             Cursor cursor = null;
             try {
                 if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
+                final long startNanos = System.nanoTime();
                 cursor = mResolver.query(Data.CONTENT_URI,
                         COLUMNS,
-                        mStringBuilder.toString(),
+                        buildPhotoIdSelection(),
                         mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
                         null);
 
                 if (cursor != null) {
+                    // Fill the cursor window, so that the time includes reading the rows
+                    cursor.getCount();
+                    mMetrics.recordSince(PhotoLoadMetrics.STAGE_PROVIDER_QUERY, startNanos);
                     while (cursor.moveToNext()) {
                         Long id = cursor.getLong(0);
                         byte[] bytes = cursor.getBlob(1);
-                        cacheBitmap(id, bytes, preloading, -1);
+                        if (bytes != null) {
+                            diskCache.put(getDiskCacheKey(id, cursor.getInt(2)), bytes);
+                        }
+                        cacheBitmap(id, bytes, priority, -1);
                         mPhotoIds.remove(id);
                     }
                 }
@@ -1473,10 +2289,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                                 COLUMNS, null, null, null);
                         if (profileCursor != null && profileCursor.moveToFirst()) {
                             cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1),
-                                    preloading, -1);
+                                    priority, -1);
                         } else {
                             // Couldn't load a photo this way either.
-                            cacheBitmap(id, null, preloading, -1);
+                            cacheBitmap(id, null, priority, -1);
                         }
                     } finally {
                         if (profileCursor != null) {
@@ -1485,60 +2301,84 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     }
                 } else {
                     // Not a profile photo and not found - mark the cache accordingly
-                    cacheBitmap(id, null, preloading, -1);
+                    cacheBitmap(id, null, priority, -1);
                 }
             }
 
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            notifyPhotosLoaded();
         }
 
         /**
-         * Loads photos referenced with Uris. Those can be remote thumbnails
-         * (from directory searches), display photos etc
+         * Looks up the current data version of each photo in {@link #mPhotoIds}, which is
+         * much cheaper than reading the photo blobs, and caches the photos for which the
+         * disk cache has bytes of the same version. Those photos are removed from
+         * {@link #mPhotoIds} and {@link #mPhotoIdsAsStrings}.
          */
-        private void loadUriBasedPhotos() {
-            for (Request uriRequest : mPhotoUris) {
-                // Keep the original URI and use this to key into the cache.  Failure to do so will
-                // result in an image being continually reloaded into cache if the original URI
-                // has a contact type encodedFragment (eg nearby places business photo URLs).
-                Uri originalUri = uriRequest.getUri();
+        private void loadThumbnailsFromDiskCache(int priority) {
+            final PhotoDiskCache diskCache = getDiskCache();
+            Cursor cursor = null;
+            try {
+                final long startNanos = System.nanoTime();
+                cursor = mResolver.query(Data.CONTENT_URI,
+                        VERSION_COLUMNS,
+                        buildPhotoIdSelection(),
+                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
+                        null);
 
-                // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-                // a business photo -- there is no need to pass this on to the server.
-                Uri uri = ContactPhotoManager.removeContactType(originalUri);
+                if (cursor != null) {
+                    // Fill the cursor window, so that the time includes reading the rows
+                    cursor.getCount();
+                    mMetrics.recordSince(PhotoLoadMetrics.STAGE_PROVIDER_QUERY, startNanos);
+                    while (cursor.moveToNext()) {
+                        final Long id = cursor.getLong(0);
+                        final byte[] bytes = diskCache.get(getDiskCacheKey(id, cursor.getInt(1)));
+                        if (bytes != null) {
+                            mDiskCacheHits.incrementAndGet();
+                            cacheBitmap(id, bytes, priority, -1);
+                            mPhotoIds.remove(id);
+                            mPhotoIdsAsStrings.remove(id.toString());
+                        } else {
+                            mDiskCacheMisses.incrementAndGet();
+                        }
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            if (DEBUG) Log.d(TAG, "Not in disk cache: " + TextUtils.join(",", mPhotoIdsAsStrings));
+        }
 
-                if (mBuffer == null) {
-                    mBuffer = new byte[BUFFER_SIZE];
+        /**
+         * Builds a selection matching the {@link #mPhotoIds}, with one argument per photo ID.
+         */
+        private String buildPhotoIdSelection() {
+            mStringBuilder.setLength(0);
+            mStringBuilder.append(Photo._ID + " IN(");
+            for (int i = 0; i < mPhotoIds.size(); i++) {
+                if (i != 0) {
+                    mStringBuilder.append(',');
                 }
-                try {
-                    if (DEBUG) Log.d(TAG, "Loading " + uri);
-                    final String scheme = uri.getScheme();
-                    InputStream is = null;
-                    if (scheme.equals("http") || scheme.equals("https")) {
-                        is = new URL(uri.toString()).openStream();
-                    } else {
-                        is = mResolver.openInputStream(uri);
-                    }
-                    if (is != null) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        try {
-                            int size;
-                            while ((size = is.read(mBuffer)) != -1) {
-                                baos.write(mBuffer, 0, size);
-                            }
-                        } finally {
-                            is.close();
-                        }
-                        cacheBitmap(originalUri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-                    } else {
-                        Log.v(TAG, "Cannot load photo " + uri);
-                        cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                mStringBuilder.append('?');
+            }
+            mStringBuilder.append(')');
+            return mStringBuilder.toString();
+        }
+
+        /**
+         * Loads photos referenced with Uris. Remote photos are handed off to the network pool;
+         * local ones, e.g. display photos, are read right here.
+         */
+        private void loadUriBasedPhotos() {
+            for (Request uriRequest : mPhotoUris) {
+                if (isRemoteUri(uriRequest.getUri())) {
+                    new RemotePhotoTask(uriRequest).submit();
+                } else {
+                    if (mBuffer == null) {
+                        mBuffer = new byte[BUFFER_SIZE];
                     }
-                } catch (final Exception | OutOfMemoryError ex) {
-                    Log.v(TAG, "Cannot load photo " + uri, ex);
-                    cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                    loadUriBasedPhoto(uriRequest, mBuffer);
                 }
             }
         }
@@ -1558,6 +2398,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          * Whether or not the contact photo is to be displayed as a circle
          */
         private final boolean mIsCircular;
+        /** When the view asked for the photo, see {@link System#nanoTime}. */
+        private final long mRequestedAtNanos = System.nanoTime();
+        /** When the request was last handed to the loader thread. */
+        private volatile long mQueuedAtNanos;
 
         private Request(long id, Uri uri, int requestedExtent, boolean darkTheme,
                 boolean isCircular, DefaultImageProvider defaultProvider) {
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the photo tasks that are queued or running on the worker pools of the photo
+ * manager, at most one per photo key. Views asking for the same photo share the task in flight
+ * for it, and tasks for photos that no view is waiting for anymore are dropped.
+ */
+/* package */ class PhotoTaskTracker {
+    private static final String TAG = "ContactPhotoManager";
+    private static final boolean DEBUG = false;
+
+    /** Priority of work for a photo that a view is waiting for. Runs first. */
+    static final int PRIORITY_VISIBLE = 0;
+
+    /**
+     * What the tasks need to know about the views waiting for photos.
+     */
+    interface Host {
+        /** Returns true if any view is waiting for the photo with the given key. */
+        boolean isKeyRequested(Object key);
+
+        /**
+         * Called on a worker thread when a task skipped its photo, but a view asked for it
+         * again while it did.
+         */
+        void onSkippedKeyRequested(Object key);
+
+        /** Called when a task starts, with the {@link System#nanoTime} it was queued at. */
+        void onTaskStarted(long queuedAtNanos);
+    }
+
+    private final Host mHost;
+
+    private final ConcurrentHashMap<Object, Task> mTasks = new ConcurrentHashMap<Object, Task>();
+
+    /** Sequence number of the last {@link Task} created. */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    PhotoTaskTracker(Host host) {
+        mHost = host;
+    }
+
+    /**
+     * Returns true if a task is queued or running for the given key.
+     */
+    boolean contains(Object key) {
+        return mTasks.containsKey(key);
+    }
+
+    /**
+     * Returns true if a task for a view is queued or running for the given key, so that another
+     * request for the same photo can wait for it.
+     */
+    boolean isLoadingForView(Object key) {
+        final Task task = mTasks.get(key);
+        return task != null && task.isCancellable();
+    }
+
+    /**
+     * Removes queued tasks for photos that no view is waiting for anymore. Tasks that are
+     * already running are left to complete; their results are cached.
+     */
+    void cancelUnrequestedTasks() {
+        for (Task task : mTasks.values()) {
+            if (task.isCancellable() && !mHost.isKeyRequested(task.mKey)) {
+                task.cancel();
+            }
+        }
+    }
+
+    /**
+     * Removes all the queued tasks.
+     */
+    void cancelAll() {
+        for (Task task : mTasks.values()) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * A unit of work for one photo that runs on a worker pool. Tasks with a lower priority
+     * value run first. A task for a photo that no view is waiting for anymore is skipped.
+     */
+    abstract static class Task implements Runnable, Comparable<Task> {
+        final Object mKey;
+        final int mPriority;
+        private final PhotoTaskTracker mTracker;
+        private final long mSequence;
+        private final ThreadPoolExecutor mExecutor;
+        private volatile long mQueuedAtNanos;
+
+        Task(PhotoTaskTracker tracker, ThreadPoolExecutor executor, Object key, int priority) {
+            mTracker = tracker;
+            mSequence = tracker.mSequence.incrementAndGet();
+            mExecutor = executor;
+            mKey = key;
+            mPriority = priority;
+        }
+
+        /** Records this task as the one in flight for its key. */
+        void markInFlight() {
+            mTracker.mTasks.put(mKey, this);
+        }
+
+        /** Queues this task on its worker pool. */
+        void execute() {
+            mQueuedAtNanos = System.nanoTime();
+            mExecutor.execute(this);
+        }
+
+        void submit() {
+            markInFlight();
+            execute();
+        }
+
+        void cancel() {
+            mExecutor.remove(this);
+            mTracker.mTasks.remove(mKey, this);
+        }
+
+        /**
+         * Prefetching and preloading are not requested by views, so they are not cancelled
+         * when views go away.
+         */
+        boolean isCancellable() {
+            return mPriority == PRIORITY_VISIBLE;
+        }
+
+        @Override
+        public final void run() {
+            final Host host = mTracker.mHost;
+            host.onTaskStarted(mQueuedAtNanos);
+            boolean skipped = false;
+            try {
+                if (isCancellable() && !host.isKeyRequested(mKey)) {
+                    if (DEBUG) Log.d(TAG, "Skipping photo nobody is waiting for: " + mKey);
+                    skipped = true;
+                    return;
+                }
+                runTask();
+            } finally {
+                mTracker.mTasks.remove(mKey, this);
+                if (skipped && host.isKeyRequested(mKey)) {
+                    // A view asked for the photo again while this task was being skipped, and
+                    // the loader thread did not schedule new work since this task was in
+                    // flight.
+                    host.onSkippedKeyRequested(mKey);
+                }
+            }
+        }
+
+        protected abstract void runTask();
+
+        @Override
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            // Within a priority, serve the most recent request first: while scrolling, that
+            // is the one closest to the rows currently on screen.
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.contacts.common.R;
 import com.android.contacts.common.util.BitmapUtil;
@@ -59,6 +60,32 @@ public class LetterTileDrawable extends Drawable {
     private static final Rect sRect = new Rect();
     private static final char[] sFirstChar = new char[1];
 
+    /**
+     * Maximum size of {@link #sTileCache}, in bytes. Enough for a few dozen tiles of the
+     * size shown in contact lists.
+     */
+    private static final int TILE_CACHE_MAX_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Rendered tiles, so that tiles are only drawn once for each letter, color, size and
+     * shape instead of on every frame.
+     */
+    private static final LruCache<TileKey, Bitmap> sTileCache =
+            new LruCache<TileKey, Bitmap>(TILE_CACHE_MAX_BYTES) {
+                @Override
+                protected int sizeOf(TileKey key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+
+    /**
+     * Reusable key for looking up tiles in {@link #sTileCache}. Tiles are normally drawn on the
+     * UI thread, but drawables can also be drawn into bitmaps on other threads, so the key and
+     * the rendering of missing tiles are guarded by locking it. The lock is uncontended on the
+     * UI thread.
+     */
+    private static final TileKey sLookupKey = new TileKey();
+
     /** Contact type constants */
     public static final int TYPE_PERSON = 1;
     public static final int TYPE_BUSINESS = 2;
@@ -101,8 +128,55 @@ public class LetterTileDrawable extends Drawable {
         if (!isVisible() || bounds.isEmpty()) {
             return;
         }
-        // Draw letter tile.
-        drawLetterTile(canvas);
+        if (mPaint.getAlpha() != 255 || mPaint.getColorFilter() != null) {
+            // Cached tiles are rendered opaque and unfiltered
+            drawLetterTile(canvas);
+            return;
+        }
+        final Bitmap tile = getCachedTile();
+        if (tile == null) {
+            // Draw letter tile.
+            drawLetterTile(canvas);
+        } else {
+            canvas.drawBitmap(tile, bounds.left, bounds.top, mPaint);
+        }
+    }
+
+    /**
+     * Returns the rendered tile for the current bounds and contact details, rendering it if it
+     * is not cached yet, or null if the tile is too large to be cached.
+     */
+    /* package */ Bitmap getCachedTile() {
+        final Rect bounds = getBounds();
+        final int width = bounds.width();
+        final int height = bounds.height();
+        if (width * height * 4 > TILE_CACHE_MAX_BYTES / 8) {
+            return null;
+        }
+        synchronized (sLookupKey) {
+            sLookupKey.set(getLetter(), pickColor(mIdentifier), width, height, mIsCircle,
+                    mContactType, mScale, mOffset);
+            Bitmap tile = sTileCache.get(sLookupKey);
+            if (tile == null) {
+                tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                final Canvas tileCanvas = new Canvas(tile);
+                tileCanvas.translate(-bounds.left, -bounds.top);
+                drawLetterTile(tileCanvas);
+                sTileCache.put(sLookupKey.copy(), tile);
+            }
+            return tile;
+        }
+    }
+
+    /**
+     * Returns the upper case letter shown on the tile, or 0 if the default avatar of the
+     * contact type is shown instead.
+     */
+    private char getLetter() {
+        if (mDisplayName != null && isEnglishLetter(mDisplayName.charAt(0))) {
+            return Character.toUpperCase(mDisplayName.charAt(0));
+        }
+        return 0;
     }
 
     /**
@@ -143,9 +217,10 @@ public class LetterTileDrawable extends Drawable {
         }
 
         // Draw letter/digit only if the first character is an english letter
-        if (mDisplayName != null && isEnglishLetter(mDisplayName.charAt(0))) {
+        final char letter = getLetter();
+        if (letter != 0) {
             // Draw letter or digit.
-            sFirstChar[0] = Character.toUpperCase(mDisplayName.charAt(0));
+            sFirstChar[0] = letter;
 
             // Scale text by canvas bounds and user selected scaling factor
             sPaint.setTextSize(mScale * sLetterToTileRatio * minDimension);
@@ -255,4 +330,73 @@ public class LetterTileDrawable extends Drawable {
     public void setIsCircular(boolean isCircle) {
         mIsCircle = isCircle;
     }
+
+    /**
+     * Drops all rendered tiles, e.g. when memory is low.
+     */
+    public static void clearTileCache() {
+        sTileCache.evictAll();
+    }
+
+    /**
+     * Everything that the rendering of a tile depends on. The contact type only matters for
+     * tiles without a letter.
+     */
+    private static final class TileKey {
+        private char mLetter;
+        private int mColor;
+        private int mWidth;
+        private int mHeight;
+        private boolean mIsCircle;
+        private int mContactType;
+        private float mScale;
+        private float mOffset;
+
+        void set(char letter, int color, int width, int height, boolean isCircle,
+                int contactType, float scale, float offset) {
+            mLetter = letter;
+            mColor = color;
+            mWidth = width;
+            mHeight = height;
+            mIsCircle = isCircle;
+            mContactType = letter == 0 ? contactType : 0;
+            mScale = scale;
+            mOffset = offset;
+        }
+
+        TileKey copy() {
+            final TileKey key = new TileKey();
+            key.set(mLetter, mColor, mWidth, mHeight, mIsCircle, mContactType, mScale, mOffset);
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) o;
+            return mLetter == other.mLetter && mColor == other.mColor && mWidth == other.mWidth
+                    && mHeight == other.mHeight && mIsCircle == other.mIsCircle
+                    && mContactType == other.mContactType
+                    && Float.compare(mScale, other.mScale) == 0
+                    && Float.compare(mOffset, other.mOffset) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mLetter;
+            result = 31 * result + mColor;
+            result = 31 * result + mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + (mIsCircle ? 1 : 0);
+            result = 31 * result + mContactType;
+            result = 31 * result + Float.floatToIntBits(mScale);
+            result = 31 * result + Float.floatToIntBits(mOffset);
+            return result;
+        }
+    }
 }
@@ -682,6 +682,40 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         }
     }
 
+    /**
+     * Returns the ID of the thumbnail shown for the entry at the given position, or 0 if it
+     * has none or is not shown by ID. Leaves the position of the partition cursor unchanged.
+     */
+    public long getPhotoId(int position) {
+        final int columnIndex = getPhotoIdColumnIndex();
+        final int partitionIndex = getPartitionForPosition(position);
+        if (columnIndex < 0 || partitionIndex < 0 || !isPhotoSupported(partitionIndex)) {
+            return 0;
+        }
+        final Cursor cursor = getCursor(partitionIndex);
+        final int offset = getOffsetInPartition(position);
+        if (cursor == null || cursor.isClosed() || offset < 0) {
+            return 0;
+        }
+        final int oldPosition = cursor.getPosition();
+        try {
+            if (!cursor.moveToPosition(offset) || cursor.isNull(columnIndex)) {
+                return 0;
+            }
+            return cursor.getLong(columnIndex);
+        } finally {
+            cursor.moveToPosition(oldPosition);
+        }
+    }
+
+    /**
+     * Returns the index of the photo ID column in the cursors of this adapter, or -1 if they
+     * don't have one.
+     */
+    protected int getPhotoIdColumnIndex() {
+        return -1;
+    }
+
     public boolean isPhotoSupported(int partitionIndex) {
         Partition partition = getPartition(partitionIndex);
         if (partition instanceof DirectoryPartition) {
@@ -29,6 +29,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
@@ -52,6 +53,8 @@ import com.android.contacts.common.util.ContactListViewUtils;
 import com.android.contacts.common.util.SchedulingUtils;
 import com.android.dialerbind.analytics.AnalyticsFragment;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Locale;
 
 /**
@@ -70,6 +73,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     private static final String KEY_LIST_STATE = "liststate";
     private static final String KEY_SECTION_HEADER_DISPLAY_ENABLED = "sectionHeaderDisplayEnabled";
     private static final String KEY_PHOTO_LOADER_ENABLED = "photoLoaderEnabled";
+    private static final String KEY_LOCAL_SEARCH_ENABLED = "localSearchEnabled";
     private static final String KEY_QUICK_CONTACT_ENABLED = "quickContactEnabled";
     private static final String KEY_ADJUST_SELECTION_BOUNDS_ENABLED =
             "adjustSelectionBoundsEnabled";
@@ -89,13 +93,13 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
 
     private static final int DIRECTORY_LOADER_ID = -1;
 
-    private static final int DIRECTORY_SEARCH_DELAY_MILLIS = 300;
     private static final int DIRECTORY_SEARCH_MESSAGE = 1;
 
     private static final int DEFAULT_DIRECTORY_RESULT_LIMIT = 20;
 
     private boolean mSectionHeaderDisplayEnabled;
     private boolean mPhotoLoaderEnabled;
+    private boolean mLocalSearchEnabled;
     private boolean mQuickContactEnabled = true;
     private boolean mAdjustSelectionBoundsEnabled = true;
     private boolean mIncludeProfile;
@@ -124,7 +128,12 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     private int mDirectoryResultLimit = DEFAULT_DIRECTORY_RESULT_LIMIT;
 
     private ContactPhotoManager mPhotoManager;
+    private PhotoPrefetcher mPhotoPrefetcher;
     private ContactsPreferences mContactsPrefs;
+    private ContactSearchEngine mSearchEngine;
+    private final DirectorySearchScheduler mDirectorySearchScheduler =
+            new DirectorySearchScheduler();
+    private final DirectoryResultCache mDirectoryResultCache = new DirectoryResultCache();
 
     private boolean mForceLoad;
 
@@ -230,6 +239,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         super.onSaveInstanceState(outState);
         outState.putBoolean(KEY_SECTION_HEADER_DISPLAY_ENABLED, mSectionHeaderDisplayEnabled);
         outState.putBoolean(KEY_PHOTO_LOADER_ENABLED, mPhotoLoaderEnabled);
+        outState.putBoolean(KEY_LOCAL_SEARCH_ENABLED, mLocalSearchEnabled);
         outState.putBoolean(KEY_QUICK_CONTACT_ENABLED, mQuickContactEnabled);
         outState.putBoolean(KEY_ADJUST_SELECTION_BOUNDS_ENABLED, mAdjustSelectionBoundsEnabled);
         outState.putBoolean(KEY_INCLUDE_PROFILE, mIncludeProfile);
@@ -263,6 +273,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
 
         mSectionHeaderDisplayEnabled = savedState.getBoolean(KEY_SECTION_HEADER_DISPLAY_ENABLED);
         mPhotoLoaderEnabled = savedState.getBoolean(KEY_PHOTO_LOADER_ENABLED);
+        mLocalSearchEnabled = savedState.getBoolean(KEY_LOCAL_SEARCH_ENABLED);
         mQuickContactEnabled = savedState.getBoolean(KEY_QUICK_CONTACT_ENABLED);
         mAdjustSelectionBoundsEnabled = savedState.getBoolean(KEY_ADJUST_SELECTION_BOUNDS_ENABLED);
         mIncludeProfile = savedState.getBoolean(KEY_INCLUDE_PROFILE);
@@ -286,6 +297,13 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
 
         mContactsPrefs.registerChangeListener(mPreferencesChangeListener);
 
+        if (mLocalSearchEnabled) {
+            if (mSearchEngine == null) {
+                mSearchEngine = new ContactSearchEngine(mContext);
+            }
+            mSearchEngine.start();
+        }
+
         mForceLoad = loadPreferences();
 
         mDirectoryListStatus = STATUS_NOT_LOADED;
@@ -329,23 +347,58 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
                     ContactEntryListAdapter.LOCAL_INVISIBLE_DIRECTORY_ENABLED);
             return loader;
         } else {
-            CursorLoader loader = createCursorLoader(mContext);
             long directoryId = args != null && args.containsKey(DIRECTORY_ID_ARG_KEY)
                     ? args.getLong(DIRECTORY_ID_ARG_KEY)
                     : Directory.DEFAULT;
+            // Local searches are answered from memory; remote directories still go to the
+            // provider
+            CursorLoader loader = mSearchEngine != null && isSearchMode()
+                    && directoryId == Directory.DEFAULT
+                    ? new ContactSearchLoader(mContext, mSearchEngine)
+                    : createCursorLoader(mContext);
             mAdapter.configureLoader(loader, directoryId);
             return loader;
         }
     }
 
+    /**
+     * Returns the loader of the default directory. Lists of contacts get a loader that indexes
+     * the positions of the contacts in the background, see {@link ContactPositionIndex}.
+     */
     public CursorLoader createCursorLoader(Context context) {
+        if (mAdapter instanceof ContactListAdapter) {
+            return new IndexingCursorLoader(context);
+        }
         return new CursorLoader(context, null, null, null, null, null);
     }
 
+    /**
+     * Loads contacts with the index {@link ContactListAdapter} finds the selected contact with.
+     */
+    private static class IndexingCursorLoader extends CursorLoader {
+        IndexingCursorLoader(Context context) {
+            super(context, null, null, null, null, null);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            return ContactPositionIndex.wrap(super.loadInBackground());
+        }
+    }
+
     private void startLoadingDirectoryPartition(int partitionIndex) {
         DirectoryPartition partition = (DirectoryPartition)mAdapter.getPartition(partitionIndex);
         partition.setStatus(DirectoryPartition.STATUS_LOADING);
         long directoryId = partition.getDirectoryId();
+        if (isSearchMode() && directoryId != Directory.DEFAULT) {
+            final Cursor cursor = mDirectoryResultCache.get(directoryId, mQueryString,
+                    SystemClock.elapsedRealtime());
+            if (cursor != null) {
+                mDelayedDirectorySearchHandler.removeMessages(DIRECTORY_SEARCH_MESSAGE, partition);
+                loadDirectoryPartitionLocally(partitionIndex, cursor);
+                return;
+            }
+        }
         if (mForceLoad) {
             if (directoryId == Directory.DEFAULT) {
                 loadDirectoryPartition(partitionIndex, partition);
@@ -363,12 +416,23 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
      * Queues up a delayed request to search the specified directory. Since
      * directory search will likely introduce a lot of network traffic, we want
      * to wait for a pause in the user's typing before sending a directory request.
+     * If the directory already returned everything the query can match, the request
+     * is answered from that instead.
      */
     private void loadDirectoryPartitionDelayed(int partitionIndex, DirectoryPartition partition) {
         mDelayedDirectorySearchHandler.removeMessages(DIRECTORY_SEARCH_MESSAGE, partition);
+        final long directoryId = partition.getDirectoryId();
+        final Cursor cursor = isSearchMode()
+                ? mDirectorySearchScheduler.filterPreviousResult(directoryId, mQueryString)
+                : null;
+        if (cursor != null) {
+            loadDirectoryPartitionLocally(partitionIndex, cursor);
+            return;
+        }
         Message msg = mDelayedDirectorySearchHandler.obtainMessage(
                 DIRECTORY_SEARCH_MESSAGE, partitionIndex, 0, partition);
-        mDelayedDirectorySearchHandler.sendMessageDelayed(msg, DIRECTORY_SEARCH_DELAY_MILLIS);
+        mDelayedDirectorySearchHandler.sendMessageDelayed(msg,
+                mDirectorySearchScheduler.getSearchDelayMillis(directoryId));
     }
 
     /**
@@ -377,9 +441,24 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     protected void loadDirectoryPartition(int partitionIndex, DirectoryPartition partition) {
         Bundle args = new Bundle();
         args.putLong(DIRECTORY_ID_ARG_KEY, partition.getDirectoryId());
+        if (partition.getDirectoryId() != Directory.DEFAULT) {
+            mDirectorySearchScheduler.onSearchStarted(partition.getDirectoryId(), mQueryString,
+                    SystemClock.elapsedRealtime());
+        }
         getLoaderManager().restartLoader(partitionIndex, args, this);
     }
 
+    /**
+     * Shows a result for the directory partition that was found without searching the
+     * directory.
+     */
+    private void loadDirectoryPartitionLocally(int partitionIndex, Cursor cursor) {
+        onPartitionLoaded(partitionIndex, cursor);
+        // The loader may still have the result of another query, which must not be
+        // delivered again
+        getLoaderManager().destroyLoader(partitionIndex);
+    }
+
     /**
      * Cancels all queued directory loading requests.
      */
@@ -387,6 +466,41 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         mDelayedDirectorySearchHandler.removeMessages(DIRECTORY_SEARCH_MESSAGE);
     }
 
+    /**
+     * Cancels the remote directory searches that are running, whose results are for a query
+     * that is no longer wanted. The loaders cancel the queries through their
+     * {@link android.os.CancellationSignal}, so that directories which support it can stop
+     * working on them.
+     */
+    private void cancelDirectorySearches() {
+        if (mAdapter == null) {
+            return;
+        }
+        final int partitionCount = mAdapter.getPartitionCount();
+        for (int i = 0; i < partitionCount; i++) {
+            final Partition partition = mAdapter.getPartition(i);
+            if (!(partition instanceof DirectoryPartition)) {
+                continue;
+            }
+            final DirectoryPartition directoryPartition = (DirectoryPartition) partition;
+            if (directoryPartition.getDirectoryId() == Directory.DEFAULT
+                    || directoryPartition.getStatus() != DirectoryPartition.STATUS_LOADING) {
+                continue;
+            }
+            final Loader<Cursor> loader = getLoaderManager().getLoader(i);
+            if (loader != null && loader.cancelLoad()) {
+                mDirectorySearchScheduler.onSearchCancelled(directoryPartition.getDirectoryId());
+            }
+        }
+    }
+
+    /**
+     * Returns the scheduler of the remote directory searches, e.g. for its latency statistics.
+     */
+    public DirectorySearchScheduler getDirectorySearchScheduler() {
+        return mDirectorySearchScheduler;
+    }
+
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         if (!mEnabled) {
@@ -397,9 +511,28 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         if (loaderId == DIRECTORY_LOADER_ID) {
             mDirectoryListStatus = STATUS_LOADED;
             mAdapter.changeDirectories(data);
+            // The list is loaded again when the directories change, which may change what
+            // they find
+            mDirectorySearchScheduler.clearResults();
+            mDirectoryResultCache.clear();
             startLoading();
         } else {
+            if (loaderId < mAdapter.getPartitionCount()
+                    && mAdapter.getPartition(loaderId) instanceof DirectoryPartition) {
+                final DirectoryPartition partition =
+                        (DirectoryPartition) mAdapter.getPartition(loaderId);
+                final long now = SystemClock.elapsedRealtime();
+                final String query = mDirectorySearchScheduler.onSearchFinished(
+                        partition.getDirectoryId(), data,
+                        mAdapter.getDirectoryResultLimit(partition), now);
+                if (query != null) {
+                    mDirectoryResultCache.put(partition.getDirectoryId(), query, data, now);
+                }
+            }
             onPartitionLoaded(loaderId, data);
+            if (mPhotoPrefetcher != null) {
+                mPhotoPrefetcher.reset();
+            }
             if (isSearchMode()) {
                 int directorySearchMode = getDirectorySearchMode();
                 if (directorySearchMode != DirectoryListLoader.SEARCH_MODE_NONE) {
@@ -457,9 +590,20 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     public void onStop() {
         super.onStop();
         mContactsPrefs.unregisterChangeListener();
+        if (mSearchEngine != null) {
+            mSearchEngine.stop();
+        }
         mAdapter.clearPartitions();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mPhotoManager != null) {
+            mPhotoManager.dump(prefix, writer);
+        }
+    }
+
     protected void reloadData() {
         removePendingDirectorySearchRequests();
         mAdapter.onDataReload();
@@ -535,6 +679,24 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         return mPhotoLoaderEnabled;
     }
 
+    /**
+     * Enables searching the local contacts in an in-memory index, which is built on the first
+     * search and refined as the query grows, instead of querying the provider for each change
+     * of the query. Only used if the adapter supports it. Must be called before the fragment
+     * starts.
+     * <p>
+     * Off by default: the index matches names, nicknames, phone numbers and email addresses
+     * only, and does not leave out numbers too long to be phone numbers, so its results can
+     * differ from those of the provider.
+     */
+    public void setLocalSearchEnabled(boolean flag) {
+        mLocalSearchEnabled = flag;
+    }
+
+    public boolean isLocalSearchEnabled() {
+        return mLocalSearchEnabled;
+    }
+
     /**
      * Returns true if the list is supposed to visually highlight the selected item.
      */
@@ -616,6 +778,10 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
                 }
             }
 
+            // Whatever the directories are still searching for is out of date now
+            cancelDirectorySearches();
+            mDirectorySearchScheduler.onQueryChanged(SystemClock.elapsedRealtime());
+
             mQueryString = queryString;
             setSearchMode(!TextUtils.isEmpty(mQueryString) || mShowEmptyListForEmptyQuery);
 
@@ -688,6 +854,12 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
             changed = true;
         }
 
+        if (changed) {
+            // The results of the directories are in the previous order
+            mDirectoryResultCache.clear();
+            mDirectorySearchScheduler.clearResults();
+        }
+
         return changed;
     }
 
@@ -759,6 +931,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         if (isPhotoLoaderEnabled() && mContext != null) {
             if (mPhotoManager == null) {
                 mPhotoManager = ContactPhotoManager.getInstance(mContext);
+                mPhotoPrefetcher = new PhotoPrefetcher(mPhotoManager);
             }
             if (mListView != null) {
                 mListView.setOnScrollListener(this);
@@ -791,6 +964,11 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        if (mPhotoPrefetcher != null && mAdapter != null && mListView != null
+                && isPhotoLoaderEnabled()) {
+            mPhotoPrefetcher.onScroll(mAdapter, mListView.getHeaderViewsCount(),
+                    firstVisibleItem, visibleItemCount);
+        }
     }
 
     @Override
@@ -62,7 +62,7 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
             Contacts.IS_USER_PROFILE,               // 7
         };
 
-        private static final String[] FILTER_PROJECTION_PRIMARY = new String[] {
+        /* package */ static final String[] FILTER_PROJECTION_PRIMARY = new String[] {
             Contacts._ID,                           // 0
             Contacts.DISPLAY_NAME_PRIMARY,          // 1
             Contacts.CONTACT_PRESENCE,              // 2
@@ -74,7 +74,7 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
             SearchSnippets.SNIPPET,           // 8
         };
 
-        private static final String[] FILTER_PROJECTION_ALTERNATIVE = new String[] {
+        /* package */ static final String[] FILTER_PROJECTION_ALTERNATIVE = new String[] {
             Contacts._ID,                           // 0
             Contacts.DISPLAY_NAME_ALTERNATIVE,      // 1
             Contacts.CONTACT_PRESENCE,              // 2
@@ -104,6 +104,10 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
     private long mSelectedContactId;
     private ContactListItemView.PhotoPosition mPhotoPosition;
 
+    /** The index of the last cursor searched for the selected contact. */
+    private Cursor mPositionIndexCursor;
+    private ContactPositionIndex mPositionIndex;
+
     public ContactListAdapter(Context context) {
         super(context);
 
@@ -218,6 +222,11 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
         }
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return ContactQuery.CONTACT_PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
@@ -288,23 +297,17 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
             return -1;
         }
 
-        cursor.moveToPosition(-1);      // Reset cursor
+        // The first row with either the lookup key or the contact id
+        final ContactPositionIndex index = getPositionIndex(cursor);
         int offset = -1;
-        while (cursor.moveToNext()) {
-            if (mSelectedContactLookupKey != null) {
-                String lookupKey = cursor.getString(ContactQuery.CONTACT_LOOKUP_KEY);
-                if (mSelectedContactLookupKey.equals(lookupKey)) {
-                    offset = cursor.getPosition();
-                    break;
-                }
-            }
-            if (mSelectedContactId != 0 && (mSelectedContactDirectoryId == Directory.DEFAULT
-                    || mSelectedContactDirectoryId == Directory.LOCAL_INVISIBLE)) {
-                long contactId = cursor.getLong(ContactQuery.CONTACT_ID);
-                if (contactId == mSelectedContactId) {
-                    offset = cursor.getPosition();
-                    break;
-                }
+        if (mSelectedContactLookupKey != null) {
+            offset = index.findLookupKey(cursor, mSelectedContactLookupKey);
+        }
+        if (mSelectedContactId != 0 && (mSelectedContactDirectoryId == Directory.DEFAULT
+                || mSelectedContactDirectoryId == Directory.LOCAL_INVISIBLE)) {
+            final int idOffset = index.findContactId(mSelectedContactId);
+            if (idOffset != -1 && (offset == -1 || idOffset < offset)) {
+                offset = idOffset;
             }
         }
         if (offset == -1) {
@@ -318,6 +321,22 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
         return position;
     }
 
+    /**
+     * Returns the index of the rows of the cursor. Cursors from loaders that build it in the
+     * background carry it, otherwise it is built once for each cursor.
+     */
+    private ContactPositionIndex getPositionIndex(Cursor cursor) {
+        if (cursor instanceof ContactPositionIndex.IndexedCursor) {
+            return ((ContactPositionIndex.IndexedCursor) cursor).getPositionIndex();
+        }
+        if (cursor != mPositionIndexCursor) {
+            mPositionIndex = new ContactPositionIndex(cursor, ContactQuery.CONTACT_ID,
+                    ContactQuery.CONTACT_LOOKUP_KEY);
+            mPositionIndexCursor = cursor;
+        }
+        return mPositionIndex;
+    }
+
     public boolean hasValidSelection() {
         return getSelectedContactPosition() != -1;
     }
@@ -348,6 +367,8 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
     @Override
     public void changeCursor(int partitionIndex, Cursor cursor) {
         super.changeCursor(partitionIndex, cursor);
+        mPositionIndexCursor = null;
+        mPositionIndex = null;
 
         // Check if a profile exists
         if (cursor != null && cursor.getCount() > 0) {
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.provider.ContactsContract.Contacts;
+
+import java.util.Arrays;
+
+/**
+ * Finds the position of a contact in a cursor of contacts by its id or lookup key, without
+ * going through the rows.
+ * <p>
+ * The index is two open addressing hash tables, one from contact ids and one from the hashes
+ * of lookup keys to the positions of the rows. As hashes can collide, a lookup key is compared
+ * with the one in the row before its position is returned. When several rows have the same
+ * key, the first one is found.
+ * <p>
+ * Loaders build the index in the background with {@link #wrap}, so that the adapter can use it
+ * with the cursor; the adapter builds it itself for other cursors.
+ */
+public class ContactPositionIndex {
+    /**
+     * A cursor that carries the index of its rows.
+     */
+    public static class IndexedCursor extends CursorWrapper {
+        private final ContactPositionIndex mIndex;
+
+        private IndexedCursor(Cursor cursor, ContactPositionIndex index) {
+            super(cursor);
+            mIndex = index;
+        }
+
+        public ContactPositionIndex getPositionIndex() {
+            return mIndex;
+        }
+    }
+
+    private static final int EMPTY = -1;
+
+    private final int mLookupKeyColumn;
+    private final int mMask;
+
+    private final long[] mIds;
+    private final int[] mIdPositions;
+    private final int[] mLookupKeyHashes;
+    private final int[] mLookupKeyPositions;
+
+    /**
+     * Indexes the rows of the cursor, leaving it before the first row.
+     *
+     * @param idColumn the column of the contact ids
+     * @param lookupKeyColumn the column of the lookup keys
+     */
+    public ContactPositionIndex(Cursor cursor, int idColumn, int lookupKeyColumn) {
+        mLookupKeyColumn = lookupKeyColumn;
+
+        // A power of two at least twice the number of rows, so that probe sequences stay short
+        int capacity = 2;
+        while (capacity < cursor.getCount() * 2) {
+            capacity <<= 1;
+        }
+        mMask = capacity - 1;
+        mIds = new long[capacity];
+        mIdPositions = new int[capacity];
+        mLookupKeyHashes = new int[capacity];
+        mLookupKeyPositions = new int[capacity];
+        Arrays.fill(mIdPositions, EMPTY);
+        Arrays.fill(mLookupKeyPositions, EMPTY);
+
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final int position = cursor.getPosition();
+            if (!cursor.isNull(idColumn)) {
+                addId(cursor.getLong(idColumn), position);
+            }
+            final String lookupKey = cursor.getString(lookupKeyColumn);
+            if (lookupKey != null) {
+                addLookupKey(lookupKey.hashCode(), position);
+            }
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    /**
+     * Indexes a cursor of {@link Contacts}, in the background thread of a loader.
+     *
+     * @return the cursor with its index, or the cursor itself if it is null or has no contact
+     * ids and lookup keys
+     */
+    public static Cursor wrap(Cursor cursor) {
+        if (cursor == null || cursor instanceof IndexedCursor) {
+            return cursor;
+        }
+        final int idColumn = cursor.getColumnIndex(Contacts._ID);
+        final int lookupKeyColumn = cursor.getColumnIndex(Contacts.LOOKUP_KEY);
+        if (idColumn < 0 || lookupKeyColumn < 0) {
+            return cursor;
+        }
+        return new IndexedCursor(cursor,
+                new ContactPositionIndex(cursor, idColumn, lookupKeyColumn));
+    }
+
+    private static int hash(long id) {
+        final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void addId(long id, int position) {
+        int slot = hash(id) & mMask;
+        while (mIdPositions[slot] != EMPTY) {
+            if (mIds[slot] == id) {
+                // Keep the first row of the contact
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mIds[slot] = id;
+        mIdPositions[slot] = position;
+    }
+
+    private void addLookupKey(int hash, int position) {
+        // Rows with the same hash are kept in the order of the probes, so the first one wins
+        int slot = (hash ^ (hash >>> 16)) & mMask;
+        while (mLookupKeyPositions[slot] != EMPTY) {
+            slot = (slot + 1) & mMask;
+        }
+        mLookupKeyHashes[slot] = hash;
+        mLookupKeyPositions[slot] = position;
+    }
+
+    /**
+     * Returns the position of the first row of the contact, or -1 if it is not in the cursor.
+     */
+    public int findContactId(long contactId) {
+        int slot = hash(contactId) & mMask;
+        while (mIdPositions[slot] != EMPTY) {
+            if (mIds[slot] == contactId) {
+                return mIdPositions[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the first row with the lookup key, or -1 if there is none.
+     *
+     * @param cursor the indexed cursor, whose rows with the hash of the key are compared with it
+     */
+    public int findLookupKey(Cursor cursor, String lookupKey) {
+        final int hash = lookupKey.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mMask;
+        while (mLookupKeyPositions[slot] != EMPTY) {
+            if (mLookupKeyHashes[slot] == hash) {
+                final int position = mLookupKeyPositions[slot];
+                if (cursor.moveToPosition(position)
+                        && lookupKey.equals(cursor.getString(mLookupKeyColumn))) {
+                    return position;
+                }
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+}
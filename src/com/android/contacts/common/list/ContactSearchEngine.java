@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a {@link ContactSearchIndex} of the local contacts while a search UI is started. The
+ * index is built on the first search, on the thread of the search, and rebuilt on a later search
+ * if the contacts changed meanwhile.
+ * <p>
+ * The contacts provider notifies every write to its authority, so a change notification only
+ * marks the index as possibly stale: the next search compares the number of contacts and their
+ * latest update time with those the index was built from, and only rebuilds it if they differ.
+ */
+public class ContactSearchEngine {
+    private static final String TAG = "ContactSearchEngine";
+
+    private static final String[] FINGERPRINT_PROJECTION = new String[] {
+        Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+    };
+
+    /** An index with what it was built from. */
+    private static final class Snapshot {
+        final ContactSearchIndex index;
+        final String sortOrder;
+        final String fingerprint;
+        final int generation;
+
+        Snapshot(ContactSearchIndex index, String sortOrder, String fingerprint, int generation) {
+            this.index = index;
+            this.sortOrder = sortOrder;
+            this.fingerprint = fingerprint;
+            this.generation = generation;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mGeneration.incrementAndGet();
+        }
+    };
+
+    /** Incremented whenever something in the provider changes. */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * Held while a search checks or builds the index, so that searches do not build it twice.
+     * {@link #start} and {@link #stop} never wait for it.
+     */
+    private final Object mIndexLock = new Object();
+
+    private volatile boolean mStarted;
+    private volatile Snapshot mSnapshot;
+
+    public ContactSearchEngine(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Starts watching the contacts. Called when the UI using the engine starts.
+     */
+    public synchronized void start() {
+        if (!mStarted) {
+            mStarted = true;
+            mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, mObserver);
+        }
+    }
+
+    /**
+     * Stops watching the contacts and drops the index. Called when the UI using the engine stops,
+     * and does not wait for an index being built.
+     */
+    public synchronized void stop() {
+        if (mStarted) {
+            mStarted = false;
+            mResolver.unregisterContentObserver(mObserver);
+        }
+        mSnapshot = null;
+    }
+
+    /**
+     * Keeps the index unless the engine was stopped while it was built.
+     */
+    private synchronized void publish(Snapshot snapshot) {
+        if (mStarted) {
+            mSnapshot = snapshot;
+        }
+    }
+
+    /**
+     * Returns the index of the local contacts, in the given order, building it if needed.
+     *
+     * @param sortOrder {@link Contacts#SORT_KEY_PRIMARY} or {@link Contacts#SORT_KEY_ALTERNATIVE}
+     * @return the index, or null if the engine is stopped or the contacts cannot be read
+     */
+    public ContactSearchIndex getIndex(String sortOrder) {
+        synchronized (mIndexLock) {
+            if (!mStarted) {
+                return null;
+            }
+            // Read before the contacts, so that a change while they are read is seen next time
+            final int generation = mGeneration.get();
+            final Snapshot current = mSnapshot;
+            String fingerprint = null;
+            if (current != null && sortOrder.equals(current.sortOrder)) {
+                if (current.generation == generation) {
+                    return current.index;
+                }
+                fingerprint = queryFingerprint();
+                if (fingerprint != null && fingerprint.equals(current.fingerprint)) {
+                    // The change was not to the contacts
+                    publish(new Snapshot(current.index, sortOrder, fingerprint, generation));
+                    return current.index;
+                }
+            }
+            if (fingerprint == null) {
+                fingerprint = queryFingerprint();
+            }
+            final ContactSearchIndex index = buildIndex(sortOrder);
+            if (index != null) {
+                publish(new Snapshot(index, sortOrder, fingerprint, generation));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the number of contacts and their latest update time, or null if they cannot be
+     * read.
+     */
+    private String queryFingerprint() {
+        final Cursor cursor = mResolver.query(Contacts.CONTENT_URI, FINGERPRINT_PROJECTION, null,
+                null, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " DESC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.getCount() + ":" + (cursor.moveToFirst() ? cursor.getLong(0) : 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContactSearchIndex buildIndex(String sortOrder) {
+        final long start = System.currentTimeMillis();
+        final String[] mimeTypes = ContactSearchIndex.SNAPSHOT_MIME_TYPES;
+        final StringBuilder selection = new StringBuilder(Data.MIMETYPE + " IN (");
+        for (int i = 0; i < mimeTypes.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI,
+                ContactSearchIndex.SNAPSHOT_PROJECTION, selection.toString(), mimeTypes,
+                sortOrder + ", " + Data.CONTACT_ID);
+        if (cursor == null) {
+            return null;
+        }
+        final ContactSearchIndex index;
+        try {
+            index = new ContactSearchIndex(cursor);
+        } finally {
+            cursor.close();
+        }
+        Log.i(TAG, "Indexed " + index.getContactCount() + " contacts in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+}
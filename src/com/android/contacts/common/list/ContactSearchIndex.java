@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.provider.BaseColumns;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.SearchSnippets;
+import android.text.TextUtils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An in-memory index of the local contacts for type-ahead search, built from one snapshot of
+ * the data rows of the contacts.
+ * <p>
+ * Each contact is indexed by the words of its display names and nicknames, the digits of its
+ * phone numbers, and its email addresses and their words. A query matches the contacts that have,
+ * for each word of the query, a token starting with that word. All the tokens are kept in one
+ * sorted array, so the candidates of a query are found with a binary search. When a query only
+ * extends the previous one, as it does while the user types, the previous results are narrowed
+ * down instead.
+ * <p>
+ * The results are returned as cursors with the projections that the list adapters use with
+ * {@link ContactsContract.Contacts#CONTENT_FILTER_URI} and {@link Phone#CONTENT_FILTER_URI}.
+ */
+public class ContactSearchIndex {
+    /** Search results with one row per contact. */
+    public static final int MODE_CONTACTS = 0;
+    /** Search results with one row per phone number. */
+    public static final int MODE_PHONES = 1;
+    /**
+     * Search results with one row per phone number, for a query typed on a dial pad.
+     *
+     * @see DialpadSearchIndex
+     */
+    public static final int MODE_DIALPAD = 2;
+
+    /** Columns of the snapshot the index is built from. */
+    public static final String[] SNAPSHOT_PROJECTION = new String[] {
+        Data._ID,                               // 0
+        Data.CONTACT_ID,                        // 1
+        Data.MIMETYPE,                          // 2
+        Data.DATA1,                             // 3
+        Data.DATA2,                             // 4
+        Data.DATA3,                             // 5
+        Data.DATA4,                             // 6
+        Data.DISPLAY_NAME_PRIMARY,              // 7
+        Data.DISPLAY_NAME_ALTERNATIVE,          // 8
+        Data.CONTACT_PRESENCE,                  // 9
+        Data.CONTACT_STATUS,                    // 10
+        Data.PHOTO_ID,                          // 11
+        Data.PHOTO_THUMBNAIL_URI,               // 12
+        Data.LOOKUP_KEY,                        // 13
+        Data.IN_VISIBLE_GROUP,                  // 14
+    };
+
+    /** Mime types of the data rows in the snapshot. */
+    public static final String[] SNAPSHOT_MIME_TYPES = new String[] {
+        ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE,
+        Nickname.CONTENT_ITEM_TYPE,
+        Phone.CONTENT_ITEM_TYPE,
+        Email.CONTENT_ITEM_TYPE,
+    };
+
+    private static final int CONTACT_ID = 1;
+    private static final int MIMETYPE = 2;
+    private static final int DATA1 = 3;
+    private static final int NORMALIZED_NUMBER = 6;
+    private static final int DISPLAY_NAME_PRIMARY = 7;
+    private static final int DISPLAY_NAME_ALTERNATIVE = 8;
+    private static final int IN_VISIBLE_GROUP = 14;
+
+    /** Column index standing for the search snippet in a result projection. */
+    private static final int SNIPPET_COLUMN = -2;
+
+    private static class Entry {
+        /** The first row of the contact, holding its contact level columns. */
+        final String[] values;
+        final List<String[]> phones = new ArrayList<String[]>();
+        /** The sorted tokens of the contact, and what each one comes from (null for names). */
+        String[] tokens;
+        String[] sources;
+
+        /** Tokens and phone numbers, while the index is built. */
+        Map<String, String> pendingTokens = new TreeMap<String, String>();
+        Set<String> numbers = new HashSet<String>();
+
+        Entry(String[] values) {
+            this.values = values;
+        }
+
+        boolean isVisible() {
+            return "1".equals(values[IN_VISIBLE_GROUP]);
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    /** The tokens of all the contacts, sorted, and the entry each one belongs to. */
+    private final String[] mTokens;
+    private final int[] mTokenEntries;
+
+    /** The previous query and its results, which are narrowed down when the query grows. */
+    private String[] mLastTerms;
+    private int[] mLastMatches;
+
+    /** Built on the first dial pad search. */
+    private DialpadSearchIndex mDialpadIndex;
+
+    /**
+     * @param snapshot the rows of {@link #SNAPSHOT_MIME_TYPES} with
+     * {@link #SNAPSHOT_PROJECTION}, in the order the results are to be in
+     */
+    public ContactSearchIndex(Cursor snapshot) {
+        final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+        snapshot.moveToPosition(-1);
+        while (snapshot.moveToNext()) {
+            final String[] values = new String[SNAPSHOT_PROJECTION.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = snapshot.getString(i);
+            }
+            final long contactId = snapshot.getLong(CONTACT_ID);
+            Entry entry = entries.get(contactId);
+            if (entry == null) {
+                entry = new Entry(values);
+                entries.put(contactId, entry);
+                mEntries.add(entry);
+                addTokens(entry.pendingTokens, values[DISPLAY_NAME_PRIMARY], null);
+                addTokens(entry.pendingTokens, values[DISPLAY_NAME_ALTERNATIVE], null);
+            }
+            addData(entry, values);
+        }
+
+        final List<Object[]> postings = new ArrayList<Object[]>();
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.get(i);
+            final int size = entry.pendingTokens.size();
+            entry.tokens = entry.pendingTokens.keySet().toArray(new String[size]);
+            entry.sources = entry.pendingTokens.values().toArray(new String[size]);
+            entry.pendingTokens = null;
+            entry.numbers = null;
+            for (String token : entry.tokens) {
+                postings.add(new Object[] {token, i});
+            }
+        }
+        Collections.sort(postings, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] lhs, Object[] rhs) {
+                return ((String) lhs[0]).compareTo((String) rhs[0]);
+            }
+        });
+        mTokens = new String[postings.size()];
+        mTokenEntries = new int[postings.size()];
+        for (int i = 0; i < mTokens.length; i++) {
+            mTokens[i] = (String) postings.get(i)[0];
+            mTokenEntries[i] = (Integer) postings.get(i)[1];
+        }
+    }
+
+    private static void addData(Entry entry, String[] values) {
+        final Map<String, String> tokens = entry.pendingTokens;
+        final String mimeType = values[MIMETYPE];
+        final String data = values[DATA1];
+        if (TextUtils.isEmpty(data)) {
+            return;
+        }
+        if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            final String digits = digitsOf(data);
+            final String normalized = digitsOf(values[NORMALIZED_NUMBER]);
+            addToken(tokens, digits, data);
+            addToken(tokens, normalized, data);
+            // Numbers that only differ in formatting are shown once
+            if (entry.numbers.add(TextUtils.isEmpty(normalized) ? digits : normalized)) {
+                entry.phones.add(values);
+            }
+        } else if (Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            addToken(tokens, normalize(data), data);
+            addTokens(tokens, data, data);
+        } else if (Nickname.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            addTokens(tokens, data, data);
+        }
+    }
+
+    private static void addTokens(Map<String, String> tokens, String text, String source) {
+        if (text == null) {
+            return;
+        }
+        for (String word : splitWords(normalize(text))) {
+            addToken(tokens, word, source);
+        }
+    }
+
+    private static void addToken(Map<String, String> tokens, String token, String source) {
+        // A name token wins over the same token from other data, so that it has no snippet
+        if (!TextUtils.isEmpty(token) && (!tokens.containsKey(token) || source == null)) {
+            tokens.put(token, source);
+        }
+    }
+
+    /**
+     * Lowercases the text and strips its accents.
+     */
+    /* package */ static String normalize(String text) {
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        final StringBuilder builder = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                builder.append(Character.toLowerCase(c));
+            }
+        }
+        return builder.toString();
+    }
+
+    /* package */ static List<String> splitWords(String text) {
+        final List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean letterOrDigit = i < text.length()
+                    && Character.isLetterOrDigit(text.charAt(i));
+            if (letterOrDigit && start < 0) {
+                start = i;
+            } else if (!letterOrDigit && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /* package */ static String digitsOf(String number) {
+        if (number == null) {
+            return null;
+        }
+        final StringBuilder builder = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Splits a query into the words each match must have a token for. A query that looks like a
+     * phone number is one word of its digits.
+     */
+    /* package */ static String[] parseQuery(String query) {
+        if (query == null) {
+            return new String[0];
+        }
+        boolean hasDigits = false;
+        boolean numberOnly = true;
+        for (int i = 0; i < query.length() && numberOnly; i++) {
+            final char c = query.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigits = true;
+            } else if ("+-()./ ".indexOf(c) < 0) {
+                numberOnly = false;
+            }
+        }
+        if (hasDigits && numberOnly) {
+            return new String[] {digitsOf(query)};
+        }
+        final List<String> words = splitWords(normalize(query));
+        return words.toArray(new String[words.size()]);
+    }
+
+    public int getContactCount() {
+        return mEntries.size();
+    }
+
+    private synchronized DialpadSearchIndex getDialpadIndex() {
+        if (mDialpadIndex == null) {
+            final List<String[]> names = new ArrayList<String[]>(mEntries.size());
+            final List<String[]> numbers = new ArrayList<String[]>(mEntries.size());
+            for (Entry entry : mEntries) {
+                names.add(new String[] {
+                        entry.values[DISPLAY_NAME_PRIMARY], entry.values[DISPLAY_NAME_ALTERNATIVE]
+                });
+                final String[] entryNumbers = new String[entry.phones.size()];
+                for (int i = 0; i < entryNumbers.length; i++) {
+                    entryNumbers[i] = entry.phones.get(i)[DATA1];
+                }
+                numbers.add(entryNumbers);
+            }
+            mDialpadIndex = new DialpadSearchIndex(names, numbers);
+        }
+        return mDialpadIndex;
+    }
+
+    /**
+     * Finds the contacts matching the query.
+     *
+     * @return the positions of the matching contacts, in the order of the snapshot
+     */
+    public synchronized int[] findMatches(String query) {
+        final String[] terms = parseQuery(query);
+        if (terms.length == 0) {
+            mLastTerms = null;
+            mLastMatches = null;
+            return new int[0];
+        }
+        final int[] candidates = mLastTerms != null && refines(mLastTerms, terms)
+                ? mLastMatches : findCandidates(terms);
+        final int[] matches = filter(candidates, terms);
+        mLastTerms = terms;
+        mLastMatches = matches;
+        return matches;
+    }
+
+    /**
+     * Returns whether every match of the given terms is a match of the previous ones.
+     */
+    /* package */ static boolean refines(String[] previous, String[] terms) {
+        if (terms.length < previous.length) {
+            return false;
+        }
+        for (int i = 0; i < previous.length; i++) {
+            if (!terms[i].startsWith(previous[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the contacts that have a token for the longest of the terms, which is usually
+     * the one with the fewest.
+     */
+    private int[] findCandidates(String[] terms) {
+        String longest = terms[0];
+        for (String term : terms) {
+            if (term.length() > longest.length()) {
+                longest = term;
+            }
+        }
+        final BitSet candidates = new BitSet(mEntries.size());
+        for (int i = lowerBound(mTokens, longest);
+                i < mTokens.length && mTokens[i].startsWith(longest); i++) {
+            candidates.set(mTokenEntries[i]);
+        }
+        final int[] result = new int[candidates.cardinality()];
+        for (int i = candidates.nextSetBit(0), j = 0; i >= 0; i = candidates.nextSetBit(i + 1)) {
+            result[j++] = i;
+        }
+        return result;
+    }
+
+    private int[] filter(int[] candidates, String[] terms) {
+        final int[] matches = new int[candidates.length];
+        int count = 0;
+        for (int candidate : candidates) {
+            if (matchesAll(mEntries.get(candidate), terms)) {
+                matches[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    private static boolean matchesAll(Entry entry, String[] terms) {
+        for (String term : terms) {
+            final int i = lowerBound(entry.tokens, term);
+            if (i == entry.tokens.length || !entry.tokens[i].startsWith(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        final int i = Arrays.binarySearch(sorted, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Returns the data of the contact that the terms matched, other than its names, one per
+     * line, or null if the terms only matched names.
+     */
+    private static String getSnippet(Entry entry, String[] terms) {
+        final Set<String> lines = new LinkedHashSet<String>();
+        for (String term : terms) {
+            String source = null;
+            for (int i = lowerBound(entry.tokens, term);
+                    i < entry.tokens.length && entry.tokens[i].startsWith(term); i++) {
+                if (entry.sources[i] == null) {
+                    source = null;
+                    break;
+                }
+                if (source == null) {
+                    source = entry.sources[i];
+                }
+            }
+            if (source != null) {
+                lines.add(source);
+            }
+        }
+        return lines.isEmpty() ? null : TextUtils.join("\n", lines);
+    }
+
+    /**
+     * Searches the index.
+     *
+     * @param mode {@link #MODE_CONTACTS}, {@link #MODE_PHONES} or {@link #MODE_DIALPAD}
+     * @param projection the columns of the result. In {@link #MODE_CONTACTS},
+     * {@link BaseColumns#_ID} is the contact id and {@link SearchSnippets#SNIPPET} is supported.
+     * Columns that are not in {@link #SNAPSHOT_PROJECTION} are null.
+     */
+    public Cursor search(String query, int mode, String[] projection) {
+        final int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            final String column = projection[i];
+            if (mode == MODE_CONTACTS && BaseColumns._ID.equals(column)) {
+                columns[i] = CONTACT_ID;
+            } else if (mode == MODE_CONTACTS && SearchSnippets.SNIPPET.equals(column)) {
+                columns[i] = SNIPPET_COLUMN;
+            } else {
+                columns[i] = Arrays.asList(SNAPSHOT_PROJECTION).indexOf(column);
+            }
+        }
+
+        if (mode == MODE_DIALPAD) {
+            final List<DialpadSearchIndex.Match> matches = getDialpadIndex().search(query);
+            final ResultCursor cursor = new ResultCursor(projection, matches.size());
+            for (DialpadSearchIndex.Match match : matches) {
+                final Entry entry = mEntries.get(match.contact);
+                if (match.number >= 0) {
+                    cursor.addRow(createRow(columns, entry.phones.get(match.number), entry, null));
+                } else {
+                    for (String[] phone : entry.phones) {
+                        cursor.addRow(createRow(columns, phone, entry, null));
+                    }
+                }
+            }
+            return cursor;
+        }
+
+        final int[] matches = findMatches(query);
+        final String[] terms = parseQuery(query);
+        final ResultCursor cursor = new ResultCursor(projection, matches.length);
+        for (int match : matches) {
+            final Entry entry = mEntries.get(match);
+            if (mode == MODE_CONTACTS) {
+                // Contacts outside visible groups are in the local invisible directory
+                if (entry.isVisible()) {
+                    cursor.addRow(createRow(columns, entry.values, entry, terms));
+                }
+            } else {
+                for (String[] phone : entry.phones) {
+                    cursor.addRow(createRow(columns, phone, entry, terms));
+                }
+            }
+        }
+        if (mode == MODE_CONTACTS) {
+            // The snippets are the matching data, as with deferred snippeting in the provider
+            cursor.mExtras.putBoolean(ContactsContract.DEFERRED_SNIPPETING, true);
+            cursor.mExtras.putString(ContactsContract.DEFERRED_SNIPPETING_QUERY, query);
+        }
+        return cursor;
+    }
+
+    private static Object[] createRow(int[] columns, String[] values, Entry entry,
+            String[] terms) {
+        final Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == SNIPPET_COLUMN) {
+                row[i] = getSnippet(entry, terms);
+            } else if (columns[i] >= 0) {
+                row[i] = values[columns[i]];
+            }
+        }
+        return row;
+    }
+
+    private static class ResultCursor extends MatrixCursor {
+        final Bundle mExtras = new Bundle();
+
+        ResultCursor(String[] columnNames, int initialCapacity) {
+            super(columnNames, initialCapacity);
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+
+/**
+ * A loader that searches the local contacts with a {@link ContactSearchEngine} instead of the
+ * contacts provider.
+ * <p>
+ * It is configured like any other {@link CursorLoader}. If the adapter also calls
+ * {@link #setLocalSearch}, the search is answered from the index of the engine with the
+ * projection and sort order of the loader; otherwise, or if there is no index, the loader
+ * queries the provider with its Uri.
+ */
+public class ContactSearchLoader extends CursorLoader {
+    private final ContactSearchEngine mEngine;
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    private String mQuery;
+    private int mMode;
+
+    public ContactSearchLoader(Context context, ContactSearchEngine engine) {
+        super(context, null, null, null, null, null);
+        mEngine = engine;
+    }
+
+    /**
+     * Answers the query from the index.
+     *
+     * @param mode {@link ContactSearchIndex#MODE_CONTACTS},
+     * {@link ContactSearchIndex#MODE_PHONES} or {@link ContactSearchIndex#MODE_DIALPAD}
+     */
+    public void setLocalSearch(String query, int mode) {
+        mQuery = query;
+        mMode = mode;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final ContactSearchIndex index = mQuery == null || getSortOrder() == null
+                ? null : mEngine.getIndex(getSortOrder());
+        if (index == null) {
+            return super.loadInBackground();
+        }
+        final Cursor cursor = index.search(mQuery, mMode, getProjection());
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                ContactsContract.AUTHORITY_URI);
+        cursor.registerContentObserver(mObserver);
+        return mMode == ContactSearchIndex.MODE_CONTACTS ? ContactPositionIndex.wrap(cursor)
+                : cursor;
+    }
+}
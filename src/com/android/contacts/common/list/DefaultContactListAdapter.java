@@ -78,6 +78,10 @@ public class DefaultContactListAdapter extends ContactListAdapter {
                 builder.appendQueryParameter(SearchSnippets.DEFERRED_SNIPPETING_KEY,"1");
                 loader.setUri(builder.build());
                 loader.setProjection(getProjection(true));
+                if (loader instanceof ContactSearchLoader && directoryId == Directory.DEFAULT) {
+                    ((ContactSearchLoader) loader).setLocalSearch(query,
+                            ContactSearchIndex.MODE_CONTACTS);
+                }
             }
         } else {
             configureUri(loader, directoryId, filter);
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An index for searching contacts with the digits of a dial pad, where each digit stands for
+ * the letters on its key.
+ * <p>
+ * A query matches a contact when it is the start of one of the contact's name words or of the
+ * initials of its name, spelled as key digits, or when it is part of one of its phone numbers.
+ * Name words are kept in a trie of digits whose nodes list the contacts below them, so matching
+ * a name costs one step per digit of the query. Phone numbers are kept in a suffix array, so a
+ * number is found with a binary search wherever the query is in it.
+ * <p>
+ * Contacts and their numbers are identified by their positions in the lists the index is built
+ * from.
+ */
+public class DialpadSearchIndex {
+    /** A contact found, and which of its numbers matched, or -1 if its name matched. */
+    public static class Match {
+        public final int contact;
+        public final int number;
+
+        Match(int contact, int number) {
+            this.contact = contact;
+            this.number = number;
+        }
+
+        @Override
+        public String toString() {
+            return contact + ":" + number;
+        }
+    }
+
+    /** The key of each letter from 'a' to 'z'. */
+    private static final char[] KEYS = "22233344455566677778889999".toCharArray();
+
+    private static final int RADIX = 10;
+    private static final int INITIAL_NODES = 1024;
+
+    /** Children of the trie nodes, RADIX per node. 0 is no child, as the root is no child. */
+    private int[] mChildren = new int[INITIAL_NODES * RADIX];
+    /** Contacts with a word below each node, ascending. */
+    private int[][] mNodeContacts = new int[INITIAL_NODES][];
+    private int[] mNodeContactCounts = new int[INITIAL_NODES];
+    private int mNodeCount = 1;
+
+    /** The digits of each number, and the contact it belongs to. */
+    private final String[] mNumbers;
+    private final int[] mNumberContacts;
+    private final int[] mNumberIndexes;
+    /** The suffixes of all the numbers, sorted, each as its number and its offset in it. */
+    private final int[] mSuffixNumbers;
+    private final int[] mSuffixOffsets;
+
+    /**
+     * @param names the names of each contact
+     * @param numbers the phone numbers of each contact
+     */
+    public DialpadSearchIndex(List<String[]> names, List<String[]> numbers) {
+        for (int contact = 0; contact < names.size(); contact++) {
+            final String[] contactNames = names.get(contact);
+            for (int i = 0; i < contactNames.length; i++) {
+                if (contactNames[i] == null) {
+                    continue;
+                }
+                final StringBuilder initials = new StringBuilder();
+                for (String word : ContactSearchIndex.splitWords(
+                        ContactSearchIndex.normalize(contactNames[i]))) {
+                    final String digits = toKeys(word);
+                    if (digits != null) {
+                        addWord(digits, contact);
+                        initials.append(digits.charAt(0));
+                    }
+                }
+                // The initials of the first name, e.g. "JS" for "John Smith"
+                if (i == 0 && initials.length() > 1) {
+                    addWord(initials.toString(), contact);
+                }
+            }
+        }
+        trimNodes();
+
+        final List<String> allNumbers = new ArrayList<String>();
+        final List<Integer> numberContacts = new ArrayList<Integer>();
+        final List<Integer> numberIndexes = new ArrayList<Integer>();
+        int suffixCount = 0;
+        for (int contact = 0; contact < numbers.size(); contact++) {
+            final String[] contactNumbers = numbers.get(contact);
+            for (int i = 0; i < contactNumbers.length; i++) {
+                final String digits = toKeys(contactNumbers[i] == null ? "" : contactNumbers[i]);
+                if (digits != null && digits.length() > 0) {
+                    allNumbers.add(digits);
+                    numberContacts.add(contact);
+                    numberIndexes.add(i);
+                    suffixCount += digits.length();
+                }
+            }
+        }
+        mNumbers = allNumbers.toArray(new String[allNumbers.size()]);
+        mNumberContacts = toArray(numberContacts);
+        mNumberIndexes = toArray(numberIndexes);
+
+        final List<long[]> suffixes = new ArrayList<long[]>(suffixCount);
+        for (int number = 0; number < mNumbers.length; number++) {
+            for (int offset = 0; offset < mNumbers[number].length(); offset++) {
+                suffixes.add(new long[] {number, offset});
+            }
+        }
+        Collections.sort(suffixes, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return compareSuffix((int) lhs[0], (int) lhs[1],
+                        mNumbers[(int) rhs[0]], (int) rhs[1], Integer.MAX_VALUE);
+            }
+        });
+        mSuffixNumbers = new int[suffixCount];
+        mSuffixOffsets = new int[suffixCount];
+        for (int i = 0; i < suffixCount; i++) {
+            mSuffixNumbers[i] = (int) suffixes.get(i)[0];
+            mSuffixOffsets[i] = (int) suffixes.get(i)[1];
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Spells normalized text with the digits of the dial pad, leaving out anything else that
+     * cannot be typed on it, such as spaces and punctuation.
+     *
+     * @return the digits, or null if the text has letters that are not on the dial pad
+     */
+    /* package */ static String toKeys(String text) {
+        final StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                builder.append(c);
+            } else if (c >= 'a' && c <= 'z') {
+                builder.append(KEYS[c - 'a']);
+            } else if (c >= 'A' && c <= 'Z') {
+                builder.append(KEYS[c - 'A']);
+            } else if (Character.isLetter(c)) {
+                return null;
+            }
+        }
+        return builder.toString();
+    }
+
+    private void addWord(String digits, int contact) {
+        int node = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            final int slot = node * RADIX + (digits.charAt(i) - '0');
+            if (mChildren[slot] == 0) {
+                mChildren[slot] = newNode();
+            }
+            node = mChildren[slot];
+            addContact(node, contact);
+        }
+    }
+
+    private int newNode() {
+        if (mNodeCount == mNodeContacts.length) {
+            final int capacity = mNodeCount * 2;
+            mChildren = Arrays.copyOf(mChildren, capacity * RADIX);
+            mNodeContacts = Arrays.copyOf(mNodeContacts, capacity);
+            mNodeContactCounts = Arrays.copyOf(mNodeContactCounts, capacity);
+        }
+        return mNodeCount++;
+    }
+
+    private void addContact(int node, int contact) {
+        int[] contacts = mNodeContacts[node];
+        final int count = mNodeContactCounts[node];
+        // Contacts are added in order, so a contact with several matching words is the last one
+        if (count > 0 && contacts[count - 1] == contact) {
+            return;
+        }
+        if (contacts == null) {
+            contacts = mNodeContacts[node] = new int[2];
+        } else if (count == contacts.length) {
+            contacts = mNodeContacts[node] = Arrays.copyOf(contacts, count * 2);
+        }
+        contacts[count] = contact;
+        mNodeContactCounts[node] = count + 1;
+    }
+
+    private void trimNodes() {
+        mChildren = Arrays.copyOf(mChildren, mNodeCount * RADIX);
+        mNodeContacts = Arrays.copyOf(mNodeContacts, mNodeCount);
+        for (int node = 1; node < mNodeCount; node++) {
+            mNodeContacts[node] = Arrays.copyOf(mNodeContacts[node], mNodeContactCounts[node]);
+        }
+        mNodeContactCounts = null;
+    }
+
+    /**
+     * Compares the suffix of a number with the given key, looking at most at {@code length}
+     * digits.
+     */
+    private int compareSuffix(int number, int offset, String key, int keyOffset, int length) {
+        final String digits = mNumbers[number];
+        final int end = (int) Math.min((long) offset + length, digits.length());
+        final int keyEnd = (int) Math.min((long) keyOffset + length, key.length());
+        int i = offset;
+        int j = keyOffset;
+        while (i < end && j < keyEnd) {
+            final int diff = digits.charAt(i++) - key.charAt(j++);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (end - i) - (keyEnd - j);
+    }
+
+    /**
+     * Finds the contacts matching the query. Contacts whose name matches come first, then
+     * numbers that start with the query, then numbers that contain it; each group keeps the
+     * order of the contacts.
+     *
+     * @param query digits, or letters, which are turned into the digits of their keys
+     */
+    public List<Match> search(String query) {
+        final List<Match> matches = new ArrayList<Match>();
+        final String digits = query == null ? null : toKeys(query.toLowerCase());
+        if (digits == null || digits.isEmpty()) {
+            return matches;
+        }
+
+        int node = 0;
+        for (int i = 0; i < digits.length() && node >= 0; i++) {
+            final int child = mChildren[node * RADIX + (digits.charAt(i) - '0')];
+            node = child == 0 ? -1 : child;
+        }
+        final int[] nameMatches = node > 0 ? mNodeContacts[node] : new int[0];
+        for (int contact : nameMatches) {
+            matches.add(new Match(contact, -1));
+        }
+
+        // Suffixes starting with the query are next to each other in the suffix array
+        int low = 0;
+        int high = mSuffixNumbers.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareSuffix(mSuffixNumbers[mid], mSuffixOffsets[mid], digits, 0,
+                    digits.length()) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // Number ids follow the order of the contacts, so listing them by id keeps that order
+        final BitSet prefixes = new BitSet(mNumbers.length);
+        final BitSet infixes = new BitSet(mNumbers.length);
+        for (int i = low; i < mSuffixNumbers.length && compareSuffix(mSuffixNumbers[i],
+                mSuffixOffsets[i], digits, 0, digits.length()) == 0; i++) {
+            final int number = mSuffixNumbers[i];
+            if (Arrays.binarySearch(nameMatches, mNumberContacts[number]) < 0) {
+                (mSuffixOffsets[i] == 0 ? prefixes : infixes).set(number);
+            }
+        }
+        infixes.andNot(prefixes);
+        addNumberMatches(matches, prefixes);
+        addNumberMatches(matches, infixes);
+        return matches;
+    }
+
+    private void addNumberMatches(List<Match> matches, BitSet numbers) {
+        for (int i = numbers.nextSetBit(0); i >= 0; i = numbers.nextSetBit(i + 1)) {
+            matches.add(new Match(mNumberContacts[i], mNumberIndexes[i]));
+        }
+    }
+}
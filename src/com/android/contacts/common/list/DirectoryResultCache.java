@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.text.TextUtils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the latest results of remote directory searches for a while, so that going back to a
+ * query, e.g. by deleting the last character typed, does not search the directories again.
+ * <p>
+ * Results are looked up by directory and query. Queries with the same words, whatever their
+ * case, accents and punctuation, or phone numbers with the same digits, share their results.
+ * The least recently used results are dropped beyond the maximum size, and results expire
+ * after a time to live.
+ * <p>
+ * Not thread safe; used on the main thread.
+ */
+public class DirectoryResultCache {
+    /* package */ static final int DEFAULT_MAX_SIZE = 50;
+    /* package */ static final long DEFAULT_TIME_TO_LIVE_MILLIS = 60 * 1000;
+
+    private static class Result {
+        final String[] mColumns;
+        final List<Object[]> mRows;
+        final long mTime;
+
+        Result(String[] columns, List<Object[]> rows, long time) {
+            mColumns = columns;
+            mRows = rows;
+            mTime = time;
+        }
+    }
+
+    private final long mTimeToLiveMillis;
+    private final LinkedHashMap<String, Result> mResults;
+
+    public DirectoryResultCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE_MILLIS);
+    }
+
+    public DirectoryResultCache(final int maxSize, long timeToLiveMillis) {
+        mTimeToLiveMillis = timeToLiveMillis;
+        mResults = new LinkedHashMap<String, Result>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the key of the results of the query, or null if the query has no words.
+     */
+    /* package */ static String getKey(long directoryId, String query) {
+        final String[] terms = ContactSearchIndex.parseQuery(query);
+        return terms.length == 0 ? null : directoryId + ":" + TextUtils.join(" ", terms);
+    }
+
+    /**
+     * Returns a cursor over the cached result of the query, or null if there is none or it
+     * expired.
+     */
+    public Cursor get(long directoryId, String query, long now) {
+        final String key = getKey(directoryId, query);
+        final Result result = key == null ? null : mResults.get(key);
+        if (result == null) {
+            return null;
+        }
+        if (now - result.mTime > mTimeToLiveMillis || now < result.mTime) {
+            mResults.remove(key);
+            return null;
+        }
+        final MatrixCursor cursor = new MatrixCursor(result.mColumns, result.mRows.size());
+        for (Object[] row : result.mRows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Caches the result of the query. The rows are copied, so the cursor can be closed.
+     */
+    public void put(long directoryId, String query, Cursor cursor, long now) {
+        final String key = getKey(directoryId, query);
+        if (key == null || cursor == null) {
+            return;
+        }
+        mResults.put(key, new Result(cursor.getColumnNames(),
+                DirectorySearchScheduler.copyRows(cursor), now));
+    }
+
+    /**
+     * Drops all the results, e.g. when the directories change.
+     */
+    public void clear() {
+        mResults.clear();
+    }
+
+    public int size() {
+        return mResults.size();
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when to search remote directories while the user types, and keeps statistics of how
+ * long each directory takes to answer.
+ * <p>
+ * A directory search waits for a pause in the typing. The pause is a little longer than the
+ * usual gap between the user's key presses, and longer for directories that are slow to answer,
+ * since a slow search is more likely to be overtaken by the next key press.
+ * <p>
+ * When a directory returned all of its matches for a query, the matches of a query that
+ * refines it, such as "jo" for "j", are among them. Those are found by filtering the previous
+ * result by the columns directories search, rather than by searching the directory again.
+ * Other columns, such as lookup keys and photo URIs, are left out, as they would match
+ * queries the directory does not. Directories that match on data they do not return, such as
+ * emails for a list of names, may have more matches than that for the longer query; the
+ * shorter query has to miss the limit for that to matter.
+ * <p>
+ * Not thread safe; used on the main thread.
+ */
+public class DirectorySearchScheduler {
+    /* package */ static final long DEFAULT_DELAY_MILLIS = 300;
+    /* package */ static final long MIN_DELAY_MILLIS = 150;
+    /* package */ static final long MAX_DELAY_MILLIS = 1000;
+
+    /** Gaps between queries longer than this are pauses, not typing. */
+    private static final long MAX_TYPING_INTERVAL_MILLIS = 1500;
+    /** How much longer than the usual gap between key presses a pause is. */
+    private static final double TYPING_PAUSE_FACTOR = 1.5;
+    /** The weight of the newest sample in the averages. */
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    /** The columns of a result that the query is matched with when filtering it. */
+    private static final String[] SEARCHED_COLUMNS = new String[] {
+        Contacts.DISPLAY_NAME_PRIMARY,
+        Contacts.DISPLAY_NAME_ALTERNATIVE,
+        Phone.NUMBER,
+        Email.ADDRESS,
+        SearchSnippets.SNIPPET,
+    };
+
+    /**
+     * Statistics of the searches of one directory.
+     */
+    public static class DirectoryStats {
+        private int mSearchCount;
+        private int mCancelledCount;
+        private int mFilteredCount;
+        private long mLastLatencyMillis = -1;
+        private double mAverageLatencyMillis = -1;
+
+        private DirectoryStats() {
+        }
+
+        private DirectoryStats(DirectoryStats stats) {
+            mSearchCount = stats.mSearchCount;
+            mCancelledCount = stats.mCancelledCount;
+            mFilteredCount = stats.mFilteredCount;
+            mLastLatencyMillis = stats.mLastLatencyMillis;
+            mAverageLatencyMillis = stats.mAverageLatencyMillis;
+        }
+
+        /** The number of searches that were sent to the directory and answered. */
+        public int getSearchCount() {
+            return mSearchCount;
+        }
+
+        /** The number of searches that were cancelled because the query changed. */
+        public int getCancelledCount() {
+            return mCancelledCount;
+        }
+
+        /** The number of searches answered by filtering a previous result. */
+        public int getFilteredCount() {
+            return mFilteredCount;
+        }
+
+        /** The time the last search took, or -1 if none was answered. */
+        public long getLastLatencyMillis() {
+            return mLastLatencyMillis;
+        }
+
+        /** The smoothed time searches take, or -1 if none was answered. */
+        public long getAverageLatencyMillis() {
+            return Math.round(mAverageLatencyMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "DirectoryStats{searches=" + mSearchCount + ", cancelled=" + mCancelledCount
+                    + ", filtered=" + mFilteredCount + ", lastLatency=" + mLastLatencyMillis
+                    + ", averageLatency=" + getAverageLatencyMillis() + "}";
+        }
+    }
+
+    private static class DirectoryState {
+        final DirectoryStats mStats = new DirectoryStats();
+
+        /** The query being searched, and when the search started. */
+        String mPendingQuery;
+        long mStartTime;
+
+        /** The last result that has all the matches of its query, or null. */
+        String mResultQuery;
+        String[] mResultColumns;
+        int[] mResultSearchedColumns;
+        List<Object[]> mResultRows;
+    }
+
+    private final Map<Long, DirectoryState> mStates = new HashMap<Long, DirectoryState>();
+
+    private long mLastQueryTime = -1;
+    private double mTypingIntervalMillis = -1;
+
+    private DirectoryState getState(long directoryId) {
+        DirectoryState state = mStates.get(directoryId);
+        if (state == null) {
+            state = new DirectoryState();
+            mStates.put(directoryId, state);
+        }
+        return state;
+    }
+
+    /**
+     * Records a change of the query, to learn how fast the user types.
+     */
+    public void onQueryChanged(long now) {
+        if (mLastQueryTime >= 0) {
+            final long interval = now - mLastQueryTime;
+            if (interval >= 0 && interval <= MAX_TYPING_INTERVAL_MILLIS) {
+                mTypingIntervalMillis = average(mTypingIntervalMillis, interval);
+            }
+        }
+        mLastQueryTime = now;
+    }
+
+    private static double average(double average, long sample) {
+        return average < 0 ? sample : average + SMOOTHING_FACTOR * (sample - average);
+    }
+
+    /**
+     * Returns how long to wait for the next key press before searching the directory.
+     */
+    public long getSearchDelayMillis(long directoryId) {
+        final DirectoryState state = mStates.get(directoryId);
+        final double latency = state == null ? -1 : state.mStats.mAverageLatencyMillis;
+        if (mTypingIntervalMillis < 0 && latency < 0) {
+            return DEFAULT_DELAY_MILLIS;
+        }
+        final double delay = Math.max(mTypingIntervalMillis * TYPING_PAUSE_FACTOR, latency / 2);
+        return Math.max(MIN_DELAY_MILLIS, Math.min(MAX_DELAY_MILLIS, Math.round(delay)));
+    }
+
+    /**
+     * Records that a search of the directory was sent.
+     */
+    public void onSearchStarted(long directoryId, String query, long now) {
+        final DirectoryState state = getState(directoryId);
+        state.mPendingQuery = query;
+        state.mStartTime = now;
+    }
+
+    /**
+     * Records that the pending search of the directory was cancelled.
+     */
+    public void onSearchCancelled(long directoryId) {
+        final DirectoryState state = mStates.get(directoryId);
+        if (state != null && state.mPendingQuery != null) {
+            state.mPendingQuery = null;
+            state.mStats.mCancelledCount++;
+        }
+    }
+
+    /**
+     * Records the result of the pending search of the directory. A result with fewer rows than
+     * the limit has all the matches of its query, and is kept to answer queries refining it.
+     *
+     * @return the query of the search, or null if no search of the directory was pending
+     */
+    public String onSearchFinished(long directoryId, Cursor cursor, int limit, long now) {
+        final DirectoryState state = mStates.get(directoryId);
+        if (state == null || state.mPendingQuery == null) {
+            // Not a result of a search started here, e.g. one delivered again by the loader
+            return null;
+        }
+        final String query = state.mPendingQuery;
+        final DirectoryStats stats = state.mStats;
+        stats.mSearchCount++;
+        stats.mLastLatencyMillis = now - state.mStartTime;
+        stats.mAverageLatencyMillis = average(stats.mAverageLatencyMillis,
+                stats.mLastLatencyMillis);
+
+        final int[] searchedColumns = cursor == null ? null : getSearchedColumns(cursor);
+        if (cursor != null && cursor.getCount() < limit && searchedColumns.length > 0) {
+            state.mResultQuery = state.mPendingQuery;
+            state.mResultColumns = cursor.getColumnNames();
+            state.mResultSearchedColumns = searchedColumns;
+            state.mResultRows = copyRows(cursor);
+        } else {
+            clearResult(state);
+        }
+        state.mPendingQuery = null;
+        return query;
+    }
+
+    /**
+     * Returns the indexes of the {@link #SEARCHED_COLUMNS} the cursor has.
+     */
+    private static int[] getSearchedColumns(Cursor cursor) {
+        final int[] columns = new int[SEARCHED_COLUMNS.length];
+        int count = 0;
+        for (String name : SEARCHED_COLUMNS) {
+            final int column = cursor.getColumnIndex(name);
+            // Phone.NUMBER and Email.ADDRESS are the same column
+            if (column >= 0 && !contains(columns, count, column)) {
+                columns[count++] = column;
+            }
+        }
+        final int[] result = new int[count];
+        System.arraycopy(columns, 0, result, 0, count);
+        return result;
+    }
+
+    private static boolean contains(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the rows of the cursor, so that they outlive it.
+     */
+    /* package */ static List<Object[]> copyRows(Cursor cursor) {
+        final List<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+        final int columnCount = cursor.getColumnCount();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final Object[] row = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        row[i] = cursor.getString(i);
+                        break;
+                }
+            }
+            rows.add(row);
+        }
+        // Leave the cursor where the adapter expects a fresh one
+        cursor.moveToPosition(-1);
+        return rows;
+    }
+
+    /**
+     * Answers the query from the last complete result of the directory, if the query refines
+     * the query of that result.
+     *
+     * @return the rows of the result matching the query, or null if the directory has to be
+     * searched
+     */
+    public Cursor filterPreviousResult(long directoryId, String query) {
+        final DirectoryState state = mStates.get(directoryId);
+        if (state == null || state.mResultRows == null || query == null) {
+            return null;
+        }
+        final String[] terms = ContactSearchIndex.parseQuery(query);
+        if (terms.length == 0
+                || !ContactSearchIndex.refines(
+                        ContactSearchIndex.parseQuery(state.mResultQuery), terms)) {
+            return null;
+        }
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        for (Object[] row : state.mResultRows) {
+            if (matchesAll(row, state.mResultSearchedColumns, terms)) {
+                rows.add(row);
+            }
+        }
+        final MatrixCursor cursor = new MatrixCursor(state.mResultColumns, rows.size());
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        // The filtered result is as complete as the one it came from
+        state.mResultQuery = query;
+        state.mResultRows = rows;
+        state.mPendingQuery = null;
+        state.mStats.mFilteredCount++;
+        return cursor;
+    }
+
+    private static boolean matchesAll(Object[] row, int[] columns, String[] terms) {
+        for (String term : terms) {
+            if (!matches(row, columns, term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Object[] row, int[] columns, String term) {
+        for (int column : columns) {
+            final Object value = row[column];
+            if (!(value instanceof String)) {
+                continue;
+            }
+            final String text = (String) value;
+            for (String word : ContactSearchIndex.splitWords(ContactSearchIndex.normalize(text))) {
+                if (word.startsWith(term)) {
+                    return true;
+                }
+            }
+            // Numbers are matched wherever the digits are, whatever their formatting
+            final String digits = ContactSearchIndex.digitsOf(text);
+            if (digits.length() > 0 && digits.contains(term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the statistics of the directory, or null if it was never searched.
+     */
+    public DirectoryStats getStats(long directoryId) {
+        final DirectoryState state = mStates.get(directoryId);
+        return state == null ? null : new DirectoryStats(state.mStats);
+    }
+
+    /**
+     * Forgets the results kept for the directories, e.g. when the directories change.
+     */
+    public void clearResults() {
+        for (DirectoryState state : mStates.values()) {
+            clearResult(state);
+        }
+    }
+
+    private static void clearResult(DirectoryState state) {
+        state.mResultQuery = null;
+        state.mResultColumns = null;
+        state.mResultSearchedColumns = null;
+        state.mResultRows = null;
+    }
+}
@@ -110,6 +110,7 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
     private ContactListItemView.PhotoPosition mPhotoPosition;
 
     private boolean mUseCallableUri;
+    private boolean mDialpadSearchEnabled;
 
     public PhoneNumberListAdapter(Context context) {
         super(context);
@@ -170,6 +171,12 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
                     builder.appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY,
                             String.valueOf(getDirectoryResultLimit(getDirectoryById(directoryId))));
                 }
+                // The index only has phone numbers, not the other callable addresses
+                if (loader instanceof ContactSearchLoader && directoryId == Directory.DEFAULT
+                        && !mUseCallableUri && !TextUtils.isEmpty(query.trim())) {
+                    ((ContactSearchLoader) loader).setLocalSearch(query, mDialpadSearchEnabled
+                            ? ContactSearchIndex.MODE_DIALPAD : ContactSearchIndex.MODE_PHONES);
+                }
             } else {
                 final Uri baseUri = mUseCallableUri ? Callable.CONTENT_URI : Phone.CONTENT_URI;
                 builder = baseUri.buildUpon().appendQueryParameter(
@@ -426,6 +433,11 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
         view.hideDisplayName();
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return PhoneQuery.PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
@@ -471,6 +483,21 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
         return mUseCallableUri;
     }
 
+    /**
+     * Makes the adapter treat the query as keys typed on a dial pad, each digit standing for
+     * the letters on its key. Only the local directory can be searched this way, and only when
+     * the fragment searches it locally; other directories get the query as it is.
+     *
+     * @see DialpadSearchIndex
+     */
+    public void setDialpadSearchEnabled(boolean flag) {
+        mDialpadSearchEnabled = flag;
+    }
+
+    public boolean isDialpadSearchEnabled() {
+        return mDialpadSearchEnabled;
+    }
+
     /**
      * Override base implementation to inject extended directories between local & remote
      * directories. This is done in the following steps:
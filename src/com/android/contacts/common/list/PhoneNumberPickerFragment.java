@@ -62,6 +62,7 @@ public class PhoneNumberPickerFragment extends ContactEntryListFragment<ContactE
     private boolean mLoaderStarted;
 
     private boolean mUseCallableUri;
+    private boolean mDialpadSearchEnabled;
 
     private ContactListItemView.PhotoPosition mPhotoPosition =
             ContactListItemView.getDefaultPhotoPosition(false /* normal/non opposite */);
@@ -236,11 +237,29 @@ public class PhoneNumberPickerFragment extends ContactEntryListFragment<ContactE
         return mUseCallableUri;
     }
 
+    /**
+     * Makes the fragment search with dial pad keys instead of text, e.g. "526" finds "Jan".
+     *
+     * @see PhoneNumberListAdapter#setDialpadSearchEnabled(boolean)
+     */
+    public void setDialpadSearchEnabled(boolean flag) {
+        mDialpadSearchEnabled = flag;
+        final PhoneNumberListAdapter adapter = (PhoneNumberListAdapter) getAdapter();
+        if (adapter != null) {
+            adapter.setDialpadSearchEnabled(flag);
+        }
+    }
+
+    public boolean isDialpadSearchEnabled() {
+        return mDialpadSearchEnabled;
+    }
+
     @Override
     protected ContactEntryListAdapter createListAdapter() {
         PhoneNumberListAdapter adapter = new PhoneNumberListAdapter(getActivity());
         adapter.setDisplayPhotos(true);
         adapter.setUseCallableUri(mUseCallableUri);
+        adapter.setDialpadSearchEnabled(mDialpadSearchEnabled);
         return adapter;
     }
 
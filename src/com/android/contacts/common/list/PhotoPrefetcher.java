@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.os.SystemClock;
+
+import com.android.contacts.common.ContactPhotoManager;
+
+/**
+ * Watches the scroll position of a contact list and asks the {@link ContactPhotoManager} to
+ * prefetch the photos of the rows that are about to scroll into view, so that they are decoded
+ * by the time the rows are shown.
+ * <p>
+ * How far ahead to look depends on the scroll velocity. While the list is flung faster than the
+ * photos could be loaded, nothing is prefetched: the rows would be gone before their photos
+ * were ready.
+ */
+class PhotoPrefetcher {
+    /** Look ahead far enough to cover the rows that come into view in this time. */
+    private static final int LOOKAHEAD_MILLIS = 500;
+
+    /** Never prefetch more than this many rows ahead. */
+    private static final int MAX_PREFETCH_ROWS = 40;
+
+    /** Above this velocity, in rows per second, rows go by too fast to prefetch for. */
+    private static final float MAX_PREFETCH_VELOCITY = 120f;
+
+    /** Weight of the newest sample in the smoothed velocity. */
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+
+    /** Samples further apart than this don't belong to the same scroll. */
+    private static final int MAX_SAMPLE_INTERVAL_MILLIS = 300;
+
+    private final ContactPhotoManager mPhotoManager;
+
+    private int mLastFirstVisibleItem = -1;
+    private long mLastSampleTime;
+
+    /** Smoothed scroll velocity in rows per second, positive when scrolling down. */
+    private float mVelocity;
+
+    /** First and last adapter position of the last range that was prefetched. */
+    private int mPrefetchedStart = -1;
+    private int mPrefetchedEnd = -1;
+
+    public PhotoPrefetcher(ContactPhotoManager photoManager) {
+        mPhotoManager = photoManager;
+    }
+
+    /**
+     * Called from {@link android.widget.AbsListView.OnScrollListener#onScroll}.
+     *
+     * @param headerViewsCount the number of list header views before the adapter's rows
+     */
+    public void onScroll(ContactEntryListAdapter adapter, int headerViewsCount,
+            int firstVisibleItem, int visibleItemCount) {
+        if (!updateRange(SystemClock.uptimeMillis(), adapter.getCount(), headerViewsCount,
+                firstVisibleItem, visibleItemCount)) {
+            return;
+        }
+
+        final int start = mPrefetchedStart;
+        final int end = mPrefetchedEnd;
+        final long[] photoIds = new long[end - start + 1];
+        int count = 0;
+        if (mVelocity >= 0) {
+            for (int position = start; position <= end; position++) {
+                photoIds[count++] = adapter.getPhotoId(position);
+            }
+        } else {
+            // Nearest row first
+            for (int position = end; position >= start; position--) {
+                photoIds[count++] = adapter.getPhotoId(position);
+            }
+        }
+        mPhotoManager.prefetchThumbnails(photoIds);
+    }
+
+    /**
+     * Updates the scroll velocity with a new sample, and the range of rows to prefetch.
+     *
+     * @param now the time of the sample, in {@link SystemClock#uptimeMillis}
+     * @param rowCount the number of rows of the adapter
+     * @return whether the rows from {@link #getPrefetchedStart} to {@link #getPrefetchedEnd}
+     * are to be prefetched
+     */
+    /* package */ boolean updateRange(long now, int rowCount, int headerViewsCount,
+            int firstVisibleItem, int visibleItemCount) {
+        if (firstVisibleItem == mLastFirstVisibleItem || visibleItemCount == 0) {
+            return false;
+        }
+
+        final long interval = now - mLastSampleTime;
+        final int lastFirstVisibleItem = mLastFirstVisibleItem;
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastSampleTime = now;
+        if (lastFirstVisibleItem < 0) {
+            // The first sample since the list was reset says nothing about the direction
+            return false;
+        }
+        if (interval > MAX_SAMPLE_INTERVAL_MILLIS) {
+            // The list starts to move. Assume it keeps going in this direction at one row per
+            // sample interval until we know better.
+            mVelocity = Math.signum(firstVisibleItem - lastFirstVisibleItem)
+                    * 1000f / MAX_SAMPLE_INTERVAL_MILLIS;
+        } else if (interval > 0) {
+            final float velocity = (firstVisibleItem - lastFirstVisibleItem) * 1000f / interval;
+            mVelocity = VELOCITY_SMOOTHING * velocity + (1 - VELOCITY_SMOOTHING) * mVelocity;
+        }
+
+        final float speed = Math.abs(mVelocity);
+        if (speed > MAX_PREFETCH_VELOCITY) {
+            return false;
+        }
+
+        final int rows = Math.max(visibleItemCount,
+                Math.min(MAX_PREFETCH_ROWS, (int) (speed * LOOKAHEAD_MILLIS / 1000)));
+        final int firstVisiblePosition = firstVisibleItem - headerViewsCount;
+        final int start;
+        final int end;
+        if (mVelocity >= 0) {
+            start = Math.max(0, firstVisiblePosition + visibleItemCount);
+            end = Math.min(rowCount - 1, start + rows - 1);
+        } else {
+            end = firstVisiblePosition - 1;
+            start = Math.max(0, end - rows + 1);
+        }
+        if (start > end) {
+            return false;
+        }
+
+        // Don't ask again while most of the range has already been asked for
+        if (mPrefetchedStart >= 0 && start >= mPrefetchedStart && end <= mPrefetchedEnd) {
+            return false;
+        }
+        if (mPrefetchedStart >= 0
+                && Math.abs(start - mPrefetchedStart) < (mPrefetchedEnd - mPrefetchedStart) / 2) {
+            return false;
+        }
+        mPrefetchedStart = start;
+        mPrefetchedEnd = end;
+        return true;
+    }
+
+    /* package */ int getPrefetchedStart() {
+        return mPrefetchedStart;
+    }
+
+    /* package */ int getPrefetchedEnd() {
+        return mPrefetchedEnd;
+    }
+
+    /**
+     * Forgets the scroll state, e.g. when the list shows new data.
+     */
+    public void reset() {
+        mLastFirstVisibleItem = -1;
+        mVelocity = 0;
+        mPrefetchedStart = -1;
+        mPrefetchedEnd = -1;
+    }
+}
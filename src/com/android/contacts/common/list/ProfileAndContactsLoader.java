@@ -66,13 +66,16 @@ public class ProfileAndContactsLoader extends CursorLoader {
         }
         final Cursor contactsCursor = cursor;
         cursors.add(contactsCursor);
-        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) {
+        final Cursor merged = new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) {
             @Override
             public Bundle getExtras() {
                 // Need to get the extras from the contacts cursor.
                 return contactsCursor == null ? new Bundle() : contactsCursor.getExtras();
             }
         };
+        // Index the rows while in the background, so that the selected contact can be found
+        // in the list without going through them
+        return ContactPositionIndex.wrap(merged);
     }
 
     /**
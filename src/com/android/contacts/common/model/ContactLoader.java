@@ -45,6 +45,7 @@ import com.android.contacts.common.model.account.AccountTypeWithDataSet;
 import com.android.contacts.common.util.Constants;
 import com.android.contacts.common.util.ContactLoaderUtils;
 import com.android.contacts.common.util.DataStatus;
+import com.android.contacts.common.util.RemotePhotoFetcher;
 import com.android.contacts.common.util.UriUtils;
 import com.android.contacts.common.model.dataitem.DataItem;
 import com.android.contacts.common.model.dataitem.PhoneDataItem;
@@ -61,7 +62,6 @@ import org.json.JSONObject;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -80,6 +80,16 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
     /** A short-lived cache that can be set by {@link #cacheResult()} */
     private static Contact sCachedResult = null;
 
+    /** Largest display photo downloaded from an extended directory. */
+    private static final int MAX_REMOTE_PHOTO_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Fetches display photos from extended directories. They are shown once per contact card,
+     * so they are not cached on disk.
+     */
+    private static final RemotePhotoFetcher sRemotePhotoFetcher =
+            new RemotePhotoFetcher(null, 2, MAX_REMOTE_PHOTO_BYTES);
+
     private final Uri mRequestedUri;
     private Uri mLookupUri;
     private boolean mLoadGroupMetaData;
@@ -510,18 +520,16 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         String photoUri = contactData.getPhotoUri();
         if (photoUri != null) {
             try {
-                final InputStream inputStream;
-                final AssetFileDescriptor fd;
                 final Uri uri = Uri.parse(photoUri);
                 final String scheme = uri.getScheme();
                 if ("http".equals(scheme) || "https".equals(scheme)) {
                     // Support HTTP urls that might come from extended directories
-                    inputStream = new URL(photoUri).openStream();
-                    fd = null;
-                } else {
-                    fd = getContext().getContentResolver().openAssetFileDescriptor(uri, "r");
-                    inputStream = fd.createInputStream();
+                    contactData.setPhotoBinaryData(sRemotePhotoFetcher.fetch(photoUri, 0));
+                    return;
                 }
+                final AssetFileDescriptor fd =
+                        getContext().getContentResolver().openAssetFileDescriptor(uri, "r");
+                final InputStream inputStream = fd.createInputStream();
                 byte[] buffer = new byte[16 * 1024];
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try {
@@ -532,9 +540,7 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
                     contactData.setPhotoBinaryData(baos.toByteArray());
                 } finally {
                     inputStream.close();
-                    if (fd != null) {
-                        fd.close();
-                    }
+                    fd.close();
                 }
                 return;
             } catch (IOException ioe) {
@@ -34,6 +34,7 @@ import com.android.contacts.common.R;
 import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.model.account.AccountWithDataSet;
+import com.android.contacts.common.vcard.ImportRequest;
 import com.android.contacts.common.vcard.ImportVCardActivity;
 
 import java.util.List;
@@ -176,7 +177,17 @@ public class AccountSelectionUtil {
     }
 
     public static void doImportFromSdCard(Context context, AccountWithDataSet account) {
+        doImportFromSdCard(context, account, ImportRequest.DUPLICATES_INSERT);
+    }
+
+    /**
+     * @param duplicatePolicy what to do with entries that match a contact already in the
+     * account, see {@link ImportVCardActivity#EXTRA_DUPLICATE_POLICY}
+     */
+    public static void doImportFromSdCard(Context context, AccountWithDataSet account,
+            int duplicatePolicy) {
         Intent importIntent = new Intent(context, ImportVCardActivity.class);
+        importIntent.putExtra(ImportVCardActivity.EXTRA_DUPLICATE_POLICY, duplicatePolicy);
         if (account != null) {
             importIntent.putExtra("account_name", account.name);
             importIntent.putExtra("account_type", account.type);
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A size-bounded pool of mutable bitmaps that are no longer displayed, bucketed by allocation
+ * size, so that their memory can be reused through {@link android.graphics.BitmapFactory.Options
+ * #inBitmap} instead of allocating a new bitmap for every decode.
+ * <p>
+ * A bitmap must only be put into the pool once nothing draws it anymore.
+ */
+public class BitmapPool {
+    /**
+     * A pooled bitmap can be at most this many times larger than the requested size. Handing
+     * out a much larger bitmap would waste the memory it keeps alive.
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final int mMaxBytes;
+    private int mCurrentBytes;
+
+    /** Pooled bitmaps by allocation byte count. */
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets =
+            new TreeMap<Integer, ArrayList<Bitmap>>();
+
+    /** All pooled bitmaps, least recently pooled first, used to evict when full. */
+    private final ArrayDeque<Bitmap> mEvictionQueue = new ArrayDeque<Bitmap>();
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a pooled bitmap that can hold at least {@code byteCount} bytes of pixels, removing
+     * it from the pool, or {@code null} if there is none. The returned bitmap is mutable and
+     * has to be reconfigured, or passed to the decoder which will reconfigure it.
+     */
+    public synchronized Bitmap get(int byteCount) {
+        final Map.Entry<Integer, ArrayList<Bitmap>> entry = mBuckets.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() > (long) byteCount * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        final ArrayList<Bitmap> bucket = entry.getValue();
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(entry.getKey());
+        }
+        mEvictionQueue.remove(bitmap);
+        mCurrentBytes -= entry.getKey();
+        return bitmap;
+    }
+
+    /**
+     * Returns a pooled bitmap reconfigured to the given size and config, or {@code null} if
+     * there is none that is large enough. Its pixels are undefined.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        final Bitmap bitmap = get(width * height * getBytesPerPixel(config));
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a bitmap to the pool. Immutable and recycled bitmaps are ignored. If the pool grows
+     * beyond its maximum size, the bitmaps that were added first are dropped.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        final int size = bitmap.getAllocationByteCount();
+        if (size > mMaxBytes || mEvictionQueue.contains(bitmap)) {
+            return;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(4);
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mEvictionQueue.addLast(bitmap);
+        mCurrentBytes += size;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops pooled bitmaps, oldest first, until the pool holds at most {@code maxBytes}.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        while (mCurrentBytes > maxBytes && !mEvictionQueue.isEmpty()) {
+            final Bitmap bitmap = mEvictionQueue.removeFirst();
+            final int size = bitmap.getAllocationByteCount();
+            final ArrayList<Bitmap> bucket = mBuckets.get(size);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(size);
+            }
+            mCurrentBytes -= size;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Returns the total allocation size of the pooled bitmaps.
+     */
+    public synchronized int size() {
+        return mCurrentBytes;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
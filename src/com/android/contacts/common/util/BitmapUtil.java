@@ -19,6 +19,8 @@ package com.android.contacts.common.util;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.BitmapDrawable;
 
@@ -84,6 +86,73 @@ public class BitmapUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
+    /**
+     * Decodes the bitmap with the given sample size into a mutable bitmap. If the pool has a
+     * bitmap that is large enough, its memory is reused instead of allocating a new bitmap.
+     * The result can be put into the pool once it is no longer drawn.
+     *
+     * @return the decoded bitmap, or {@code null} if the bytes could not be decoded
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize, BitmapPool pool) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = Math.max(1, sampleSize);
+        options.inMutable = true;
+
+        // Round up, so that the pooled bitmap is large enough whichever way the decoder rounds
+        final int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        final int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = pool.get(width * height * 4);
+        if (options.inBitmap != null) {
+            try {
+                final Bitmap bitmap =
+                        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap cannot be reused for this image, decode into a new one
+            }
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+        }
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    /**
+     * Crops the center square out of a non-square bitmap, drawing into a bitmap from the pool
+     * if there is one. The original bitmap is put into the pool, so it must not be used by the
+     * caller afterwards. Square bitmaps are returned as they are.
+     */
+    public static Bitmap cropToSquare(Bitmap bitmap, BitmapPool pool) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width == height) {
+            return bitmap;
+        }
+        final int dimension = Math.min(width, height);
+        Bitmap square = pool.get(dimension, dimension, Bitmap.Config.ARGB_8888);
+        if (square == null) {
+            square = Bitmap.createBitmap(dimension, dimension, Bitmap.Config.ARGB_8888);
+        } else {
+            // Pooled bitmaps contain an old image, which would show through transparent pixels
+            square.eraseColor(Color.TRANSPARENT);
+        }
+        final int left = (width - dimension) / 2;
+        final int top = (height - dimension) / 2;
+        final Canvas canvas = new Canvas(square);
+        canvas.drawBitmap(bitmap, new Rect(left, top, left + dimension, top + dimension),
+                new Rect(0, 0, dimension, dimension), null);
+        pool.put(bitmap);
+        return square;
+    }
+
     /**
      * Retrieves a copy of the specified drawable resource, rotated by a specified angle.
      *
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * Decides how large the in-memory photo caches are and how far they shrink under memory
+ * pressure.
+ * <p>
+ * The caches are sized as a fraction of the per-application heap limit, see
+ * {@link android.app.ActivityManager#getMemoryClass}, and halved on low RAM devices. When the
+ * system asks to trim memory, decoded bitmaps go first since they are large and can be decoded
+ * again from the compressed bytes; the compressed bytes only shrink once the process is in the
+ * background or memory is critically low.
+ */
+public class PhotoCachePolicy {
+    private static final int MEGABYTE = 1024 * 1024;
+
+    /** The compressed photo cache gets this fraction of the heap limit. */
+    private static final int HOLDER_CACHE_HEAP_DIVISOR = 64;
+
+    /** The decoded bitmap cache gets this fraction of the heap limit. */
+    private static final int BITMAP_CACHE_HEAP_DIVISOR = 72;
+
+    private static final int MIN_HOLDER_CACHE_SIZE = MEGABYTE;
+    private static final int MAX_HOLDER_CACHE_SIZE = 8 * MEGABYTE;
+    private static final int MIN_BITMAP_CACHE_SIZE = MEGABYTE / 2;
+    private static final int MAX_BITMAP_CACHE_SIZE = 8 * MEGABYTE;
+
+    private static final float LOW_RAM_ADJUSTMENT = 0.5f;
+
+    private final float mSizeAdjustment;
+    private final int mHolderCacheSize;
+    private final int mBitmapCacheSize;
+
+    /**
+     * @param memoryClass the heap limit of the application in megabytes
+     * @param isLowRamDevice whether the device is considered to have little RAM
+     */
+    public PhotoCachePolicy(int memoryClass, boolean isLowRamDevice) {
+        mSizeAdjustment = isLowRamDevice ? LOW_RAM_ADJUSTMENT : 1.0f;
+        final long heapBytes = (long) memoryClass * MEGABYTE;
+        mHolderCacheSize = (int) (mSizeAdjustment * clamp(heapBytes / HOLDER_CACHE_HEAP_DIVISOR,
+                MIN_HOLDER_CACHE_SIZE, MAX_HOLDER_CACHE_SIZE));
+        mBitmapCacheSize = (int) (mSizeAdjustment * clamp(heapBytes / BITMAP_CACHE_HEAP_DIVISOR,
+                MIN_BITMAP_CACHE_SIZE, MAX_BITMAP_CACHE_SIZE));
+    }
+
+    /** Returns the factor applied to all cache sizes, less than 1 on low RAM devices. */
+    public float getSizeAdjustment() {
+        return mSizeAdjustment;
+    }
+
+    /** Returns the size in bytes of the cache of compressed photos. */
+    public int getHolderCacheSize() {
+        return mHolderCacheSize;
+    }
+
+    /** Returns the size in bytes of the cache of decoded bitmaps. */
+    public int getBitmapCacheSize() {
+        return mBitmapCacheSize;
+    }
+
+    /**
+     * Returns the fraction of its maximum size that the decoded bitmap cache should be trimmed
+     * to for the given {@link ComponentCallbacks2#onTrimMemory} level.
+     */
+    public static float getBitmapCacheTrimRatio(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // This includes all levels from TRIM_MEMORY_UI_HIDDEN up: when nothing is
+            // displayed, decoded bitmaps are of no use right now
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1f;
+    }
+
+    /**
+     * Returns the fraction of its maximum size that the compressed photo cache should be
+     * trimmed to for the given {@link ComponentCallbacks2#onTrimMemory} level.
+     */
+    public static float getHolderCacheTrimRatio(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Keep the bytes so that photos show up quickly when the user comes back
+            return 1f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.5f;
+        }
+        return 1f;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of photo bytes stored as one file per entry in a private directory.
+ * Entries are evicted in least-recently-used order once the total size exceeds the limit.
+ * <p>
+ * All methods perform disk I/O and must not be called on the UI thread.
+ */
+public class PhotoDiskCache {
+    private static final String TAG = "PhotoDiskCache";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * File name to file size, in access order. Built from the directory listing the first
+     * time the cache is used, so that constructing the cache does not touch the disk.
+     */
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(64, 0.75f, true);
+
+    private long mTotalBytes;
+    private boolean mInitialized;
+
+    public PhotoDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the bytes stored for the given key, or {@code null} if there are none.
+     */
+    public synchronized byte[] get(String key) {
+        return get(key, 0);
+    }
+
+    /**
+     * Returns the bytes stored for the given key, or {@code null} if there are none or if
+     * they were written before {@code minWriteTimeMillis}. Outdated entries are removed.
+     */
+    public synchronized byte[] get(String key, long minWriteTimeMillis) {
+        ensureInitialized();
+        final String fileName = fileNameForKey(key);
+        // Looking the entry up also marks it as the most recently used one
+        if (mEntries.get(fileName) == null) {
+            return null;
+        }
+        final File file = new File(mDirectory, fileName);
+        if (minWriteTimeMillis > 0 && file.lastModified() < minWriteTimeMillis) {
+            removeFile(fileName);
+            return null;
+        }
+        try {
+            return readFile(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read cache entry " + fileName, e);
+            removeFile(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given bytes under the given key, replacing any previous entry, and evicts
+     * the least recently used entries if the cache grows beyond its maximum size.
+     */
+    public synchronized void put(String key, byte[] bytes) {
+        ensureInitialized();
+        if (bytes == null || bytes.length > mMaxBytes) {
+            return;
+        }
+        final String fileName = fileNameForKey(key);
+        final File file = new File(mDirectory, fileName);
+        final File tempFile = new File(mDirectory, fileName + TEMP_FILE_SUFFIX);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            os.write(bytes);
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write cache entry " + fileName, e);
+            tempFile.delete();
+            return;
+        } finally {
+            closeQuietly(os);
+        }
+
+        final Long previousSize = mEntries.put(fileName, (long) bytes.length);
+        if (previousSize != null) {
+            mTotalBytes -= previousSize;
+        }
+        mTotalBytes += bytes.length;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Removes the entry for the given key, if there is one.
+     */
+    public synchronized void remove(String key) {
+        ensureInitialized();
+        removeFile(fileNameForKey(key));
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        ensureInitialized();
+        trimToSize(0);
+    }
+
+    /**
+     * Returns the total size of all entries, in bytes.
+     */
+    public synchronized long size() {
+        ensureInitialized();
+        return mTotalBytes;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    private void ensureInitialized() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create cache directory " + mDirectory);
+            return;
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Files are only written once, so the modification time is the best approximation we
+        // have of the access order from the previous process.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long lhsModified = lhs.lastModified();
+                final long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                // Left over from a write that did not complete
+                file.delete();
+                continue;
+            }
+            final long length = file.length();
+            mEntries.put(file.getName(), length);
+            mTotalBytes += length;
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    private void trimToSize(long maxBytes) {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mTotalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mTotalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void removeFile(String fileName) {
+        final Long size = mEntries.remove(fileName);
+        if (size != null) {
+            mTotalBytes -= size;
+            new File(mDirectory, fileName).delete();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int read = is.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+            return bytes;
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Keys can be arbitrary strings such as Uris, so use a digest of the key as the file name.
+     */
+    private static String fileNameForKey(String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new AssertionError(e);
+        }
+    }
+}
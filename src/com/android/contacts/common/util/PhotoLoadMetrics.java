@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms of the stages of loading contact photos, so that slow photos can be
+ * attributed to I/O, decoding or queueing behind other work.
+ */
+public class PhotoLoadMetrics {
+    /** Time a request from a view waits for the loader thread to pick it up. */
+    public static final int STAGE_REQUEST_QUEUE_WAIT = 0;
+    /** Time a load or decode task waits for its worker pool to run it. */
+    public static final int STAGE_TASK_QUEUE_WAIT = 1;
+    /** Time a query or read of the contacts provider takes. One sample per query. */
+    public static final int STAGE_PROVIDER_QUERY = 2;
+    /** Time fetching a remote photo takes, including revalidation. */
+    public static final int STAGE_NETWORK = 3;
+    /** Time decoding a photo into a bitmap takes. */
+    public static final int STAGE_DECODE = 4;
+    /** Time from a view requesting a photo that was not cached to the photo being shown. */
+    public static final int STAGE_TIME_TO_DISPLAY = 5;
+
+    private static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = new String[] {
+            "request queue wait", "task queue wait", "provider query", "network", "decode",
+            "time to display" };
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+
+    public PhotoLoadMetrics() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the time a stage took since the given {@link System#nanoTime} value.
+     */
+    public void recordSince(int stage, long startNanos) {
+        mHistograms[stage].recordSince(startNanos);
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Writes a summary of each stage, followed by the non-empty buckets of its histogram.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            final LatencyHistogram histogram = mHistograms[i];
+            writer.print(prefix);
+            writer.print(STAGE_NAMES[i]);
+            writer.print(": ");
+            writer.println(histogram);
+            for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+                final long count = histogram.getBucketCount(bucket);
+                if (count == 0) {
+                    continue;
+                }
+                writer.print(prefix);
+                writer.print("  < ");
+                writer.print(bucket == LatencyHistogram.BUCKET_COUNT - 1 ? "inf"
+                        : LatencyHistogram.getBucketUpperBoundMicros(bucket) + "us");
+                writer.print(": ");
+                writer.println(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches photos over HTTP, e.g. the photos of contacts from directory searches.
+ * <p>
+ * At most a fixed number of requests are made at the same time, connections are reused
+ * between requests to the same server, and slow servers and oversized photos are given up on.
+ * If a {@link PhotoDiskCache} is supplied, fetched photos are stored in it along with their
+ * {@code ETag} and {@code Last-Modified} headers, and outdated entries are revalidated with a
+ * conditional request instead of being downloaded again.
+ * <p>
+ * {@link #fetch} performs network and disk I/O and must not be called on the UI thread.
+ */
+public class RemotePhotoFetcher {
+    private static final String TAG = "RemotePhotoFetcher";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 15 * 1000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final PhotoDiskCache mCache;
+    private final Semaphore mConnectionPermits;
+    private final int mMaxBytes;
+    private int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    private final AtomicInteger mCacheHits = new AtomicInteger();
+    private final AtomicInteger mNotModified = new AtomicInteger();
+    private final AtomicInteger mDownloads = new AtomicInteger();
+
+    /**
+     * @param cache where fetched photos are kept, or {@code null} to always download them
+     * @param maxConcurrentRequests the number of requests that may be made at the same time
+     * @param maxBytes the size above which a photo is not downloaded
+     */
+    public RemotePhotoFetcher(PhotoDiskCache cache, int maxConcurrentRequests, int maxBytes) {
+        mCache = cache;
+        mConnectionPermits = new Semaphore(maxConcurrentRequests, true);
+        mMaxBytes = maxBytes;
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Returns the photo at the given http or https url. A cached copy fetched or revalidated
+     * at or after {@code validSinceMillis} is returned without making a request; an older one
+     * is revalidated with the server.
+     *
+     * @throws IOException if the photo cannot be fetched, the server does not respond in time
+     *     or the photo is larger than the maximum size
+     */
+    public byte[] fetch(String url, long validSinceMillis) throws IOException {
+        final String key = getCacheKey(url);
+        final String validatorsKey = getValidatorsCacheKey(url);
+        byte[] cachedBytes = null;
+        Validators validators = null;
+        if (mCache != null) {
+            cachedBytes = mCache.get(key);
+            validators = cachedBytes == null ? null : Validators.parse(mCache.get(validatorsKey));
+            if (validators != null && validators.fetchedAtMillis >= validSinceMillis) {
+                mCacheHits.incrementAndGet();
+                return cachedBytes;
+            }
+        }
+
+        try {
+            mConnectionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to fetch " + url);
+        }
+        try {
+            final HttpURLConnection connection =
+                    (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(mConnectTimeoutMillis);
+            connection.setReadTimeout(mReadTimeoutMillis);
+            // We do the caching ourselves
+            connection.setUseCaches(false);
+            if (validators != null) {
+                if (!TextUtils.isEmpty(validators.etag)) {
+                    connection.setRequestProperty(HEADER_IF_NONE_MATCH, validators.etag);
+                }
+                if (!TextUtils.isEmpty(validators.lastModified)) {
+                    connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE,
+                            validators.lastModified);
+                }
+            }
+
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+                drainQuietly(connection.getInputStream());
+                mNotModified.incrementAndGet();
+                validators.fetchedAtMillis = System.currentTimeMillis();
+                mCache.put(validatorsKey, validators.toBytes());
+                return cachedBytes;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                drainQuietly(connection.getErrorStream());
+                throw new IOException("HTTP " + responseCode + " for " + url);
+            }
+
+            final byte[] bytes = readFully(connection, url);
+            mDownloads.incrementAndGet();
+            if (mCache != null) {
+                final Validators newValidators = new Validators(System.currentTimeMillis(),
+                        connection.getHeaderField(HEADER_ETAG),
+                        connection.getHeaderField(HEADER_LAST_MODIFIED));
+                mCache.put(key, bytes);
+                mCache.put(validatorsKey, newValidators.toBytes());
+            }
+            return bytes;
+        } finally {
+            mConnectionPermits.release();
+        }
+    }
+
+    /** Returns the number of photos returned from the cache without making a request. */
+    public int getCacheHitCount() {
+        return mCacheHits.get();
+    }
+
+    /** Returns the number of cached photos that the server confirmed to be up to date. */
+    public int getNotModifiedCount() {
+        return mNotModified.get();
+    }
+
+    /** Returns the number of photos downloaded. */
+    public int getDownloadCount() {
+        return mDownloads.get();
+    }
+
+    private byte[] readFully(HttpURLConnection connection, String url) throws IOException {
+        final int contentLength = connection.getContentLength();
+        if (contentLength > mMaxBytes) {
+            connection.disconnect();
+            throw new IOException("Photo of " + contentLength + " bytes is too large: " + url);
+        }
+        final InputStream is = connection.getInputStream();
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                    contentLength > 0 ? contentLength : BUFFER_SIZE);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int size;
+            while ((size = is.read(buffer)) != -1) {
+                if (baos.size() + size > mMaxBytes) {
+                    // Don't read the rest of a large response just to reuse the connection
+                    connection.disconnect();
+                    throw new IOException("Photo is larger than " + mMaxBytes + " bytes: " + url);
+                }
+                baos.write(buffer, 0, size);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads the rest of a small response and closes it, so that the connection can be reused.
+     */
+    private static void drainQuietly(InputStream is) {
+        if (is == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[1024];
+            while (is.read(buffer) != -1) {
+                // Discard
+            }
+        } catch (IOException e) {
+            // The connection will not be reused
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the photo bytes in the disk cache.
+     */
+    public static String getCacheKey(String url) {
+        return "uri:" + url;
+    }
+
+    private static String getValidatorsCacheKey(String url) {
+        return "uri-validators:" + url;
+    }
+
+    /**
+     * The time a cached photo was last fetched or revalidated and the headers to revalidate it
+     * with. Stored in the disk cache as lines of text next to the photo.
+     */
+    private static class Validators {
+        long fetchedAtMillis;
+        final String etag;
+        final String lastModified;
+
+        Validators(long fetchedAtMillis, String etag, String lastModified) {
+            this.fetchedAtMillis = fetchedAtMillis;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns null if there are no validators or they cannot be parsed, e.g. if the photo
+         * was cached before validators were stored.
+         */
+        static Validators parse(byte[] bytes) {
+            if (bytes == null) {
+                return null;
+            }
+            final String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\n", -1);
+            if (lines.length != 3) {
+                return null;
+            }
+            try {
+                return new Validators(Long.parseLong(lines[0]), lines[1], lines[2]);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid validators " + lines[0]);
+                return null;
+            }
+        }
+
+        byte[] toBytes() {
+            return (fetchedAtMillis + "\n" + nullToEmpty(etag) + "\n" + nullToEmpty(lastModified))
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String nullToEmpty(String s) {
+            return s == null ? "" : s;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import java.util.Arrays;
+
+/**
+ * A compact store of compressed thumbnails keyed by photo id.
+ * <p>
+ * Entries are appended to a ring of large byte array slabs, each entry preceded by a small
+ * header holding its key and length, and looked up through an open addressing table of
+ * primitive longs. Besides its bytes, an entry costs a header and index slots of a few dozen
+ * bytes in total, compared to the several objects per entry of a
+ * {@link android.util.LruCache} of byte arrays, so many more thumbnails fit in the same budget.
+ * <p>
+ * When the store is full, the oldest slab is emptied to make room, evicting its entries in
+ * insertion order. Entries that are used should be taken out with {@link #remove} and put back
+ * once they are evicted from the caller's own cache.
+ */
+public class ThumbnailArena {
+    /** Default size of one slab. Larger entries are not stored. */
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+
+    /** Key and length preceding the bytes of every entry. */
+    private static final int HEADER_SIZE = 12;
+
+    private static final int MIN_INDEX_CAPACITY = 64;
+
+    private static final int EMPTY = -1;
+
+    private final int mSlabSize;
+    private final byte[][] mSlabs;
+
+    /** Number of bytes written to each slab. */
+    private final int[] mSlabEnds;
+
+    private int mWriteSlab;
+
+    /** Index from key to location, which is the slab index * slab size + header offset. */
+    private long[] mKeys;
+    private int[] mLocations;
+
+    /** Value of {@link #mGeneration} when each entry was stored. */
+    private int[] mGenerations;
+
+    private int mIndexShift;
+    private int mEntryCount;
+    private int mGeneration;
+    private int mLiveBytes;
+
+    public ThumbnailArena(int maxBytes) {
+        this(maxBytes, DEFAULT_SLAB_SIZE);
+    }
+
+    public ThumbnailArena(int maxBytes, int slabSize) {
+        mSlabSize = slabSize;
+        // With a single slab, making room would evict everything
+        final int slabCount = Math.max(2, maxBytes / slabSize);
+        mSlabs = new byte[slabCount][];
+        mSlabEnds = new int[slabCount];
+        resetIndex(MIN_INDEX_CAPACITY);
+    }
+
+    /**
+     * Stores the bytes for the given key, replacing any previous entry. Entries that do not fit
+     * into a slab are ignored.
+     */
+    public synchronized void put(long key, byte[] bytes) {
+        final int entrySize = HEADER_SIZE + bytes.length;
+        if (entrySize > mSlabSize) {
+            remove(key);
+            return;
+        }
+        if (mSlabs[mWriteSlab] == null) {
+            mSlabs[mWriteSlab] = new byte[mSlabSize];
+        } else if (mSlabEnds[mWriteSlab] + entrySize > mSlabSize) {
+            mWriteSlab = (mWriteSlab + 1) % mSlabs.length;
+            emptySlab(mWriteSlab);
+            if (mSlabs[mWriteSlab] == null) {
+                mSlabs[mWriteSlab] = new byte[mSlabSize];
+            }
+        }
+
+        final byte[] slab = mSlabs[mWriteSlab];
+        final int offset = mSlabEnds[mWriteSlab];
+        writeLong(slab, offset, key);
+        writeInt(slab, offset + 8, bytes.length);
+        System.arraycopy(bytes, 0, slab, offset + HEADER_SIZE, bytes.length);
+        mSlabEnds[mWriteSlab] = offset + entrySize;
+
+        remove(key);
+        insert(key, mWriteSlab * mSlabSize + offset);
+        mLiveBytes += entrySize;
+    }
+
+    /**
+     * Returns a copy of the bytes stored for the given key, or {@code null} if there are none.
+     */
+    public synchronized byte[] get(long key) {
+        final int slot = findSlot(key);
+        if (mLocations[slot] == EMPTY) {
+            return null;
+        }
+        final int location = mLocations[slot];
+        final byte[] slab = mSlabs[location / mSlabSize];
+        final int offset = location % mSlabSize;
+        return Arrays.copyOfRange(slab, offset + HEADER_SIZE,
+                offset + HEADER_SIZE + readInt(slab, offset + 8));
+    }
+
+    /**
+     * Removes the entry for the given key and returns its bytes, or {@code null} if there is
+     * none.
+     */
+    public synchronized byte[] remove(long key) {
+        final byte[] bytes = get(key);
+        if (bytes != null) {
+            deleteSlot(findSlot(key));
+            mLiveBytes -= HEADER_SIZE + bytes.length;
+        }
+        return bytes;
+    }
+
+    public synchronized boolean contains(long key) {
+        return mLocations[findSlot(key)] != EMPTY;
+    }
+
+    /**
+     * Returns whether the entry for the given key was stored before the last call to
+     * {@link #markAllStale}. Returns {@code false} if there is no such entry.
+     */
+    public synchronized boolean isStale(long key) {
+        final int slot = findSlot(key);
+        return mLocations[slot] != EMPTY && mGenerations[slot] != mGeneration;
+    }
+
+    /**
+     * Marks all current entries as stale, without removing them.
+     */
+    public synchronized void markAllStale() {
+        mGeneration++;
+    }
+
+    /**
+     * Empties the oldest slabs and releases their memory until at most {@code maxBytes} are
+     * allocated.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        int allocatedBytes = 0;
+        for (byte[] slab : mSlabs) {
+            if (slab != null) {
+                allocatedBytes += mSlabSize;
+            }
+        }
+        // The slab after the one being written is the oldest
+        for (int i = 1; i <= mSlabs.length && allocatedBytes > maxBytes; i++) {
+            final int slabIndex = (mWriteSlab + i) % mSlabs.length;
+            if (mSlabs[slabIndex] != null) {
+                emptySlab(slabIndex);
+                mSlabs[slabIndex] = null;
+                allocatedBytes -= mSlabSize;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mSlabs, null);
+        Arrays.fill(mSlabEnds, 0);
+        mWriteSlab = 0;
+        mLiveBytes = 0;
+        resetIndex(MIN_INDEX_CAPACITY);
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public synchronized int getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Returns the number of bytes used by entries, including their headers.
+     */
+    public synchronized int size() {
+        return mLiveBytes;
+    }
+
+    public int maxSize() {
+        return mSlabs.length * mSlabSize;
+    }
+
+    /**
+     * Removes the entries stored in the given slab from the index, unless they have been
+     * replaced by newer entries in other slabs, and marks the slab as empty.
+     */
+    private void emptySlab(int slabIndex) {
+        final byte[] slab = mSlabs[slabIndex];
+        int offset = 0;
+        while (offset < mSlabEnds[slabIndex]) {
+            final long key = readLong(slab, offset);
+            final int entrySize = HEADER_SIZE + readInt(slab, offset + 8);
+            final int slot = findSlot(key);
+            if (mLocations[slot] == slabIndex * mSlabSize + offset) {
+                deleteSlot(slot);
+                mLiveBytes -= entrySize;
+            }
+            offset += entrySize;
+        }
+        mSlabEnds[slabIndex] = 0;
+    }
+
+    private void resetIndex(int capacity) {
+        mKeys = new long[capacity];
+        mLocations = new int[capacity];
+        mGenerations = new int[capacity];
+        Arrays.fill(mLocations, EMPTY);
+        mIndexShift = 64 - Integer.numberOfTrailingZeros(capacity);
+        mEntryCount = 0;
+    }
+
+    private int idealSlot(long key) {
+        // Fibonacci hashing spreads sequential ids over the table
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mIndexShift);
+    }
+
+    /**
+     * Returns the slot holding the key, or the empty slot where it would be inserted.
+     */
+    private int findSlot(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = idealSlot(key);
+        while (mLocations[slot] != EMPTY && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(long key, int location) {
+        if ((mEntryCount + 1) * 2 > mKeys.length) {
+            final long[] keys = mKeys;
+            final int[] locations = mLocations;
+            final int[] generations = mGenerations;
+            resetIndex(mKeys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if (locations[i] != EMPTY) {
+                    final int slot = findSlot(keys[i]);
+                    mKeys[slot] = keys[i];
+                    mLocations[slot] = locations[i];
+                    mGenerations[slot] = generations[i];
+                    mEntryCount++;
+                }
+            }
+        }
+        final int slot = findSlot(key);
+        mKeys[slot] = key;
+        mLocations[slot] = location;
+        mGenerations[slot] = mGeneration;
+        mEntryCount++;
+    }
+
+    /**
+     * Empties the given slot and moves back the entries after it that would otherwise no
+     * longer be found, so that the table never needs tombstones.
+     */
+    private void deleteSlot(int slot) {
+        final int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mLocations[next] != EMPTY) {
+            final int ideal = idealSlot(mKeys[next]);
+            // Move the entry into the hole unless its ideal slot lies cyclically in (hole, next]
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mLocations[hole] = mLocations[next];
+                mGenerations[hole] = mGenerations[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mLocations[hole] = EMPTY;
+        mEntryCount--;
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        writeInt(buffer, offset, (int) (value >>> 32));
+        writeInt(buffer, offset + 4, (int) value);
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        return ((long) readInt(buffer, offset) << 32) | (readInt(buffer, offset + 4) & 0xffffffffL);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.util.Log;
+
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Inserts vCard entries into the contacts provider in large batches, instead of the small
+ * fixed-size batches of {@link com.android.vcard.VCardEntryCommitter}.
+ * <p>
+ * A batch that fails is retried in two halves, recursively, so that an entry the provider
+ * rejects, or a batch that is too large for a binder transaction, does not prevent the other
+ * entries from being imported.
+ * <p>
+ * Each batch is applied as a single transaction without yield points. A yield point commits
+ * the operations before it, so a batch that fails after one could not be retried without
+ * importing some entries twice. Batches are instead kept below the number of operations the
+ * provider accepts between yield points, and other users of the database get in between
+ * batches.
+ * <p>
+ * Batches can be applied on a separate executor, so that entries are parsed while the
+ * previous batch is written. {@link #onEnd} waits until all batches have been applied.
+ * <p>
+ * An entry can also be inserted as a raw contact that is kept together with an existing one,
+ * or skipped, for {@link DuplicateContactFilter}.
+ */
+public class BatchingVCardEntryCommitter implements VCardEntryHandler {
+    /**
+     * Receives the progress of the committer, on the thread that batches are applied on.
+     */
+    public interface CommitListener {
+        /**
+         * Called after a batch has been applied, including any retries.
+         *
+         * @param committedEntryCount the index of the entry after the batch. All the entries
+         * before it have been imported or have failed.
+         */
+        void onBatchCommitted(int committedEntryCount);
+    }
+
+    private static final String LOG_TAG = "VCardImport";
+
+    public static final int DEFAULT_MAX_ENTRIES_PER_BATCH = 50;
+
+    /** The contacts provider rejects batches of 500 operations or more without yield points. */
+    public static final int DEFAULT_MAX_OPERATIONS_PER_BATCH = 400;
+
+    /** Value of the raw contact to keep an entry together with when there is none. */
+    public static final long NO_RAW_CONTACT = -1;
+
+    /** Number of batches that may wait for the commit executor before entries are blocked. */
+    private static final int MAX_OUTSTANDING_BATCHES = 2;
+
+    private final ContentResolver mResolver;
+    private final int mMaxEntriesPerBatch;
+    private final int mMaxOperationsPerBatch;
+    private final Executor mCommitExecutor;
+    private final Semaphore mOutstandingBatches = new Semaphore(MAX_OUTSTANDING_BATCHES);
+
+    /** Entries in the current batch, kept to build the operations of retried halves. */
+    private final List<PendingEntry> mPendingEntries = new ArrayList<PendingEntry>();
+    private ArrayList<ContentProviderOperation> mPendingOperations =
+            new ArrayList<ContentProviderOperation>();
+    /** Index in {@link #mPendingOperations} of the first operation of each pending entry. */
+    private final List<Integer> mPendingFirstOperations = new ArrayList<Integer>();
+    /** Index of the next entry, counted from the start of the source. */
+    private int mNextEntryIndex;
+    private CommitListener mCommitListener;
+
+    // Updated on the commit executor, guarded by this
+    private final ArrayList<Uri> mCreatedUris = new ArrayList<Uri>();
+    private final ArrayList<Integer> mFailedEntryIndexes = new ArrayList<Integer>();
+    private long mTimeToCommit;
+
+    public BatchingVCardEntryCommitter(ContentResolver resolver) {
+        this(resolver, null);
+    }
+
+    /**
+     * @param commitExecutor the executor to apply batches on, or null to apply them on the
+     * thread that delivers the entries
+     */
+    public BatchingVCardEntryCommitter(ContentResolver resolver, Executor commitExecutor) {
+        this(resolver, DEFAULT_MAX_ENTRIES_PER_BATCH, DEFAULT_MAX_OPERATIONS_PER_BATCH,
+                commitExecutor);
+    }
+
+    public BatchingVCardEntryCommitter(ContentResolver resolver, int maxEntriesPerBatch,
+            int maxOperationsPerBatch) {
+        this(resolver, maxEntriesPerBatch, maxOperationsPerBatch, null);
+    }
+
+    public BatchingVCardEntryCommitter(ContentResolver resolver, int maxEntriesPerBatch,
+            int maxOperationsPerBatch, Executor commitExecutor) {
+        mResolver = resolver;
+        mMaxEntriesPerBatch = maxEntriesPerBatch;
+        mMaxOperationsPerBatch = maxOperationsPerBatch;
+        mCommitExecutor = commitExecutor;
+    }
+
+    /**
+     * Sets the index of the first entry, for an import that resumes after the entries that
+     * were committed before.
+     */
+    public void setFirstEntryIndex(int index) {
+        mNextEntryIndex = index;
+    }
+
+    public void setCommitListener(CommitListener listener) {
+        mCommitListener = listener;
+    }
+
+    @Override
+    public void onStart() {
+    }
+
+    @Override
+    public void onEntryCreated(VCardEntry entry) {
+        onEntryCreated(entry, NO_RAW_CONTACT);
+    }
+
+    /**
+     * Inserts the entry as a raw contact that the provider aggregates with the given existing
+     * raw contact, whatever the aggregation rules say.
+     *
+     * @param keepTogetherWith the id of the existing raw contact, or {@link #NO_RAW_CONTACT}
+     */
+    public void onEntryCreated(VCardEntry entry, long keepTogetherWith) {
+        final long start = System.currentTimeMillis();
+        final PendingEntry pending = new PendingEntry(entry, mNextEntryIndex, keepTogetherWith);
+        int firstOperation = mPendingOperations.size();
+        // Back references of the new operations are relative to the end of the list
+        mPendingOperations = constructOperations(pending, mPendingOperations);
+        if (mPendingOperations.size() > mMaxOperationsPerBatch && !mPendingEntries.isEmpty()) {
+            // Commit what we have and start the next batch with this entry
+            mPendingOperations.subList(firstOperation, mPendingOperations.size()).clear();
+            flush();
+            firstOperation = 0;
+            mPendingOperations = constructOperations(pending, mPendingOperations);
+        }
+        mPendingEntries.add(pending);
+        mPendingFirstOperations.add(firstOperation);
+        mNextEntryIndex++;
+        if (mPendingEntries.size() >= mMaxEntriesPerBatch
+                || mPendingOperations.size() >= mMaxOperationsPerBatch) {
+            flush();
+        }
+        mTimeToCommit += System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Counts an entry that is not imported, so that the entries after it keep their index.
+     */
+    public void skipEntry() {
+        mNextEntryIndex++;
+    }
+
+    @Override
+    public void onEnd() {
+        final long start = System.currentTimeMillis();
+        flush();
+        // Wait for the batches still being applied
+        mOutstandingBatches.acquireUninterruptibly(MAX_OUTSTANDING_BATCHES);
+        mOutstandingBatches.release(MAX_OUTSTANDING_BATCHES);
+        mTimeToCommit += System.currentTimeMillis() - start;
+        Log.i(LOG_TAG, String.format("time to commit entries: %d ms, %d entries failed",
+                mTimeToCommit, getFailedEntryCount()));
+    }
+
+    /**
+     * Returns the Uris of the raw contacts created, one per imported entry, in the order of
+     * the entries.
+     */
+    public synchronized ArrayList<Uri> getCreatedUris() {
+        return mCreatedUris;
+    }
+
+    /**
+     * Returns the number of entries that the provider rejected.
+     */
+    public synchronized int getFailedEntryCount() {
+        return mFailedEntryIndexes.size();
+    }
+
+    /**
+     * Returns the indexes of the entries that the provider rejected.
+     */
+    public synchronized List<Integer> getFailedEntryIndexes() {
+        return new ArrayList<Integer>(mFailedEntryIndexes);
+    }
+
+    private void flush() {
+        if (mPendingEntries.isEmpty()) {
+            return;
+        }
+        final List<PendingEntry> entries = new ArrayList<PendingEntry>(mPendingEntries);
+        final ArrayList<ContentProviderOperation> operations = mPendingOperations;
+        final List<Integer> firstOperations = new ArrayList<Integer>(mPendingFirstOperations);
+        final int committedEntryCount = mNextEntryIndex;
+        final CommitListener listener = mCommitListener;
+        mPendingEntries.clear();
+        mPendingFirstOperations.clear();
+        mPendingOperations = new ArrayList<ContentProviderOperation>();
+
+        if (mCommitExecutor == null) {
+            apply(entries, operations, firstOperations);
+            if (listener != null) {
+                listener.onBatchCommitted(committedEntryCount);
+            }
+            return;
+        }
+        mOutstandingBatches.acquireUninterruptibly();
+        try {
+            mCommitExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        apply(entries, operations, firstOperations);
+                        if (listener != null) {
+                            listener.onBatchCommitted(committedEntryCount);
+                        }
+                    } finally {
+                        mOutstandingBatches.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The service is shutting down
+            Log.w(LOG_TAG, "Dropped a batch of " + entries.size() + " entries", e);
+            synchronized (this) {
+                for (PendingEntry entry : entries) {
+                    mFailedEntryIndexes.add(entry.index);
+                }
+            }
+            mOutstandingBatches.release();
+        }
+    }
+
+    private void commit(List<PendingEntry> entries) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        final List<Integer> firstOperations = new ArrayList<Integer>(entries.size());
+        for (PendingEntry entry : entries) {
+            firstOperations.add(operations.size());
+            operations = constructOperations(entry, operations);
+        }
+        apply(entries, operations, firstOperations);
+    }
+
+    private ArrayList<ContentProviderOperation> constructOperations(PendingEntry pending,
+            ArrayList<ContentProviderOperation> operations) {
+        final int firstOperation = operations.size();
+        operations = pending.entry.constructInsertOperations(mResolver, operations);
+        if (pending.keepTogetherWith != NO_RAW_CONTACT && operations.size() > firstOperation) {
+            operations.add(ContentProviderOperation.newUpdate(AggregationExceptions.CONTENT_URI)
+                    .withValue(AggregationExceptions.TYPE, AggregationExceptions.TYPE_KEEP_TOGETHER)
+                    .withValue(AggregationExceptions.RAW_CONTACT_ID1, pending.keepTogetherWith)
+                    .withValueBackReference(AggregationExceptions.RAW_CONTACT_ID2, firstOperation)
+                    .build());
+        }
+        return operations;
+    }
+
+    /**
+     * Applies the operations of the given entries as one batch, and retries each half of the
+     * entries separately if that fails.
+     */
+    private void apply(List<PendingEntry> entries, ArrayList<ContentProviderOperation> operations,
+            List<Integer> firstOperations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            for (int firstOperation : firstOperations) {
+                // The first operation of each entry inserts its raw contact. Check for null,
+                // in case the provider is badly behaved.
+                final ContentProviderResult result = results == null
+                        || firstOperation >= results.length ? null : results[firstOperation];
+                if (result != null && result.uri != null) {
+                    synchronized (this) {
+                        mCreatedUris.add(result.uri);
+                    }
+                }
+            }
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            if (entries.size() == 1) {
+                Log.e(LOG_TAG, "Failed to import an entry", e);
+                synchronized (this) {
+                    mFailedEntryIndexes.add(entries.get(0).index);
+                }
+                return;
+            }
+            Log.w(LOG_TAG, "Failed to apply a batch of " + entries.size()
+                    + " entries, retrying in halves: " + e);
+            final int middle = entries.size() / 2;
+            commit(entries.subList(0, middle));
+            commit(entries.subList(middle, entries.size()));
+        }
+    }
+
+    /**
+     * An entry waiting to be committed.
+     */
+    private static class PendingEntry {
+        final VCardEntry entry;
+        /** Index of the entry, counted from the start of the source. */
+        final int index;
+        final long keepTogetherWith;
+
+        PendingEntry(VCardEntry entry, int index, long keepTogetherWith) {
+            this.entry = entry;
+            this.index = index;
+            this.keepTogetherWith = keepTogetherWith;
+        }
+    }
+}
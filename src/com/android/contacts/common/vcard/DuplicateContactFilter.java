@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.util.PhoneNumberHelper;
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntry.EmailData;
+import com.android.vcard.VCardEntry.PhoneData;
+import com.android.vcard.VCardEntryHandler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Hands vCard entries to a {@link BatchingVCardEntryCommitter}, after checking whether the
+ * target account has the same contact already.
+ * <p>
+ * The phone numbers, email addresses and display names of the raw contacts in the account are
+ * read with one query when the import starts, so that each entry is matched with a few hash
+ * lookups instead of leaving the aggregator to find the duplicates after the import. An entry
+ * matches a raw contact that has one of its phone numbers or email addresses, or, if the entry
+ * has neither, the same display name. Entries are only compared with the contacts that were in
+ * the account before the import.
+ * <p>
+ * What happens to an entry that matches depends on {@link ImportRequest#duplicatePolicy}:
+ * with {@link ImportRequest#DUPLICATES_SKIP} it is not imported, and with
+ * {@link ImportRequest#DUPLICATES_MERGE} it is imported as a raw contact that is joined with
+ * the one it matches.
+ */
+public class DuplicateContactFilter implements VCardEntryHandler {
+    private static final String LOG_TAG = "VCardImport";
+
+    private static final String[] PROJECTION = new String[] {
+            Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.DATA1
+    };
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+    private final int mPolicy;
+    private final BatchingVCardEntryCommitter mCommitter;
+
+    /** Normalized phone numbers, lowercased emails and display names to raw contact ids. */
+    private final Map<String, Long> mPhones = new HashMap<String, Long>();
+    private final Map<String, Long> mEmails = new HashMap<String, Long>();
+    private final Map<String, Long> mNames = new HashMap<String, Long>();
+
+    private int mSkippedCount;
+    private int mMergedCount;
+
+    /**
+     * @param account the account the entries are imported into, or null for the local one
+     * @param policy one of {@link ImportRequest#DUPLICATES_SKIP} and
+     * {@link ImportRequest#DUPLICATES_MERGE}
+     */
+    public DuplicateContactFilter(ContentResolver resolver, Account account, int policy,
+            BatchingVCardEntryCommitter committer) {
+        mResolver = resolver;
+        mAccount = account;
+        mPolicy = policy;
+        mCommitter = committer;
+    }
+
+    @Override
+    public void onStart() {
+        final long start = System.currentTimeMillis();
+        loadContacts();
+        Log.i(LOG_TAG, String.format("time to index existing contacts: %d ms",
+                System.currentTimeMillis() - start));
+        mCommitter.onStart();
+    }
+
+    @Override
+    public void onEntryCreated(VCardEntry entry) {
+        final long rawContactId = findDuplicate(entry);
+        if (rawContactId == BatchingVCardEntryCommitter.NO_RAW_CONTACT) {
+            mCommitter.onEntryCreated(entry);
+        } else if (mPolicy == ImportRequest.DUPLICATES_SKIP) {
+            mSkippedCount++;
+            mCommitter.skipEntry();
+        } else {
+            mMergedCount++;
+            mCommitter.onEntryCreated(entry, rawContactId);
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        mCommitter.onEnd();
+        Log.i(LOG_TAG, String.format("%d duplicate entries skipped, %d merged",
+                mSkippedCount, mMergedCount));
+    }
+
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    public int getMergedCount() {
+        return mMergedCount;
+    }
+
+    /**
+     * Returns the id of a raw contact of the account that the entry duplicates, or
+     * {@link BatchingVCardEntryCommitter#NO_RAW_CONTACT}.
+     */
+    public long findDuplicate(VCardEntry entry) {
+        boolean hasKeys = false;
+        final List<PhoneData> phones = entry.getPhoneList();
+        if (phones != null) {
+            for (PhoneData phone : phones) {
+                final String key = normalizePhone(phone.getNumber());
+                if (key != null) {
+                    hasKeys = true;
+                    final Long rawContactId = mPhones.get(key);
+                    if (rawContactId != null) {
+                        return rawContactId;
+                    }
+                }
+            }
+        }
+        final List<EmailData> emails = entry.getEmailList();
+        if (emails != null) {
+            for (EmailData email : emails) {
+                final String key = normalizeText(email.getAddress());
+                if (key != null) {
+                    hasKeys = true;
+                    final Long rawContactId = mEmails.get(key);
+                    if (rawContactId != null) {
+                        return rawContactId;
+                    }
+                }
+            }
+        }
+        if (!hasKeys) {
+            // A name alone is a weak match, so only use it when there is nothing else
+            final String key = normalizeText(entry.getDisplayName());
+            final Long rawContactId = key == null ? null : mNames.get(key);
+            if (rawContactId != null) {
+                return rawContactId;
+            }
+        }
+        return BatchingVCardEntryCommitter.NO_RAW_CONTACT;
+    }
+
+    private void loadContacts() {
+        final StringBuilder selection = new StringBuilder(Data.MIMETYPE + " IN (?,?,?) AND ");
+        final String[] selectionArgs;
+        if (mAccount == null) {
+            selection.append(RawContacts.ACCOUNT_NAME + " IS NULL AND "
+                    + RawContacts.ACCOUNT_TYPE + " IS NULL");
+            selectionArgs = new String[] {
+                    Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE,
+                    StructuredName.CONTENT_ITEM_TYPE
+            };
+        } else {
+            selection.append(RawContacts.ACCOUNT_NAME + "=? AND "
+                    + RawContacts.ACCOUNT_TYPE + "=?");
+            selectionArgs = new String[] {
+                    Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE,
+                    StructuredName.CONTENT_ITEM_TYPE, mAccount.name, mAccount.type
+            };
+        }
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI, PROJECTION,
+                selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            Log.w(LOG_TAG, "Failed to query existing contacts, importing all entries");
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long rawContactId = cursor.getLong(0);
+                final String mimeType = cursor.getString(1);
+                final String value = cursor.getString(2);
+                if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    put(mPhones, normalizePhone(value), rawContactId);
+                } else if (Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    put(mEmails, normalizeText(value), rawContactId);
+                } else if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    put(mNames, normalizeText(value), rawContactId);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void put(Map<String, Long> map, String key, long rawContactId) {
+        // Keep the first raw contact, so that matches do not depend on the rest of the cursor
+        if (key != null && !map.containsKey(key)) {
+            map.put(key, rawContactId);
+        }
+    }
+
+    private static String normalizePhone(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final String normalized = PhoneNumberHelper.normalizeNumber(number);
+        return normalized.isEmpty() ? null : normalized;
+    }
+
+    private static String normalizeText(String text) {
+        if (text == null) {
+            return null;
+        }
+        final String normalized = text.trim().toLowerCase(Locale.ROOT);
+        return normalized.isEmpty() ? null : normalized;
+    }
+}
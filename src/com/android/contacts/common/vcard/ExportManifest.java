@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state of the raw contacts covered by the previous incremental export with a given name,
+ * so that the next one only exports the contacts that changed since.
+ *
+ * A contact has changed if one of its raw contacts is new, has a different
+ * {@link RawContacts#VERSION}, or has been deleted or moved to another contact. Contacts that
+ * were deleted altogether cannot be expressed in a vCard and are just left out.
+ */
+public class ExportManifest {
+    private static final String LOG_TAG = "VCardExport";
+
+    private static final String DIRECTORY = "vcard_export_manifests";
+
+    /** Raw contact id to its contact id and version, as of the previous export. */
+    private final Map<Long, long[]> mPrevious;
+    /** The same for the export in progress, saved once it succeeds. */
+    private final Map<Long, long[]> mNext = new HashMap<Long, long[]>();
+    private final AtomicFile mFile;
+
+    private ExportManifest(AtomicFile file, Map<Long, long[]> previous) {
+        mFile = file;
+        mPrevious = previous;
+    }
+
+    /**
+     * Loads the manifest with the given name. A manifest that does not exist yet is empty, so
+     * every contact is exported.
+     */
+    public static ExportManifest load(Context context, String name) {
+        final File directory = new File(context.getFilesDir(), DIRECTORY);
+        final AtomicFile file = new AtomicFile(new File(directory, name));
+        final Map<Long, long[]> previous = new HashMap<Long, long[]>();
+        BufferedReader reader = null;
+        try {
+            final FileInputStream in = file.openRead();
+            reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                if (fields.length == 3) {
+                    previous.put(Long.parseLong(fields[0]), new long[] {
+                            Long.parseLong(fields[1]), Long.parseLong(fields[2])
+                    });
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // First export with this name
+        } catch (IOException | NumberFormatException e) {
+            Log.w(LOG_TAG, "Ignoring unreadable export manifest " + name, e);
+            previous.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return new ExportManifest(file, previous);
+    }
+
+    /**
+     * Returns the contacts among the given ones that changed since the previous export, and
+     * records the current state of all of them for {@link #save}.
+     *
+     * @param contactIds the selected contacts, in ascending order
+     * @return the changed contacts in ascending order, or null if the provider could not be
+     * queried
+     */
+    public long[] findChangedContacts(ContentResolver resolver, long[] contactIds) {
+        final Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
+                new String[] {RawContacts._ID, RawContacts.CONTACT_ID, RawContacts.VERSION},
+                RawContacts.DELETED + "=0", null, null);
+        if (cursor == null) {
+            return null;
+        }
+        final boolean[] changed = new boolean[contactIds.length];
+        mNext.clear();
+        try {
+            while (cursor.moveToNext()) {
+                final long contactId = cursor.getLong(1);
+                final int index = Arrays.binarySearch(contactIds, contactId);
+                if (index < 0) {
+                    continue;
+                }
+                final long rawContactId = cursor.getLong(0);
+                final long[] state = new long[] {contactId, cursor.getLong(2)};
+                mNext.put(rawContactId, state);
+                if (!Arrays.equals(state, mPrevious.get(rawContactId))) {
+                    changed[index] = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        // A contact that lost a raw contact has changed too
+        for (Map.Entry<Long, long[]> entry : mPrevious.entrySet()) {
+            final long[] state = mNext.get(entry.getKey());
+            if (state == null || state[0] != entry.getValue()[0]) {
+                final int index = Arrays.binarySearch(contactIds, entry.getValue()[0]);
+                if (index >= 0) {
+                    changed[index] = true;
+                }
+            }
+        }
+
+        int count = 0;
+        final long[] result = new long[contactIds.length];
+        for (int i = 0; i < contactIds.length; i++) {
+            if (changed[i]) {
+                result[count++] = contactIds[i];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Saves the state recorded by {@link #findChangedContacts} as the base of the next export.
+     */
+    public void save() {
+        final File directory = mFile.getBaseFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(LOG_TAG, "Failed to create " + directory);
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            final Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(out, StandardCharsets.US_ASCII));
+            for (Map.Entry<Long, long[]> entry : mNext.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue()[0] + " "
+                        + entry.getValue()[1] + "\n");
+            }
+            writer.flush();
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to save export manifest " + mFile.getBaseFile(), e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.RawContactsEntity;
 import android.text.TextUtils;
@@ -31,12 +32,24 @@ import com.android.contacts.common.R;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Class for processing one export request from a user. Dropped after exporting requested Uri(s).
@@ -46,13 +59,19 @@ public class ExportProcessor extends ProcessorBase {
     private static final String LOG_TAG = "VCardExport";
     private static final boolean DEBUG = VCardService.DEBUG;
 
+    /** Number of contacts composed as one task. */
+    /* package */ static final int CONTACTS_PER_CHUNK = 100;
+    /** Number of chunks composed ahead of the one being written. */
+    /* package */ static final int MAX_CHUNKS_IN_FLIGHT = 8;
+    private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+
     private final VCardService mService;
     private final ContentResolver mResolver;
     private final NotificationManager mNotificationManager;
     private final ExportRequest mExportRequest;
     private final int mJobId;
     private final String mCallingActivity;
-
+    private final JobProgress mProgress;
 
     private volatile boolean mCanceled;
     private volatile boolean mDone;
@@ -66,6 +85,7 @@ public class ExportProcessor extends ProcessorBase {
         mExportRequest = exportRequest;
         mJobId = jobId;
         mCallingActivity = callingActivity;
+        mProgress = new JobProgress(jobId, VCardService.TYPE_EXPORT);
     }
 
     @Override
@@ -73,6 +93,11 @@ public class ExportProcessor extends ProcessorBase {
         return VCardService.TYPE_EXPORT;
     }
 
+    @Override
+    public JobProgress getProgress() {
+        return mProgress;
+    }
+
     @Override
     public void run() {
         // ExecutorService ignores RuntimeException, so we need to show it here.
@@ -98,8 +123,7 @@ public class ExportProcessor extends ProcessorBase {
     private void runInternal() {
         if (DEBUG) Log.d(LOG_TAG, String.format("vCard export (id: %d) has started.", mJobId));
         final ExportRequest request = mExportRequest;
-        VCardComposer composer = null;
-        Writer writer = null;
+        OutputStream out = null;
         boolean successful = false;
         try {
             if (isCancelled()) {
@@ -130,23 +154,23 @@ public class ExportProcessor extends ProcessorBase {
                 vcardType = VCardConfig.getVCardTypeFromString(exportType);
             }
 
-            composer = new VCardComposer(mService, vcardType, true);
-
             // for test
             // int vcardType = (VCardConfig.VCARD_TYPE_V21_GENERIC |
             //     VCardConfig.FLAG_USE_QP_TO_PRIMARY_PROPERTIES);
-            // composer = new VCardComposer(ExportVCardActivity.this, vcardType, true);
-
-            writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-            final Uri contentUriForRawContactsEntity = RawContactsEntity.CONTENT_URI;
-            // TODO: should provide better selection.
-            if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID},
-                    null, null,
-                    null, contentUriForRawContactsEntity)) {
-                final String errorReason = composer.getErrorReason();
-                Log.e(LOG_TAG, "initialization of vCard composer failed: " + errorReason);
-                final String translatedErrorReason =
-                        translateComposerError(errorReason);
+
+            out = outputStream;
+            out = openContainer(outputStream, request);
+            long[] contactIds = request.selection.queryContactIds(mResolver);
+            ExportManifest manifest = null;
+            if (contactIds != null && request.manifestName != null) {
+                manifest = ExportManifest.load(mService, request.manifestName);
+                contactIds = manifest.findChangedContacts(mResolver, contactIds);
+            }
+            if (contactIds == null) {
+                final String translatedErrorReason = translateComposerError(
+                        VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO);
+                Log.e(LOG_TAG, "initialization of vCard composer failed: "
+                        + translatedErrorReason);
                 final String title =
                         mService.getString(R.string.fail_reason_could_not_initialize_exporter,
                                 translatedErrorReason);
@@ -154,40 +178,52 @@ public class ExportProcessor extends ProcessorBase {
                 return;
             }
 
-            final int total = composer.getCount();
-            if (total == 0) {
+            final int total = contactIds.length;
+            if (total == 0 && manifest == null) {
                 final String title =
                         mService.getString(R.string.fail_reason_no_exportable_contact);
                 doFinishNotification(title, null);
                 return;
             }
 
-            int current = 1;  // 1-origin
-            while (!composer.isAfterLast()) {
-                if (isCancelled()) {
-                    Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
-                    return;
-                }
-                try {
-                    writer.write(composer.createOneEntry());
-                } catch (IOException e) {
-                    final String errorReason = composer.getErrorReason();
-                    Log.e(LOG_TAG, "Failed to read a contact: " + errorReason);
-                    final String translatedErrorReason =
-                            translateComposerError(errorReason);
-                    final String title =
-                            mService.getString(R.string.fail_reason_error_occurred_during_export,
-                                    translatedErrorReason);
-                    doFinishNotification(title, null);
-                    return;
+            // Compose ranges of contacts in parallel, and write them in order. An incremental
+            // export with no changes writes an empty file, and still saves its manifest.
+            final List<ChunkComposer> chunks = new ArrayList<ChunkComposer>();
+            for (int start = 0; start < total; start += CONTACTS_PER_CHUNK) {
+                chunks.add(new ChunkComposer(vcardType, Arrays.copyOfRange(contactIds, start,
+                        Math.min(start + CONTACTS_PER_CHUNK, total))));
+            }
+            mProgress.setTotals(total, JobProgress.UNKNOWN);
+            final boolean written = writeInOrder(mService.getWorkerExecutor(), chunks,
+                    MAX_CHUNKS_IN_FLIGHT, out, new ChunkListener() {
+                @Override
+                public boolean isCancelled() {
+                    return ExportProcessor.this.isCancelled();
                 }
 
-                // vCard export is quite fast (compared to import), and frequent notifications
-                // bother notification bar too much.
-                if (current % 100 == 1) {
-                    doProgressNotification(uri, total, current);
+                @Override
+                public void onChunkWritten(int chunkCount, long byteCount) {
+                    // vCard export is quite fast (compared to import), and frequent
+                    // notifications bother notification bar too much. So notify once per
+                    // chunk at most.
+                    final int current = Math.min(chunkCount * CONTACTS_PER_CHUNK, total);
+                    final long now = SystemClock.elapsedRealtime();
+                    mProgress.update(now, current, byteCount);
+                    if (mProgress.shouldNotify(now)) {
+                        doProgressNotification(uri, total, current);
+                    }
                 }
-                current++;
+            });
+            if (!written) {
+                Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
+                return;
+            }
+            if (out instanceof DeflaterOutputStream) {
+                ((DeflaterOutputStream) out).finish();
+            }
+            out.flush();
+            if (manifest != null) {
+                manifest.save();
             }
             Log.i(LOG_TAG, "Successfully finished exporting vCard " + request.destUri);
 
@@ -198,16 +234,28 @@ public class ExportProcessor extends ProcessorBase {
 
             successful = true;
             final String filename = uri.getLastPathSegment();
-            final String title = mService.getString(R.string.exporting_vcard_finished_title,
-                    filename);
+            final String title = mService.getString(total == 0
+                    ? R.string.exporting_vcard_no_changes_title
+                    : R.string.exporting_vcard_finished_title, filename);
             doFinishNotification(title, null);
-        } finally {
-            if (composer != null) {
-                composer.terminate();
+        } catch (IOException | InterruptedException | ExecutionException
+                | RejectedExecutionException e) {
+            final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            final String errorReason = cause instanceof ComposeException
+                    ? ((ComposeException) cause).reason : String.valueOf(cause.getMessage());
+            Log.e(LOG_TAG, "Failed to export contacts: " + errorReason, cause);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
             }
-            if (writer != null) {
+            final String translatedErrorReason = translateComposerError(errorReason);
+            final String title =
+                    mService.getString(R.string.fail_reason_error_occurred_during_export,
+                            translatedErrorReason);
+            doFinishNotification(title, null);
+        } finally {
+            if (out != null) {
                 try {
-                    writer.close();
+                    out.close();
                 } catch (IOException e) {
                     Log.w(LOG_TAG, "IOException is thrown during close(). Ignored. " + e);
                 }
@@ -216,6 +264,139 @@ public class ExportProcessor extends ProcessorBase {
         }
     }
 
+    /**
+     * Called by {@link #writeInOrder} as the chunks are written.
+     */
+    /* package */ interface ChunkListener {
+        /** Returns whether to stop before the next chunk. */
+        boolean isCancelled();
+        /** Called after each chunk with the number of chunks and bytes written so far. */
+        void onChunkWritten(int chunkCount, long byteCount);
+    }
+
+    /**
+     * Runs the tasks on the executor, at most {@code maxInFlight} of them ahead of the one
+     * being written, and writes what they return to the stream in the order of the tasks.
+     *
+     * @return false if the listener cancelled before all the chunks were written
+     */
+    /* package */ static boolean writeInOrder(ExecutorService executor,
+            List<? extends Callable<byte[]>> tasks, int maxInFlight, OutputStream out,
+            ChunkListener listener) throws IOException, InterruptedException, ExecutionException {
+        final ArrayDeque<Future<byte[]>> composing = new ArrayDeque<Future<byte[]>>();
+        try {
+            int next = 0;
+            int chunkCount = 0;
+            long byteCount = 0;
+            while (next < tasks.size() || !composing.isEmpty()) {
+                if (listener.isCancelled()) {
+                    return false;
+                }
+                if (next < tasks.size() && composing.size() < maxInFlight) {
+                    composing.add(executor.submit(tasks.get(next++)));
+                    continue;
+                }
+                final byte[] composed = composing.poll().get();
+                out.write(composed);
+                byteCount += composed.length;
+                listener.onChunkWritten(++chunkCount, byteCount);
+            }
+            return true;
+        } finally {
+            for (Future<byte[]> future : composing) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Wraps the destination in a large buffer and the requested compression.
+     */
+    /* package */ static OutputStream openContainer(OutputStream outputStream,
+            ExportRequest request) throws IOException {
+        final OutputStream buffered = new BufferedOutputStream(outputStream, OUTPUT_BUFFER_SIZE);
+        switch (request.compression) {
+            case ExportRequest.COMPRESSION_GZIP:
+                return new GZIPOutputStream(buffered, OUTPUT_BUFFER_SIZE);
+            case ExportRequest.COMPRESSION_ZIP: {
+                final ZipOutputStream zip = new ZipOutputStream(buffered);
+                String name = request.destUri.getLastPathSegment();
+                if (TextUtils.isEmpty(name)) {
+                    name = "contacts";
+                }
+                final int extension = name.lastIndexOf('.');
+                if (extension > 0) {
+                    name = name.substring(0, extension);
+                }
+                zip.putNextEntry(new ZipEntry(name + ".vcf"));
+                return zip;
+            }
+            default:
+                return buffered;
+        }
+    }
+
+    /**
+     * Composes the vCards of some contacts, encoded as the writer of a single-threaded export
+     * would.
+     */
+    private class ChunkComposer implements Callable<byte[]> {
+        private final int mVCardType;
+        private final long[] mContactIds;
+
+        ChunkComposer(int vcardType, long[] contactIds) {
+            mVCardType = vcardType;
+            mContactIds = contactIds;
+        }
+
+        @Override
+        public byte[] call() throws ComposeException {
+            final VCardComposer composer = new VCardComposer(mService, mVCardType, true);
+            try {
+                final StringBuilder selection = new StringBuilder(Contacts._ID + " IN (");
+                for (int i = 0; i < mContactIds.length; i++) {
+                    selection.append(i == 0 ? "" : ",").append(mContactIds[i]);
+                }
+                selection.append(')');
+                if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID},
+                        selection.toString(), null, Contacts._ID,
+                        RawContactsEntity.CONTENT_URI)) {
+                    final String errorReason = composer.getErrorReason();
+                    if (VCardComposer.FAILURE_REASON_NO_ENTRY.equals(errorReason)) {
+                        // The contacts were deleted since we listed them
+                        return new byte[0];
+                    }
+                    throw new ComposeException(errorReason);
+                }
+                final StringBuilder builder = new StringBuilder();
+                while (!composer.isAfterLast()) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    final String entry = composer.createOneEntry();
+                    if (entry != null) {
+                        builder.append(entry);
+                    }
+                }
+                return builder.toString().getBytes(Charset.defaultCharset());
+            } finally {
+                composer.terminate();
+            }
+        }
+    }
+
+    /**
+     * Thrown when {@link VCardComposer} fails, with its reason.
+     */
+    private static class ComposeException extends Exception {
+        final String reason;
+
+        ComposeException(String reason) {
+            super(reason);
+            this.reason = reason;
+        }
+    }
+
     private String translateComposerError(String errorMessage) {
         final Resources resources = mService.getResources();
         if (VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO.equals(errorMessage)) {
@@ -238,7 +419,7 @@ public class ExportProcessor extends ProcessorBase {
         final Notification notification =
                 NotificationImportExportListener.constructProgressNotification(mService,
                         VCardService.TYPE_EXPORT, description, tickerText, mJobId, displayName,
-                        totalCount, currentCount);
+                        totalCount, currentCount, mProgress);
         mNotificationManager.notify(NotificationImportExportListener.DEFAULT_NOTIFICATION_TAG,
                 mJobId, notification);
     }
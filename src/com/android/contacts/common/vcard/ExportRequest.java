@@ -15,21 +15,98 @@
  */
 package com.android.contacts.common.vcard;
 
+import android.content.ContentResolver;
 import android.net.Uri;
 
+import java.io.File;
+
 public class ExportRequest {
+    /** Writes the vCards as they are. */
+    public static final int COMPRESSION_NONE = 0;
+    /** Writes the vCards in a gzip stream. */
+    public static final int COMPRESSION_GZIP = 1;
+    /** Writes the vCards as the single entry of a zip archive. */
+    public static final int COMPRESSION_ZIP = 2;
+
+    /** Extension of the files written with {@link #COMPRESSION_GZIP}, after that of vCards. */
+    /* package */ static final String GZIP_EXTENSION = "gz";
+    /** Extension of the files written with {@link #COMPRESSION_ZIP}, instead of that of vCards. */
+    /* package */ static final String ZIP_EXTENSION = "zip";
+
+    /**
+     * Where the vCards are written. A file gets the extension of its compression, e.g.
+     * "00001.vcf.gz" or "00001.zip" instead of "00001.vcf".
+     */
     public final Uri destUri;
     /**
      * Can be null.
      */
     public final String exportType;
 
+    /**
+     * One of {@link #COMPRESSION_NONE}, {@link #COMPRESSION_GZIP} or {@link #COMPRESSION_ZIP}.
+     */
+    public final int compression;
+
+    /**
+     * The contacts to export. Never null.
+     */
+    public final ExportSelection selection;
+
+    /**
+     * The name of the {@link ExportManifest} of an incremental export, which only exports the
+     * contacts changed since the previous export with the same name. Null for a full export.
+     */
+    public final String manifestName;
+
     public ExportRequest(Uri destUri) {
         this(destUri, null);
     }
 
     public ExportRequest(Uri destUri, String exportType) {
-        this.destUri = destUri;
+        this(destUri, exportType, COMPRESSION_NONE);
+    }
+
+    public ExportRequest(Uri destUri, String exportType, int compression) {
+        this(destUri, exportType, compression, ExportSelection.createAll(), null);
+    }
+
+    public ExportRequest(Uri destUri, String exportType, int compression,
+            ExportSelection selection, String manifestName) {
+        this.destUri = withCompressionExtension(destUri, compression);
         this.exportType = exportType;
+        this.compression = compression;
+        this.selection = selection;
+        this.manifestName = manifestName;
+    }
+
+    /**
+     * Returns the Uri of the file with the extension of the compression, or the Uri itself if
+     * it is not a file, whose name the caller chose, or has the extension already.
+     */
+    /* package */ static Uri withCompressionExtension(Uri uri, int compression) {
+        if (uri == null || !ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return uri;
+        }
+        final String path = uri.getPath();
+        switch (compression) {
+            case COMPRESSION_GZIP: {
+                if (path.endsWith("." + GZIP_EXTENSION)) {
+                    return uri;
+                }
+                return Uri.fromFile(new File(path + "." + GZIP_EXTENSION));
+            }
+            case COMPRESSION_ZIP: {
+                if (path.endsWith("." + ZIP_EXTENSION)) {
+                    return uri;
+                }
+                final int slash = path.lastIndexOf('/');
+                final int dot = path.lastIndexOf('.');
+                final String body = dot > slash + 1 ? path.substring(0, dot) : path;
+                return Uri.fromFile(new File(body + "." + ZIP_EXTENSION));
+            }
+            default:
+                return uri;
+        }
     }
 }
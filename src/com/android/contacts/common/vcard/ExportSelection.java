@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Directory;
+
+import com.android.contacts.common.list.ContactListFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes which contacts an {@link ExportRequest} exports: all of them, a list of contacts,
+ * the members of a group, or the contacts a {@link ContactListFilter} shows. Any of these can
+ * be narrowed to the contacts changed since a given time.
+ */
+public class ExportSelection {
+    public static final int TYPE_ALL = 0;
+    public static final int TYPE_CONTACT_IDS = 1;
+    public static final int TYPE_GROUP = 2;
+    public static final int TYPE_FILTER = 3;
+
+    /** Value of {@link #changedSince} when contacts are not selected by time. */
+    public static final long ANY_TIME = 0;
+
+    public final int type;
+
+    /** The contacts to export, for {@link #TYPE_CONTACT_IDS}. */
+    public final long[] contactIds;
+
+    /** The group whose members to export, for {@link #TYPE_GROUP}. */
+    public final long groupId;
+
+    /** The filter whose contacts to export, for {@link #TYPE_FILTER}. */
+    public final ContactListFilter filter;
+
+    /**
+     * The lookup key of the contact to export, for a {@link #TYPE_FILTER} of
+     * {@link ContactListFilter#FILTER_TYPE_SINGLE_CONTACT}.
+     */
+    public final String lookupKey;
+
+    /**
+     * Only contacts updated after this time, in milliseconds since the epoch, are exported.
+     * {@link #ANY_TIME} exports contacts regardless of when they were updated.
+     */
+    public final long changedSince;
+
+    private ExportSelection(int type, long[] contactIds, long groupId, ContactListFilter filter,
+            String lookupKey, long changedSince) {
+        this.type = type;
+        this.contactIds = contactIds;
+        this.groupId = groupId;
+        this.filter = filter;
+        this.lookupKey = lookupKey;
+        this.changedSince = changedSince;
+    }
+
+    public static ExportSelection createAll() {
+        return new ExportSelection(TYPE_ALL, null, -1, null, null, ANY_TIME);
+    }
+
+    public static ExportSelection createForContactIds(long[] contactIds) {
+        return new ExportSelection(TYPE_CONTACT_IDS, contactIds.clone(), -1, null, null,
+                ANY_TIME);
+    }
+
+    public static ExportSelection createForGroup(long groupId) {
+        return new ExportSelection(TYPE_GROUP, null, groupId, null, null, ANY_TIME);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the filter is of
+     * {@link ContactListFilter#FILTER_TYPE_SINGLE_CONTACT}, which needs the lookup key of the
+     * contact, see {@link #createForSingleContact}, or of an unknown type
+     */
+    public static ExportSelection createForFilter(ContactListFilter filter) {
+        switch (filter.filterType) {
+            case ContactListFilter.FILTER_TYPE_DEFAULT:
+            case ContactListFilter.FILTER_TYPE_ALL_ACCOUNTS:
+            case ContactListFilter.FILTER_TYPE_ACCOUNT:
+            case ContactListFilter.FILTER_TYPE_CUSTOM:
+            case ContactListFilter.FILTER_TYPE_STARRED:
+            case ContactListFilter.FILTER_TYPE_WITH_PHONE_NUMBERS_ONLY:
+                return new ExportSelection(TYPE_FILTER, null, -1, filter, null, ANY_TIME);
+            default:
+                throw new IllegalArgumentException("Unsupported filter: " + filter);
+        }
+    }
+
+    /**
+     * Selects the contact a {@link ContactListFilter#FILTER_TYPE_SINGLE_CONTACT} filter shows,
+     * by its lookup key.
+     */
+    public static ExportSelection createForSingleContact(String lookupKey) {
+        if (lookupKey == null) {
+            throw new IllegalArgumentException("lookupKey must not be null");
+        }
+        return new ExportSelection(TYPE_FILTER, null, -1, ContactListFilter.createFilterWithType(
+                ContactListFilter.FILTER_TYPE_SINGLE_CONTACT), lookupKey, ANY_TIME);
+    }
+
+    /**
+     * Returns a copy of this selection that only keeps the contacts updated after the given
+     * time.
+     */
+    public ExportSelection changedSince(long timestamp) {
+        return new ExportSelection(type, contactIds, groupId, filter, lookupKey, timestamp);
+    }
+
+    /**
+     * Returns the ids of the selected contacts in ascending order, or null if the provider
+     * could not be queried.
+     */
+    public long[] queryContactIds(ContentResolver resolver) {
+        final List<String> selectionArgs = new ArrayList<String>();
+        final StringBuilder selection = new StringBuilder();
+        Uri uri = Contacts.CONTENT_URI;
+
+        switch (type) {
+            case TYPE_CONTACT_IDS: {
+                if (contactIds.length == 0) {
+                    return new long[0];
+                }
+                appendIdSelection(selection, contactIds);
+                break;
+            }
+            case TYPE_GROUP: {
+                final long[] members = queryGroupMembers(resolver);
+                if (members == null || members.length == 0) {
+                    return members;
+                }
+                appendIdSelection(selection, members);
+                break;
+            }
+            case TYPE_FILTER: {
+                uri = appendFilterSelection(uri, selection);
+                break;
+            }
+        }
+        if (changedSince != ANY_TIME) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            selection.append(Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?");
+            selectionArgs.add(String.valueOf(changedSince));
+        }
+
+        final Cursor cursor = resolver.query(uri, new String[] {Contacts._ID},
+                selection.length() == 0 ? null : selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), Contacts._ID);
+        return readIds(cursor);
+    }
+
+    private long[] queryGroupMembers(ContentResolver resolver) {
+        final Cursor cursor = resolver.query(Data.CONTENT_URI,
+                new String[] {Data.CONTACT_ID},
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                new String[] {GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)},
+                null);
+        return readIds(cursor);
+    }
+
+    /**
+     * Mirrors how {@link com.android.contacts.common.list.DefaultContactListAdapter} selects
+     * the contacts of a filter.
+     */
+    /* package */ Uri appendFilterSelection(Uri uri, StringBuilder selection) {
+        if (filter.filterType == ContactListFilter.FILTER_TYPE_SINGLE_CONTACT) {
+            // The lookup key selects the contact, in the default directory
+            return Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, lookupKey);
+        }
+        final Uri.Builder builder = uri.buildUpon().appendQueryParameter(
+                ContactsContract.DIRECTORY_PARAM_KEY, String.valueOf(Directory.DEFAULT));
+        switch (filter.filterType) {
+            case ContactListFilter.FILTER_TYPE_ACCOUNT: {
+                filter.addAccountQueryParameterToUrl(builder);
+                break;
+            }
+            case ContactListFilter.FILTER_TYPE_STARRED: {
+                selection.append(Contacts.STARRED + "!=0");
+                break;
+            }
+            case ContactListFilter.FILTER_TYPE_WITH_PHONE_NUMBERS_ONLY: {
+                selection.append(Contacts.HAS_PHONE_NUMBER + "=1");
+                break;
+            }
+            case ContactListFilter.FILTER_TYPE_CUSTOM: {
+                selection.append(Contacts.IN_VISIBLE_GROUP + "=1");
+                break;
+            }
+        }
+        return builder.build();
+    }
+
+    private static void appendIdSelection(StringBuilder selection, long[] ids) {
+        selection.append(Contacts._ID + " IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+    }
+
+    /**
+     * Reads the ids in the first column of the cursor, sorted and without duplicates, and
+     * closes the cursor.
+     */
+    private static long[] readIds(Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final long[] ids = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) {
+                ids[count++] = cursor.getLong(0);
+            }
+            Arrays.sort(ids, 0, count);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || ids[unique - 1] != ids[i]) {
+                    ids[unique++] = ids[i];
+                }
+            }
+            return unique == ids.length ? ids : Arrays.copyOf(ids, unique);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The persisted progress of one import job, so that {@link VCardService} can resume the job
+ * from its last committed batch if the process is killed.
+ *
+ * A checkpoint records where to find the source again, how many entries of the source have
+ * been committed, and the position in the source of the chunk the next entry is in. It is
+ * written by {@link ImportProcessor} after every batch, and deleted when the job ends.
+ */
+public class ImportCheckpoint {
+    private static final String LOG_TAG = "VCardImport";
+
+    private static final String DIRECTORY = "vcard_import_checkpoints";
+
+    private static final String KEY_SOURCE_URI = "sourceUri";
+    private static final String KEY_SOURCE_COMPLETE = "sourceComplete";
+    private static final String KEY_ACCOUNT_NAME = "accountName";
+    private static final String KEY_ACCOUNT_TYPE = "accountType";
+    private static final String KEY_DISPLAY_NAME = "displayName";
+    private static final String KEY_ESTIMATED_VCARD_TYPE = "estimatedVCardType";
+    private static final String KEY_ESTIMATED_CHARSET = "estimatedCharset";
+    private static final String KEY_VCARD_VERSION = "vcardVersion";
+    private static final String KEY_ENTRY_COUNT = "entryCount";
+    private static final String KEY_DUPLICATE_POLICY = "duplicatePolicy";
+    private static final String KEY_COMMITTED_ENTRY_COUNT = "committedEntryCount";
+    private static final String KEY_RESUME_OFFSET = "resumeOffset";
+    private static final String KEY_RESUME_ENTRY_INDEX = "resumeEntryIndex";
+    private static final String KEY_CREATED_COUNT = "createdCount";
+    private static final String KEY_FAILED_ENTRIES = "failedEntries";
+
+    private final AtomicFile mFile;
+    private final ImportRequest mRequest;
+
+    private boolean mSourceComplete;
+    private int mCommittedEntryCount;
+    private long mResumeOffset;
+    private int mResumeEntryIndex;
+    private int mCreatedCount;
+    private final ArrayList<Integer> mFailedEntries = new ArrayList<Integer>();
+
+    private ImportCheckpoint(AtomicFile file, ImportRequest request) {
+        mFile = file;
+        mRequest = request;
+    }
+
+    /**
+     * Creates and saves the checkpoint of a new job.
+     *
+     * @return the checkpoint, or null if the source of the request cannot be found again,
+     * e.g. when it is given as a byte array
+     */
+    public static ImportCheckpoint create(Context context, ImportRequest request) {
+        if (request.uri == null) {
+            return null;
+        }
+        final File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(LOG_TAG, "Failed to create " + directory);
+            return null;
+        }
+        final ImportCheckpoint checkpoint = new ImportCheckpoint(
+                new AtomicFile(new File(directory, UUID.randomUUID() + ".json")), request);
+        checkpoint.mSourceComplete = request.cacheFile == null;
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    /**
+     * Loads the checkpoints of the jobs that were running when the process was killed.
+     * Checkpoints that cannot be read are deleted.
+     */
+    public static List<ImportCheckpoint> loadAll(Context context) {
+        final List<ImportCheckpoint> checkpoints = new ArrayList<ImportCheckpoint>();
+        final File[] files = new File(context.getFilesDir(), DIRECTORY).listFiles();
+        if (files == null) {
+            return checkpoints;
+        }
+        for (File file : files) {
+            final AtomicFile atomicFile = new AtomicFile(file);
+            try {
+                checkpoints.add(fromJson(atomicFile, new JSONObject(
+                        new String(atomicFile.readFully(), StandardCharsets.UTF_8))));
+            } catch (IOException | JSONException e) {
+                Log.w(LOG_TAG, "Dropping unreadable import checkpoint " + file, e);
+                atomicFile.delete();
+            }
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Returns the request of the job. For a resumed job, the request reads the local copy of
+     * the source directly.
+     */
+    public ImportRequest getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * Returns whether the source is complete, so that the job can be resumed from it.
+     */
+    public synchronized boolean isSourceComplete() {
+        return mSourceComplete;
+    }
+
+    /**
+     * Returns the number of entries, from the start of the source, that have been committed
+     * or have failed.
+     */
+    public synchronized int getCommittedEntryCount() {
+        return mCommittedEntryCount;
+    }
+
+    /**
+     * Returns the position in the source of the first chunk with uncommitted entries.
+     */
+    public synchronized long getResumeOffset() {
+        return mResumeOffset;
+    }
+
+    /**
+     * Returns the index of the first entry at {@link #getResumeOffset()}.
+     */
+    public synchronized int getResumeEntryIndex() {
+        return mResumeEntryIndex;
+    }
+
+    /**
+     * Returns the number of raw contacts created by the job so far.
+     */
+    public synchronized int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    /**
+     * Returns the indexes of the entries that the provider rejected.
+     */
+    public synchronized List<Integer> getFailedEntries() {
+        return new ArrayList<Integer>(mFailedEntries);
+    }
+
+    /**
+     * Records the progress of the job after a batch has been committed, and saves it.
+     */
+    public synchronized void update(int committedEntryCount, long resumeOffset,
+            int resumeEntryIndex, int createdCount, List<Integer> failedEntries,
+            boolean sourceComplete) {
+        mCommittedEntryCount = committedEntryCount;
+        mResumeOffset = resumeOffset;
+        mResumeEntryIndex = resumeEntryIndex;
+        mCreatedCount = createdCount;
+        mFailedEntries.clear();
+        mFailedEntries.addAll(failedEntries);
+        mSourceComplete = sourceComplete;
+        save();
+    }
+
+    /**
+     * Deletes the checkpoint once its job has ended.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private synchronized void save() {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(toJson().toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(out);
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Failed to save import checkpoint " + mFile.getBaseFile(), e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private JSONObject toJson() throws JSONException {
+        final ImportRequest request = mRequest;
+        final JSONObject json = new JSONObject();
+        json.put(KEY_SOURCE_URI, request.uri.toString());
+        json.put(KEY_SOURCE_COMPLETE, mSourceComplete);
+        if (request.account != null) {
+            json.put(KEY_ACCOUNT_NAME, request.account.name);
+            json.put(KEY_ACCOUNT_TYPE, request.account.type);
+        }
+        json.putOpt(KEY_DISPLAY_NAME, request.displayName);
+        json.put(KEY_ESTIMATED_VCARD_TYPE, request.estimatedVCardType);
+        json.putOpt(KEY_ESTIMATED_CHARSET, request.estimatedCharset);
+        json.put(KEY_VCARD_VERSION, request.vcardVersion);
+        json.put(KEY_ENTRY_COUNT, request.entryCount);
+        json.put(KEY_DUPLICATE_POLICY, request.duplicatePolicy);
+        json.put(KEY_COMMITTED_ENTRY_COUNT, mCommittedEntryCount);
+        json.put(KEY_RESUME_OFFSET, mResumeOffset);
+        json.put(KEY_RESUME_ENTRY_INDEX, mResumeEntryIndex);
+        json.put(KEY_CREATED_COUNT, mCreatedCount);
+        final JSONArray failedEntries = new JSONArray();
+        for (int index : mFailedEntries) {
+            failedEntries.put(index);
+        }
+        json.put(KEY_FAILED_ENTRIES, failedEntries);
+        return json;
+    }
+
+    private static ImportCheckpoint fromJson(AtomicFile file, JSONObject json)
+            throws JSONException {
+        final String accountName = json.optString(KEY_ACCOUNT_NAME, null);
+        final String accountType = json.optString(KEY_ACCOUNT_TYPE, null);
+        final Account account = TextUtils.isEmpty(accountName) || TextUtils.isEmpty(accountType)
+                ? null : new Account(accountName, accountType);
+        final ImportRequest request = new ImportRequest(account, null,
+                Uri.parse(json.getString(KEY_SOURCE_URI)),
+                json.optString(KEY_DISPLAY_NAME, null),
+                json.getInt(KEY_ESTIMATED_VCARD_TYPE),
+                json.optString(KEY_ESTIMATED_CHARSET, null),
+                json.getInt(KEY_VCARD_VERSION),
+                json.getInt(KEY_ENTRY_COUNT))
+                .withDuplicatePolicy(json.optInt(KEY_DUPLICATE_POLICY,
+                        ImportRequest.DUPLICATES_INSERT));
+
+        final ImportCheckpoint checkpoint = new ImportCheckpoint(file, request);
+        checkpoint.mSourceComplete = json.getBoolean(KEY_SOURCE_COMPLETE);
+        checkpoint.mCommittedEntryCount = json.getInt(KEY_COMMITTED_ENTRY_COUNT);
+        checkpoint.mResumeOffset = json.getLong(KEY_RESUME_OFFSET);
+        checkpoint.mResumeEntryIndex = json.getInt(KEY_RESUME_ENTRY_INDEX);
+        checkpoint.mCreatedCount = json.getInt(KEY_CREATED_COUNT);
+        final JSONArray failedEntries = json.getJSONArray(KEY_FAILED_ENTRIES);
+        for (int i = 0; i < failedEntries.length(); i++) {
+            checkpoint.mFailedEntries.add(failedEntries.getInt(i));
+        }
+        return checkpoint;
+    }
+}
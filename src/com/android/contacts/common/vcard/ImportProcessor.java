@@ -15,38 +15,57 @@
  */
 package com.android.contacts.common.vcard;
 
-import android.accounts.Account;
 import android.content.ContentResolver;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.contacts.common.R;
 import com.android.vcard.VCardEntry;
-import com.android.vcard.VCardEntryCommitter;
 import com.android.vcard.VCardEntryConstructor;
 import com.android.vcard.VCardEntryHandler;
-import com.android.vcard.VCardInterpreter;
 import com.android.vcard.VCardParser;
 import com.android.vcard.VCardParser_V21;
 import com.android.vcard.VCardParser_V30;
 import com.android.vcard.exception.VCardException;
 import com.android.vcard.exception.VCardNestedException;
-import com.android.vcard.exception.VCardNotSupportedException;
 import com.android.vcard.exception.VCardVersionException;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Class for processing one import request from a user. Dropped after importing requested Uri(s).
  * {@link VCardService} will create another object when there is another import request.
  */
-public class ImportProcessor extends ProcessorBase implements VCardEntryHandler {
+public class ImportProcessor extends ProcessorBase implements VCardEntryHandler,
+        BatchingVCardEntryCommitter.CommitListener {
     private static final String LOG_TAG = "VCardImport";
     private static final boolean DEBUG = VCardService.DEBUG;
 
+    /** Number of entries parsed as one task. */
+    /* package */ static final int ENTRIES_PER_CHUNK = 100;
+    /** Size after which a chunk ends at the next entry, so that large photos spread out. */
+    /* package */ static final int BYTES_PER_CHUNK = 256 * 1024;
+    /** Number of chunks read ahead of the entries handed to the committer. */
+    private static final int MAX_CHUNKS_IN_FLIGHT = 8;
+    /** Encoded size above which a photo is spooled to a file and scaled down before commit. */
+    /* package */ static final int PHOTO_SPOOL_THRESHOLD = 64 * 1024;
+    private static final String PHOTO_DIRECTORY_PREFIX = "vcard_import_photos_";
+
     private final VCardService mService;
     private final ContentResolver mResolver;
     private final ImportRequest mImportRequest;
@@ -56,22 +75,69 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     // TODO: remove and show appropriate message instead.
     private final List<Uri> mFailedUris = new ArrayList<Uri>();
 
-    private VCardParser mVCardParser;
+    private final ExecutorService mParseExecutor;
+    // Parsers currently running on the parse executor, guarded by this
+    private final Set<VCardParser> mVCardParsers = new HashSet<VCardParser>();
+    private volatile int mDetectedVCardVersion;
+
+    /** Where the job saves its progress, or null if it cannot be resumed. */
+    private final ImportCheckpoint mCheckpoint;
+    /** Entries before this index were committed before the job was resumed. */
+    private final int mFirstEntryIndex;
+    private final List<Integer> mPreviouslyFailedEntries;
+    private final int mPreviouslyCreatedCount;
+    /** Index of the next entry handed to the committer, counted from the start of the source. */
+    private int mNextEntryIndex;
+    /**
+     * Position and first entry index of the chunks whose entries may not be committed yet,
+     * guarded by itself.
+     */
+    private final ArrayDeque<long[]> mChunkStarts = new ArrayDeque<long[]>();
+    private BatchingVCardEntryCommitter mCommitter;
 
     private volatile boolean mCanceled;
     private volatile boolean mDone;
+    /** Resource id of why the source could not be read, set when reading it fails. */
+    private int mFailureReason;
 
     private int mCurrentCount = 0;
     private int mTotalCount = 0;
 
+    /** The source currently being parsed, for estimating progress. */
+    private volatile CountingInputStream mCountingSource;
+
+    /** Where the large photos of the source are spooled while the job runs. */
+    private final File mPhotoDirectory;
+
+    private final JobProgress mProgress;
+
+    /**
+     * @param checkpoint where to save the progress of the job, or null. If the checkpoint
+     * has progress, the job resumes from it.
+     */
     public ImportProcessor(final VCardService service, final VCardImportExportListener listener,
-            final ImportRequest request, final int jobId) {
+            final ImportRequest request, final int jobId, final ImportCheckpoint checkpoint) {
         mService = service;
         mResolver = mService.getContentResolver();
+        mParseExecutor = mService.getWorkerExecutor();
         mListener = listener;
 
         mImportRequest = request;
         mJobId = jobId;
+
+        mCheckpoint = checkpoint;
+        if (checkpoint != null) {
+            mFirstEntryIndex = checkpoint.getCommittedEntryCount();
+            mPreviouslyFailedEntries = checkpoint.getFailedEntries();
+            mPreviouslyCreatedCount = checkpoint.getCreatedCount();
+        } else {
+            mFirstEntryIndex = 0;
+            mPreviouslyFailedEntries = new ArrayList<Integer>();
+            mPreviouslyCreatedCount = 0;
+        }
+        mCurrentCount = mFirstEntryIndex;
+        mPhotoDirectory = new File(service.getCacheDir(), PHOTO_DIRECTORY_PREFIX + jobId);
+        mProgress = new JobProgress(jobId, VCardService.TYPE_IMPORT);
     }
 
     @Override
@@ -87,9 +153,79 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     @Override
     public void onEntryCreated(VCardEntry entry) {
         mCurrentCount++;
+        final long now = SystemClock.elapsedRealtime();
+        final CountingInputStream source = mCountingSource;
+        mProgress.update(now, mCurrentCount, source == null ? 0 : source.getCount());
+        if (!mProgress.shouldNotify(now)) {
+            return;
+        }
+        // The totals only matter when the progress is shown, so they are refreshed as rarely
+        final long totalBytes = getSourceSize();
+        mProgress.setTotals(mImportRequest.entryCount == ImportRequest.ENTRY_COUNT_UNKNOWN
+                ? estimateTotalCount(totalBytes) : mTotalCount, totalBytes);
         if (mListener != null) {
-            mListener.onImportParsed(mImportRequest, mJobId, entry, mCurrentCount, mTotalCount);
+            mListener.onImportProgress(mImportRequest, mJobId, entry, mProgress);
+        }
+    }
+
+    /**
+     * Returns the size of the source in bytes, as far as it is known, or -1.
+     */
+    private long getSourceSize() {
+        final ImportRequest request = mImportRequest;
+        if (request.cacheFile != null) {
+            return request.cacheFile.getTotalSize();
+        } else if (request.uri != null) {
+            if (ContentResolver.SCHEME_FILE.equals(request.uri.getScheme())) {
+                final long length = new File(request.uri.getPath()).length();
+                return length > 0 ? length : JobProgress.UNKNOWN;
+            }
+            return JobProgress.UNKNOWN;
+        } else if (request.data != null) {
+            return request.data.length;
+        }
+        return JobProgress.UNKNOWN;
+    }
+
+    /**
+     * Estimates the number of entries in a source that was not counted beforehand from how
+     * far into the source the entries read so far reach.
+     *
+     * @return the estimate, or -1 if the size of the source is not known yet
+     */
+    private int estimateTotalCount(long totalBytes) {
+        final CountingInputStream source = mCountingSource;
+        if (totalBytes <= 0 || source == null || source.getCount() == 0) {
+            return -1;
         }
+        final long estimate = mCurrentCount * totalBytes / source.getCount();
+        return (int) Math.max(mCurrentCount, Math.min(estimate, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public void onBatchCommitted(int committedEntryCount) {
+        if (mCheckpoint == null) {
+            return;
+        }
+        // Resume from the last chunk that starts at or before the first uncommitted entry
+        long[] start = null;
+        synchronized (mChunkStarts) {
+            while (!mChunkStarts.isEmpty() && mChunkStarts.peekFirst()[1] <= committedEntryCount) {
+                start = mChunkStarts.pollFirst();
+            }
+            if (start != null) {
+                mChunkStarts.addFirst(start);
+            }
+        }
+        if (start == null) {
+            return;
+        }
+        final List<Integer> failedEntries = new ArrayList<Integer>(mPreviouslyFailedEntries);
+        failedEntries.addAll(mCommitter.getFailedEntryIndexes());
+        final VCardCacheFile cacheFile = mImportRequest.cacheFile;
+        mCheckpoint.update(committedEntryCount, start[0], (int) start[1],
+                mPreviouslyCreatedCount + mCommitter.getCreatedUris().size(), failedEntries,
+                cacheFile == null || cacheFile.isFinished());
     }
 
     @Override
@@ -97,6 +233,11 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         return VCardService.TYPE_IMPORT;
     }
 
+    @Override
+    public JobProgress getProgress() {
+        return mProgress;
+    }
+
     @Override
     public void run() {
         // ExecutorService ignores RuntimeException, so we need to show it here.
@@ -113,6 +254,10 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             Log.e(LOG_TAG, "RuntimeException thrown during import", e);
             throw e;
         } finally {
+            if (mCheckpoint != null) {
+                mCheckpoint.delete();
+            }
+            deleteSpooledPhotos();
             synchronized (this) {
                 mDone = true;
             }
@@ -128,10 +273,8 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         }
         final int[] possibleVCardVersions;
         if (request.vcardVersion == ImportVCardActivity.VCARD_VERSION_AUTO_DETECT) {
-            /**
-             * Note: this code assumes that a given Uri is able to be opened more than once,
-             * which may not be true in certain conditions.
-             */
+            // Each chunk is kept in memory while it is parsed, so the source is read only once
+            // even when a chunk is parsed with both versions.
             possibleVCardVersions = new int[] {
                     ImportVCardActivity.VCARD_VERSION_V21,
                     ImportVCardActivity.VCARD_VERSION_V30
@@ -143,44 +286,24 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         }
 
         final Uri uri = request.uri;
-        final Account account = request.account;
-        final int estimatedVCardType = request.estimatedVCardType;
-        final String estimatedCharset = request.estimatedCharset;
         final int entryCount = request.entryCount;
         mTotalCount += entryCount;
 
-        final VCardEntryConstructor constructor =
-                new VCardEntryConstructor(estimatedVCardType, account, estimatedCharset);
-        final VCardEntryCommitter committer = new VCardEntryCommitter(mResolver);
-        constructor.addEntryHandler(committer);
-        constructor.addEntryHandler(this);
-
-        InputStream is = null;
-        boolean successful = false;
-        try {
-            if (uri != null) {
-                Log.i(LOG_TAG, "start importing one vCard (Uri: " + uri + ")");
-                is = mResolver.openInputStream(uri);
-            } else if (request.data != null){
-                Log.i(LOG_TAG, "start importing one vCard (byte[])");
-                is = new ByteArrayInputStream(request.data);
-            }
-
-            if (is != null) {
-                successful = readOneVCard(is, estimatedVCardType, estimatedCharset, constructor,
-                        possibleVCardVersions);
-            }
-        } catch (IOException e) {
-            successful = false;
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (Exception e) {
-                    // ignore
-                }
-            }
+        final BatchingVCardEntryCommitter committer =
+                new BatchingVCardEntryCommitter(mResolver, mService.getCommitExecutor());
+        committer.setFirstEntryIndex(mFirstEntryIndex);
+        committer.setCommitListener(this);
+        mCommitter = committer;
+        final List<VCardEntryHandler> handlers = new ArrayList<VCardEntryHandler>();
+        if (request.duplicatePolicy == ImportRequest.DUPLICATES_INSERT) {
+            handlers.add(committer);
+        } else {
+            handlers.add(new DuplicateContactFilter(mResolver, request.account,
+                    request.duplicatePolicy, committer));
         }
+        handlers.add(this);
+
+        final boolean successful = readChunks(handlers, possibleVCardVersions);
 
         mService.handleFinishImportNotification(mJobId, successful);
 
@@ -209,72 +332,293 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         } else {
             Log.w(LOG_TAG, "Failed to read one vCard file: " + uri);
             mFailedUris.add(uri);
+            if (!isCancelled() && mListener != null) {
+                // Replaces the notification that the import will start
+                mListener.onImportFailed(mImportRequest, mJobId,
+                        mService.getString(mFailureReason));
+            }
+        }
+    }
+
+    /**
+     * Opens the source of the request. Each call returns a new stream from the start.
+     */
+    private InputStream openSource() throws IOException {
+        final ImportRequest request = mImportRequest;
+        if (request.cacheFile != null) {
+            Log.i(LOG_TAG, "start importing one vCard (streaming from " + request.uri + ")");
+            return request.cacheFile.openInputStream();
+        } else if (request.uri != null) {
+            Log.i(LOG_TAG, "start importing one vCard (Uri: " + request.uri + ")");
+            return mResolver.openInputStream(request.uri);
+        } else if (request.data != null) {
+            Log.i(LOG_TAG, "start importing one vCard (byte[])");
+            return new ByteArrayInputStream(request.data);
         }
+        return null;
     }
 
-    private boolean readOneVCard(InputStream is, int vcardType, String charset,
-            final VCardInterpreter interpreter,
+    /**
+     * Reads the source in chunks of whole entries, parses the chunks on the parse executor and
+     * hands the entries of each chunk, in the order of the source, to the given handlers.
+     */
+    private boolean readChunks(final List<VCardEntryHandler> handlers,
             final int[] possibleVCardVersions) {
+        final ArrayDeque<Chunk> parsing = new ArrayDeque<Chunk>();
+        VCardChunkReader reader = null;
         boolean successful = false;
-        final int length = possibleVCardVersions.length;
-        for (int i = 0; i < length; i++) {
-            final int vcardVersion = possibleVCardVersions[i];
-            try {
-                if (i > 0 && (interpreter instanceof VCardEntryConstructor)) {
-                    // Let the object clean up internal temporary objects,
-                    ((VCardEntryConstructor) interpreter).clear();
+        for (VCardEntryHandler handler : handlers) {
+            handler.onStart();
+        }
+        mFailureReason = R.string.fail_reason_io_error;
+        try {
+            final InputStream source = openSource();
+            if (source == null) {
+                return false;
+            }
+            mCountingSource = new CountingInputStream(source);
+            final long resumeOffset = mCheckpoint == null ? 0 : mCheckpoint.getResumeOffset();
+            mNextEntryIndex = mCheckpoint == null ? 0 : mCheckpoint.getResumeEntryIndex();
+            if (resumeOffset > 0) {
+                Log.i(LOG_TAG, String.format("Resuming import (id: %d) after %d entries",
+                        mJobId, mFirstEntryIndex));
+                skipFully(mCountingSource, resumeOffset);
+            }
+            reader = new VCardChunkReader(mCountingSource, ENTRIES_PER_CHUNK, BYTES_PER_CHUNK);
+            // Photos left behind by a job with the same id in a process that was killed
+            deleteSpooledPhotos();
+            reader.setPhotoSpoolDirectory(mPhotoDirectory, PHOTO_SPOOL_THRESHOLD);
+            mDetectedVCardVersion = possibleVCardVersions[0];
+
+            byte[] chunk;
+            long offset = resumeOffset;
+            while (!isCancelled() && (chunk = reader.readChunk()) != null) {
+                parsing.add(new Chunk(offset, mParseExecutor.submit(new ChunkParser(
+                        chunk, reader.getSpooledPhotos(), possibleVCardVersions))));
+                offset = resumeOffset + reader.getPosition();
+                if (parsing.size() >= MAX_CHUNKS_IN_FLIGHT) {
+                    deliver(parsing.poll(), handlers);
+                }
+            }
+            while (!isCancelled() && !parsing.isEmpty()) {
+                deliver(parsing.poll(), handlers);
+            }
+            successful = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "IOException was emitted: " + e.getMessage());
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Parse executor is shut down: " + e);
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Interrupted while waiting for a chunk to be parsed");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logParseFailure(e.getCause());
+            mFailureReason = getFailureReason(e.getCause());
+        } finally {
+            for (Chunk pending : parsing) {
+                pending.entries.cancel(false);
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
                 }
+            }
+            for (VCardEntryHandler handler : handlers) {
+                handler.onEnd();
+            }
+        }
+        return successful;
+    }
 
-                // We need synchronized block here,
-                // since we need to handle mCanceled and mVCardParser at once.
-                // In the worst case, a user may call cancel() just before creating
-                // mVCardParser.
-                synchronized (this) {
-                    mVCardParser = (vcardVersion == ImportVCardActivity.VCARD_VERSION_V30 ?
-                            new VCardParser_V30(vcardType) :
-                                new VCardParser_V21(vcardType));
-                    if (isCancelled()) {
-                        Log.i(LOG_TAG, "ImportProcessor already recieves cancel request, so " +
-                                "send cancel request to vCard parser too.");
-                        mVCardParser.cancel();
+    private void deliver(Chunk chunk, List<VCardEntryHandler> handlers)
+            throws InterruptedException, ExecutionException {
+        final List<VCardEntry> entries = chunk.entries.get();
+        synchronized (mChunkStarts) {
+            mChunkStarts.addLast(new long[] { chunk.offset, mNextEntryIndex });
+        }
+        for (VCardEntry entry : entries) {
+            // Skip the entries committed before the job was resumed
+            if (mNextEntryIndex++ < mFirstEntryIndex) {
+                continue;
+            }
+            for (VCardEntryHandler handler : handlers) {
+                handler.onEntryCreated(entry);
+            }
+        }
+    }
+
+    private void deleteSpooledPhotos() {
+        final File[] files = mPhotoDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mPhotoDirectory.delete();
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped > 0) {
+                count -= skipped;
+            } else if (in.read() != -1) {
+                count--;
+            } else {
+                throw new IOException("Source is shorter than the saved position");
+            }
+        }
+    }
+
+    private void logParseFailure(Throwable e) {
+        if (e instanceof VCardNestedException) {
+            // This exception should not be thrown here. We should instead handle it
+            // in the preprocessing session in ImportVCardActivity, as we don't try
+            // to detect the type of given vCard here.
+            //
+            // TODO: Handle this case appropriately, which should mean we have to have
+            // code trying to auto-detect the type of given vCard twice (both in
+            // ImportVCardActivity and ImportVCardService).
+            Log.e(LOG_TAG, "Nested Exception is found.");
+        } else if (e instanceof VCardVersionException) {
+            Log.e(LOG_TAG, "Appropriate version for this vCard is not found.");
+        } else if (e instanceof IOException) {
+            Log.e(LOG_TAG, "IOException was emitted: " + e.getMessage());
+        } else if (e instanceof RuntimeException) {
+            // ExecutorService swallowed it, so rethrow it for run() to report
+            throw (RuntimeException) e;
+        } else {
+            Log.e(LOG_TAG, String.valueOf(e));
+        }
+    }
+
+    /**
+     * Returns the resource id of the reason shown to the user for a chunk that failed to parse.
+     */
+    /* package */ static int getFailureReason(Throwable e) {
+        return e instanceof VCardException ? R.string.fail_reason_not_supported
+                : R.string.fail_reason_io_error;
+    }
+
+    /**
+     * A chunk of the source being parsed.
+     */
+    private static class Chunk {
+        /** Position of the chunk in the source. */
+        final long offset;
+        final Future<List<VCardEntry>> entries;
+
+        Chunk(long offset, Future<List<VCardEntry>> entries) {
+            this.offset = offset;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Parses one chunk into entries, trying each possible version in turn, and adds the photos
+     * spooled from the chunk back to their entries.
+     */
+    private class ChunkParser implements Callable<List<VCardEntry>> {
+        private final byte[] mChunk;
+        private final List<VCardChunkReader.SpooledPhoto> mPhotos;
+        private final int[] mPossibleVCardVersions;
+
+        ChunkParser(byte[] chunk, List<VCardChunkReader.SpooledPhoto> photos,
+                int[] possibleVCardVersions) {
+            mChunk = chunk;
+            mPhotos = photos;
+            mPossibleVCardVersions = possibleVCardVersions;
+        }
+
+        @Override
+        public List<VCardEntry> call() throws IOException, VCardException {
+            try {
+                final List<VCardEntry> entries = parse();
+                for (VCardChunkReader.SpooledPhoto photo : mPhotos) {
+                    // The entry is missing if the chunk ends with an incomplete one
+                    if (photo.entry < entries.size() && !isCancelled()) {
+                        addPhoto(entries.get(photo.entry), photo.file);
                     }
                 }
-                mVCardParser.parse(is, interpreter);
+                return entries;
+            } finally {
+                for (VCardChunkReader.SpooledPhoto photo : mPhotos) {
+                    photo.file.delete();
+                }
+            }
+        }
 
-                successful = true;
-                break;
+        private void addPhoto(VCardEntry entry, File file) {
+            try {
+                if (!SpooledPhotoScaler.addPhoto(entry, file,
+                        SpooledPhotoScaler.DEFAULT_MAX_DIMENSION)) {
+                    Log.w(LOG_TAG, "Dropped a photo that cannot be decoded");
+                }
             } catch (IOException e) {
-                Log.e(LOG_TAG, "IOException was emitted: " + e.getMessage());
-            } catch (VCardNestedException e) {
-                // This exception should not be thrown here. We should instead handle it
-                // in the preprocessing session in ImportVCardActivity, as we don't try
-                // to detect the type of given vCard here.
-                //
-                // TODO: Handle this case appropriately, which should mean we have to have
-                // code trying to auto-detect the type of given vCard twice (both in
-                // ImportVCardActivity and ImportVCardService).
-                Log.e(LOG_TAG, "Nested Exception is found.");
-            } catch (VCardNotSupportedException e) {
-                Log.e(LOG_TAG, e.toString());
-            } catch (VCardVersionException e) {
-                if (i == length - 1) {
-                    Log.e(LOG_TAG, "Appropriate version for this vCard is not found.");
-                } else {
-                    // We'll try the other (v30) version.
+                Log.w(LOG_TAG, "Dropped a photo that cannot be read: " + e);
+            }
+        }
+
+        private List<VCardEntry> parse() throws IOException, VCardException {
+            final ImportRequest request = mImportRequest;
+            final List<VCardEntry> entries = new ArrayList<VCardEntry>();
+            final VCardEntryConstructor constructor = new VCardEntryConstructor(
+                    request.estimatedVCardType, request.account, request.estimatedCharset);
+            constructor.addEntryHandler(new VCardEntryHandler() {
+                @Override
+                public void onStart() {
                 }
-            } catch (VCardException e) {
-                Log.e(LOG_TAG, e.toString());
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
+
+                @Override
+                public void onEntryCreated(VCardEntry entry) {
+                    entries.add(entry);
+                }
+
+                @Override
+                public void onEnd() {
+                }
+            });
+
+            // Start with the version that worked for the previous chunks
+            final int firstVersion = mDetectedVCardVersion;
+            final int length = mPossibleVCardVersions.length;
+            for (int i = -1; i < length; i++) {
+                final int vcardVersion = i < 0 ? firstVersion : mPossibleVCardVersions[i];
+                if (i >= 0 && vcardVersion == firstVersion) {
+                    continue;
+                }
+                entries.clear();
+                constructor.clear();
+                final VCardParser parser = vcardVersion == ImportVCardActivity.VCARD_VERSION_V30
+                        ? new VCardParser_V30(request.estimatedVCardType)
+                        : new VCardParser_V21(request.estimatedVCardType);
+                // We need synchronized block here, since we need to handle mCanceled and
+                // mVCardParsers at once. In the worst case, a user may call cancel() just
+                // before the parser is registered.
+                synchronized (ImportProcessor.this) {
+                    if (isCancelled()) {
+                        return entries;
+                    }
+                    mVCardParsers.add(parser);
+                }
+                try {
+                    parser.parse(new ByteArrayInputStream(mChunk), constructor);
+                    mDetectedVCardVersion = vcardVersion;
+                    return entries;
+                } catch (VCardVersionException e) {
+                    if (i == length - 1) {
+                        throw e;
+                    }
+                    // We'll try the other version.
+                } finally {
+                    synchronized (ImportProcessor.this) {
+                        mVCardParsers.remove(parser);
                     }
                 }
             }
+            throw new VCardVersionException("No version to try");
         }
-
-        return successful;
     }
 
     @Override
@@ -284,10 +628,8 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             return false;
         }
         mCanceled = true;
-        synchronized (this) {
-            if (mVCardParser != null) {
-                mVCardParser.cancel();
-            }
+        for (VCardParser parser : mVCardParsers) {
+            parser.cancel();
         }
         return true;
     }
@@ -302,4 +644,44 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     public synchronized boolean isDone() {
         return mDone;
     }
+
+    /**
+     * Counts the bytes the parser has consumed, for estimating progress.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
 }
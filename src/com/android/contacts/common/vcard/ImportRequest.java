@@ -95,10 +95,56 @@ public class ImportRequest {
      */
     public final int entryCount;
 
+    /**
+     * Value of {@link #entryCount} when the source has not been counted, e.g. for a streaming
+     * import. Progress is then estimated from the position in the source.
+     */
+    public static final int ENTRY_COUNT_UNKNOWN = -1;
+
+    /**
+     * The local copy of {@link #uri} for a streaming import, which may still be being written
+     * while the import runs. Null if {@link #uri} was copied completely before the request was
+     * made.
+     */
+    public final VCardCacheFile cacheFile;
+
+    /** Entries are imported whether or not the account has the same contact already. */
+    public static final int DUPLICATES_INSERT = 0;
+    /** Entries that match a contact of the account are not imported. */
+    public static final int DUPLICATES_SKIP = 1;
+    /** Entries that match a contact of the account are joined with it. */
+    public static final int DUPLICATES_MERGE = 2;
+
+    /**
+     * What to do with entries that match a contact already in {@link #account}, one of
+     * {@link #DUPLICATES_INSERT}, {@link #DUPLICATES_SKIP} or {@link #DUPLICATES_MERGE}.
+     *
+     * @see DuplicateContactFilter
+     */
+    public final int duplicatePolicy;
+
     public ImportRequest(Account account,
             byte[] data, Uri uri, String displayName, int estimatedType, String estimatedCharset,
             int vcardVersion, int entryCount) {
+        this(account, data, uri, null, displayName, estimatedType, estimatedCharset,
+                vcardVersion, entryCount, DUPLICATES_INSERT);
+    }
+
+    /**
+     * Creates a request for a streaming import from the given cache file.
+     */
+    public ImportRequest(Account account, VCardCacheFile cacheFile, String displayName,
+            int estimatedType, String estimatedCharset, int vcardVersion) {
+        this(account, null, Uri.fromFile(cacheFile.getFile()), cacheFile, displayName,
+                estimatedType, estimatedCharset, vcardVersion, ENTRY_COUNT_UNKNOWN,
+                DUPLICATES_INSERT);
+    }
+
+    private ImportRequest(Account account, byte[] data, Uri uri, VCardCacheFile cacheFile,
+            String displayName, int estimatedType, String estimatedCharset, int vcardVersion,
+            int entryCount, int duplicatePolicy) {
         this.account = account;
+        this.cacheFile = cacheFile;
         this.data = data;
         this.uri = uri;
         this.displayName = displayName;
@@ -106,5 +152,22 @@ public class ImportRequest {
         this.estimatedCharset = estimatedCharset;
         this.vcardVersion = vcardVersion;
         this.entryCount = entryCount;
+        this.duplicatePolicy = duplicatePolicy;
+    }
+
+    /**
+     * Returns a copy of this request that reads the given local copy of {@link #data} instead.
+     */
+    public ImportRequest withLocalCopy(Uri localUri) {
+        return new ImportRequest(account, null, localUri, null, displayName, estimatedVCardType,
+                estimatedCharset, vcardVersion, entryCount, duplicatePolicy);
+    }
+
+    /**
+     * Returns a copy of this request with the given {@link #duplicatePolicy}.
+     */
+    public ImportRequest withDuplicatePolicy(int policy) {
+        return new ImportRequest(account, data, uri, cacheFile, displayName, estimatedVCardType,
+                estimatedCharset, vcardVersion, entryCount, policy);
     }
 }
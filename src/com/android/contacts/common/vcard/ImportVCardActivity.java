@@ -62,10 +62,6 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -96,6 +92,13 @@ public class ImportVCardActivity extends Activity {
     /* package */ static final String VCARD_VERSION_ARRAY = "vcard_version";
     /* package */ static final String ENTRY_COUNT_ARRAY = "entry_count";
 
+    /**
+     * Intent extra with what to do with entries that match a contact already in the account,
+     * one of {@link ImportRequest#DUPLICATES_INSERT}, {@link ImportRequest#DUPLICATES_SKIP}
+     * or {@link ImportRequest#DUPLICATES_MERGE}. Entries are inserted by default.
+     */
+    public static final String EXTRA_DUPLICATE_POLICY = "duplicate_policy";
+
     /* package */ final static int VCARD_VERSION_AUTO_DETECT = 0;
     /* package */ final static int VCARD_VERSION_V21 = 1;
     /* package */ final static int VCARD_VERSION_V30 = 2;
@@ -112,6 +115,7 @@ public class ImportVCardActivity extends Activity {
     private AccountSelectionUtil.AccountSelectedListener mAccountSelectionListener;
 
     private AccountWithDataSet mAccount;
+    private int mDuplicatePolicy = ImportRequest.DUPLICATES_INSERT;
 
     private ProgressDialog mProgressDialogForScanVCard;
     private ProgressDialog mProgressDialogForCachingVCard;
@@ -191,6 +195,26 @@ public class ImportVCardActivity extends Activity {
             mService.handleImportRequest(requests, mListener);
         }
 
+        /**
+         * @return false if the service rejected the request
+         */
+        public boolean sendImportRequest(final ImportRequest request, int sequence) {
+            Log.i(LOG_TAG, "Send a streaming import request");
+            return mService.handleImportRequest(request, sequence, mListener);
+        }
+
+        /**
+         * Keeps the service from stopping between streaming import requests, until
+         * {@link #finishStreamingImports} is called.
+         */
+        public void startStreamingImports() {
+            mService.startStreamingImports();
+        }
+
+        public void finishStreamingImports() {
+            mService.finishStreamingImports();
+        }
+
         @Override
         public void onServiceConnected(ComponentName name, IBinder binder) {
             mService = ((VCardService.MyBinder) binder).getService();
@@ -252,6 +276,7 @@ public class ImportVCardActivity extends Activity {
             }
 
             mWakeLock.acquire();
+            boolean streaming = false;
             try {
                 if (mCanceled == true) {
                     Log.i(LOG_TAG, "vCard cache operation is canceled.");
@@ -262,11 +287,8 @@ public class ImportVCardActivity extends Activity {
                 // Uris given from caller applications may not be opened twice: consider when
                 // it is not from local storage (e.g. "file:///...") but from some special
                 // provider (e.g. "content://...").
-                // Thus we have to once copy the content of Uri into local storage, and read
-                // it after it.
-                //
-                // We may be able to read content of each vCard file during copying them
-                // to local storage, but currently vCard code does not allow us to do so.
+                // Thus we have to once copy the content of Uri into local storage. The import
+                // reads the local copy while it is being written, see VCardCacheFile.
                 int cache_index = 0;
                 ArrayList<ImportRequest> requests = new ArrayList<ImportRequest>();
                 if (mSource != null) {
@@ -280,6 +302,9 @@ public class ImportVCardActivity extends Activity {
                 } else {
                     final ContentResolver resolver =
                             ImportVCardActivity.this.getContentResolver();
+                    int sequence = 0;
+                    mConnection.startStreamingImports();
+                    streaming = true;
                     for (Uri sourceUri : mSourceUris) {
                         String filename = null;
                         // Note: caches are removed by VCardService.
@@ -295,23 +320,16 @@ public class ImportVCardActivity extends Activity {
                                 cache_index++;
                             }
                         }
-                        final Uri localDataUri = copyTo(sourceUri, filename);
-                        if (mCanceled) {
-                            Log.i(LOG_TAG, "vCard cache operation is canceled.");
-                            break;
-                        }
-                        if (localDataUri == null) {
-                            Log.w(LOG_TAG, "destUri is null");
-                            break;
-                        }
 
                         String displayName = null;
+                        long size = -1;
                         Cursor cursor = null;
-                        // Try to get a display name from the given Uri. If it fails, we just
-                        // pick up the last part of the Uri.
+                        // Try to get a display name and size from the given Uri. If it fails,
+                        // we just pick up the last part of the Uri.
                         try {
                             cursor = resolver.query(sourceUri,
-                                    new String[] { OpenableColumns.DISPLAY_NAME },
+                                    new String[] {
+                                            OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE },
                                     null, null, null);
                             if (cursor != null && cursor.getCount() > 0 && cursor.moveToFirst()) {
                                 if (cursor.getCount() > 1) {
@@ -322,6 +340,10 @@ public class ImportVCardActivity extends Activity {
                                 if (index >= 0) {
                                     displayName = cursor.getString(index);
                                 }
+                                index = cursor.getColumnIndex(OpenableColumns.SIZE);
+                                if (index >= 0 && !cursor.isNull(index)) {
+                                    size = cursor.getLong(index);
+                                }
                             }
                         } finally {
                             if (cursor != null) {
@@ -332,33 +354,19 @@ public class ImportVCardActivity extends Activity {
                             displayName = sourceUri.getLastPathSegment();
                         }
 
-                        final ImportRequest request;
-                        try {
-                            request = constructImportRequest(null, localDataUri, displayName);
-                        } catch (VCardException e) {
-                            Log.e(LOG_TAG, "Maybe the file is in wrong format", e);
-                            showFailureNotification(R.string.fail_reason_not_supported);
-                            return;
-                        } catch (IOException e) {
-                            Log.e(LOG_TAG, "Unexpected IOException", e);
-                            showFailureNotification(R.string.fail_reason_io_error);
-                            return;
-                        }
-                        if (mCanceled) {
-                            Log.i(LOG_TAG, "vCard cache operation is canceled.");
-                            return;
+                        if (!streamTo(sourceUri, filename, displayName, size, sequence)) {
+                            break;
                         }
-                        requests.add(request);
+                        sequence++;
                     }
                 }
                 if (!requests.isEmpty()) {
                     mConnection.sendImportRequest(requests);
-                } else {
+                } else if (mSource != null) {
                     Log.w(LOG_TAG, "Empty import requests. Ignore it.");
                 }
             } catch (OutOfMemoryError e) {
                 Log.e(LOG_TAG, "OutOfMemoryError occured during caching vCard");
-                System.gc();
                 runOnUiThread(new DialogDisplayer(
                         getString(R.string.fail_reason_low_memory_during_import)));
             } catch (IOException e) {
@@ -367,6 +375,9 @@ public class ImportVCardActivity extends Activity {
                         getString(R.string.fail_reason_io_error)));
             } finally {
                 Log.i(LOG_TAG, "Finished caching vCard.");
+                if (streaming) {
+                    mConnection.finishStreamingImports();
+                }
                 mWakeLock.release();
                 unbindService(mConnection);
                 mProgressDialogForCachingVCard.dismiss();
@@ -376,51 +387,71 @@ public class ImportVCardActivity extends Activity {
         }
 
         /**
-         * Copy the content of sourceUri to the destination.
+         * Copies the content of sourceUri to the given cache file, and asks the service to
+         * import it as soon as the version and charset have been guessed from the first bytes,
+         * so that entries are imported while the rest is still being copied.
+         *
+         * @param expectedSize the size of the source in bytes, or -1 if it is not known
+         * @return false if the copy was canceled or the service rejected the request
          */
-        private Uri copyTo(final Uri sourceUri, String filename) throws IOException {
-            Log.i(LOG_TAG, String.format("Copy a Uri to app local storage (%s -> %s)",
+        private boolean streamTo(final Uri sourceUri, String filename, String displayName,
+                long expectedSize, int sequence) throws IOException {
+            Log.i(LOG_TAG, String.format("Stream a Uri to app local storage (%s -> %s)",
                     sourceUri, filename));
             final Context context = ImportVCardActivity.this;
-            final ContentResolver resolver = context.getContentResolver();
-            ReadableByteChannel inputChannel = null;
-            WritableByteChannel outputChannel = null;
-            Uri destUri = null;
+            final InputStream is = context.getContentResolver().openInputStream(sourceUri);
+            if (is == null) {
+                throw new IOException("Cannot open " + sourceUri);
+            }
+            final VCardCacheFile cacheFile;
             try {
-                inputChannel = Channels.newChannel(resolver.openInputStream(sourceUri));
-                destUri = Uri.parse(context.getFileStreamPath(filename).toURI().toString());
-                outputChannel = context.openFileOutput(filename, Context.MODE_PRIVATE).getChannel();
-                final ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
-                while (inputChannel.read(buffer) != -1) {
+                cacheFile = new VCardCacheFile(context.getFileStreamPath(filename),
+                        expectedSize);
+            } catch (IOException e) {
+                is.close();
+                throw e;
+            }
+            boolean finished = false;
+            try {
+                final byte[] buffer = new byte[VCardHeaderSniffer.HEADER_SIZE];
+                int headerLength = 0;
+                int read;
+                while (headerLength < buffer.length
+                        && (read = is.read(buffer, headerLength, buffer.length - headerLength))
+                                != -1) {
+                    headerLength += read;
+                }
+                cacheFile.write(buffer, 0, headerLength);
+
+                final VCardHeaderSniffer sniffer = new VCardHeaderSniffer(buffer, headerLength);
+                final ImportRequest request = new ImportRequest(mAccount, cacheFile,
+                        displayName, sniffer.getEstimatedType(),
+                        sniffer.getEstimatedCharset(), sniffer.getVCardVersion()).withDuplicatePolicy(mDuplicatePolicy);
+                if (mCanceled || !mConnection.sendImportRequest(request, sequence)) {
+                    return false;
+                }
+
+                while ((read = is.read(buffer)) != -1) {
                     if (mCanceled) {
                         Log.d(LOG_TAG, "Canceled during caching " + sourceUri);
-                        return null;
+                        return false;
                     }
-                    buffer.flip();
-                    outputChannel.write(buffer);
-                    buffer.compact();
-                }
-                buffer.flip();
-                while (buffer.hasRemaining()) {
-                    outputChannel.write(buffer);
+                    cacheFile.write(buffer, 0, read);
                 }
+                cacheFile.finish();
+                finished = true;
+                return true;
             } finally {
-                if (inputChannel != null) {
-                    try {
-                        inputChannel.close();
-                    } catch (IOException e) {
-                        Log.w(LOG_TAG, "Failed to close inputChannel.");
-                    }
+                if (!finished) {
+                    // Stops the import that is reading the file
+                    cacheFile.fail();
                 }
-                if (outputChannel != null) {
-                    try {
-                        outputChannel.close();
-                    } catch(IOException e) {
-                        Log.w(LOG_TAG, "Failed to close outputChannel");
-                    }
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close the source stream.");
                 }
             }
-            return destUri;
         }
 
         /**
@@ -496,7 +527,7 @@ public class ImportVCardActivity extends Activity {
                     data, localDataUri, displayName,
                     detector.getEstimatedType(),
                     detector.getEstimatedCharset(),
-                    vcardVersion, counter.getCount());
+                    vcardVersion, counter.getCount()).withDuplicatePolicy(mDuplicatePolicy);
         }
 
         public Uri[] getSourceUris() {
@@ -834,6 +865,7 @@ public class ImportVCardActivity extends Activity {
             accountName = intent.getStringExtra(SelectAccountActivity.ACCOUNT_NAME);
             accountType = intent.getStringExtra(SelectAccountActivity.ACCOUNT_TYPE);
             dataSet = intent.getStringExtra(SelectAccountActivity.DATA_SET);
+            mDuplicatePolicy = getDuplicatePolicy(intent);
         } else {
             Log.e(LOG_TAG, "intent does not exist");
         }
@@ -875,6 +907,24 @@ public class ImportVCardActivity extends Activity {
         }
     }
 
+    /**
+     * Returns the duplicate policy requested by the intent, or
+     * {@link ImportRequest#DUPLICATES_INSERT} if it requests none or an unknown one.
+     */
+    /* package */ static int getDuplicatePolicy(Intent intent) {
+        final int policy = intent.getIntExtra(EXTRA_DUPLICATE_POLICY,
+                ImportRequest.DUPLICATES_INSERT);
+        switch (policy) {
+            case ImportRequest.DUPLICATES_INSERT:
+            case ImportRequest.DUPLICATES_SKIP:
+            case ImportRequest.DUPLICATES_MERGE:
+                return policy;
+            default:
+                Log.w(LOG_TAG, "Unknown duplicate policy: " + policy);
+                return ImportRequest.DUPLICATES_INSERT;
+        }
+    }
+
     private void startImport() {
         Intent intent = getIntent();
         // Handle inbound files
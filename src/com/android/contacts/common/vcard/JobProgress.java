@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+/**
+ * The progress of one import/export job: how many entries and bytes it has processed, how fast
+ * it goes and how long it has left.
+ * <p>
+ * Rates are exponentially weighted moving averages of samples taken at least
+ * {@link #MIN_SAMPLE_INTERVAL_MILLIS} apart, so that the estimates follow a job that slows down
+ * (e.g. when it reaches entries with photos) without jumping with every entry. Times are passed
+ * in, in the {@link android.os.SystemClock#elapsedRealtime()} time base.
+ * <p>
+ * The processor of the job updates its instance, while {@link VCardService} hands out copies.
+ */
+public class JobProgress {
+    /** Value of the totals, rates and estimates that are not known. */
+    public static final int UNKNOWN = -1;
+
+    /** Shortest time the progress of a job is shown for before it is updated. */
+    public static final long NOTIFICATION_INTERVAL_MILLIS = 1000;
+
+    /** Shortest time a rate sample covers. */
+    /* package */ static final long MIN_SAMPLE_INTERVAL_MILLIS = 500;
+
+    /** Weight of the latest sample in the averaged rates. */
+    /* package */ static final double SMOOTHING_FACTOR = 0.3;
+
+    private final int mJobId;
+    private final int mType;
+
+    private int mTotalEntries = UNKNOWN;
+    private long mTotalBytes = UNKNOWN;
+    private int mEntries;
+    private long mBytes;
+
+    private double mEntriesPerSecond = UNKNOWN;
+    private double mBytesPerSecond = UNKNOWN;
+
+    /** Where the current rate sample started. */
+    private long mSampleTime = UNKNOWN;
+    private int mSampleEntries;
+    private long mSampleBytes;
+
+    private long mLastNotificationTime = UNKNOWN;
+
+    /**
+     * @param type {@link VCardService#TYPE_IMPORT} or {@link VCardService#TYPE_EXPORT}
+     */
+    public JobProgress(int jobId, int type) {
+        mJobId = jobId;
+        mType = type;
+    }
+
+    private JobProgress(JobProgress other) {
+        mJobId = other.mJobId;
+        mType = other.mType;
+        mTotalEntries = other.mTotalEntries;
+        mTotalBytes = other.mTotalBytes;
+        mEntries = other.mEntries;
+        mBytes = other.mBytes;
+        mEntriesPerSecond = other.mEntriesPerSecond;
+        mBytesPerSecond = other.mBytesPerSecond;
+        mSampleTime = other.mSampleTime;
+        mSampleEntries = other.mSampleEntries;
+        mSampleBytes = other.mSampleBytes;
+        mLastNotificationTime = other.mLastNotificationTime;
+    }
+
+    public int getJobId() {
+        return mJobId;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Sets how many entries and bytes the job processes in all, each of which may be
+     * {@link #UNKNOWN}. Imports only know an estimate of their entries, which changes as they go.
+     */
+    public synchronized void setTotals(int totalEntries, long totalBytes) {
+        mTotalEntries = totalEntries;
+        mTotalBytes = totalBytes;
+    }
+
+    /**
+     * Records how many entries and bytes the job has processed so far.
+     */
+    public synchronized void update(long now, int entries, long bytes) {
+        mEntries = entries;
+        mBytes = bytes;
+        if (mSampleTime == UNKNOWN) {
+            startSample(now);
+            return;
+        }
+        final long elapsed = now - mSampleTime;
+        if (elapsed < MIN_SAMPLE_INTERVAL_MILLIS) {
+            return;
+        }
+        mEntriesPerSecond = average(mEntriesPerSecond,
+                (mEntries - mSampleEntries) * 1000.0 / elapsed);
+        mBytesPerSecond = average(mBytesPerSecond, (mBytes - mSampleBytes) * 1000.0 / elapsed);
+        startSample(now);
+    }
+
+    private void startSample(long now) {
+        mSampleTime = now;
+        mSampleEntries = mEntries;
+        mSampleBytes = mBytes;
+    }
+
+    private static double average(double average, double sample) {
+        return average == UNKNOWN
+                ? sample : SMOOTHING_FACTOR * sample + (1 - SMOOTHING_FACTOR) * average;
+    }
+
+    /**
+     * Returns whether the progress should be shown to the user now. Returns true at most once
+     * per {@link #NOTIFICATION_INTERVAL_MILLIS}, so that a fast job does not flood the
+     * notification manager.
+     */
+    public synchronized boolean shouldNotify(long now) {
+        if (mLastNotificationTime != UNKNOWN
+                && now - mLastNotificationTime < NOTIFICATION_INTERVAL_MILLIS) {
+            return false;
+        }
+        mLastNotificationTime = now;
+        return true;
+    }
+
+    public synchronized int getTotalEntries() {
+        return mTotalEntries;
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized int getEntries() {
+        return mEntries;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the averaged number of entries processed per second, or {@link #UNKNOWN} until
+     * the job has run for {@link #MIN_SAMPLE_INTERVAL_MILLIS}
+     */
+    public synchronized double getEntriesPerSecond() {
+        return mEntriesPerSecond;
+    }
+
+    /**
+     * @return the averaged number of bytes processed per second, or {@link #UNKNOWN}
+     */
+    public synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Estimates how long the job has left from the entries it has left, or if their number is
+     * not known, from the bytes it has left.
+     *
+     * @return the estimate in milliseconds, or {@link #UNKNOWN}
+     */
+    public synchronized long getEstimatedRemainingMillis() {
+        if (mTotalEntries != UNKNOWN && mEntriesPerSecond > 0) {
+            return (long) (Math.max(0, mTotalEntries - mEntries) * 1000 / mEntriesPerSecond);
+        }
+        if (mTotalBytes != UNKNOWN && mBytesPerSecond > 0) {
+            return (long) (Math.max(0, mTotalBytes - mBytes) * 1000 / mBytesPerSecond);
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns a snapshot of this progress, which later updates do not change.
+     */
+    public synchronized JobProgress copy() {
+        return new JobProgress(this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("job %d: %d/%d entries, %d/%d bytes, %.1f entries/s, %d ms left",
+                mJobId, mEntries, mTotalEntries, mBytes, mTotalBytes, mEntriesPerSecond,
+                getEstimatedRemainingMillis());
+    }
+}
@@ -210,8 +210,8 @@ public class NfcImportVCardActivity extends Activity implements ServiceConnectio
     }
 
     @Override
-    public void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount,
-            int totalCount) {
+    public void onImportProgress(ImportRequest request, int jobId, VCardEntry entry,
+            JobProgress progress) {
         // do nothing
     }
 
@@ -239,11 +239,26 @@ public class NfcImportVCardActivity extends Activity implements ServiceConnectio
         // TODO: report failure
     }
 
+    @Override
+    public void onImportFailed(ImportRequest request, int jobId, String reason) {
+        if (isFinishing()) {
+            Log.i(TAG, "Late import failure -- ignoring");
+            return;
+        }
+        Log.w(TAG, "Import failed: " + reason);
+        finish();
+    }
+
     @Override
     public void onImportCanceled(ImportRequest request, int jobId) {
         // do nothing
     }
 
+    @Override
+    public void onImportResumed(ImportRequest request, int jobId, int committedCount) {
+        // do nothing
+    }
+
     @Override
     public void onExportProcessed(ExportRequest request, int jobId) {
         // do nothing
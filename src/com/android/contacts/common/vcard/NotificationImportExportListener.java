@@ -27,6 +27,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.ContactsContract.RawContacts;
+import android.text.format.DateUtils;
 import android.widget.Toast;
 
 import com.android.contacts.common.R;
@@ -45,12 +46,16 @@ public class NotificationImportExportListener implements VCardImportExportListen
     /* package */ static final String FAILURE_NOTIFICATION_TAG = "VCardServiceFailure";
 
     private final NotificationManager mNotificationManager;
-    private final Activity mContext;
+    private final Context mContext;
     private final Handler mHandler;
 
-    public NotificationImportExportListener(Activity activity) {
-        mContext = activity;
-        mNotificationManager = (NotificationManager) activity.getSystemService(
+    /**
+     * @param context the activity that made the requests, which is finished when they are
+     * complete, or the service for jobs it resumes on its own
+     */
+    public NotificationImportExportListener(Context context) {
+        mContext = context;
+        mNotificationManager = (NotificationManager) context.getSystemService(
                 Context.NOTIFICATION_SERVICE);
         mHandler = new Handler(this);
     }
@@ -90,12 +95,14 @@ public class NotificationImportExportListener implements VCardImportExportListen
     }
 
     @Override
-    public void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount,
-            int totalCount) {
+    public void onImportProgress(ImportRequest request, int jobId, VCardEntry entry,
+            JobProgress progress) {
         if (entry.isIgnorable()) {
             return;
         }
 
+        final int currentCount = progress.getEntries();
+        final int totalCount = progress.getTotalEntries();
         final String totalCountString = String.valueOf(totalCount);
         final String tickerText =
                 mContext.getString(R.string.progress_notifier_message,
@@ -107,7 +114,7 @@ public class NotificationImportExportListener implements VCardImportExportListen
 
         final Notification notification = constructProgressNotification(
                 mContext.getApplicationContext(), VCardService.TYPE_IMPORT, description, tickerText,
-                jobId, request.displayName, totalCount, currentCount);
+                jobId, request.displayName, totalCount, currentCount, progress);
         mNotificationManager.notify(DEFAULT_NOTIFICATION_TAG, jobId, notification);
     }
 
@@ -140,6 +147,15 @@ public class NotificationImportExportListener implements VCardImportExportListen
                 mContext.getString(R.string.vcard_import_request_rejected_message)).sendToTarget();
     }
 
+    @Override
+    public void onImportFailed(ImportRequest request, int jobId, String reason) {
+        final Notification notification =
+                NotificationImportExportListener.constructImportFailureNotification(mContext,
+                reason);
+        mNotificationManager.notify(NotificationImportExportListener.DEFAULT_NOTIFICATION_TAG,
+                jobId, notification);
+    }
+
     @Override
     public void onImportCanceled(ImportRequest request, int jobId) {
         final String description = mContext.getString(R.string.importing_vcard_canceled_title,
@@ -150,6 +166,17 @@ public class NotificationImportExportListener implements VCardImportExportListen
                 jobId, notification);
     }
 
+    @Override
+    public void onImportResumed(ImportRequest request, int jobId, int committedCount) {
+        final String displayName = request.displayName != null ? request.displayName
+                : mContext.getString(R.string.vcard_unknown_filename);
+        final String message = mContext.getString(R.string.vcard_import_resumed_message,
+                displayName, committedCount);
+        final Notification notification = constructProgressNotification(mContext,
+                VCardService.TYPE_IMPORT, message, message, jobId, displayName, -1, 0);
+        mNotificationManager.notify(DEFAULT_NOTIFICATION_TAG, jobId, notification);
+    }
+
     @Override
     public void onExportProcessed(ExportRequest request, int jobId) {
         final String displayName = request.destUri.getLastPathSegment();
@@ -196,6 +223,21 @@ public class NotificationImportExportListener implements VCardImportExportListen
     /* package */ static Notification constructProgressNotification(
             Context context, int type, String description, String tickerText,
             int jobId, String displayName, int totalCount, int currentCount) {
+        return constructProgressNotification(context, type, description, tickerText, jobId,
+                displayName, totalCount, currentCount, null);
+    }
+
+    /**
+     * Constructs a {@link Notification} showing the current status of import/export, with the
+     * speed of the job and the time it has left.
+     *
+     * @param progress the progress of the job, or null
+     * @see #constructProgressNotification(Context, int, String, String, int, String, int, int)
+     */
+    /* package */ static Notification constructProgressNotification(
+            Context context, int type, String description, String tickerText,
+            int jobId, String displayName, int totalCount, int currentCount,
+            JobProgress progress) {
         // Note: We cannot use extra values here (like setIntExtra()), as PendingIntent doesn't
         // preserve them across multiple Notifications. PendingIntent preserves the first extras
         // (when flag is not set), or update them when PendingIntent#getActivity() is called
@@ -226,9 +268,32 @@ public class NotificationImportExportListener implements VCardImportExportListen
             builder.setContentText(context.getString(R.string.percentage,
                     String.valueOf(currentCount * 100 / totalCount)));
         }
+        final String rate = progress == null ? null : describeRate(context, progress);
+        if (rate != null) {
+            builder.setSubText(rate);
+        }
         return builder.getNotification();
     }
 
+    /**
+     * Describes how fast the job goes and how long it has left, e.g. "120 contacts/s, 0:42 left".
+     *
+     * @return the description, or null while the job has not run long enough to tell
+     */
+    /* package */ static String describeRate(Context context, JobProgress progress) {
+        final double entriesPerSecond = progress.getEntriesPerSecond();
+        if (entriesPerSecond < 0) {
+            return null;
+        }
+        final int rate = (int) Math.round(entriesPerSecond);
+        final long remainingMillis = progress.getEstimatedRemainingMillis();
+        if (remainingMillis == JobProgress.UNKNOWN) {
+            return context.getString(R.string.vcard_progress_rate, rate);
+        }
+        return context.getString(R.string.vcard_progress_rate_and_time_left, rate,
+                DateUtils.formatElapsedTime(remainingMillis / DateUtils.SECOND_IN_MILLIS));
+    }
+
     /**
      * Constructs a Notification telling users the process is canceled.
      *
@@ -284,6 +349,8 @@ public class NotificationImportExportListener implements VCardImportExportListen
 
     @Override
     public void onComplete() {
-        mContext.finish();
+        if (mContext instanceof Activity) {
+            ((Activity) mContext).finish();
+        }
     }
 }
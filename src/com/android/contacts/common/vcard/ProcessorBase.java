@@ -39,6 +39,11 @@ public abstract class ProcessorBase implements RunnableFuture<Object> {
      */
     public abstract int getType();
 
+    /**
+     * @return the progress of the job, which the processor updates while it runs
+     */
+    public abstract JobProgress getProgress();
+
     @Override
     public abstract void run();
 
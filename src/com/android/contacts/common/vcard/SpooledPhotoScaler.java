@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.Base64InputStream;
+
+import com.android.contacts.common.util.BitmapUtil;
+import com.android.vcard.VCardConstants;
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardProperty;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a photo that {@link VCardChunkReader} spooled to a file at a size the contacts
+ * provider can use, and adds it to its entry.
+ *
+ * The photo is sampled down while it is decoded, so the full resolution image is never in
+ * memory, and it is committed as a JPEG no larger than the display photos of the provider.
+ */
+public class SpooledPhotoScaler {
+    /** Largest width or height of a photo once imported. */
+    public static final int DEFAULT_MAX_DIMENSION = 720;
+
+    private static final int JPEG_QUALITY = 90;
+
+    private SpooledPhotoScaler() {}
+
+    /**
+     * Adds the photo in the given file to the entry.
+     *
+     * @return false if the file does not hold an image the platform can decode
+     */
+    public static boolean addPhoto(VCardEntry entry, File file, int maxDimension)
+            throws IOException {
+        final byte[] photo = readScaled(file, maxDimension);
+        if (photo == null) {
+            return false;
+        }
+        final VCardProperty property = new VCardProperty();
+        property.setName(VCardConstants.PROPERTY_PHOTO);
+        property.addParameter(VCardConstants.PARAM_TYPE, "JPEG");
+        property.setValues("");
+        property.setByteValue(photo);
+        entry.addProperty(property);
+        return true;
+    }
+
+    /**
+     * Reads the base64 encoded image in the given file, scaled down so that neither side is
+     * larger than the given dimension, as a JPEG.
+     *
+     * @return the image, or null if it cannot be decoded
+     */
+    public static byte[] readScaled(File file, int maxDimension) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(file, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        final int largest = Math.max(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = BitmapUtil.findOptimalSampleSize(largest, maxDimension);
+        Bitmap bitmap = decode(file, options);
+        if (bitmap == null) {
+            return null;
+        }
+        try {
+            final float scale =
+                    (float) maxDimension / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale < 1) {
+                final Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                        Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                    bitmap = scaled;
+                }
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            return out.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static Bitmap decode(File file, BitmapFactory.Options options) throws IOException {
+        final InputStream in = new Base64InputStream(
+                new BufferedInputStream(new FileInputStream(file)), Base64.DEFAULT);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
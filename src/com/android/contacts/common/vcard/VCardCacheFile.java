@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A local copy of a vCard source that can be read while it is still being written, so that
+ * {@link ImportProcessor} can start importing entries while {@link ImportVCardActivity} is
+ * still copying the rest of the source.
+ *
+ * One thread writes with {@link #write}, then calls {@link #finish} or {@link #fail}. Streams
+ * from {@link #openInputStream} block when they catch up with the writer, and report the end
+ * of the file only once the copy is finished.
+ */
+public class VCardCacheFile {
+    private final File mFile;
+    private final long mExpectedSize;
+    private final OutputStream mOutputStream;
+
+    private long mWrittenBytes;
+    private boolean mFinished;
+    private boolean mFailed;
+
+    /**
+     * Creates the file, replacing any previous content.
+     *
+     * @param expectedSize the size of the source in bytes, or -1 if it is not known
+     */
+    public VCardCacheFile(File file, long expectedSize) throws IOException {
+        mFile = file;
+        mExpectedSize = expectedSize;
+        mOutputStream = new FileOutputStream(file);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        mOutputStream.write(buffer, offset, count);
+        synchronized (this) {
+            mWrittenBytes += count;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the copy as complete.
+     */
+    public void finish() throws IOException {
+        mOutputStream.close();
+        synchronized (this) {
+            mFinished = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the copy as failed or canceled. Readers get an {@link IOException}.
+     */
+    public void fail() {
+        try {
+            mOutputStream.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        synchronized (this) {
+            mFailed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns whether the copy is complete.
+     */
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Returns the total size of the source, as far as it is known: the size once the copy is
+     * finished, the expected size before, or -1.
+     */
+    public synchronized long getTotalSize() {
+        return mFinished ? mWrittenBytes : mExpectedSize;
+    }
+
+    /**
+     * Waits until more than {@code position} bytes have been written or the copy is finished.
+     *
+     * @return the number of bytes written so far
+     */
+    private synchronized long awaitBytesAfter(long position) throws IOException {
+        while (mWrittenBytes <= position && !mFinished && !mFailed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + mFile);
+            }
+        }
+        if (mFailed) {
+            throw new IOException("Copying to " + mFile + " failed");
+        }
+        return mWrittenBytes;
+    }
+
+    /**
+     * Opens a stream over the content written so far and still to be written.
+     */
+    public InputStream openInputStream() throws IOException {
+        return new FollowingInputStream(new FileInputStream(mFile));
+    }
+
+    private class FollowingInputStream extends InputStream {
+        private final InputStream mInputStream;
+        private long mPosition;
+
+        FollowingInputStream(InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            final long available = awaitBytesAfter(mPosition) - mPosition;
+            if (available <= 0) {
+                return -1;
+            }
+            final int read = mInputStream.read(buffer, offset, (int) Math.min(count, available));
+            if (read > 0) {
+                mPosition += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a vCard source into chunks of whole entries, so that the chunks can be parsed
+ * independently of each other.
+ *
+ * Chunks end after the END:VCARD line of a top level entry. Entries nested in a vCard 2.1
+ * AGENT property stay in the chunk of the entry that contains them.
+ *
+ * Optionally, base64 encoded PHOTO properties of top level entries that are larger than a
+ * threshold are written to files instead of the chunk, see {@link #setPhotoSpoolDirectory}.
+ * A photo that a desktop client exported at full resolution can be several megabytes, and the
+ * parser would otherwise hold it in memory more than once while decoding it.
+ */
+public class VCardChunkReader implements Closeable {
+    private static final byte[] BEGIN_VCARD = "BEGIN:VCARD".getBytes();
+    private static final byte[] END_VCARD = "END:VCARD".getBytes();
+
+    /** Matches the parameters of a base64 encoded property in vCard 2.1 and 3.0. */
+    private static final Pattern BASE64_PARAMETER =
+            Pattern.compile("(^|;)(ENCODING=)?(B|BASE64)(;|:|$)");
+
+    /**
+     * Length of the start of a line that is read before deciding whether the line is written
+     * to the chunk or spooled, so that long photo lines are never held in memory.
+     */
+    private static final int MAX_LINE_PEEK = 1024;
+
+    /**
+     * A photo that was written to a file instead of the chunk it was in.
+     */
+    public static class SpooledPhoto {
+        /** Index in the chunk of the top level entry the photo belongs to. */
+        public final int entry;
+        /** The base64 encoded value of the photo. */
+        public final File file;
+
+        SpooledPhoto(int entry, File file) {
+            this.entry = entry;
+            this.file = file;
+        }
+    }
+
+    private final InputStream mInputStream;
+    private final int mMaxEntriesPerChunk;
+    private final int mMaxBytesPerChunk;
+
+    private final ByteArrayOutputStream mLine = new ByteArrayOutputStream(256);
+    /** Whether {@link #mLine} holds a whole line, rather than the start of a long one. */
+    private boolean mLineComplete;
+    /** Whether {@link #mLine} was read ahead and has not been handled yet. */
+    private boolean mLinePending;
+    private boolean mEndOfStream;
+    private long mPosition;
+
+    private File mSpoolDirectory;
+    private int mSpoolThreshold;
+    private int mSpooledCount;
+    private List<SpooledPhoto> mSpooledPhotos = new ArrayList<SpooledPhoto>();
+
+    /**
+     * @param maxEntriesPerChunk the number of entries after which a chunk ends
+     * @param maxBytesPerChunk the size after which a chunk ends at the next entry boundary
+     */
+    public VCardChunkReader(InputStream inputStream, int maxEntriesPerChunk,
+            int maxBytesPerChunk) {
+        mInputStream = new BufferedInputStream(inputStream);
+        mMaxEntriesPerChunk = maxEntriesPerChunk;
+        mMaxBytesPerChunk = maxBytesPerChunk;
+    }
+
+    /**
+     * Writes the base64 encoded photos of top level entries to files in the given directory,
+     * when they are larger than the threshold. The caller deletes the files.
+     *
+     * @param threshold the encoded size in bytes above which a photo is spooled
+     */
+    public void setPhotoSpoolDirectory(File directory, int threshold) {
+        mSpoolDirectory = directory;
+        mSpoolThreshold = threshold;
+    }
+
+    /**
+     * Returns the photos of the chunk last read that were spooled to files.
+     */
+    public List<SpooledPhoto> getSpooledPhotos() {
+        return mSpooledPhotos;
+    }
+
+    /**
+     * Returns the number of bytes of the source read into chunks so far, which is the position
+     * of the next chunk relative to where the reader started. Spooled photos count as read.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Reads the next chunk, blocking until it is complete.
+     *
+     * @return the chunk, or null at the end of the source. The last chunk may end with an
+     * incomplete entry, which the parser reports.
+     */
+    public byte[] readChunk() throws IOException {
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream(
+                Math.min(mMaxBytesPerChunk, 64 * 1024));
+        mSpooledPhotos = new ArrayList<SpooledPhoto>();
+        final long start = mPosition;
+        int depth = 0;
+        int entries = 0;
+        while (readLine()) {
+            if (depth == 1 && mSpoolDirectory != null && isBase64Photo()) {
+                readPhoto(chunk, entries);
+                continue;
+            }
+            finishLine();
+            mLine.writeTo(chunk);
+            if (lineMatches(BEGIN_VCARD)) {
+                depth++;
+            } else if (depth > 0 && lineMatches(END_VCARD)) {
+                depth--;
+                if (depth == 0) {
+                    entries++;
+                    if (entries >= mMaxEntriesPerChunk || chunk.size() >= mMaxBytesPerChunk) {
+                        break;
+                    }
+                }
+            }
+        }
+        return mPosition == start ? null : chunk.toByteArray();
+    }
+
+    /**
+     * Reads one line, including its terminator, into {@link #mLine}, or its first
+     * {@link #MAX_LINE_PEEK} bytes if it is longer. Returns the line read ahead instead, if any.
+     *
+     * @return false if there was nothing left to read
+     */
+    private boolean readLine() throws IOException {
+        if (mLinePending) {
+            mLinePending = false;
+            return true;
+        }
+        mLine.reset();
+        mLineComplete = false;
+        if (mEndOfStream) {
+            return false;
+        }
+        int b;
+        while ((b = read()) != -1) {
+            mLine.write(b);
+            if (b == '\n') {
+                mLineComplete = true;
+                return true;
+            }
+            if (mLine.size() >= MAX_LINE_PEEK) {
+                return true;
+            }
+        }
+        mEndOfStream = true;
+        mLineComplete = true;
+        return mLine.size() > 0;
+    }
+
+    /**
+     * Reads the rest of a line that {@link #readLine} only read the start of.
+     */
+    private void finishLine() throws IOException {
+        int b;
+        while (!mLineComplete && (b = read()) != -1) {
+            mLine.write(b);
+            mLineComplete = b == '\n';
+        }
+        if (!mLineComplete) {
+            mEndOfStream = true;
+            mLineComplete = true;
+        }
+    }
+
+    private int read() throws IOException {
+        final int b = mInputStream.read();
+        if (b != -1) {
+            mPosition++;
+        }
+        return b;
+    }
+
+    /**
+     * Returns whether the current line starts a base64 encoded PHOTO property.
+     */
+    private boolean isBase64Photo() {
+        final String line = mLine.toString();
+        final int colon = line.indexOf(':');
+        if (colon <= 0 || Character.isWhitespace(line.charAt(0))) {
+            return false;
+        }
+        final String header = line.substring(0, colon).toUpperCase(Locale.US);
+        final int semicolon = header.indexOf(';');
+        String name = semicolon < 0 ? header : header.substring(0, semicolon);
+        // Strip the group, as in "ITEM1.PHOTO"
+        name = name.substring(name.lastIndexOf('.') + 1);
+        return "PHOTO".equals(name) && semicolon >= 0
+                && BASE64_PARAMETER.matcher(header.substring(semicolon + 1)).find();
+    }
+
+    /**
+     * Reads the PHOTO property that starts at the current line. The property is written to
+     * the chunk if it turns out to be small, or to a file otherwise.
+     *
+     * @param entry the index in the chunk of the entry the property is in
+     */
+    private void readPhoto(ByteArrayOutputStream chunk, int entry) throws IOException {
+        final PhotoSpool spool = new PhotoSpool();
+        final byte[] first = mLine.toByteArray();
+        final int colon = indexOf(first, ':');
+        spool.writeRaw(first, 0, colon + 1);
+        spool.write(first, colon + 1, first.length);
+        streamRestOfLine(spool);
+
+        // The value continues on folded lines, which start with white space, and in vCard 2.1
+        // on unfolded lines of base64 up to an empty line
+        while (readLine()) {
+            final byte[] line = mLine.toByteArray();
+            if (line[0] == ' ' || line[0] == '\t' || indexOf(line, ':') < 0) {
+                if (mLineComplete && isBlank(line)) {
+                    spool.writeRaw(line, 0, line.length);
+                    break;
+                }
+                spool.write(line, 0, line.length);
+                streamRestOfLine(spool);
+            } else {
+                mLinePending = true;
+                break;
+            }
+        }
+
+        final File file = spool.close();
+        if (file == null) {
+            spool.writeSmallPhotoTo(chunk);
+        } else {
+            mSpooledPhotos.add(new SpooledPhoto(entry, file));
+        }
+    }
+
+    private void streamRestOfLine(PhotoSpool spool) throws IOException {
+        int b;
+        while (!mLineComplete && (b = read()) != -1) {
+            spool.write(b);
+            mLineComplete = b == '\n';
+        }
+        if (!mLineComplete) {
+            mEndOfStream = true;
+            mLineComplete = true;
+        }
+    }
+
+    private static int indexOf(byte[] line, char c) {
+        for (int i = 0; i < line.length; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(byte[] line) {
+        for (byte b : line) {
+            if (!Character.isWhitespace(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the current line is the given ASCII keyword, ignoring case and trailing
+     * white space. Lines starting with white space continue a folded line, so never match.
+     */
+    private boolean lineMatches(byte[] keyword) {
+        // ByteArrayOutputStream only exposes a copy of its buffer, which is fine as the lines
+        // we compare are short. Long lines cannot match anyway.
+        if (mLine.size() > keyword.length + 16) {
+            return false;
+        }
+        final byte[] line = mLine.toByteArray();
+        if (line.length < keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if (Character.toUpperCase(line[i]) != keyword[i]) {
+                return false;
+            }
+        }
+        for (int i = keyword.length; i < line.length; i++) {
+            if (!Character.isWhitespace(line[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInputStream.close();
+    }
+
+    /**
+     * Collects one photo property. The property is kept as it is in memory until its value
+     * is larger than the spool threshold, after which the base64 value alone goes to a file.
+     */
+    private class PhotoSpool {
+        private ByteArrayOutputStream mRaw = new ByteArrayOutputStream();
+        private int mEncodedSize;
+        private File mFile;
+        private OutputStream mOut;
+
+        /** Writes bytes that are part of the property but not of its value. */
+        void writeRaw(byte[] bytes, int start, int end) {
+            if (mRaw != null) {
+                mRaw.write(bytes, start, end - start);
+            }
+        }
+
+        void write(byte[] bytes, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                write(bytes[i]);
+            }
+        }
+
+        void write(int b) throws IOException {
+            if (mOut != null) {
+                if (!Character.isWhitespace(b)) {
+                    mOut.write(b);
+                }
+                return;
+            }
+            mRaw.write(b);
+            if (!Character.isWhitespace(b) && ++mEncodedSize > mSpoolThreshold) {
+                spill();
+            }
+        }
+
+        /**
+         * Moves the value collected so far to a file.
+         */
+        private void spill() throws IOException {
+            if (!mSpoolDirectory.isDirectory() && !mSpoolDirectory.mkdirs()) {
+                throw new IOException("Failed to create " + mSpoolDirectory);
+            }
+            mFile = new File(mSpoolDirectory, "photo_" + mSpooledCount++);
+            mOut = new BufferedOutputStream(new FileOutputStream(mFile));
+            final byte[] raw = mRaw.toByteArray();
+            mRaw = null;
+            // Skip the property name and parameters
+            for (int i = indexOf(raw, ':') + 1; i < raw.length; i++) {
+                if (!Character.isWhitespace(raw[i])) {
+                    mOut.write(raw[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the file the value was written to, or null if the photo is small
+         */
+        File close() throws IOException {
+            if (mOut != null) {
+                mOut.close();
+            }
+            return mFile;
+        }
+
+        void writeSmallPhotoTo(ByteArrayOutputStream chunk) throws IOException {
+            mRaw.writeTo(chunk);
+        }
+    }
+}
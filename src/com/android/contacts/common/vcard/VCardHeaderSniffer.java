@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import com.android.vcard.VCardParser;
+import com.android.vcard.VCardParser_V21;
+import com.android.vcard.VCardParser_V30;
+import com.android.vcard.VCardSourceDetector;
+import com.android.vcard.exception.VCardException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Guesses the version and charset of a vCard source from its first bytes, so that an import
+ * can start without parsing the whole source first.
+ * <p>
+ * The vendor type and charset are estimated by a {@link VCardSourceDetector} over the entries
+ * in the first bytes, as when the whole source is parsed beforehand. Vendors such as Japanese
+ * carriers write vCard 2.1 in their own charset without declaring it.
+ */
+public class VCardHeaderSniffer {
+    /** Number of bytes to look at. Enough for the header of the first entry. */
+    public static final int HEADER_SIZE = 8 * 1024;
+
+    private static final String VERSION = "VERSION:";
+    private static final String CHARSET = "CHARSET=";
+
+    private final int mVCardVersion;
+    private final String mCharset;
+    private final int mEstimatedType;
+    private final String mEstimatedCharset;
+
+    /**
+     * @param header the first bytes of the source
+     * @param length the number of valid bytes in {@code header}
+     */
+    public VCardHeaderSniffer(byte[] header, int length) {
+        // vCard property names and parameters are ASCII, whatever the charset of the values
+        final String text = new String(header, 0, length, StandardCharsets.ISO_8859_1)
+                .toUpperCase(Locale.US);
+        mVCardVersion = sniffVersion(text);
+        mCharset = sniffCharset(text);
+
+        final VCardSourceDetector detector = new VCardSourceDetector();
+        final VCardParser parser = mVCardVersion == ImportVCardActivity.VCARD_VERSION_V30
+                ? new VCardParser_V30() : new VCardParser_V21();
+        parser.addInterpreter(detector);
+        try {
+            parser.parse(new ByteArrayInputStream(header, 0, length));
+        } catch (VCardException e) {
+            // The header usually ends in the middle of an entry, or the source is not a vCard,
+            // which the import reports. The detector keeps what it saw before.
+        } catch (IOException e) {
+            // Cannot happen with a byte array
+        }
+        mEstimatedType = detector.getEstimatedType();
+        final String estimatedCharset = detector.getEstimatedCharset();
+        mEstimatedCharset = estimatedCharset != null ? estimatedCharset : mCharset;
+    }
+
+    /**
+     * Returns {@link ImportVCardActivity#VCARD_VERSION_V21} or
+     * {@link ImportVCardActivity#VCARD_VERSION_V30}, or
+     * {@link ImportVCardActivity#VCARD_VERSION_AUTO_DETECT} if the header does not say.
+     */
+    public int getVCardVersion() {
+        return mVCardVersion;
+    }
+
+    /**
+     * Returns the charset the first entry declares, or null.
+     */
+    public String getCharset() {
+        return mCharset;
+    }
+
+    /**
+     * Returns the vCard type estimated from the vendor of the source, e.g.
+     * {@link com.android.vcard.VCardConfig#VCARD_TYPE_V21_JAPANESE_MOBILE}, or
+     * {@link com.android.vcard.VCardConfig#VCARD_TYPE_UNKNOWN}.
+     */
+    public int getEstimatedType() {
+        return mEstimatedType;
+    }
+
+    /**
+     * Returns the charset estimated from the vendor of the source, or else the charset the
+     * first entry declares, or null.
+     */
+    public String getEstimatedCharset() {
+        return mEstimatedCharset;
+    }
+
+    private static int sniffVersion(String text) {
+        final int start = findPropertyValue(text, VERSION);
+        if (start < 0) {
+            return ImportVCardActivity.VCARD_VERSION_AUTO_DETECT;
+        }
+        if (text.startsWith("2.1", start)) {
+            return ImportVCardActivity.VCARD_VERSION_V21;
+        }
+        if (text.startsWith("3.0", start)) {
+            return ImportVCardActivity.VCARD_VERSION_V30;
+        }
+        return ImportVCardActivity.VCARD_VERSION_AUTO_DETECT;
+    }
+
+    private static String sniffCharset(String text) {
+        final int start = text.indexOf(CHARSET);
+        if (start < 0) {
+            return null;
+        }
+        int end = start + CHARSET.length();
+        while (end < text.length()) {
+            final char c = text.charAt(end);
+            if (c == ';' || c == ':' || c == '\r' || c == '\n') {
+                break;
+            }
+            end++;
+        }
+        final String charset = text.substring(start + CHARSET.length(), end).trim();
+        return charset.isEmpty() ? null : charset;
+    }
+
+    /**
+     * Returns the index of the value of the first occurrence of the given property at the
+     * start of a line, or -1.
+     */
+    private static int findPropertyValue(String text, String property) {
+        int index = text.indexOf(property);
+        while (index >= 0) {
+            if (index == 0 || text.charAt(index - 1) == '\n') {
+                return index + property.length();
+            }
+            index = text.indexOf(property, index + 1);
+        }
+        return -1;
+    }
+}
@@ -22,11 +22,22 @@ import com.android.vcard.VCardEntry;
 
 interface VCardImportExportListener {
     void onImportProcessed(ImportRequest request, int jobId, int sequence);
-    void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount,
-            int totalCount);
+    /**
+     * Called with the entry just read, at most once per
+     * {@link JobProgress#NOTIFICATION_INTERVAL_MILLIS}.
+     */
+    void onImportProgress(ImportRequest request, int jobId, VCardEntry entry,
+            JobProgress progress);
     void onImportFinished(ImportRequest request, int jobId, Uri uri);
     void onImportFailed(ImportRequest request);
+    /**
+     * Called when a job could not read its source, e.g. because it is not a vCard.
+     *
+     * @param reason the reason shown to the user
+     */
+    void onImportFailed(ImportRequest request, int jobId, String reason);
     void onImportCanceled(ImportRequest request, int jobId);
+    void onImportResumed(ImportRequest request, int jobId, int committedCount);
 
     void onExportProcessed(ExportRequest request, int jobId);
     void onExportFailed(ExportRequest request);
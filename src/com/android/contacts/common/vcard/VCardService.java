@@ -34,10 +34,13 @@ import android.util.SparseArray;
 import com.android.contacts.common.R;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -46,8 +49,13 @@ import java.util.concurrent.RejectedExecutionException;
  * The class responsible for handling vCard import/export requests.
  *
  * This Service creates one ImportRequest/ExportRequest object (as Runnable) per request and push
- * it to {@link ExecutorService} with single thread executor. The executor handles each request
- * one by one, and notifies users when needed.
+ * it to an {@link ExecutorService}, and notifies users when needed.
+ *
+ * Exports run one by one on a single thread executor. Several imports run at once: each
+ * {@link ImportProcessor} splits its source into chunks that are parsed on a shared pool, but
+ * writes its entries to the provider on the export thread. So an export never overlaps the
+ * writes of an import, and writes of all jobs are applied in the order they were produced.
+ * Exports compose ranges of contacts on the same shared pool.
  */
 // TODO: Using IntentService looks simpler than using Service + ServiceConnection though this
 // works fine enough. Investigate the feasibility.
@@ -71,6 +79,12 @@ public class VCardService extends Service {
 
     /* package */ static final String CACHE_FILE_PREFIX = "import_tmp_";
 
+    /**
+     * Size above which a vCard given as a byte array is written to a cache file and imported
+     * from there, so that the chunks of the import are not copied out of one large array.
+     */
+    private static final int MAX_IN_MEMORY_SOURCE_SIZE = 64 * 1024;
+
 
     private class CustomMediaScannerConnectionClient implements MediaScannerConnectionClient {
         final MediaScannerConnection mConnection;
@@ -99,9 +113,18 @@ public class VCardService extends Service {
         }
     }
 
+    /** Number of import requests read and split at the same time. */
+    private static final int MAX_CONCURRENT_IMPORTS = 4;
+
     // Should be single thread, as we don't want to simultaneously handle import and export
-    // requests.
+    // requests. Runs export jobs and the provider writes of import jobs.
     private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+    // Runs import jobs, which mostly wait for the source, the parse pool and mExecutorService.
+    private final ExecutorService mImportExecutorService =
+            Executors.newFixedThreadPool(MAX_CONCURRENT_IMPORTS);
+    // Parses chunks of the sources of import jobs and composes chunks of export jobs.
+    private final ExecutorService mWorkerExecutorService = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
 
     private int mCurrentJobId;
 
@@ -113,6 +136,9 @@ public class VCardService extends Service {
     // almost all cases.
     private final List<CustomMediaScannerConnectionClient> mRemainingScannerConnections =
             new ArrayList<CustomMediaScannerConnectionClient>();
+    // Number of clients still copying files they send streaming import requests for. The
+    // service must not stop between two of their requests, even if no job is running.
+    private int mStreamingClientCount;
 
     /* ** vCard exporter params ** */
     // If true, VCardExporter is able to emits files longer than 8.3 format.
@@ -146,6 +172,35 @@ public class VCardService extends Service {
         mBinder = new MyBinder();
         if (DEBUG) Log.d(LOG_TAG, "vCard Service is being created.");
         initExporterParams();
+        resumeInterruptedImports();
+    }
+
+    /**
+     * Resumes the import jobs that were running when the process was killed, from the last
+     * batch they committed.
+     */
+    private synchronized void resumeInterruptedImports() {
+        for (ImportCheckpoint checkpoint : ImportCheckpoint.loadAll(this)) {
+            final ImportRequest request = checkpoint.getRequest();
+            final NotificationImportExportListener listener =
+                    new NotificationImportExportListener(this);
+            if (!checkpoint.isSourceComplete()) {
+                // The rest of the source was never copied, and we cannot read it again
+                Log.w(LOG_TAG, "Cannot resume the import of a partially copied source: "
+                        + request.uri);
+                checkpoint.delete();
+                listener.onImportFailed(request);
+                continue;
+            }
+            if (tryExecute(new ImportProcessor(this, listener, request, mCurrentJobId,
+                    checkpoint))) {
+                listener.onImportResumed(request, mCurrentJobId,
+                        checkpoint.getCommittedEntryCount());
+                mCurrentJobId++;
+            } else {
+                checkpoint.delete();
+            }
+        }
     }
 
     private void initExporterParams() {
@@ -156,6 +211,9 @@ public class VCardService extends Service {
 
         mExtensionsToConsider = new HashSet<String>();
         mExtensionsToConsider.add(mFileNameExtension);
+        // Compressed exports of the same number, see ExportRequest#withCompressionExtension
+        mExtensionsToConsider.add(mFileNameExtension + "." + ExportRequest.GZIP_EXTENSION);
+        mExtensionsToConsider.add(ExportRequest.ZIP_EXTENSION);
 
         final String additionalExtensions =
             getString(R.string.config_export_extensions_to_consider);
@@ -212,23 +270,94 @@ public class VCardService extends Service {
         }
         final int size = requests.size();
         for (int i = 0; i < size; i++) {
-            ImportRequest request = requests.get(i);
-
-            if (tryExecute(new ImportProcessor(this, listener, request, mCurrentJobId))) {
-                if (listener != null) {
-                    listener.onImportProcessed(request, mCurrentJobId, i);
-                }
-                mCurrentJobId++;
-            } else {
-                if (listener != null) {
-                    listener.onImportFailed(request);
-                }
+            if (!handleImportRequest(requests.get(i), i, listener)) {
                 // A rejection means executor doesn't run any more. Exit.
                 break;
             }
         }
     }
 
+    /**
+     * Queues one import request.
+     *
+     * @param sequence the position of the request among those the user asked for at once
+     * @return false if the request was rejected because the service is shutting down
+     */
+    public synchronized boolean handleImportRequest(ImportRequest request, int sequence,
+            VCardImportExportListener listener) {
+        request = copyLargeSourceToCache(request);
+        final ImportCheckpoint checkpoint = ImportCheckpoint.create(this, request);
+        if (tryExecute(new ImportProcessor(this, listener, request, mCurrentJobId, checkpoint))) {
+            if (listener != null) {
+                listener.onImportProcessed(request, mCurrentJobId, sequence);
+            }
+            mCurrentJobId++;
+            return true;
+        } else {
+            if (checkpoint != null) {
+                checkpoint.delete();
+            }
+            if (listener != null) {
+                listener.onImportFailed(request);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the service running until {@link #finishStreamingImports} is called, so that a
+     * client can send a streaming import request for each of several files, even if the
+     * import of one file ends before the request for the next one is sent.
+     */
+    public synchronized void startStreamingImports() {
+        mStreamingClientCount++;
+    }
+
+    /**
+     * Called by a client that called {@link #startStreamingImports} after its last request.
+     */
+    public synchronized void finishStreamingImports() {
+        if (mStreamingClientCount == 0) {
+            Log.w(LOG_TAG, "Streaming imports finished more often than started");
+            return;
+        }
+        mStreamingClientCount--;
+        stopServiceIfAppropriate();
+    }
+
+    /**
+     * Returns a request that reads a local copy of the vCard, if the request carries a large
+     * vCard as a byte array. The copy can also be read again to resume the import.
+     */
+    private ImportRequest copyLargeSourceToCache(ImportRequest request) {
+        if (request.data == null || request.data.length <= MAX_IN_MEMORY_SOURCE_SIZE) {
+            return request;
+        }
+        File file = null;
+        FileOutputStream out = null;
+        try {
+            file = File.createTempFile(CACHE_FILE_PREFIX, ".vcf", getFilesDir());
+            out = new FileOutputStream(file);
+            out.write(request.data);
+            out.close();
+            out = null;
+            return request.withLocalCopy(Uri.fromFile(file));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to cache an in-memory vCard, importing it from memory", e);
+            if (file != null) {
+                file.delete();
+            }
+            return request;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
     public synchronized void handleExportRequest(ExportRequest request,
             VCardImportExportListener listener) {
         if (tryExecute(new ExportProcessor(this, request, mCurrentJobId, mCallingActivity))) {
@@ -255,6 +384,20 @@ public class VCardService extends Service {
         }
     }
 
+    /**
+     * Returns the executor import jobs parse, and export jobs compose, chunks of vCards on.
+     */
+    /* package */ ExecutorService getWorkerExecutor() {
+        return mWorkerExecutorService;
+    }
+
+    /**
+     * Returns the executor import jobs write to the provider on. It is shared with export jobs.
+     */
+    /* package */ Executor getCommitExecutor() {
+        return mExecutorService;
+    }
+
     /**
      * Tries to call {@link ExecutorService#execute(Runnable)} toward a given processor.
      * @return true when successful.
@@ -265,7 +408,11 @@ public class VCardService extends Service {
                 Log.d(LOG_TAG, "Executor service status: shutdown: " + mExecutorService.isShutdown()
                         + ", terminated: " + mExecutorService.isTerminated());
             }
-            mExecutorService.execute(processor);
+            if (processor.getType() == TYPE_IMPORT) {
+                mImportExecutorService.execute(processor);
+            } else {
+                mExecutorService.execute(processor);
+            }
             mRunningJobMap.put(mCurrentJobId, processor);
             return true;
         } catch (RejectedExecutionException e) {
@@ -274,6 +421,31 @@ public class VCardService extends Service {
         }
     }
 
+    /**
+     * Returns a snapshot of the progress of the given job, or null if it is not running.
+     */
+    public synchronized JobProgress getJobProgress(int jobId) {
+        final ProcessorBase processor = mRunningJobMap.get(jobId);
+        if (processor == null || processor.isDone()) {
+            return null;
+        }
+        return processor.getProgress().copy();
+    }
+
+    /**
+     * Returns snapshots of the progress of all the running jobs, in the order of their ids.
+     */
+    public synchronized List<JobProgress> getAllJobProgress() {
+        final List<JobProgress> progress = new ArrayList<JobProgress>();
+        for (int i = 0; i < mRunningJobMap.size(); i++) {
+            final ProcessorBase processor = mRunningJobMap.valueAt(i);
+            if (!processor.isDone()) {
+                progress.add(processor.getProgress().copy());
+            }
+        }
+        return progress;
+    }
+
     public synchronized void handleCancelRequest(CancelRequest request,
             VCardImportExportListener listener) {
         final int jobId = request.jobId;
@@ -367,8 +539,13 @@ public class VCardService extends Service {
             return;
         }
 
+        if (mStreamingClientCount > 0) {
+            Log.i(LOG_TAG, "A client is still sending streaming import requests.");
+            return;
+        }
+
         Log.i(LOG_TAG, "No unfinished job. Stop this service.");
-        mExecutorService.shutdown();
+        shutdownExecutors();
         stopSelf();
     }
 
@@ -440,6 +617,13 @@ public class VCardService extends Service {
             mRunningJobMap.valueAt(i).cancel(true);
         }
         mRunningJobMap.clear();
+        shutdownExecutors();
+    }
+
+    private void shutdownExecutors() {
+        // Queued writes of canceled imports still run, so that their jobs can finish.
+        mImportExecutorService.shutdown();
+        mWorkerExecutorService.shutdown();
         mExecutorService.shutdown();
     }
 
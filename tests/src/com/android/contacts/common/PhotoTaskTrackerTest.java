@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link PhotoTaskTracker}, which coalesces the photo work of
+ * {@link ContactPhotoManager}.
+ */
+@SmallTest
+public class PhotoTaskTrackerTest extends TestCase {
+    private static final int PRIORITY_PREFETCH = PhotoTaskTracker.PRIORITY_VISIBLE + 1;
+
+    private TestHost mHost;
+    private PhotoTaskTracker mTracker;
+    private ThreadPoolExecutor mExecutor;
+    /** Holds the only worker thread until released, so that submitted tasks stay queued. */
+    private final CountDownLatch mWorkerBlocked = new CountDownLatch(1);
+    private final List<Object> mRunKeys = Collections.synchronizedList(new ArrayList<Object>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHost = new TestHost();
+        mTracker = new PhotoTaskTracker(mHost);
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mWorkerBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWorkerBlocked.countDown();
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    private void runQueuedTasks() throws InterruptedException {
+        mWorkerBlocked.countDown();
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public void testSuppressesDuplicateRequests() throws Exception {
+        mHost.mRequestedKeys.add("a");
+        new TestTask("a", PhotoTaskTracker.PRIORITY_VISIBLE).submit();
+        new TestTask("b", PRIORITY_PREFETCH).submit();
+
+        // Another view asking for "a" waits for the queued task
+        assertTrue(mTracker.isLoadingForView("a"));
+        // A prefetch does not keep a view from asking for its own load, but is not repeated
+        assertFalse(mTracker.isLoadingForView("b"));
+        assertTrue(mTracker.contains("b"));
+
+        runQueuedTasks();
+        assertEquals(2, mRunKeys.size());
+        assertFalse(mTracker.contains("a"));
+        assertFalse(mTracker.contains("b"));
+    }
+
+    public void testFinishedTaskLeavesNewerTaskInFlight() {
+        mHost.mRequestedKeys.add("a");
+        final TestTask older = new TestTask("a", PhotoTaskTracker.PRIORITY_VISIBLE);
+        older.markInFlight();
+        new TestTask("a", PhotoTaskTracker.PRIORITY_VISIBLE).markInFlight();
+
+        older.run();
+        assertTrue(mTracker.isLoadingForView("a"));
+    }
+
+    public void testCancelsUnrequestedTasks() throws Exception {
+        mHost.mRequestedKeys.add("requested");
+        new TestTask("requested", PhotoTaskTracker.PRIORITY_VISIBLE).submit();
+        new TestTask("gone", PhotoTaskTracker.PRIORITY_VISIBLE).submit();
+        new TestTask("prefetch", PRIORITY_PREFETCH).submit();
+
+        mTracker.cancelUnrequestedTasks();
+        assertTrue(mTracker.contains("requested"));
+        assertFalse(mTracker.contains("gone"));
+        // Nobody asked for prefetched photos, so they do not depend on views
+        assertTrue(mTracker.contains("prefetch"));
+        assertEquals(2, mExecutor.getQueue().size());
+
+        runQueuedTasks();
+        assertEquals(2, mRunKeys.size());
+        assertFalse(mRunKeys.contains("gone"));
+    }
+
+    public void testSkipsTaskNobodyWaitsFor() {
+        final TestTask task = new TestTask("a", PhotoTaskTracker.PRIORITY_VISIBLE);
+        task.markInFlight();
+        task.run();
+
+        assertTrue(mRunKeys.isEmpty());
+        assertFalse(mTracker.contains("a"));
+        assertTrue(mHost.mReRequestedKeys.isEmpty());
+    }
+
+    public void testSkippedTaskReportsKeyRequestedAgain() {
+        // The view goes away, and a view asks for the photo again while the task is skipped
+        mHost.mAnswers.add(false);
+        mHost.mAnswers.add(true);
+        final TestTask task = new TestTask("a", PhotoTaskTracker.PRIORITY_VISIBLE);
+        task.markInFlight();
+        task.run();
+
+        assertTrue(mRunKeys.isEmpty());
+        assertFalse(mTracker.contains("a"));
+        assertEquals(Collections.<Object>singletonList("a"), mHost.mReRequestedKeys);
+    }
+
+    public void testRunsVisibleTasksFirstAndNewestFirst() throws Exception {
+        mHost.mRequestedKeys.add("visible 1");
+        mHost.mRequestedKeys.add("visible 2");
+        new TestTask("prefetch", PRIORITY_PREFETCH).submit();
+        new TestTask("visible 1", PhotoTaskTracker.PRIORITY_VISIBLE).submit();
+        new TestTask("visible 2", PhotoTaskTracker.PRIORITY_VISIBLE).submit();
+
+        runQueuedTasks();
+        assertEquals(3, mRunKeys.size());
+        assertEquals("visible 2", mRunKeys.get(0));
+        assertEquals("visible 1", mRunKeys.get(1));
+        assertEquals("prefetch", mRunKeys.get(2));
+    }
+
+    private class TestTask extends PhotoTaskTracker.Task {
+        TestTask(Object key, int priority) {
+            super(mTracker, mExecutor, key, priority);
+        }
+
+        @Override
+        protected void runTask() {
+            mRunKeys.add(mKey);
+        }
+    }
+
+    private static class TestHost implements PhotoTaskTracker.Host {
+        final Set<Object> mRequestedKeys = Collections.synchronizedSet(new HashSet<Object>());
+        /** Answers of isKeyRequested() to give before looking at the requested keys. */
+        final List<Boolean> mAnswers = Collections.synchronizedList(new ArrayList<Boolean>());
+        final List<Object> mReRequestedKeys =
+                Collections.synchronizedList(new ArrayList<Object>());
+
+        @Override
+        public boolean isKeyRequested(Object key) {
+            if (!mAnswers.isEmpty()) {
+                return mAnswers.remove(0);
+            }
+            return mRequestedKeys.contains(key);
+        }
+
+        @Override
+        public void onSkippedKeyRequested(Object key) {
+            mReRequestedKeys.add(key);
+        }
+
+        @Override
+        public void onTaskStarted(long queuedAtNanos) {
+        }
+    }
+}
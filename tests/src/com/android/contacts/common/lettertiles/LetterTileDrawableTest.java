@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.lettertiles;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the rendered tile cache of {@link LetterTileDrawable}.
+ */
+@SmallTest
+public class LetterTileDrawableTest extends AndroidTestCase {
+    private static final int SIZE = 40;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LetterTileDrawable.clearTileCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LetterTileDrawable.clearTileCache();
+        super.tearDown();
+    }
+
+    private LetterTileDrawable createTile(String displayName, String identifier, int size) {
+        final LetterTileDrawable drawable = new LetterTileDrawable(getContext().getResources());
+        drawable.setContactDetails(displayName, identifier);
+        drawable.setBounds(0, 0, size, size);
+        return drawable;
+    }
+
+    public void testReusesTileForSameLetterColorAndSize() {
+        final Bitmap tile = createTile("Alice", "alice@example.com", SIZE).getCachedTile();
+        assertNotNull(tile);
+        assertEquals(SIZE, tile.getWidth());
+        assertEquals(SIZE, tile.getHeight());
+
+        // Only the first letter is shown, so another name with the same letter and color
+        // shares the tile
+        assertSame(tile, createTile("andrew", "alice@example.com", SIZE).getCachedTile());
+        assertSame(tile, createTile("Alice", "alice@example.com", SIZE).getCachedTile());
+    }
+
+    public void testKeysTilesByLetter() {
+        final Bitmap tile = createTile("Alice", "id", SIZE).getCachedTile();
+        assertNotSame(tile, createTile("Bob", "id", SIZE).getCachedTile());
+    }
+
+    public void testKeysTilesByColor() {
+        final LetterTileDrawable drawable = createTile("Alice", "a", SIZE);
+        LetterTileDrawable other = null;
+        for (char c = 'b'; c <= 'z'; c++) {
+            final LetterTileDrawable candidate = createTile("Alice", String.valueOf(c), SIZE);
+            if (candidate.getColor() != drawable.getColor()) {
+                other = candidate;
+                break;
+            }
+        }
+        assertNotNull("All identifiers have the same color", other);
+        assertNotSame(drawable.getCachedTile(), other.getCachedTile());
+    }
+
+    public void testKeysTilesBySize() {
+        final Bitmap tile = createTile("Alice", "id", SIZE).getCachedTile();
+        final Bitmap larger = createTile("Alice", "id", SIZE * 2).getCachedTile();
+        assertNotSame(tile, larger);
+        assertEquals(SIZE * 2, larger.getWidth());
+    }
+
+    public void testKeysTilesByShape() {
+        final LetterTileDrawable circle = createTile("Alice", "id", SIZE);
+        circle.setIsCircular(true);
+        assertNotSame(createTile("Alice", "id", SIZE).getCachedTile(), circle.getCachedTile());
+    }
+
+    public void testKeysTilesWithoutLetterByContactType() {
+        final LetterTileDrawable business = createTile(null, "id", SIZE);
+        business.setContactType(LetterTileDrawable.TYPE_BUSINESS);
+        assertNotSame(createTile(null, "id", SIZE).getCachedTile(), business.getCachedTile());
+
+        // The contact type does not change tiles with a letter
+        final LetterTileDrawable letterBusiness = createTile("Acme", "id", SIZE);
+        letterBusiness.setContactType(LetterTileDrawable.TYPE_BUSINESS);
+        assertSame(createTile("Alice", "id", SIZE).getCachedTile(),
+                letterBusiness.getCachedTile());
+    }
+
+    public void testDoesNotCacheLargeTiles() {
+        assertNull(createTile("Alice", "id", 1000).getCachedTile());
+    }
+
+    public void testRendersAgainAfterClear() {
+        final Bitmap tile = createTile("Alice", "id", SIZE).getCachedTile();
+        LetterTileDrawable.clearTileCache();
+        assertNotSame(tile, createTile("Alice", "id", SIZE).getCachedTile());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Contacts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ContactPositionIndex}.
+ */
+@SmallTest
+public class ContactPositionIndexTest extends TestCase {
+    private static final String[] PROJECTION = new String[] {
+        Contacts._ID, Contacts.DISPLAY_NAME_PRIMARY, Contacts.LOOKUP_KEY
+    };
+
+    private MatrixCursor mCursor;
+    private ContactPositionIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCursor = new MatrixCursor(PROJECTION);
+        mCursor.addRow(new Object[] {10L, "Ann", "0r10-ann"});
+        mCursor.addRow(new Object[] {20L, "Bob", "0r20-bob"});
+        mCursor.addRow(new Object[] {30L, "Cat", null});
+        // Same contact and lookup key as the first row
+        mCursor.addRow(new Object[] {10L, "Ann", "0r10-ann"});
+        // Different strings with the same hash
+        mCursor.addRow(new Object[] {40L, "Dee", "Aa"});
+        mCursor.addRow(new Object[] {50L, "Eve", "BB"});
+        mIndex = new ContactPositionIndex(mCursor, 0, 2);
+    }
+
+    public void testFindsContactIds() {
+        assertEquals(0, mIndex.findContactId(10));
+        assertEquals(1, mIndex.findContactId(20));
+        assertEquals(2, mIndex.findContactId(30));
+        assertEquals(5, mIndex.findContactId(50));
+        assertEquals(-1, mIndex.findContactId(60));
+    }
+
+    public void testFindsLookupKeys() {
+        assertEquals(0, mIndex.findLookupKey(mCursor, "0r10-ann"));
+        assertEquals(1, mIndex.findLookupKey(mCursor, "0r20-bob"));
+        assertEquals(-1, mIndex.findLookupKey(mCursor, "0r30-cat"));
+    }
+
+    public void testComparesLookupKeysWithSameHash() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(4, mIndex.findLookupKey(mCursor, "Aa"));
+        assertEquals(5, mIndex.findLookupKey(mCursor, "BB"));
+    }
+
+    public void testLeavesCursorBeforeFirstRow() {
+        assertEquals(-1, mCursor.getPosition());
+    }
+
+    public void testManyRows() {
+        final MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < 10000; i++) {
+            cursor.addRow(new Object[] {(long) i * 7, "Name " + i, "key" + i});
+        }
+        final ContactPositionIndex index = new ContactPositionIndex(cursor, 0, 2);
+        for (int i = 0; i < 10000; i += 97) {
+            assertEquals(i, index.findContactId(i * 7));
+            assertEquals(i, index.findLookupKey(cursor, "key" + i));
+        }
+        assertEquals(-1, index.findContactId(3));
+    }
+
+    public void testWrap() {
+        final Cursor cursor = ContactPositionIndex.wrap(mCursor);
+        assertTrue(cursor instanceof ContactPositionIndex.IndexedCursor);
+        assertEquals(1, ((ContactPositionIndex.IndexedCursor) cursor).getPositionIndex()
+                .findContactId(20));
+        assertSame(cursor, ContactPositionIndex.wrap(cursor));
+        assertNull(ContactPositionIndex.wrap(null));
+
+        final MatrixCursor withoutLookupKeys = new MatrixCursor(new String[] {Contacts._ID});
+        assertSame(withoutLookupKeys, ContactPositionIndex.wrap(withoutLookupKeys));
+    }
+}
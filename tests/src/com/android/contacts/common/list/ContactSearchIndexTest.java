@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ContactSearchIndex}.
+ */
+@SmallTest
+public class ContactSearchIndexTest extends TestCase {
+    private static final String[] CONTACT_PROJECTION = new String[] {
+        Contacts._ID, Contacts.DISPLAY_NAME_PRIMARY, SearchSnippets.SNIPPET
+    };
+    private static final String[] PHONE_PROJECTION = new String[] {
+        Phone._ID, Phone.NUMBER, Phone.CONTACT_ID
+    };
+
+    private MatrixCursor mSnapshot;
+    private long mNextDataId = 100;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSnapshot = new MatrixCursor(ContactSearchIndex.SNAPSHOT_PROJECTION);
+        addRow(1, "Ann Lee", StructuredName.CONTENT_ITEM_TYPE, "Ann Lee", null, true);
+        addRow(1, "Ann Lee", Phone.CONTENT_ITEM_TYPE, "(650) 555-0100", "+16505550100", true);
+        addRow(1, "Ann Lee", Phone.CONTENT_ITEM_TYPE, "650-555-0100", "+16505550100", true);
+        addRow(2, "Andrés Ortiz", StructuredName.CONTENT_ITEM_TYPE, "Andrés Ortiz", null, true);
+        addRow(2, "Andrés Ortiz", Email.CONTENT_ITEM_TYPE, "dre@example.com", null, true);
+        addRow(2, "Andrés Ortiz", Nickname.CONTENT_ITEM_TYPE, "Dre", null, true);
+        addRow(3, "Bob Anders", StructuredName.CONTENT_ITEM_TYPE, "Bob Anders", null, false);
+        addRow(3, "Bob Anders", Phone.CONTENT_ITEM_TYPE, "212 555 0199", null, false);
+    }
+
+    private void addRow(long contactId, String displayName, String mimeType, String data1,
+            String data4, boolean visible) {
+        final Object[] row = new Object[ContactSearchIndex.SNAPSHOT_PROJECTION.length];
+        row[0] = mNextDataId++;
+        row[1] = contactId;
+        row[2] = mimeType;
+        row[3] = data1;
+        row[6] = data4;
+        row[7] = displayName;
+        row[8] = displayName;
+        row[14] = visible ? 1 : 0;
+        mSnapshot.addRow(row);
+    }
+
+    public void testParseQuery() {
+        assertEquals(Arrays.asList("ann", "lee"),
+                Arrays.asList(ContactSearchIndex.parseQuery("  Ann, LEE ")));
+        assertEquals(Arrays.asList("6505550"),
+                Arrays.asList(ContactSearchIndex.parseQuery("(650) 555-0")));
+        assertEquals(0, ContactSearchIndex.parseQuery(" ").length);
+    }
+
+    public void testMatchesNamePrefixes() {
+        final ContactSearchIndex index = new ContactSearchIndex(mSnapshot);
+        assertMatches(index.findMatches("an"), 0, 1, 2);
+        assertMatches(index.findMatches("le an"), 0);
+    }
+
+    public void testIgnoresAccentsAndCase() {
+        final ContactSearchIndex index = new ContactSearchIndex(mSnapshot);
+        assertMatches(index.findMatches("ANDRES"), 1);
+    }
+
+    public void testMatchesNicknamesAndEmails() {
+        final ContactSearchIndex index = new ContactSearchIndex(mSnapshot);
+        assertMatches(index.findMatches("dre"), 1);
+        assertMatches(index.findMatches("dre@exa"), 1);
+    }
+
+    public void testMatchesNumbers() {
+        final ContactSearchIndex index = new ContactSearchIndex(mSnapshot);
+        assertMatches(index.findMatches("650 555"), 0);
+        assertMatches(index.findMatches("+1650"), 0);
+        assertMatches(index.findMatches("212"), 2);
+    }
+
+    public void testRefinesAndWidensQuery() {
+        final ContactSearchIndex index = new ContactSearchIndex(mSnapshot);
+        assertMatches(index.findMatches("a"), 0, 1, 2);
+        assertMatches(index.findMatches("and"), 1, 2);
+        assertMatches(index.findMatches("andr"), 1);
+        assertMatches(index.findMatches("an"), 0, 1, 2);
+        assertMatches(index.findMatches("bob"), 2);
+    }
+
+    public void testContactResults() {
+        final Cursor cursor = new ContactSearchIndex(mSnapshot).search("an",
+                ContactSearchIndex.MODE_CONTACTS, CONTACT_PROJECTION);
+        // The invisible contact is left out
+        assertEquals(2, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals(1, cursor.getLong(0));
+        assertEquals("Ann Lee", cursor.getString(1));
+        assertNull(cursor.getString(2));
+        assertTrue(cursor.getExtras().getBoolean(ContactsContract.DEFERRED_SNIPPETING));
+    }
+
+    public void testSnippetIsMatchingData() {
+        final Cursor cursor = new ContactSearchIndex(mSnapshot).search("dre",
+                ContactSearchIndex.MODE_CONTACTS, CONTACT_PROJECTION);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals("dre@example.com", cursor.getString(2));
+    }
+
+    public void testPhoneResultsWithoutDuplicates() {
+        final Cursor cursor = new ContactSearchIndex(mSnapshot).search("an",
+                ContactSearchIndex.MODE_PHONES, PHONE_PROJECTION);
+        // Both numbers of Ann are the same, and Andrés has no number
+        assertEquals(2, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals(101, cursor.getLong(0));
+        assertEquals("(650) 555-0100", cursor.getString(1));
+        assertEquals(1, cursor.getLong(2));
+        cursor.moveToNext();
+        assertEquals(3, cursor.getLong(2));
+    }
+
+    private static void assertMatches(int[] actual, int... expected) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link DialpadSearchIndex}.
+ */
+@SmallTest
+public class DialpadSearchIndexTest extends TestCase {
+    private DialpadSearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final List<String[]> names = new ArrayList<String[]>();
+        final List<String[]> numbers = new ArrayList<String[]>();
+        // 0
+        names.add(new String[] {"Jan Smith", "Smith, Jan"});
+        numbers.add(new String[] {"(650) 555-0100"});
+        // 1
+        names.add(new String[] {"Kim Lee", "Lee, Kim"});
+        numbers.add(new String[] {"212 526 0000", "546-1111"});
+        // 2
+        names.add(new String[] {"Zoë", null});
+        numbers.add(new String[] {"+1 415 555 0526"});
+        // 3
+        names.add(new String[] {"Иван", null});
+        numbers.add(new String[] {});
+        mIndex = new DialpadSearchIndex(names, numbers);
+    }
+
+    public void testToKeys() {
+        assertEquals("5264", DialpadSearchIndex.toKeys("jan-g"));
+        assertEquals("16505550100", DialpadSearchIndex.toKeys("+1 (650) 555-0100"));
+        assertNull(DialpadSearchIndex.toKeys("иван"));
+    }
+
+    public void testMatchesNamePrefixes() {
+        // "526" is "jan", and also in numbers of Kim and Zoë
+        assertMatches("526", "0:-1", "1:0", "2:0");
+        assertMatches("76484", "0:-1");
+        assertMatches("533", "1:-1");
+    }
+
+    public void testMatchesInitials() {
+        assertMatches("57", "0:-1");
+        // Initials are only taken from the primary name
+        assertMatches("75");
+    }
+
+    public void testIgnoresAccents() {
+        assertMatches("96", "2:-1");
+    }
+
+    public void testNumberPrefixesBeforeInfixes() {
+        assertMatches("5550", "0:0", "2:0");
+        assertMatches("1", "2:0", "0:0", "1:0", "1:1");
+    }
+
+    public void testNameMatchHidesNumberMatches() {
+        // "546" is "kim", and also the start of Kim's second number
+        assertMatches("546", "1:-1");
+    }
+
+    public void testEmptyQuery() {
+        assertMatches("");
+        assertMatches("-");
+    }
+
+    private void assertMatches(String query, String... expected) {
+        final List<String> actual = new ArrayList<String>();
+        for (DialpadSearchIndex.Match match : mIndex.search(query)) {
+            actual.add(match.toString());
+        }
+        assertEquals(Arrays.asList(expected), actual);
+    }
+}
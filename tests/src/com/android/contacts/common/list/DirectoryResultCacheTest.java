@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link DirectoryResultCache}.
+ */
+@SmallTest
+public class DirectoryResultCacheTest extends TestCase {
+    private static final long DIRECTORY_ID = 5;
+    private static final long TIME_TO_LIVE = 1000;
+
+    private static final String[] PROJECTION = new String[] {
+        Phone._ID, Phone.DISPLAY_NAME, Phone.NUMBER
+    };
+
+    private DirectoryResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new DirectoryResultCache(2, TIME_TO_LIVE);
+    }
+
+    private static MatrixCursor createResult(String name) {
+        final MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        cursor.addRow(new Object[] {1L, name, "(650) 555-0100"});
+        return cursor;
+    }
+
+    public void testKey() {
+        assertEquals("5:john smith", DirectoryResultCache.getKey(5, " John,  Smith"));
+        assertEquals("5:jerome", DirectoryResultCache.getKey(5, "Jérôme"));
+        assertEquals("5:650555", DirectoryResultCache.getKey(5, "(650) 555"));
+        assertNull(DirectoryResultCache.getKey(5, " "));
+    }
+
+    public void testGet() {
+        mCache.put(DIRECTORY_ID, "john", createResult("John"), 0);
+        final Cursor cursor = mCache.get(DIRECTORY_ID, "JOHN ", 10);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals(1, cursor.getLong(0));
+        assertEquals("John", cursor.getString(1));
+        assertEquals("(650) 555-0100", cursor.getString(2));
+
+        assertNull(mCache.get(DIRECTORY_ID, "jo", 10));
+        assertNull(mCache.get(DIRECTORY_ID + 1, "john", 10));
+    }
+
+    public void testExpires() {
+        mCache.put(DIRECTORY_ID, "john", createResult("John"), 0);
+        assertNotNull(mCache.get(DIRECTORY_ID, "john", TIME_TO_LIVE));
+        assertNull(mCache.get(DIRECTORY_ID, "john", TIME_TO_LIVE + 1));
+        assertEquals(0, mCache.size());
+    }
+
+    public void testDropsLeastRecentlyUsed() {
+        mCache.put(DIRECTORY_ID, "a", createResult("A"), 0);
+        mCache.put(DIRECTORY_ID, "b", createResult("B"), 0);
+        mCache.get(DIRECTORY_ID, "a", 0);
+        mCache.put(DIRECTORY_ID, "c", createResult("C"), 0);
+        assertEquals(2, mCache.size());
+        assertNotNull(mCache.get(DIRECTORY_ID, "a", 0));
+        assertNull(mCache.get(DIRECTORY_ID, "b", 0));
+        assertNotNull(mCache.get(DIRECTORY_ID, "c", 0));
+    }
+
+    public void testClear() {
+        mCache.put(DIRECTORY_ID, "john", createResult("John"), 0);
+        mCache.clear();
+        assertNull(mCache.get(DIRECTORY_ID, "john", 0));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link DirectorySearchScheduler}.
+ */
+@SmallTest
+public class DirectorySearchSchedulerTest extends TestCase {
+    private static final long DIRECTORY_ID = 5;
+    private static final int LIMIT = 20;
+
+    private static final String[] PROJECTION = new String[] {
+        Phone._ID, Phone.DISPLAY_NAME, Phone.NUMBER
+    };
+
+    private DirectorySearchScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new DirectorySearchScheduler();
+    }
+
+    private static MatrixCursor createResult() {
+        final MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        cursor.addRow(new Object[] {1L, "John Smith", "(650) 555-0100"});
+        cursor.addRow(new Object[] {2L, "Joan Ortiz", "212 555 0199"});
+        cursor.addRow(new Object[] {3L, "Jérôme Blanc", null});
+        return cursor;
+    }
+
+    public void testDefaultDelay() {
+        assertEquals(DirectorySearchScheduler.DEFAULT_DELAY_MILLIS,
+                mScheduler.getSearchDelayMillis(DIRECTORY_ID));
+    }
+
+    public void testDelayFollowsTyping() {
+        mScheduler.onQueryChanged(1000);
+        mScheduler.onQueryChanged(1200);
+        assertEquals(300, mScheduler.getSearchDelayMillis(DIRECTORY_ID));
+        // A pause is not typing
+        mScheduler.onQueryChanged(10000);
+        assertEquals(300, mScheduler.getSearchDelayMillis(DIRECTORY_ID));
+        // Fast typing is bounded
+        for (int i = 1; i <= 20; i++) {
+            mScheduler.onQueryChanged(10000 + i * 10);
+        }
+        assertEquals(DirectorySearchScheduler.MIN_DELAY_MILLIS,
+                mScheduler.getSearchDelayMillis(DIRECTORY_ID));
+    }
+
+    public void testDelayFollowsLatency() {
+        mScheduler.onSearchStarted(DIRECTORY_ID, "j", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 1600);
+        assertEquals(800, mScheduler.getSearchDelayMillis(DIRECTORY_ID));
+        mScheduler.onSearchStarted(DIRECTORY_ID, "jo", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 5000);
+        assertEquals(DirectorySearchScheduler.MAX_DELAY_MILLIS,
+                mScheduler.getSearchDelayMillis(DIRECTORY_ID));
+        // Other directories are not slowed down
+        assertEquals(DirectorySearchScheduler.DEFAULT_DELAY_MILLIS,
+                mScheduler.getSearchDelayMillis(DIRECTORY_ID + 1));
+    }
+
+    public void testStats() {
+        assertNull(mScheduler.getStats(DIRECTORY_ID));
+        mScheduler.onSearchStarted(DIRECTORY_ID, "j", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 100);
+        mScheduler.onSearchStarted(DIRECTORY_ID, "jo", 1000);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 1200);
+        mScheduler.onSearchStarted(DIRECTORY_ID, "joh", 2000);
+        mScheduler.onSearchCancelled(DIRECTORY_ID);
+        // A result delivered again is not a search
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 3000);
+
+        final DirectorySearchScheduler.DirectoryStats stats = mScheduler.getStats(DIRECTORY_ID);
+        assertEquals(2, stats.getSearchCount());
+        assertEquals(1, stats.getCancelledCount());
+        assertEquals(200, stats.getLastLatencyMillis());
+        assertEquals(130, stats.getAverageLatencyMillis());
+    }
+
+    public void testFiltersCompleteResult() {
+        mScheduler.onSearchStarted(DIRECTORY_ID, "j", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 100);
+
+        Cursor cursor = mScheduler.filterPreviousResult(DIRECTORY_ID, "jo");
+        assertEquals(2, cursor.getCount());
+        cursor = mScheduler.filterPreviousResult(DIRECTORY_ID, "JOHN S");
+        assertEquals(1, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals(1, cursor.getLong(0));
+        assertEquals("(650) 555-0100", cursor.getString(2));
+        assertEquals(2, mScheduler.getStats(DIRECTORY_ID).getFilteredCount());
+    }
+
+    public void testFiltersIgnoringAccents() {
+        mScheduler.onSearchStarted(DIRECTORY_ID, "j", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 100);
+        assertEquals(1, mScheduler.filterPreviousResult(DIRECTORY_ID, "jero").getCount());
+    }
+
+    public void testFiltersNumbers() {
+        mScheduler.onSearchStarted(DIRECTORY_ID, "555", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 100);
+        final Cursor cursor = mScheduler.filterPreviousResult(DIRECTORY_ID, "555-01");
+        assertEquals(2, cursor.getCount());
+        assertEquals(1, mScheduler.filterPreviousResult(DIRECTORY_ID, "555-0199").getCount());
+    }
+
+    public void testFiltersOnlySearchedColumns() {
+        final String[] projection = ContactListAdapter.ContactQuery.FILTER_PROJECTION_PRIMARY;
+        final MatrixCursor result = new MatrixCursor(projection);
+        result.addRow(createContact(projection, 1, "Connor Lee", "0r1-34", null));
+        result.addRow(createContact(projection, 2, "Cal Smith", "0r2-1234", null));
+        result.addRow(createContact(projection, 3, "Bob Carter", "0r3-56", "bob@corp.com"));
+        result.addRow(createContact(projection, 4, "Carl 2nd", "0r4-78", "(650) 555-1234"));
+        mScheduler.onSearchStarted(DIRECTORY_ID, "c", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, result, LIMIT, 100);
+
+        // Every row has a content:// photo URI, which must not match
+        assertIds(mScheduler.filterPreviousResult(DIRECTORY_ID, "co"), 1, 3);
+        assertIds(mScheduler.filterPreviousResult(DIRECTORY_ID, "con"), 1);
+        assertIds(mScheduler.filterPreviousResult(DIRECTORY_ID, "conn"), 1);
+    }
+
+    public void testFiltersNumbersOnlyInSearchedColumns() {
+        final String[] projection = ContactListAdapter.ContactQuery.FILTER_PROJECTION_PRIMARY;
+        final MatrixCursor result = new MatrixCursor(projection);
+        result.addRow(createContact(projection, 1, "Ann", "0r1-1234", null));
+        result.addRow(createContact(projection, 2, "Bea", "0r2-99", "(650) 555-1234"));
+        mScheduler.onSearchStarted(DIRECTORY_ID, "1", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, result, LIMIT, 100);
+
+        // The digits of the lookup key of Ann are not searched
+        assertIds(mScheduler.filterPreviousResult(DIRECTORY_ID, "12"), 2);
+        assertIds(mScheduler.filterPreviousResult(DIRECTORY_ID, "123"), 2);
+    }
+
+    private static Object[] createContact(String[] projection, long id, String name,
+            String lookupKey, String snippet) {
+        final Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            final String column = projection[i];
+            if (Contacts._ID.equals(column)) {
+                row[i] = id;
+            } else if (Contacts.DISPLAY_NAME_PRIMARY.equals(column)) {
+                row[i] = name;
+            } else if (Contacts.PHOTO_THUMBNAIL_URI.equals(column)) {
+                row[i] = "content://com.android.contacts/contacts/" + id + "/photo";
+            } else if (Contacts.LOOKUP_KEY.equals(column)) {
+                row[i] = lookupKey;
+            } else if (Contacts.CONTACT_STATUS.equals(column)) {
+                row[i] = "Connected";
+            } else if (SearchSnippets.SNIPPET.equals(column)) {
+                row[i] = snippet;
+            }
+        }
+        return row;
+    }
+
+    private static void assertIds(Cursor cursor, long... expected) {
+        assertEquals(expected.length, cursor.getCount());
+        for (long id : expected) {
+            cursor.moveToNext();
+            assertEquals(id, cursor.getLong(0));
+        }
+    }
+
+    public void testDoesNotFilterOtherQueries() {
+        mScheduler.onSearchStarted(DIRECTORY_ID, "jo", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 100);
+        assertNull(mScheduler.filterPreviousResult(DIRECTORY_ID, "j"));
+        assertNull(mScheduler.filterPreviousResult(DIRECTORY_ID, "ann"));
+        assertNull(mScheduler.filterPreviousResult(DIRECTORY_ID + 1, "john"));
+    }
+
+    public void testDoesNotFilterLimitedResult() {
+        mScheduler.onSearchStarted(DIRECTORY_ID, "j", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), 3, 100);
+        assertNull(mScheduler.filterPreviousResult(DIRECTORY_ID, "jo"));
+    }
+
+    public void testClearResults() {
+        mScheduler.onSearchStarted(DIRECTORY_ID, "j", 0);
+        mScheduler.onSearchFinished(DIRECTORY_ID, createResult(), LIMIT, 100);
+        mScheduler.clearResults();
+        assertNull(mScheduler.filterPreviousResult(DIRECTORY_ID, "jo"));
+        assertEquals(1, mScheduler.getStats(DIRECTORY_ID).getSearchCount());
+    }
+}
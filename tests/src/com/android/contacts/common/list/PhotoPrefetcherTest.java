@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.list;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PhotoPrefetcher}.
+ */
+@SmallTest
+public class PhotoPrefetcherTest extends TestCase {
+    private static final int ROW_COUNT = 1000;
+    private static final int VISIBLE_ROWS = 10;
+
+    private PhotoPrefetcher mPrefetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefetcher = new PhotoPrefetcher(null);
+    }
+
+    private boolean scroll(long now, int firstVisibleItem) {
+        return mPrefetcher.updateRange(now, ROW_COUNT, 0, firstVisibleItem, VISIBLE_ROWS);
+    }
+
+    public void testFirstSampleDoesNotPrefetch() {
+        assertFalse(scroll(1000, 50));
+        assertEquals(-1, mPrefetcher.getPrefetchedStart());
+    }
+
+    public void testPrefetchesBelowWhenScrollingDown() {
+        scroll(1000, 50);
+        // 20 rows per second, smoothed to 10
+        assertTrue(scroll(1100, 52));
+        assertEquals(62, mPrefetcher.getPrefetchedStart());
+        assertEquals(71, mPrefetcher.getPrefetchedEnd());
+    }
+
+    public void testPrefetchesAboveWhenScrollingUp() {
+        scroll(1000, 50);
+        assertTrue(scroll(1100, 48));
+        assertEquals(38, mPrefetcher.getPrefetchedStart());
+        assertEquals(47, mPrefetcher.getPrefetchedEnd());
+    }
+
+    public void testFirstSampleAfterResetHasNoDirection() {
+        scroll(1000, 50);
+        scroll(1100, 52);
+        mPrefetcher.reset();
+
+        // Used to prefetch below the visible rows, although the list then scrolls up
+        assertFalse(scroll(1200, 48));
+        assertEquals(-1, mPrefetcher.getPrefetchedStart());
+        assertTrue(scroll(1300, 46));
+        assertEquals(36, mPrefetcher.getPrefetchedStart());
+        assertEquals(45, mPrefetcher.getPrefetchedEnd());
+    }
+
+    public void testWindowGrowsWithVelocity() {
+        scroll(1000, 0);
+        // 25 rows per second: the rows of half a second, but at least the visible ones
+        assertTrue(scroll(1100, 5));
+        assertEquals(15, mPrefetcher.getPrefetchedStart());
+        assertEquals(26, mPrefetcher.getPrefetchedEnd());
+        // 37.5 rows per second
+        assertTrue(scroll(1200, 10));
+        assertEquals(20, mPrefetcher.getPrefetchedStart());
+        assertEquals(37, mPrefetcher.getPrefetchedEnd());
+    }
+
+    public void testDoesNotAskAgainForTheSameRows() {
+        scroll(1000, 50);
+        assertTrue(scroll(1100, 52));
+        // Still within the rows asked for
+        assertFalse(scroll(1200, 53));
+    }
+
+    public void testDoesNotPrefetchWhileFlung() {
+        scroll(1000, 0);
+        // 150 rows per second
+        assertFalse(scroll(1100, 30));
+    }
+
+    public void testWindowEndsAtLastRow() {
+        mPrefetcher.updateRange(1000, 60, 0, 45, VISIBLE_ROWS);
+        assertTrue(mPrefetcher.updateRange(1100, 60, 0, 48, VISIBLE_ROWS));
+        assertEquals(58, mPrefetcher.getPrefetchedStart());
+        assertEquals(59, mPrefetcher.getPrefetchedEnd());
+    }
+
+    public void testHeaderViewsAreNotRows() {
+        mPrefetcher.updateRange(1000, ROW_COUNT, 2, 50, VISIBLE_ROWS);
+        assertTrue(mPrefetcher.updateRange(1100, ROW_COUNT, 2, 52, VISIBLE_ROWS));
+        assertEquals(60, mPrefetcher.getPrefetchedStart());
+        assertEquals(69, mPrefetcher.getPrefetchedEnd());
+    }
+}
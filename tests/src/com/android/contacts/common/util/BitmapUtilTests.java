@@ -97,6 +97,45 @@ public class BitmapUtilTests extends AndroidTestCase {
         assertBitmapSize(32, 16, BitmapUtil.decodeBitmapFromBytes(createPngRawData(128, 64), 4));
     }
 
+    public void testDecodeWithPool() throws IOException {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap first = BitmapUtil.decodeBitmapFromBytes(createJpegRawData(128, 64), 2, pool);
+        assertBitmapSize(64, 32, first);
+        assertTrue(first.isMutable());
+
+        // The pooled bitmap is large enough and is reused
+        pool.put(first);
+        final Bitmap second = BitmapUtil.decodeBitmapFromBytes(createPngRawData(120, 60), 2, pool);
+        assertBitmapSize(60, 30, second);
+        assertSame(first, second);
+        assertEquals(0, pool.size());
+    }
+
+    public void testDecodeWithPoolDoesNotReuseSmallerBitmap() throws IOException {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap small = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        pool.put(small);
+        final Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(createJpegRawData(128, 64), 1, pool);
+        assertBitmapSize(128, 64, bitmap);
+        assertNotSame(small, bitmap);
+        assertEquals(small.getAllocationByteCount(), pool.size());
+    }
+
+    public void testCropToSquare() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap square = Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888);
+        assertSame(square, BitmapUtil.cropToSquare(square, pool));
+
+        final Bitmap wide = Bitmap.createBitmap(60, 40, Bitmap.Config.ARGB_8888);
+        assertBitmapSize(40, 40, BitmapUtil.cropToSquare(wide, pool));
+
+        // The original bitmap went into the pool and is used for the next crop
+        final Bitmap tall = Bitmap.createBitmap(40, 50, Bitmap.Config.ARGB_8888);
+        final Bitmap cropped = BitmapUtil.cropToSquare(tall, pool);
+        assertBitmapSize(40, 40, cropped);
+        assertSame(wide, cropped);
+    }
+
     private void assertBitmapSize(int expectedWidth, int expectedHeight, Bitmap bitmap) {
         assertEquals(expectedWidth, bitmap.getWidth());
         assertEquals(expectedHeight, bitmap.getHeight());
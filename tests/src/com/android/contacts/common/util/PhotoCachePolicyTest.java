@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.content.ComponentCallbacks2;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PhotoCachePolicy}.
+ */
+@SmallTest
+public class PhotoCachePolicyTest extends TestCase {
+    private static final int MEGABYTE = 1024 * 1024;
+
+    public void testScalesWithMemoryClass() {
+        final PhotoCachePolicy small = new PhotoCachePolicy(64, false);
+        final PhotoCachePolicy large = new PhotoCachePolicy(256, false);
+        assertEquals(MEGABYTE, small.getHolderCacheSize());
+        assertEquals(4 * MEGABYTE, large.getHolderCacheSize());
+        assertTrue(large.getBitmapCacheSize() > small.getBitmapCacheSize());
+    }
+
+    public void testClampsSizes() {
+        final PhotoCachePolicy tiny = new PhotoCachePolicy(16, false);
+        assertEquals(MEGABYTE, tiny.getHolderCacheSize());
+        assertEquals(MEGABYTE / 2, tiny.getBitmapCacheSize());
+
+        final PhotoCachePolicy huge = new PhotoCachePolicy(4096, false);
+        assertEquals(8 * MEGABYTE, huge.getHolderCacheSize());
+        assertEquals(8 * MEGABYTE, huge.getBitmapCacheSize());
+    }
+
+    public void testLowRamDevice() {
+        final PhotoCachePolicy normal = new PhotoCachePolicy(256, false);
+        final PhotoCachePolicy lowRam = new PhotoCachePolicy(256, true);
+        assertEquals(1.0f, normal.getSizeAdjustment());
+        assertEquals(0.5f, lowRam.getSizeAdjustment());
+        assertEquals(normal.getHolderCacheSize() / 2, lowRam.getHolderCacheSize());
+        assertEquals(normal.getBitmapCacheSize() / 2, lowRam.getBitmapCacheSize());
+    }
+
+    public void testTrimRatios() {
+        // While running, decoded bitmaps shrink before compressed bytes do
+        assertEquals(1f, PhotoCachePolicy.getBitmapCacheTrimRatio(0));
+        assertEquals(1f, PhotoCachePolicy.getHolderCacheTrimRatio(0));
+        assertEquals(0.5f, PhotoCachePolicy.getBitmapCacheTrimRatio(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(1f, PhotoCachePolicy.getHolderCacheTrimRatio(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+
+        // Hidden: no bitmaps, but all bytes are kept
+        assertEquals(0f, PhotoCachePolicy.getBitmapCacheTrimRatio(
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(1f, PhotoCachePolicy.getHolderCacheTrimRatio(
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+
+        assertEquals(0.25f, PhotoCachePolicy.getHolderCacheTrimRatio(
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertEquals(0f, PhotoCachePolicy.getHolderCacheTrimRatio(
+                ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+}
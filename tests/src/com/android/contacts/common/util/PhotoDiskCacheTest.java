@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+/**
+ * Tests for {@link PhotoDiskCache}.
+ */
+@SmallTest
+public class PhotoDiskCacheTest extends AndroidTestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "PhotoDiskCacheTest");
+        new PhotoDiskCache(mDirectory, 0).clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new PhotoDiskCache(mDirectory, 0).clear();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        final PhotoDiskCache cache = new PhotoDiskCache(mDirectory, 100);
+        assertNull(cache.get("a"));
+
+        cache.put("a", new byte[] { 1, 2, 3 });
+        MoreAsserts.assertEquals(new byte[] { 1, 2, 3 }, cache.get("a"));
+        assertEquals(3, cache.size());
+
+        cache.put("a", new byte[] { 4 });
+        MoreAsserts.assertEquals(new byte[] { 4 }, cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    public void testSurvivesNewInstance() {
+        new PhotoDiskCache(mDirectory, 100).put("uri:http://example.com/a?b=c", new byte[] { 7 });
+
+        final PhotoDiskCache cache = new PhotoDiskCache(mDirectory, 100);
+        MoreAsserts.assertEquals(new byte[] { 7 }, cache.get("uri:http://example.com/a?b=c"));
+        assertEquals(1, cache.size());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final PhotoDiskCache cache = new PhotoDiskCache(mDirectory, 10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        assertNotNull(cache.get("a"));
+
+        // "b" is now the least recently used entry
+        cache.put("c", new byte[4]);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(8, cache.size());
+    }
+
+    public void testIgnoresEntriesLargerThanCache() {
+        final PhotoDiskCache cache = new PhotoDiskCache(mDirectory, 10);
+        cache.put("a", new byte[11]);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testGetWithMinWriteTime() {
+        final PhotoDiskCache cache = new PhotoDiskCache(mDirectory, 100);
+        cache.put("a", new byte[] { 1 });
+        assertNotNull(cache.get("a", System.currentTimeMillis() - 60 * 1000));
+        assertNull(cache.get("a", System.currentTimeMillis() + 60 * 1000));
+
+        // Outdated entries are removed
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testRemoveAndClear() {
+        final PhotoDiskCache cache = new PhotoDiskCache(mDirectory, 100);
+        cache.put("a", new byte[] { 1 });
+        cache.put("b", new byte[] { 2 });
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+
+        cache.clear();
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+    }
+}
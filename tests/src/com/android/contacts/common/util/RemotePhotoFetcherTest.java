@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link RemotePhotoFetcher}, against a minimal HTTP server on the loopback
+ * interface.
+ */
+@MediumTest
+public class RemotePhotoFetcherTest extends AndroidTestCase {
+    private static final byte[] PHOTO = new byte[] { 1, 2, 3, 4, 5 };
+
+    private File mDirectory;
+    private PhotoDiskCache mCache;
+    private StandInServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "RemotePhotoFetcherTest");
+        mCache = new PhotoDiskCache(mDirectory, 1024);
+        mCache.clear();
+        mServer = new StandInServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mCache.clear();
+        super.tearDown();
+    }
+
+    public void testFetchWithoutCache() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(null, 1, 1024);
+        mServer.enqueue(ok(PHOTO, null, null));
+        mServer.enqueue(ok(PHOTO, null, null));
+
+        MoreAsserts.assertEquals(PHOTO, fetcher.fetch(mServer.getUrl("/a"), 0));
+        MoreAsserts.assertEquals(PHOTO, fetcher.fetch(mServer.getUrl("/a"), 0));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(2, fetcher.getDownloadCount());
+    }
+
+    public void testFreshCopyIsServedFromCache() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(mCache, 1, 1024);
+        mServer.enqueue(ok(PHOTO, "\"v1\"", null));
+
+        MoreAsserts.assertEquals(PHOTO, fetcher.fetch(mServer.getUrl("/a"), 0));
+        MoreAsserts.assertEquals(PHOTO, fetcher.fetch(mServer.getUrl("/a"), 0));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, fetcher.getCacheHitCount());
+    }
+
+    public void testOutdatedCopyIsRevalidated() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(mCache, 1, 1024);
+        final String lastModified = "Wed, 21 Oct 2015 07:28:00 GMT";
+        mServer.enqueue(ok(PHOTO, "\"v1\"", lastModified));
+        mServer.enqueue(new Response(304, null, null, null));
+
+        MoreAsserts.assertEquals(PHOTO, fetcher.fetch(mServer.getUrl("/a"), 0));
+        final long validSince = System.currentTimeMillis() + 1;
+        Thread.sleep(2);
+        MoreAsserts.assertEquals(PHOTO, fetcher.fetch(mServer.getUrl("/a"), validSince));
+
+        final Map<String, String> headers = mServer.takeRequestHeaders(1);
+        assertEquals("\"v1\"", headers.get("if-none-match"));
+        assertEquals(lastModified, headers.get("if-modified-since"));
+        assertEquals(1, fetcher.getNotModifiedCount());
+
+        // The revalidation counts as a fresh fetch
+        MoreAsserts.assertEquals(PHOTO, fetcher.fetch(mServer.getUrl("/a"), validSince));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testChangedPhotoReplacesCachedCopy() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(mCache, 1, 1024);
+        final byte[] newPhoto = new byte[] { 9, 8, 7 };
+        mServer.enqueue(ok(PHOTO, "\"v1\"", null));
+        mServer.enqueue(ok(newPhoto, "\"v2\"", null));
+
+        fetcher.fetch(mServer.getUrl("/a"), 0);
+        final long validSince = System.currentTimeMillis() + 1;
+        Thread.sleep(2);
+        MoreAsserts.assertEquals(newPhoto, fetcher.fetch(mServer.getUrl("/a"), validSince));
+        MoreAsserts.assertEquals(newPhoto, mCache.get(RemotePhotoFetcher.getCacheKey(
+                mServer.getUrl("/a"))));
+    }
+
+    public void testTooLargePhotoIsRejected() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(mCache, 1, PHOTO.length - 1);
+        mServer.enqueue(ok(PHOTO, null, null));
+
+        try {
+            fetcher.fetch(mServer.getUrl("/a"), 0);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertNull(mCache.get(RemotePhotoFetcher.getCacheKey(mServer.getUrl("/a"))));
+    }
+
+    public void testErrorResponse() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(mCache, 1, 1024);
+        mServer.enqueue(new Response(404, new byte[0], null, null));
+
+        try {
+            fetcher.fetch(mServer.getUrl("/a"), 0);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testReadTimeout() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(mCache, 1, 1024);
+        fetcher.setTimeouts(1000, 100);
+        // Nothing is enqueued, so the server never responds
+
+        try {
+            fetcher.fetch(mServer.getUrl("/a"), 0);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testConnectionIsReused() throws Exception {
+        final RemotePhotoFetcher fetcher = new RemotePhotoFetcher(null, 1, 1024);
+        mServer.enqueue(ok(PHOTO, null, null));
+        mServer.enqueue(ok(PHOTO, null, null));
+        mServer.enqueue(ok(PHOTO, null, null));
+
+        fetcher.fetch(mServer.getUrl("/a"), 0);
+        fetcher.fetch(mServer.getUrl("/b"), 0);
+        fetcher.fetch(mServer.getUrl("/c"), 0);
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    private static Response ok(byte[] body, String etag, String lastModified) {
+        return new Response(200, body, etag, lastModified);
+    }
+
+    private static class Response {
+        final int code;
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+
+        Response(int code, byte[] body, String etag, String lastModified) {
+            this.code = code;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Serves the enqueued responses in order, keeping connections alive between requests.
+     */
+    private static class StandInServer extends Thread {
+        private final ServerSocket mServerSocket;
+        private final LinkedBlockingQueue<Response> mResponses =
+                new LinkedBlockingQueue<Response>();
+        private final List<Map<String, String>> mRequestHeaders =
+                Collections.synchronizedList(new ArrayList<Map<String, String>>());
+        private final AtomicInteger mConnectionCount = new AtomicInteger();
+        private final List<Socket> mSockets =
+                Collections.synchronizedList(new ArrayList<Socket>());
+
+        StandInServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        String getUrl(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        void enqueue(Response response) {
+            mResponses.add(response);
+        }
+
+        int getRequestCount() {
+            return mRequestHeaders.size();
+        }
+
+        int getConnectionCount() {
+            return mConnectionCount.get();
+        }
+
+        Map<String, String> takeRequestHeaders(int index) {
+            return mRequestHeaders.get(index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    mConnectionCount.incrementAndGet();
+                    mSockets.add(socket);
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // Shut down
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                final OutputStream os = socket.getOutputStream();
+                while (true) {
+                    final String requestLine = reader.readLine();
+                    if (requestLine == null) {
+                        return;
+                    }
+                    final Map<String, String> headers = new HashMap<String, String>();
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        final int colon = line.indexOf(':');
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                    mRequestHeaders.add(headers);
+                    final Response response = mResponses.poll(5, TimeUnit.SECONDS);
+                    if (response == null) {
+                        return;
+                    }
+                    final byte[] body = response.body == null ? new byte[0] : response.body;
+                    final StringBuilder sb = new StringBuilder();
+                    sb.append("HTTP/1.1 ").append(response.code).append(" Stand-in\r\n");
+                    sb.append("Content-Length: ").append(body.length).append("\r\n");
+                    if (response.etag != null) {
+                        sb.append("ETag: ").append(response.etag).append("\r\n");
+                    }
+                    if (response.lastModified != null) {
+                        sb.append("Last-Modified: ").append(response.lastModified)
+                                .append("\r\n");
+                    }
+                    sb.append("\r\n");
+                    os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    os.write(body);
+                    os.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection closed
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
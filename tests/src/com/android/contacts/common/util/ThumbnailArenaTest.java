@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ThumbnailArena}.
+ */
+@SmallTest
+public class ThumbnailArenaTest extends TestCase {
+    public void testPutGetRemove() {
+        final ThumbnailArena arena = new ThumbnailArena(1024, 256);
+        assertNull(arena.get(1));
+
+        arena.put(1, new byte[] { 1, 2, 3 });
+        arena.put(-5, new byte[] { 4 });
+        MoreAsserts.assertEquals(new byte[] { 1, 2, 3 }, arena.get(1));
+        MoreAsserts.assertEquals(new byte[] { 4 }, arena.get(-5));
+        assertEquals(2, arena.getEntryCount());
+
+        MoreAsserts.assertEquals(new byte[] { 1, 2, 3 }, arena.remove(1));
+        assertNull(arena.get(1));
+        assertFalse(arena.contains(1));
+        assertTrue(arena.contains(-5));
+        assertEquals(1, arena.getEntryCount());
+    }
+
+    public void testReplace() {
+        final ThumbnailArena arena = new ThumbnailArena(1024, 256);
+        arena.put(1, new byte[10]);
+        final int size = arena.size();
+        arena.put(1, new byte[] { 9 });
+        MoreAsserts.assertEquals(new byte[] { 9 }, arena.get(1));
+        assertEquals(1, arena.getEntryCount());
+        assertEquals(size - 9, arena.size());
+    }
+
+    public void testEvictsOldestSlab() {
+        // Two slabs with room for two 50 byte entries each
+        final ThumbnailArena arena = new ThumbnailArena(256, 128);
+        arena.put(1, new byte[50]);
+        arena.put(2, new byte[50]);
+        arena.put(3, new byte[50]);
+        arena.put(4, new byte[50]);
+        assertEquals(4, arena.getEntryCount());
+
+        // Wraps around to the first slab
+        arena.put(5, new byte[50]);
+        assertFalse(arena.contains(1));
+        assertFalse(arena.contains(2));
+        assertTrue(arena.contains(3));
+        assertTrue(arena.contains(4));
+        assertTrue(arena.contains(5));
+        assertEquals(3, arena.getEntryCount());
+    }
+
+    public void testIgnoresEntriesLargerThanSlab() {
+        final ThumbnailArena arena = new ThumbnailArena(1024, 128);
+        arena.put(1, new byte[200]);
+        assertFalse(arena.contains(1));
+        assertEquals(0, arena.size());
+    }
+
+    public void testManyEntries() {
+        final ThumbnailArena arena = new ThumbnailArena(1024 * 1024, 4096);
+        for (int i = 0; i < 5000; i++) {
+            arena.put(i * 7, new byte[] { (byte) i, (byte) (i >> 8) });
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            arena.remove(i * 7);
+        }
+        assertEquals(2500, arena.getEntryCount());
+        for (int i = 1; i < 5000; i += 2) {
+            MoreAsserts.assertEquals(new byte[] { (byte) i, (byte) (i >> 8) }, arena.get(i * 7));
+        }
+    }
+
+    public void testStaleness() {
+        final ThumbnailArena arena = new ThumbnailArena(1024, 256);
+        arena.put(1, new byte[] { 1 });
+        assertFalse(arena.isStale(1));
+        arena.markAllStale();
+        assertTrue(arena.isStale(1));
+        arena.put(2, new byte[] { 2 });
+        assertFalse(arena.isStale(2));
+        assertFalse(arena.isStale(3));
+    }
+
+    public void testTrimAndClear() {
+        final ThumbnailArena arena = new ThumbnailArena(256, 128);
+        arena.put(1, new byte[50]);
+        arena.put(2, new byte[50]);
+        arena.put(3, new byte[50]);
+
+        arena.trimToSize(128);
+        assertFalse(arena.contains(1));
+        assertFalse(arena.contains(2));
+        assertTrue(arena.contains(3));
+
+        arena.clear();
+        assertFalse(arena.contains(3));
+        assertEquals(0, arena.size());
+        arena.put(4, new byte[] { 4 });
+        assertTrue(arena.contains(4));
+    }
+}
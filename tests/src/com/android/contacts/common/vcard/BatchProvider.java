@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+
+import com.android.contacts.common.test.mocks.MockContentProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accepts every batch an import applies and returns a raw contact Uri for each operation. Keeps
+ * the data rows inserted for each raw contact, in the order of the raw contacts.
+ */
+/* package */ class BatchProvider extends MockContentProvider {
+    private int mOperationCount;
+    private final List<Map<String, List<ContentValues>>> mContacts =
+            new ArrayList<Map<String, List<ContentValues>>>();
+
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations) {
+        final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        Map<String, List<ContentValues>> rows = null;
+        for (int i = 0; i < results.length; i++) {
+            final ContentProviderOperation operation = operations.get(i);
+            results[i] = new ContentProviderResult(
+                    ContentUris.withAppendedId(RawContacts.CONTENT_URI, ++mOperationCount));
+            if (RawContacts.CONTENT_URI.equals(operation.getUri())) {
+                rows = new HashMap<String, List<ContentValues>>();
+                mContacts.add(rows);
+            } else if (Data.CONTENT_URI.equals(operation.getUri()) && rows != null) {
+                // Data rows refer to their raw contact, which was inserted before them
+                final ContentValues values = operation.resolveValueBackReferences(results, i);
+                final String mimeType = values.getAsString(Data.MIMETYPE);
+                List<ContentValues> list = rows.get(mimeType);
+                if (list == null) {
+                    list = new ArrayList<ContentValues>();
+                    rows.put(mimeType, list);
+                }
+                list.add(values);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the data rows of each raw contact, grouped by mime type as
+     * {@link com.android.vcard.VCardComposer#buildVCard} expects.
+     */
+    public synchronized List<Map<String, List<ContentValues>>> getContacts() {
+        return new ArrayList<Map<String, List<ContentValues>>>(mContacts);
+    }
+
+    /**
+     * Returns the display name of each raw contact, or null for those without a name.
+     */
+    public synchronized List<String> getDisplayNames() {
+        final List<String> names = new ArrayList<String>(mContacts.size());
+        for (Map<String, List<ContentValues>> rows : mContacts) {
+            final List<ContentValues> nameRows = rows.get(StructuredName.CONTENT_ITEM_TYPE);
+            names.add(nameRows == null ? null
+                    : nameRows.get(0).getAsString(StructuredName.DISPLAY_NAME));
+        }
+        return names;
+    }
+}
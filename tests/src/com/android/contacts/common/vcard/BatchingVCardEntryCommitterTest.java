@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.vcard.VCardEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link BatchingVCardEntryCommitter}.
+ */
+@SmallTest
+public class BatchingVCardEntryCommitterTest extends AndroidTestCase {
+    private BatchProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new BatchProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+    }
+
+    public void testCommitsInBatches() {
+        final BatchingVCardEntryCommitter committer =
+                new BatchingVCardEntryCommitter(mResolver, 10, 1000);
+        importEntries(committer, 25);
+        assertEquals(3, mProvider.mBatchCount);
+        assertEquals(25, committer.getCreatedUris().size());
+        assertEquals(0, committer.getFailedEntryCount());
+    }
+
+    public void testLimitsOperationsPerBatch() {
+        final int operationsPerEntry = countOperations(new VCardEntry());
+        final BatchingVCardEntryCommitter committer = new BatchingVCardEntryCommitter(
+                mResolver, 100, operationsPerEntry * 4);
+        importEntries(committer, 8);
+        assertEquals(2, mProvider.mBatchCount);
+        assertEquals(8, committer.getCreatedUris().size());
+    }
+
+    public void testRetriesFailedBatchInHalves() {
+        mProvider.mFailingBatchSize = 4 * countOperations(new VCardEntry());
+        final BatchingVCardEntryCommitter committer =
+                new BatchingVCardEntryCommitter(mResolver, 8, 1000);
+        importEntries(committer, 8);
+        // The batch of 8 fails, then both halves of 4 fail, then all four quarters succeed
+        assertEquals(8, committer.getCreatedUris().size());
+        assertEquals(0, committer.getFailedEntryCount());
+        assertEquals(4, mProvider.mBatchCount);
+    }
+
+    public void testCountsEntriesThatFailAlone() {
+        mProvider.mFailingBatchSize = 1;
+        final BatchingVCardEntryCommitter committer =
+                new BatchingVCardEntryCommitter(mResolver, 4, 1000);
+        importEntries(committer, 4);
+        assertEquals(0, committer.getCreatedUris().size());
+        assertEquals(4, committer.getFailedEntryCount());
+    }
+
+    private void importEntries(BatchingVCardEntryCommitter committer, int count) {
+        committer.onStart();
+        for (int i = 0; i < count; i++) {
+            committer.onEntryCreated(new VCardEntry());
+        }
+        committer.onEnd();
+    }
+
+    private int countOperations(VCardEntry entry) {
+        return entry.constructInsertOperations(mResolver, null).size();
+    }
+
+    /**
+     * Applies batches by returning a raw contact Uri for every operation, and rejects batches
+     * of at least {@link #mFailingBatchSize} operations.
+     */
+    private static class BatchProvider extends MockContentProvider {
+        int mFailingBatchSize = Integer.MAX_VALUE;
+        int mBatchCount;
+        private long mNextId = 1;
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            if (operations.size() >= mFailingBatchSize) {
+                throw new OperationApplicationException("Batch too large");
+            }
+            mBatchCount++;
+            final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(
+                        ContentUris.withAppendedId(RawContacts.CONTENT_URI, mNextId++));
+            }
+            return results;
+        }
+    }
+}
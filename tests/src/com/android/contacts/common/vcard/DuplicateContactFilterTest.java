@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardEntryHandler;
+import com.android.vcard.VCardParser_V21;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link DuplicateContactFilter}.
+ */
+@SmallTest
+public class DuplicateContactFilterTest extends AndroidTestCase {
+    private static final Account ACCOUNT = new Account("name", "type");
+
+    private DataProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new DataProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mProvider.addRow(1, Phone.CONTENT_ITEM_TYPE, "+1 (650) 555-0100");
+        mProvider.addRow(2, Email.CONTENT_ITEM_TYPE, "Jane@Example.com");
+        mProvider.addRow(3, StructuredName.CONTENT_ITEM_TYPE, "John Smith");
+    }
+
+    public void testQueriesTargetAccount() {
+        createFilter(ImportRequest.DUPLICATES_SKIP).onStart();
+        assertTrue(mProvider.mSelection.contains(RawContacts.ACCOUNT_NAME));
+        assertEquals(ACCOUNT.type,
+                mProvider.mSelectionArgs[mProvider.mSelectionArgs.length - 1]);
+    }
+
+    public void testMatchesNormalizedPhone() {
+        final DuplicateContactFilter filter = createFilter(ImportRequest.DUPLICATES_SKIP);
+        filter.onStart();
+        assertEquals(1, filter.findDuplicate(parse("FN:Someone\r\nTEL:+16505550100\r\n")));
+    }
+
+    public void testMatchesEmailIgnoringCase() {
+        final DuplicateContactFilter filter = createFilter(ImportRequest.DUPLICATES_SKIP);
+        filter.onStart();
+        assertEquals(2, filter.findDuplicate(parse("FN:Jane\r\nEMAIL:jane@example.COM\r\n")));
+    }
+
+    public void testMatchesNameOnlyWithoutOtherKeys() {
+        final DuplicateContactFilter filter = createFilter(ImportRequest.DUPLICATES_SKIP);
+        filter.onStart();
+        assertEquals(3, filter.findDuplicate(parse("FN:john smith\r\n")));
+        assertEquals(BatchingVCardEntryCommitter.NO_RAW_CONTACT,
+                filter.findDuplicate(parse("FN:John Smith\r\nTEL:5550199\r\n")));
+    }
+
+    public void testSkipPolicy() {
+        final DuplicateContactFilter filter = createFilter(ImportRequest.DUPLICATES_SKIP);
+        importEntries(filter, parse("FN:Someone\r\nTEL:6505550100\r\n"),
+                parse("FN:Someone else\r\nTEL:6505550199\r\n"));
+        assertEquals(1, filter.getSkippedCount());
+        assertEquals(1, mProvider.mInsertedRawContacts);
+        assertEquals(0, mProvider.mAggregationExceptions.size());
+    }
+
+    public void testMergePolicy() {
+        final DuplicateContactFilter filter = createFilter(ImportRequest.DUPLICATES_MERGE);
+        importEntries(filter, parse("FN:Jane\r\nEMAIL:jane@example.com\r\n"));
+        assertEquals(1, filter.getMergedCount());
+        assertEquals(1, mProvider.mInsertedRawContacts);
+        assertEquals(1, mProvider.mAggregationExceptions.size());
+        final ContentProviderOperation operation = mProvider.mAggregationExceptions.get(0);
+        assertEquals(AggregationExceptions.CONTENT_URI, operation.getUri());
+    }
+
+    private DuplicateContactFilter createFilter(int policy) {
+        return new DuplicateContactFilter(mResolver, ACCOUNT, policy,
+                new BatchingVCardEntryCommitter(mResolver));
+    }
+
+    private static void importEntries(DuplicateContactFilter filter, VCardEntry... entries) {
+        filter.onStart();
+        for (VCardEntry entry : entries) {
+            filter.onEntryCreated(entry);
+        }
+        filter.onEnd();
+    }
+
+    private static VCardEntry parse(String properties) {
+        final String vcard = "BEGIN:VCARD\r\nVERSION:2.1\r\n" + properties + "END:VCARD\r\n";
+        final List<VCardEntry> entries = new ArrayList<VCardEntry>();
+        final VCardEntryConstructor constructor = new VCardEntryConstructor();
+        constructor.addEntryHandler(new VCardEntryHandler() {
+            @Override
+            public void onStart() {
+            }
+
+            @Override
+            public void onEntryCreated(VCardEntry entry) {
+                entries.add(entry);
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        });
+        try {
+            new VCardParser_V21().parse(
+                    new ByteArrayInputStream(vcard.getBytes(StandardCharsets.UTF_8)), constructor);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return entries.get(0);
+    }
+
+    /**
+     * Serves data rows of existing raw contacts, and records the batches applied to it.
+     */
+    private static class DataProvider extends MockContentProvider {
+        final MatrixCursor mRows = new MatrixCursor(new String[] {
+                Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.DATA1
+        });
+        final List<ContentProviderOperation> mAggregationExceptions =
+                new ArrayList<ContentProviderOperation>();
+        int mInsertedRawContacts;
+        String mSelection;
+        String[] mSelectionArgs;
+        private long mNextId = 100;
+
+        void addRow(long rawContactId, String mimeType, String value) {
+            mRows.addRow(new Object[] {rawContactId, mimeType, value});
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mRows.moveToPosition(-1);
+            return mRows;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations) {
+            final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                final ContentProviderOperation operation = operations.get(i);
+                if (RawContacts.CONTENT_URI.equals(operation.getUri())) {
+                    mInsertedRawContacts++;
+                } else if (AggregationExceptions.CONTENT_URI.equals(operation.getUri())) {
+                    mAggregationExceptions.add(operation);
+                }
+                results[i] = new ContentProviderResult(
+                        ContentUris.withAppendedId(operation.getUri(), mNextId++));
+            }
+            return results;
+        }
+    }
+}
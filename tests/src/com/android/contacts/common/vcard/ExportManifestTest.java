@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ExportManifest}.
+ */
+@SmallTest
+public class ExportManifestTest extends AndroidTestCase {
+    private static final String NAME = "ExportManifestTest";
+
+    private RawContactsProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new RawContactsProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        deleteManifest();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteManifest();
+        super.tearDown();
+    }
+
+    public void testFirstExportHasAllContacts() {
+        mProvider.addRawContact(1, 10, 1);
+        mProvider.addRawContact(2, 20, 1);
+        assertChanged(new long[] {10, 20}, new long[] {10, 20});
+    }
+
+    public void testUnchangedContactsAreSkipped() {
+        mProvider.addRawContact(1, 10, 1);
+        mProvider.addRawContact(2, 20, 1);
+        exportAndSave(new long[] {10, 20});
+        assertChanged(new long[] {10, 20}, new long[0]);
+    }
+
+    public void testNewVersionIsExported() {
+        mProvider.addRawContact(1, 10, 1);
+        mProvider.addRawContact(2, 20, 1);
+        exportAndSave(new long[] {10, 20});
+
+        mProvider.clear();
+        mProvider.addRawContact(1, 10, 1);
+        mProvider.addRawContact(2, 20, 2);
+        mProvider.addRawContact(3, 30, 1);
+        assertChanged(new long[] {10, 20, 30}, new long[] {20, 30});
+    }
+
+    public void testJoinAndSplitAreExported() {
+        mProvider.addRawContact(1, 10, 1);
+        mProvider.addRawContact(2, 10, 1);
+        mProvider.addRawContact(3, 30, 1);
+        exportAndSave(new long[] {10, 30});
+
+        // Raw contact 2 moves from contact 10 to contact 30
+        mProvider.clear();
+        mProvider.addRawContact(1, 10, 1);
+        mProvider.addRawContact(2, 30, 1);
+        mProvider.addRawContact(3, 30, 1);
+        assertChanged(new long[] {10, 30}, new long[] {10, 30});
+    }
+
+    public void testOnlySelectedContactsAreConsidered() {
+        mProvider.addRawContact(1, 10, 1);
+        mProvider.addRawContact(2, 20, 1);
+        assertChanged(new long[] {20}, new long[] {20});
+    }
+
+    private void exportAndSave(long[] contactIds) {
+        final ExportManifest manifest = ExportManifest.load(getContext(), NAME);
+        manifest.findChangedContacts(mResolver, contactIds);
+        manifest.save();
+    }
+
+    private void assertChanged(long[] selected, long[] expected) {
+        final ExportManifest manifest = ExportManifest.load(getContext(), NAME);
+        final long[] changed = manifest.findChangedContacts(mResolver, selected);
+        assertTrue("changed: " + Arrays.toString(changed), Arrays.equals(expected, changed));
+    }
+
+    private void deleteManifest() {
+        // Saving an empty manifest makes the next export a full one again
+        ExportManifest.load(getContext(), NAME).save();
+    }
+
+    private static class RawContactsProvider extends MockContentProvider {
+        private MatrixCursor mCursor = newCursor();
+
+        void addRawContact(long rawContactId, long contactId, long version) {
+            mCursor.addRow(new Object[] {rawContactId, contactId, version});
+        }
+
+        void clear() {
+            mCursor = newCursor();
+        }
+
+        private static MatrixCursor newCursor() {
+            return new MatrixCursor(new String[] {
+                    RawContacts._ID, RawContacts.CONTACT_ID, RawContacts.VERSION
+            });
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            // Each query consumes the cursor, so hand out a copy
+            final MatrixCursor copy = newCursor();
+            mCursor.moveToPosition(-1);
+            while (mCursor.moveToNext()) {
+                copy.addRow(new Object[] {
+                        mCursor.getLong(0), mCursor.getLong(1), mCursor.getLong(2)
+                });
+            }
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for {@link ExportProcessor}.
+ */
+@SmallTest
+public class ExportProcessorTest extends TestCase {
+    private static final String VCARD = "BEGIN:VCARD\r\nVERSION:3.0\r\nFN:John Doe\r\n"
+            + "END:VCARD\r\n";
+
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Returns tasks that return "0,", "1,"... and finish in the reverse order.
+     */
+    private static List<Callable<byte[]>> createTasks(int count, final AtomicInteger started) {
+        final List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final long delay = (count - i) * 5;
+            tasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws InterruptedException {
+                    started.incrementAndGet();
+                    Thread.sleep(delay);
+                    return (index + ",").getBytes(StandardCharsets.US_ASCII);
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private static class RecordingListener implements ExportProcessor.ChunkListener {
+        final List<Long> mByteCounts = new ArrayList<Long>();
+        int mCancelAfter = Integer.MAX_VALUE;
+
+        @Override
+        public boolean isCancelled() {
+            return mByteCounts.size() >= mCancelAfter;
+        }
+
+        @Override
+        public void onChunkWritten(int chunkCount, long byteCount) {
+            assertEquals(mByteCounts.size() + 1, chunkCount);
+            mByteCounts.add(byteCount);
+        }
+    }
+
+    public void testWritesChunksInOrder() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordingListener listener = new RecordingListener();
+        assertTrue(ExportProcessor.writeInOrder(mExecutor,
+                createTasks(12, new AtomicInteger()), 3, out, listener));
+        assertEquals("0,1,2,3,4,5,6,7,8,9,10,11,",
+                new String(out.toByteArray(), StandardCharsets.US_ASCII));
+        assertEquals(12, listener.mByteCounts.size());
+        assertEquals(2L, (long) listener.mByteCounts.get(0));
+        assertEquals(26L, (long) listener.mByteCounts.get(11));
+    }
+
+    public void testStopsWhenCancelled() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordingListener listener = new RecordingListener();
+        listener.mCancelAfter = 2;
+        final AtomicInteger started = new AtomicInteger();
+        assertFalse(ExportProcessor.writeInOrder(mExecutor, createTasks(12, started), 3, out,
+                listener));
+        assertEquals("0,1,", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+        // No more than the chunks in flight were started
+        assertTrue(started.get() <= 5);
+    }
+
+    public void testWritesNothingWithoutChunks() throws Exception {
+        // As an incremental export with no changed contacts does
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordingListener listener = new RecordingListener();
+        assertTrue(ExportProcessor.writeInOrder(mExecutor,
+                createTasks(0, new AtomicInteger()), 3, out, listener));
+        assertEquals(0, out.size());
+        assertTrue(listener.mByteCounts.isEmpty());
+    }
+
+    public void testCompressionExtension() {
+        final Uri vcf = Uri.fromFile(new File("/sdcard/00001.vcf"));
+        assertEquals("/sdcard/00001.vcf", new ExportRequest(vcf, null,
+                ExportRequest.COMPRESSION_NONE).destUri.getPath());
+        assertEquals("/sdcard/00001.vcf.gz", new ExportRequest(vcf, null,
+                ExportRequest.COMPRESSION_GZIP).destUri.getPath());
+        assertEquals("/sdcard/00001.zip", new ExportRequest(vcf, null,
+                ExportRequest.COMPRESSION_ZIP).destUri.getPath());
+        assertEquals("/sdcard/contacts.zip", ExportRequest.withCompressionExtension(
+                Uri.fromFile(new File("/sdcard/contacts.zip")),
+                ExportRequest.COMPRESSION_ZIP).getPath());
+
+        // The caller chose the name of a document
+        final Uri document = Uri.parse("content://documents/document/42");
+        assertEquals(document, ExportRequest.withCompressionExtension(document,
+                ExportRequest.COMPRESSION_GZIP));
+    }
+
+    public void testGzip() throws IOException {
+        final ExportRequest request = new ExportRequest(
+                Uri.fromFile(new File("/sdcard/00001.vcf")), null,
+                ExportRequest.COMPRESSION_GZIP);
+        final ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        write(ExportProcessor.openContainer(destination, request));
+
+        final InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(destination.toByteArray()));
+        assertEquals(VCARD + VCARD, readFully(in));
+    }
+
+    public void testZip() throws IOException {
+        final ExportRequest request = new ExportRequest(
+                Uri.fromFile(new File("/sdcard/00001.vcf")), null,
+                ExportRequest.COMPRESSION_ZIP);
+        final ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        write(ExportProcessor.openContainer(destination, request));
+
+        final ZipInputStream in = new ZipInputStream(
+                new ByteArrayInputStream(destination.toByteArray()));
+        final ZipEntry entry = in.getNextEntry();
+        assertEquals("00001.vcf", entry.getName());
+        assertEquals(VCARD + VCARD, readFully(in));
+        assertNull(in.getNextEntry());
+    }
+
+    /**
+     * Writes two vCards to the container and closes it, as the export does.
+     */
+    private static void write(OutputStream out) throws IOException {
+        out.write(VCARD.getBytes(StandardCharsets.US_ASCII));
+        out.write(VCARD.getBytes(StandardCharsets.US_ASCII));
+        if (out instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) out).finish();
+        }
+        out.close();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.list.ContactListFilter;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ExportSelection}.
+ */
+@SmallTest
+public class ExportSelectionTest extends TestCase {
+
+    public void testSingleContactSelectsLookupKey() {
+        final ExportSelection selection =
+                ExportSelection.createForSingleContact("0r10-ann").changedSince(1000);
+        assertEquals("0r10-ann", selection.lookupKey);
+
+        final StringBuilder where = new StringBuilder();
+        final Uri uri = selection.appendFilterSelection(Contacts.CONTENT_URI, where);
+        assertEquals(Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, "0r10-ann"), uri);
+        assertEquals(0, where.length());
+    }
+
+    public void testSingleContactFilterNeedsLookupKey() {
+        try {
+            ExportSelection.createForFilter(ContactListFilter.createFilterWithType(
+                    ContactListFilter.FILTER_TYPE_SINGLE_CONTACT));
+            fail("A single contact filter was accepted without a lookup key");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testStarredFilter() {
+        final ExportSelection selection = ExportSelection.createForFilter(
+                ContactListFilter.createFilterWithType(ContactListFilter.FILTER_TYPE_STARRED));
+        final StringBuilder where = new StringBuilder();
+        selection.appendFilterSelection(Contacts.CONTENT_URI, where);
+        assertEquals(Contacts.STARRED + "!=0", where.toString());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.accounts.Account;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ImportCheckpoint}.
+ */
+@SmallTest
+public class ImportCheckpointTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testNotCreatedForByteArray() {
+        final ImportRequest request = new ImportRequest(null, new byte[0], null, "nfc", 0, null,
+                ImportVCardActivity.VCARD_VERSION_V21, 1);
+        assertNull(ImportCheckpoint.create(getContext(), request));
+        assertTrue(ImportCheckpoint.loadAll(getContext()).isEmpty());
+    }
+
+    public void testSavesRequest() {
+        final Account account = new Account("name", "type");
+        ImportCheckpoint.create(getContext(), new ImportRequest(account, null,
+                Uri.parse("file:///data/import_tmp_0.vcf"), "contacts.vcf", 3, "UTF-8",
+                ImportVCardActivity.VCARD_VERSION_V30, 42));
+
+        final List<ImportCheckpoint> checkpoints = ImportCheckpoint.loadAll(getContext());
+        assertEquals(1, checkpoints.size());
+        final ImportCheckpoint checkpoint = checkpoints.get(0);
+        final ImportRequest request = checkpoint.getRequest();
+        assertEquals(account, request.account);
+        assertEquals(Uri.parse("file:///data/import_tmp_0.vcf"), request.uri);
+        assertEquals("contacts.vcf", request.displayName);
+        assertEquals(3, request.estimatedVCardType);
+        assertEquals("UTF-8", request.estimatedCharset);
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V30, request.vcardVersion);
+        assertEquals(42, request.entryCount);
+        assertTrue(checkpoint.isSourceComplete());
+        assertEquals(0, checkpoint.getCommittedEntryCount());
+    }
+
+    public void testSavesProgress() {
+        final ImportCheckpoint created = ImportCheckpoint.create(getContext(), new ImportRequest(
+                null, null, Uri.parse("file:///data/import_tmp_1.vcf"), null, 0, null,
+                ImportVCardActivity.VCARD_VERSION_V21, ImportRequest.ENTRY_COUNT_UNKNOWN));
+        created.update(150, 20480, 100, 148, Arrays.asList(3, 120), false);
+
+        final ImportCheckpoint checkpoint = ImportCheckpoint.loadAll(getContext()).get(0);
+        assertNull(checkpoint.getRequest().account);
+        assertNull(checkpoint.getRequest().displayName);
+        assertEquals(150, checkpoint.getCommittedEntryCount());
+        assertEquals(20480, checkpoint.getResumeOffset());
+        assertEquals(100, checkpoint.getResumeEntryIndex());
+        assertEquals(148, checkpoint.getCreatedCount());
+        assertEquals(Arrays.asList(3, 120), checkpoint.getFailedEntries());
+        assertFalse(checkpoint.isSourceComplete());
+    }
+
+    public void testDelete() {
+        ImportCheckpoint.create(getContext(), new ImportRequest(null, null,
+                Uri.parse("file:///data/import_tmp_2.vcf"), null, 0, null,
+                ImportVCardActivity.VCARD_VERSION_V21, 1)).delete();
+        assertTrue(ImportCheckpoint.loadAll(getContext()).isEmpty());
+    }
+
+    private void deleteAll() {
+        for (ImportCheckpoint checkpoint : ImportCheckpoint.loadAll(getContext())) {
+            checkpoint.delete();
+        }
+    }
+}
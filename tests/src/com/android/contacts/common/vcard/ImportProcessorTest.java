@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.R;
+import com.android.vcard.VCardConfig;
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardParser_V21;
+import com.android.vcard.exception.VCardException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ImportProcessor}.
+ */
+@SmallTest
+public class ImportProcessorTest extends AndroidTestCase {
+    private RecordingListener mListener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mListener = new RecordingListener();
+    }
+
+    public void testNotVCardIsNotSupported() throws IOException {
+        final byte[] source = "Name,Phone\r\nJohn Doe,555-0100\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        final VCardChunkReader reader = new VCardChunkReader(new ByteArrayInputStream(source),
+                ImportProcessor.ENTRIES_PER_CHUNK, ImportProcessor.BYTES_PER_CHUNK);
+        final byte[] chunk = reader.readChunk();
+        reader.close();
+        try {
+            new VCardParser_V21(VCardConfig.VCARD_TYPE_DEFAULT).parse(
+                    new ByteArrayInputStream(chunk), new VCardEntryConstructor());
+            fail("A file that is not a vCard was parsed");
+        } catch (VCardException e) {
+            assertEquals(R.string.fail_reason_not_supported, ImportProcessor.getFailureReason(e));
+        }
+    }
+
+    public void testReadErrorIsIoError() {
+        assertEquals(R.string.fail_reason_io_error,
+                ImportProcessor.getFailureReason(new IOException("Broken pipe")));
+    }
+
+    public void testDeliversEntriesInSourceOrder() throws Exception {
+        // Several chunks, parsed at the same time
+        final int count = ImportProcessor.ENTRIES_PER_CHUNK * 5 + 17;
+        final BatchProvider provider = new BatchProvider();
+        runImport(provider, createSource(0, count, "3.0"), ImportVCardActivity.VCARD_VERSION_V30,
+                count);
+
+        assertEquals(createNames(0, count), provider.getDisplayNames());
+        assertTrue(mListener.mFinished);
+        assertFalse(mListener.mCanceled);
+        assertNull(mListener.mFailureReason);
+    }
+
+    public void testDetectsVersionOfEachChunk() throws Exception {
+        // Chunks alternate between the versions, so that each chunk may start with the version
+        // that another chunk detected
+        final int perChunk = ImportProcessor.ENTRIES_PER_CHUNK;
+        final StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            source.append(createSource(i * perChunk, perChunk, i % 2 == 0 ? "2.1" : "3.0"));
+        }
+        final BatchProvider provider = new BatchProvider();
+        runImport(provider, source.toString(), ImportVCardActivity.VCARD_VERSION_AUTO_DETECT,
+                6 * perChunk);
+
+        assertEquals(createNames(0, 6 * perChunk), provider.getDisplayNames());
+        assertTrue(mListener.mFinished);
+        assertNull(mListener.mFailureReason);
+    }
+
+    public void testCancelsWithChunksInFlight() throws Exception {
+        final int count = ImportProcessor.ENTRIES_PER_CHUNK * 30;
+        final ImportProcessor[] processor = new ImportProcessor[1];
+        final BatchProvider provider = new BatchProvider() {
+            @Override
+            public ContentProviderResult[] applyBatch(
+                    ArrayList<ContentProviderOperation> operations) {
+                // Cancel when the first batch is committed, while later chunks are parsed
+                processor[0].cancel(true);
+                return super.applyBatch(operations);
+            }
+        };
+        final TestVCardService service = new TestVCardService(getContext(), provider);
+        try {
+            processor[0] = new ImportProcessor(service, mListener,
+                    createRequest(createSource(0, count, "3.0"),
+                            ImportVCardActivity.VCARD_VERSION_V30, count), 1, null);
+            processor[0].run();
+        } finally {
+            service.shutdown();
+        }
+
+        assertTrue(processor[0].isCancelled());
+        assertTrue(processor[0].isDone());
+        assertTrue(mListener.mCanceled);
+        assertFalse(mListener.mFinished);
+        // The entries committed are the first ones of the source, and the rest were dropped
+        final List<String> names = provider.getDisplayNames();
+        assertTrue(names.size() < count);
+        assertEquals(createNames(0, names.size()), names);
+        // No parse task is left running
+        assertTrue(service.getWorkerExecutor().awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private void runImport(BatchProvider provider, String source, int vcardVersion, int count) {
+        final TestVCardService service = new TestVCardService(getContext(), provider);
+        try {
+            new ImportProcessor(service, mListener, createRequest(source, vcardVersion, count), 1,
+                    null).run();
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    private static ImportRequest createRequest(String source, int vcardVersion, int count) {
+        return new ImportRequest(null, source.getBytes(StandardCharsets.UTF_8), null, "test",
+                VCardConfig.VCARD_TYPE_UNKNOWN, "UTF-8", vcardVersion, count);
+    }
+
+    /**
+     * Returns entries named "Contact <first>" onwards, in the given version.
+     */
+    private static String createSource(int first, int count, String version) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = first; i < first + count; i++) {
+            builder.append("BEGIN:VCARD\r\nVERSION:").append(version).append("\r\n")
+                    .append("N:").append(i).append(";Contact;;;\r\n")
+                    .append("FN:Contact ").append(i).append("\r\n")
+                    .append("TEL:555-").append(i).append("\r\n")
+                    .append("END:VCARD\r\n");
+        }
+        return builder.toString();
+    }
+
+    private static List<String> createNames(int first, int count) {
+        final List<String> names = new ArrayList<String>();
+        for (int i = first; i < first + count; i++) {
+            names.add("Contact " + i);
+        }
+        return names;
+    }
+
+    private static class RecordingListener implements VCardImportExportListener {
+        volatile boolean mFinished;
+        volatile boolean mCanceled;
+        volatile String mFailureReason;
+
+        @Override
+        public void onImportProcessed(ImportRequest request, int jobId, int sequence) {
+        }
+
+        @Override
+        public void onImportProgress(ImportRequest request, int jobId, VCardEntry entry,
+                JobProgress progress) {
+        }
+
+        @Override
+        public void onImportFinished(ImportRequest request, int jobId, Uri uri) {
+            mFinished = true;
+        }
+
+        @Override
+        public void onImportFailed(ImportRequest request) {
+            mFailureReason = "";
+        }
+
+        @Override
+        public void onImportFailed(ImportRequest request, int jobId, String reason) {
+            mFailureReason = reason;
+        }
+
+        @Override
+        public void onImportCanceled(ImportRequest request, int jobId) {
+            mCanceled = true;
+        }
+
+        @Override
+        public void onImportResumed(ImportRequest request, int jobId, int committedCount) {
+        }
+
+        @Override
+        public void onExportProcessed(ExportRequest request, int jobId) {
+        }
+
+        @Override
+        public void onExportFailed(ExportRequest request) {
+        }
+
+        @Override
+        public void onCancelRequest(CancelRequest request, int type) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
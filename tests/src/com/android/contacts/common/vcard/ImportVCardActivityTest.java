@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.Intent;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ImportVCardActivity}.
+ */
+@SmallTest
+public class ImportVCardActivityTest extends TestCase {
+
+    public void testDuplicatePolicyDefaultsToInsert() {
+        assertEquals(ImportRequest.DUPLICATES_INSERT,
+                ImportVCardActivity.getDuplicatePolicy(new Intent()));
+    }
+
+    public void testDuplicatePolicyFromIntent() {
+        final Intent intent = new Intent();
+        intent.putExtra(ImportVCardActivity.EXTRA_DUPLICATE_POLICY,
+                ImportRequest.DUPLICATES_MERGE);
+        assertEquals(ImportRequest.DUPLICATES_MERGE,
+                ImportVCardActivity.getDuplicatePolicy(intent));
+        intent.putExtra(ImportVCardActivity.EXTRA_DUPLICATE_POLICY,
+                ImportRequest.DUPLICATES_SKIP);
+        assertEquals(ImportRequest.DUPLICATES_SKIP,
+                ImportVCardActivity.getDuplicatePolicy(intent));
+    }
+
+    public void testUnknownDuplicatePolicyIsInsert() {
+        final Intent intent = new Intent();
+        intent.putExtra(ImportVCardActivity.EXTRA_DUPLICATE_POLICY, 42);
+        assertEquals(ImportRequest.DUPLICATES_INSERT,
+                ImportVCardActivity.getDuplicatePolicy(intent));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link JobProgress}.
+ */
+@SmallTest
+public class JobProgressTest extends TestCase {
+    private static final long START = 10000;
+
+    private JobProgress mProgress;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProgress = new JobProgress(1, VCardService.TYPE_IMPORT);
+    }
+
+    public void testUnknownBeforeFirstSample() {
+        mProgress.update(START, 0, 0);
+        mProgress.update(START + JobProgress.MIN_SAMPLE_INTERVAL_MILLIS - 1, 50, 5000);
+        assertEquals(50, mProgress.getEntries());
+        assertEquals(JobProgress.UNKNOWN, mProgress.getEntriesPerSecond(), 0);
+        assertEquals(JobProgress.UNKNOWN, mProgress.getEstimatedRemainingMillis());
+    }
+
+    public void testFirstSampleSetsRate() {
+        mProgress.update(START, 0, 0);
+        mProgress.update(START + 1000, 100, 10000);
+        assertEquals(100, mProgress.getEntriesPerSecond(), 0.001);
+        assertEquals(10000, mProgress.getBytesPerSecond(), 0.001);
+    }
+
+    public void testRateIsSmoothed() {
+        mProgress.update(START, 0, 0);
+        mProgress.update(START + 1000, 100, 0);
+        mProgress.update(START + 2000, 300, 0);
+        final double expected = JobProgress.SMOOTHING_FACTOR * 200
+                + (1 - JobProgress.SMOOTHING_FACTOR) * 100;
+        assertEquals(expected, mProgress.getEntriesPerSecond(), 0.001);
+    }
+
+    public void testEstimatesFromEntries() {
+        mProgress.setTotals(500, 1000000);
+        mProgress.update(START, 0, 0);
+        mProgress.update(START + 1000, 100, 10000);
+        assertEquals(4000, mProgress.getEstimatedRemainingMillis());
+    }
+
+    public void testEstimatesFromBytesWithoutEntryTotal() {
+        mProgress.setTotals(JobProgress.UNKNOWN, 50000);
+        mProgress.update(START, 0, 0);
+        mProgress.update(START + 1000, 100, 10000);
+        assertEquals(4000, mProgress.getEstimatedRemainingMillis());
+    }
+
+    public void testCoalescesNotifications() {
+        assertTrue(mProgress.shouldNotify(START));
+        assertFalse(mProgress.shouldNotify(START + 1));
+        assertFalse(mProgress.shouldNotify(
+                START + JobProgress.NOTIFICATION_INTERVAL_MILLIS - 1));
+        assertTrue(mProgress.shouldNotify(START + JobProgress.NOTIFICATION_INTERVAL_MILLIS));
+    }
+
+    public void testCopyIsSnapshot() {
+        mProgress.update(START, 10, 100);
+        final JobProgress copy = mProgress.copy();
+        mProgress.update(START + 1000, 20, 200);
+        assertEquals(1, copy.getJobId());
+        assertEquals(VCardService.TYPE_IMPORT, copy.getType());
+        assertEquals(10, copy.getEntries());
+        assertEquals(100, copy.getBytes());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.provider.ContactsContract;
+import android.test.mock.MockContentResolver;
+
+/**
+ * A {@link VCardService} that is never started, for running import and export jobs directly on
+ * the calling thread. The jobs use the executors of the service and read and write contacts
+ * through the given provider.
+ */
+/* package */ class TestVCardService extends VCardService {
+    private final MockContentResolver mResolver = new MockContentResolver();
+
+    TestVCardService(Context context, ContentProvider contactsProvider) {
+        final ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = ContactsContract.AUTHORITY;
+        contactsProvider.attachInfo(context, providerInfo);
+        mResolver.addProvider(ContactsContract.AUTHORITY, contactsProvider);
+        attachBaseContext(context);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    @Override
+    void handleFinishImportNotification(int jobId, boolean successful) {
+        // The job was not queued, and the service was not started, so there is nothing to stop
+    }
+
+    @Override
+    void handleFinishExportNotification(int jobId, boolean successful) {
+        // Same as above
+    }
+
+    /**
+     * Shuts the executors down, once the jobs are done.
+     */
+    public void shutdown() {
+        onDestroy();
+    }
+}
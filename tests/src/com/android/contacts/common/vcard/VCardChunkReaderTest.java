@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Tests for {@link VCardChunkReader}.
+ */
+@SmallTest
+public class VCardChunkReaderTest extends TestCase {
+    private static final String ENTRY_1 = "BEGIN:VCARD\r\nVERSION:2.1\r\nN:One\r\nEND:VCARD\r\n";
+    private static final String ENTRY_2 = "begin:vcard\r\nversion:2.1\r\nN:Two\r\nend:vcard\r\n";
+    private static final String ENTRY_3 = "BEGIN:VCARD\nVERSION:2.1\nN:Three\nEND:VCARD\n";
+
+    public void testSplitsByEntryCount() throws IOException {
+        final VCardChunkReader reader = newReader(ENTRY_1 + ENTRY_2 + ENTRY_3, 2, 1024);
+        assertEquals(ENTRY_1 + ENTRY_2, readChunk(reader));
+        assertEquals(ENTRY_3, readChunk(reader));
+        assertNull(reader.readChunk());
+    }
+
+    public void testSplitsBySize() throws IOException {
+        final VCardChunkReader reader = newReader(ENTRY_1 + ENTRY_2 + ENTRY_3, 100, 10);
+        assertEquals(ENTRY_1, readChunk(reader));
+        assertEquals(ENTRY_2, readChunk(reader));
+        assertEquals(ENTRY_3, readChunk(reader));
+        assertNull(reader.readChunk());
+    }
+
+    public void testKeepsNestedEntries() throws IOException {
+        final String agent = "BEGIN:VCARD\r\nVERSION:2.1\r\nAGENT:\r\n" + ENTRY_2
+                + "N:Owner\r\nEND:VCARD\r\n";
+        final VCardChunkReader reader = newReader(agent + ENTRY_3, 1, 1024);
+        assertEquals(agent, readChunk(reader));
+        assertEquals(ENTRY_3, readChunk(reader));
+    }
+
+    public void testIgnoresKeywordsInsideValues() throws IOException {
+        final String entry = "BEGIN:VCARD\r\nNOTE:END:VCARD\r\n END:VCARD\r\nEND:VCARD\r\n";
+        final VCardChunkReader reader = newReader(entry + ENTRY_1, 1, 1024);
+        assertEquals(entry, readChunk(reader));
+        assertEquals(ENTRY_1, readChunk(reader));
+    }
+
+    public void testReturnsIncompleteTail() throws IOException {
+        final VCardChunkReader reader = newReader(ENTRY_1 + "BEGIN:VCARD\r\nN:Tail", 1, 1024);
+        assertEquals(ENTRY_1, readChunk(reader));
+        assertEquals("BEGIN:VCARD\r\nN:Tail", readChunk(reader));
+        assertNull(reader.readChunk());
+    }
+
+    public void testEmptySource() throws IOException {
+        assertNull(newReader("", 10, 1024).readChunk());
+    }
+
+    public void testKeepsSmallPhotoInChunk() throws IOException {
+        final String entry = "BEGIN:VCARD\r\nVERSION:3.0\r\nPHOTO;ENCODING=b;TYPE=JPEG:QUJD\r\n"
+                + " REVG\r\nEND:VCARD\r\n";
+        final VCardChunkReader reader = newReader(entry, 10, 1024);
+        reader.setPhotoSpoolDirectory(createSpoolDirectory(), 16);
+        assertEquals(entry, readChunk(reader));
+        assertTrue(reader.getSpooledPhotos().isEmpty());
+    }
+
+    public void testSpoolsFoldedPhoto() throws IOException {
+        final String photo = "PHOTO;ENCODING=b;TYPE=JPEG:" + repeat("QUJD", 8) + "\r\n "
+                + repeat("REVG", 8) + "\r\n";
+        final String entry = "BEGIN:VCARD\r\nVERSION:3.0\r\n" + photo + "N:Two\r\nEND:VCARD\r\n";
+        final String source = ENTRY_1 + entry;
+        final VCardChunkReader reader = newReader(source, 10, 1024);
+        reader.setPhotoSpoolDirectory(createSpoolDirectory(), 16);
+
+        assertEquals(ENTRY_1 + "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Two\r\nEND:VCARD\r\n",
+                readChunk(reader));
+        assertEquals(source.length(), reader.getPosition());
+        final List<VCardChunkReader.SpooledPhoto> photos = reader.getSpooledPhotos();
+        assertEquals(1, photos.size());
+        assertEquals(1, photos.get(0).entry);
+        assertEquals(repeat("QUJD", 8) + repeat("REVG", 8), readFile(photos.get(0).file));
+    }
+
+    public void testSpoolsVersion21PhotoUpToEmptyLine() throws IOException {
+        final String entry = "BEGIN:VCARD\r\nVERSION:2.1\r\nPHOTO;ENCODING=BASE64;JPEG:\r\n"
+                + repeat("QUJD", 8) + "\r\n" + repeat("REVG", 8) + "\r\n\r\n"
+                + "N:One\r\nEND:VCARD\r\n";
+        final VCardChunkReader reader = newReader(entry, 10, 1024);
+        reader.setPhotoSpoolDirectory(createSpoolDirectory(), 16);
+
+        assertEquals("BEGIN:VCARD\r\nVERSION:2.1\r\nN:One\r\nEND:VCARD\r\n",
+                readChunk(reader));
+        assertEquals(repeat("QUJD", 8) + repeat("REVG", 8),
+                readFile(reader.getSpooledPhotos().get(0).file));
+    }
+
+    public void testSpoolsPhotoLongerThanALine() throws IOException {
+        final String value = repeat("QUJD", 1000);
+        final String entry = "BEGIN:VCARD\r\nVERSION:3.0\r\nPHOTO;ENCODING=b:" + value
+                + "\r\nNOTE:" + value + "\r\nEND:VCARD\r\n";
+        final VCardChunkReader reader = newReader(entry, 10, 1024);
+        reader.setPhotoSpoolDirectory(createSpoolDirectory(), 16);
+
+        assertEquals("BEGIN:VCARD\r\nVERSION:3.0\r\nNOTE:" + value + "\r\nEND:VCARD\r\n",
+                readChunk(reader));
+        assertEquals(value, readFile(reader.getSpooledPhotos().get(0).file));
+    }
+
+    public void testDoesNotSpoolPhotoUrl() throws IOException {
+        final String entry = "BEGIN:VCARD\r\nVERSION:3.0\r\nPHOTO;VALUE=uri:http://example.com/"
+                + repeat("a", 64) + "\r\nEND:VCARD\r\n";
+        final VCardChunkReader reader = newReader(entry, 10, 1024);
+        reader.setPhotoSpoolDirectory(createSpoolDirectory(), 16);
+        assertEquals(entry, readChunk(reader));
+        assertTrue(reader.getSpooledPhotos().isEmpty());
+    }
+
+    private static File createSpoolDirectory() throws IOException {
+        final File directory = File.createTempFile("VCardChunkReaderTest", null);
+        directory.delete();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static String readFile(File file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            file.delete();
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static String repeat(String s, int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private static VCardChunkReader newReader(String source, int entries, int bytes) {
+        return new VCardChunkReader(
+                new ByteArrayInputStream(source.getBytes(StandardCharsets.US_ASCII)),
+                entries, bytes);
+    }
+
+    private static String readChunk(VCardChunkReader reader) throws IOException {
+        return new String(reader.readChunk(), StandardCharsets.US_ASCII);
+    }
+}
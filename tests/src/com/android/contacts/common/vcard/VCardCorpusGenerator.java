@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates synthetic vCard sources for {@link VCardPipelineBenchmark}.
+ *
+ * The same settings always generate the same source, so that runs can be compared.
+ */
+public class VCardCorpusGenerator {
+    private static final String[] GIVEN_NAMES = {
+            "Alice", "Bob", "Carol", "David", "José", "Zoë", "Jürgen", "太郎", "Ольга", "Łukasz"
+    };
+    private static final String[] FAMILY_NAMES = {
+            "Smith", "Jones", "García", "Müller", "山田", "Иванова", "Nguyễn", "O'Brien"
+    };
+    private static final String[] COMPANIES = {
+            "Example Corp", "Acme", "Société Générale", "株式会社サンプル"
+    };
+
+    /** Length of the lines base64 photos are folded at. */
+    private static final int BASE64_LINE_LENGTH = 76;
+
+    private int mEntryCount = 1000;
+    private int mVCardVersion = ImportVCardActivity.VCARD_VERSION_V21;
+    private String mCharset = "UTF-8";
+    private float mPhotoDensity;
+    private int mPhotoDimension = 1024;
+    private long mSeed = 1;
+
+    public VCardCorpusGenerator setEntryCount(int count) {
+        mEntryCount = count;
+        return this;
+    }
+
+    /**
+     * @param version {@link ImportVCardActivity#VCARD_VERSION_V21} or
+     * {@link ImportVCardActivity#VCARD_VERSION_V30}
+     */
+    public VCardCorpusGenerator setVCardVersion(int version) {
+        mVCardVersion = version;
+        return this;
+    }
+
+    /**
+     * Sets the charset of the names. vCard 2.1 sources quote them as quoted-printable.
+     */
+    public VCardCorpusGenerator setCharset(String charset) {
+        mCharset = charset;
+        return this;
+    }
+
+    /**
+     * @param density the fraction of entries that have a photo, between 0 and 1
+     * @param dimension the width and height of the photos in pixels
+     */
+    public VCardCorpusGenerator setPhotos(float density, int dimension) {
+        mPhotoDensity = density;
+        mPhotoDimension = dimension;
+        return this;
+    }
+
+    public VCardCorpusGenerator setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    public int getEntryCount() {
+        return mEntryCount;
+    }
+
+    public int getVCardVersion() {
+        return mVCardVersion;
+    }
+
+    public String getCharset() {
+        return mCharset;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, v%s, %s, %.0f%% photos of %dpx", mEntryCount,
+                mVCardVersion == ImportVCardActivity.VCARD_VERSION_V30 ? "3.0" : "2.1",
+                mCharset, mPhotoDensity * 100, mPhotoDimension);
+    }
+
+    public byte[] generate() throws IOException {
+        final Random random = new Random(mSeed);
+        final Charset charset = Charset.forName(mCharset);
+        final boolean v30 = mVCardVersion == ImportVCardActivity.VCARD_VERSION_V30;
+        final String photo = mPhotoDensity > 0 ? createPhoto(random) : null;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < mEntryCount; i++) {
+            final String given = pick(random, GIVEN_NAMES);
+            final String family = pick(random, FAMILY_NAMES);
+            write(out, "BEGIN:VCARD\r\nVERSION:" + (v30 ? "3.0" : "2.1") + "\r\n", charset);
+            writeText(out, "N", family + ";" + given + ";;;", v30, charset);
+            writeText(out, "FN", given + " " + family, v30, charset);
+            writeText(out, "ORG", pick(random, COMPANIES), v30, charset);
+            write(out, String.format("TEL;TYPE=CELL:+1 650 555 %04d\r\n", random.nextInt(10000)),
+                    charset);
+            write(out, String.format("TEL;TYPE=WORK:(212) 555-%04d\r\n", random.nextInt(10000)),
+                    charset);
+            write(out, "EMAIL;TYPE=INTERNET:user" + i + "@example.com\r\n", charset);
+            writeText(out, "ADR", ";;" + random.nextInt(1000) + " Main St;Springfield;;"
+                    + random.nextInt(100000) + ";USA", v30, charset);
+            writeText(out, "NOTE", "Generated entry " + i + " for " + given, v30, charset);
+            if (photo != null && random.nextFloat() < mPhotoDensity) {
+                write(out, photo, charset);
+            }
+            write(out, "END:VCARD\r\n", charset);
+        }
+        return out.toByteArray();
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static void write(ByteArrayOutputStream out, String s, Charset charset)
+            throws IOException {
+        out.write(s.getBytes(charset));
+    }
+
+    /**
+     * Writes a text property. vCard 2.1 has no default charset, so non-ASCII values carry
+     * their charset and are quoted-printable encoded, as most exporters do.
+     */
+    private static void writeText(ByteArrayOutputStream out, String name, String value,
+            boolean v30, Charset charset) throws IOException {
+        if (v30 || isAscii(value)) {
+            write(out, name + ":" + value + "\r\n", charset);
+            return;
+        }
+        final StringBuilder builder = new StringBuilder(name)
+                .append(";CHARSET=").append(charset.name())
+                .append(";ENCODING=QUOTED-PRINTABLE:");
+        for (byte b : value.getBytes(charset)) {
+            final int c = b & 0xff;
+            if (c >= 0x21 && c <= 0x7e && c != '=') {
+                builder.append((char) c);
+            } else {
+                builder.append(String.format("=%02X", c));
+            }
+        }
+        write(out, builder.append("\r\n").toString(), charset);
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the PHOTO property shared by the entries that have a photo: a JPEG of noise, so
+     * that it compresses as badly as a real photo.
+     */
+    private String createPhoto(Random random) {
+        final Bitmap bitmap = Bitmap.createBitmap(mPhotoDimension, mPhotoDimension,
+                Bitmap.Config.ARGB_8888);
+        final int[] row = new int[mPhotoDimension];
+        for (int y = 0; y < mPhotoDimension; y++) {
+            for (int x = 0; x < mPhotoDimension; x++) {
+                row[x] = Color.rgb(random.nextInt(256), (x + y) & 0xff, y & 0xff);
+            }
+            bitmap.setPixels(row, 0, mPhotoDimension, 0, y, mPhotoDimension, 1);
+        }
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 95, jpeg);
+        bitmap.recycle();
+
+        final String encoded = Base64.encodeToString(jpeg.toByteArray(), Base64.NO_WRAP);
+        final boolean v30 = mVCardVersion == ImportVCardActivity.VCARD_VERSION_V30;
+        final StringBuilder builder = new StringBuilder(v30
+                ? "PHOTO;ENCODING=b;TYPE=JPEG:" : "PHOTO;ENCODING=BASE64;TYPE=JPEG:");
+        for (int i = 0; i < encoded.length(); i += BASE64_LINE_LENGTH) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(encoded, i, Math.min(encoded.length(), i + BASE64_LINE_LENGTH))
+                    .append("\r\n");
+        }
+        if (!v30) {
+            // vCard 2.1 base64 values end with an empty line
+            builder.append("\r\n");
+        }
+        return builder.toString();
+    }
+}
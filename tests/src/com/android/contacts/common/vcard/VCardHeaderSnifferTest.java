@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.vcard.VCardConfig;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link VCardHeaderSniffer}.
+ */
+@SmallTest
+public class VCardHeaderSnifferTest extends TestCase {
+
+    public void testVersion21() {
+        final VCardHeaderSniffer sniffer = sniff("BEGIN:VCARD\r\nVERSION:2.1\r\nN:Doe;John\r\n");
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V21, sniffer.getVCardVersion());
+        assertNull(sniffer.getCharset());
+    }
+
+    public void testVersion30() {
+        final VCardHeaderSniffer sniffer = sniff("begin:vcard\nversion:3.0\nFN:John Doe\n");
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V30, sniffer.getVCardVersion());
+    }
+
+    public void testUnknownVersion() {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_AUTO_DETECT,
+                sniff("BEGIN:VCARD\r\nVERSION:4.0\r\n").getVCardVersion());
+        assertEquals(ImportVCardActivity.VCARD_VERSION_AUTO_DETECT,
+                sniff("BEGIN:VCARD\r\nN:Doe;John\r\n").getVCardVersion());
+        assertEquals(ImportVCardActivity.VCARD_VERSION_AUTO_DETECT,
+                sniff("").getVCardVersion());
+    }
+
+    public void testVersionOnlyAtStartOfLine() {
+        final VCardHeaderSniffer sniffer =
+                sniff("BEGIN:VCARD\r\nNOTE:VERSION:3.0\r\nVERSION:2.1\r\n");
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V21, sniffer.getVCardVersion());
+    }
+
+    public void testCharset() {
+        final VCardHeaderSniffer sniffer = sniff(
+                "BEGIN:VCARD\r\nVERSION:2.1\r\nN;CHARSET=Shift_JIS;ENCODING=QUOTED-PRINTABLE:a\r\n");
+        assertEquals("SHIFT_JIS", sniffer.getCharset());
+    }
+
+    public void testUsesOnlyGivenLength() {
+        final byte[] bytes = "BEGIN:VCARD\r\nVERSION:3.0\r\n".getBytes(StandardCharsets.US_ASCII);
+        final VCardHeaderSniffer sniffer = new VCardHeaderSniffer(bytes, 12);
+        assertEquals(ImportVCardActivity.VCARD_VERSION_AUTO_DETECT, sniffer.getVCardVersion());
+    }
+
+    public void testEstimatesVendorType() {
+        // A Japanese mobile phone, which writes Shift_JIS without declaring it
+        final VCardHeaderSniffer sniffer = sniff("BEGIN:VCARD\r\nVERSION:2.1\r\n"
+                + "N:Doe;John\r\nX-GNO:0\r\nEND:VCARD\r\nBEGIN:VCARD\r\nVERSION:2.1\r\nN:D");
+        assertEquals(VCardConfig.VCARD_TYPE_V21_JAPANESE_MOBILE, sniffer.getEstimatedType());
+        assertEquals("SHIFT_JIS", sniffer.getEstimatedCharset());
+    }
+
+    public void testEstimatesUnknownType() {
+        final VCardHeaderSniffer sniffer = sniff("BEGIN:VCARD\r\nVERSION:3.0\r\n"
+                + "FN:John Doe\r\nEND:VCARD\r\n");
+        assertEquals(VCardConfig.VCARD_TYPE_UNKNOWN, sniffer.getEstimatedType());
+        assertEquals(VCardConfig.VCARD_TYPE_UNKNOWN, sniff("Name,Phone\r\n").getEstimatedType());
+    }
+
+    private static VCardHeaderSniffer sniff(String header) {
+        final byte[] bytes = header.getBytes(StandardCharsets.US_ASCII);
+        return new VCardHeaderSniffer(bytes, bytes.length);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.vcard;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.vcard.VCardComposer;
+import com.android.vcard.VCardConfig;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Measures the throughput of vCard import and export on synthetic sources from
+ * {@link VCardCorpusGenerator}:
+ * <ul>
+ * <li>import: a whole {@link ImportProcessor} job, which reads the source in chunks, parses them
+ * on the worker pool of the service, including scaling spooled photos, and hands the entries in
+ * order to {@link BatchingVCardEntryCommitter}, with a provider that only keeps the data rows of
+ * each batch in memory</li>
+ * <li>export: composing the imported data rows with {@link VCardComposer} in chunks on the worker
+ * pool, and writing them in order with {@link ExportProcessor#writeInOrder}, as
+ * {@link ExportProcessor} does once it has read the contacts</li>
+ * </ul>
+ * Each stage logs its entries and bytes per second, its allocation rate and the peak heap seen
+ * while it ran, under the "VCardBenchmark" tag. Run with:
+ * <pre>
+ * adb shell am instrument -w -e class com.android.contacts.common.vcard.VCardPipelineBenchmark \
+ *     com.android.contacts.common.unittest/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+@LargeTest
+public class VCardPipelineBenchmark extends AndroidTestCase {
+    private static final String TAG = "VCardBenchmark";
+
+    /** Runs of each stage before the measured one, so that the code is compiled and warm. */
+    private static final int WARM_UP_RUNS = 2;
+
+    public void testVersion21Ascii() throws Exception {
+        runAllStages(new VCardCorpusGenerator().setEntryCount(5000)
+                .setVCardVersion(ImportVCardActivity.VCARD_VERSION_V21).setCharset("US-ASCII"));
+    }
+
+    public void testVersion21Utf8() throws Exception {
+        runAllStages(new VCardCorpusGenerator().setEntryCount(5000)
+                .setVCardVersion(ImportVCardActivity.VCARD_VERSION_V21).setCharset("UTF-8"));
+    }
+
+    public void testVersion21ShiftJis() throws Exception {
+        runAllStages(new VCardCorpusGenerator().setEntryCount(5000)
+                .setVCardVersion(ImportVCardActivity.VCARD_VERSION_V21).setCharset("Shift_JIS"));
+    }
+
+    public void testVersion30Utf8() throws Exception {
+        runAllStages(new VCardCorpusGenerator().setEntryCount(5000)
+                .setVCardVersion(ImportVCardActivity.VCARD_VERSION_V30).setCharset("UTF-8"));
+    }
+
+    public void testVersion30SmallPhotos() throws Exception {
+        runAllStages(new VCardCorpusGenerator().setEntryCount(1000)
+                .setVCardVersion(ImportVCardActivity.VCARD_VERSION_V30).setPhotos(0.5f, 96));
+    }
+
+    public void testVersion30LargePhotos() throws Exception {
+        runAllStages(new VCardCorpusGenerator().setEntryCount(200)
+                .setVCardVersion(ImportVCardActivity.VCARD_VERSION_V30).setPhotos(1f, 2048));
+    }
+
+    private void runAllStages(VCardCorpusGenerator generator) throws Exception {
+        final byte[] source = generator.generate();
+        Log.i(TAG, "Corpus: " + generator + ", " + source.length / 1024 + " KB");
+        final ImportRequest request = new ImportRequest(null, source, null, "benchmark",
+                VCardConfig.VCARD_TYPE_UNKNOWN, generator.getCharset(),
+                generator.getVCardVersion(), generator.getEntryCount());
+
+        List<Map<String, List<ContentValues>>> contacts = null;
+        for (int i = 0; i <= WARM_UP_RUNS; i++) {
+            final BatchProvider provider = new BatchProvider();
+            final TestVCardService service = new TestVCardService(getContext(), provider);
+            try {
+                final Measurement measurement = new Measurement("import");
+                new ImportProcessor(service, null, request, i, null).run();
+                measurement.finish(generator.getEntryCount(), source.length, i == WARM_UP_RUNS);
+            } finally {
+                service.shutdown();
+            }
+            contacts = provider.getContacts();
+            assertEquals(generator.getEntryCount(), contacts.size());
+        }
+
+        final int vcardType = generator.getVCardVersion() == ImportVCardActivity.VCARD_VERSION_V30
+                ? VCardConfig.VCARD_TYPE_V30_GENERIC : VCardConfig.VCARD_TYPE_V21_GENERIC;
+        for (int i = 0; i <= WARM_UP_RUNS; i++) {
+            final TestVCardService service = new TestVCardService(getContext(), new BatchProvider());
+            final long[] bytes = new long[1];
+            try {
+                final Measurement measurement = new Measurement("export");
+                assertTrue(ExportProcessor.writeInOrder(service.getWorkerExecutor(),
+                        createComposers(vcardType, contacts),
+                        ExportProcessor.MAX_CHUNKS_IN_FLIGHT, new NullOutputStream(),
+                        new ExportProcessor.ChunkListener() {
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+
+                    @Override
+                    public void onChunkWritten(int chunkCount, long byteCount) {
+                        bytes[0] = byteCount;
+                    }
+                }));
+                measurement.finish(contacts.size(), bytes[0], i == WARM_UP_RUNS);
+            } finally {
+                service.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns tasks that compose the contacts in chunks of the size {@link ExportProcessor} uses.
+     */
+    private List<Callable<byte[]>> createComposers(final int vcardType,
+            List<Map<String, List<ContentValues>>> contacts) {
+        final List<Callable<byte[]>> composers = new ArrayList<Callable<byte[]>>();
+        for (int start = 0; start < contacts.size(); start += ExportProcessor.CONTACTS_PER_CHUNK) {
+            final List<Map<String, List<ContentValues>>> chunk = contacts.subList(start,
+                    Math.min(start + ExportProcessor.CONTACTS_PER_CHUNK, contacts.size()));
+            composers.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    final VCardComposer composer =
+                            new VCardComposer(getContext(), vcardType, true);
+                    final StringBuilder builder = new StringBuilder();
+                    for (Map<String, List<ContentValues>> contact : chunk) {
+                        builder.append(composer.buildVCard(contact));
+                    }
+                    return builder.toString().getBytes(Charset.defaultCharset());
+                }
+            });
+        }
+        return composers;
+    }
+
+    /**
+     * Drops what is written, so that only composing is measured.
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Measures one run of a stage.
+     */
+    private static class Measurement {
+        private final String mStage;
+        private final HeapSampler mHeapSampler = new HeapSampler();
+        private final long mStart;
+
+        Measurement(String stage) {
+            mStage = stage;
+            Runtime.getRuntime().gc();
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+            mHeapSampler.start();
+            mStart = System.nanoTime();
+        }
+
+        /**
+         * @param bytes the size of the input or output of the stage, or -1 if it has none
+         * @param report whether to log the results, or only stop measuring a warm up run
+         */
+        void finish(int entries, long bytes, boolean report) throws InterruptedException {
+            final long elapsed = System.nanoTime() - mStart;
+            Debug.stopAllocCounting();
+            final long allocated = Debug.getGlobalAllocSize();
+            final long peakHeap = mHeapSampler.finish();
+            if (!report) {
+                return;
+            }
+            final double seconds = elapsed / 1e9;
+            final String bytesPerSecond =
+                    bytes < 0 ? "-" : String.format("%.0f", bytes / seconds / 1024);
+            Log.i(TAG, String.format("%s: %d entries in %.0f ms, %.0f entries/s, %s KB/s,"
+                    + " %.0f KB/s allocated, peak heap %d KB", mStage, entries, seconds * 1000,
+                    entries / seconds, bytesPerSecond, allocated / seconds / 1024,
+                    peakHeap / 1024));
+        }
+    }
+
+    /**
+     * Samples the used heap while a stage runs.
+     */
+    private static class HeapSampler extends Thread {
+        private static final long INTERVAL_MS = 5;
+
+        private volatile boolean mFinished;
+        private volatile long mPeak;
+
+        @Override
+        public void run() {
+            while (!mFinished) {
+                sample();
+                try {
+                    Thread.sleep(INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            final Runtime runtime = Runtime.getRuntime();
+            mPeak = Math.max(mPeak, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        long finish() throws InterruptedException {
+            mFinished = true;
+            join();
+            sample();
+            return mPeak;
+        }
+    }
+}